@@ -0,0 +1,91 @@
+package javapm.io;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of the transactional file streams.
+ * Each invocation moves <code>SIZE</code> bytes, the score is
+ * reported in bytes per second.
+ *
+ * @author Vasu Vardhan(vardhan)
+ * @author Pratyush Kumar(pratyush)
+ * @see javapm.io.TransactionalFileInputStream
+ * @see javapm.io.TransactionalFileOutputStream
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TransactionalStreamBenchmark {
+    /**
+     * Bytes moved by each invocation
+     */
+    public static final int SIZE = 64 * 1024;
+
+    private File input;
+
+    private File output;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        input = File.createTempFile("javapm-in", ".bin");
+        output = File.createTempFile("javapm-out", ".bin");
+        byte[] data = new byte[SIZE];
+        new Random(42).nextBytes(data);
+        FileOutputStream out = new FileOutputStream(input);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        input.delete();
+        output.delete();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SIZE)
+    public long read() throws IOException {
+        TransactionalFileInputStream in = new TransactionalFileInputStream(input);
+        long sum = 0;
+        int b;
+        while ((b = in.read()) >= 0) {
+            sum += b;
+        }
+        in.close();
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SIZE)
+    public void write() throws IOException {
+        TransactionalFileOutputStream out = new TransactionalFileOutputStream(output);
+        for (int i = 0; i < SIZE; i++) {
+            out.write(i);
+        }
+        out.close();
+    }
+}
@@ -0,0 +1,104 @@
+package javapm.process;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loopback file transfer of the migration protocol: one
+ * <code>sendFile()</code> on the sender against one
+ * <code>getfile()</code> on the receiver, over a kept-alive
+ * socket pair.
+ *
+ * @author Vasu Vardhan(vardhan)
+ * @author Pratyush Kumar(pratyush)
+ * @see javapm.process.ProcessManager#sendFile(Socket, File, String)
+ * @see javapm.process.ProcessReceiver#getfile()
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FileTransferBenchmark {
+    @Param({"1024", "1048576"})
+    public int fileSize;
+
+    private File source;
+
+    private File target;
+
+    private ServerSocket server;
+
+    private Socket client;
+
+    private Socket accepted;
+
+    private ProcessReceiver receiver;
+
+    private ExecutorService executor;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        source = File.createTempFile("javapm-send", ".bin");
+        target = File.createTempFile("javapm-recv", ".bin");
+        byte[] data = new byte[fileSize];
+        new Random(42).nextBytes(data);
+        FileOutputStream out = new FileOutputStream(source);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        server = new ServerSocket(0);
+        client = new Socket(InetAddress.getLoopbackAddress(), server.getLocalPort());
+        accepted = server.accept();
+        receiver = new ProcessReceiver(ProcessManager.getInstance(), accepted);
+        executor = Executors.newSingleThreadExecutor();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        executor.shutdownNow();
+        client.close();
+        accepted.close();
+        server.close();
+        source.delete();
+        target.delete();
+    }
+
+    @Benchmark
+    public String transfer() throws Exception {
+        Future<String> received = executor.submit(new Callable<String>() {
+            public String call() throws IOException {
+                return receiver.getfile();
+            }
+        });
+        ProcessManager.getInstance().sendFile(client, source, target.getAbsolutePath());
+        return received.get();
+    }
+}
@@ -0,0 +1,513 @@
+package javapm.process;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The end-to-end migration load harness.
+ * The harness starts several <code>ProcessManager</code> nodes on
+ * this machine, each one a JVM in its own working directory with
+ * its own server port. It runs <code>SortProcess</code> and
+ * <code>TailProcess</code> instances through the node consoles,
+ * drives random migrations between the nodes, and follows the
+ * processes by the lines the consoles print. At the end it reports
+ * migrations per second, migration latency and downtime, and
+ * checks the output file of every process on the node it finished.
+ * <p>
+ * The settings are <code>javapm.harness.*</code> system properties:
+ * <ul>
+ * <li><code>nodes</code>, number of nodes (4)</li>
+ * <li><code>processes</code>, number of processes (200)</li>
+ * <li><code>migrations</code>, number of migrations to issue (1000)</li>
+ * <li><code>concurrency</code>, migrations in flight (nodes)</li>
+ * <li><code>lines</code>, input lines per process (20)</li>
+ * <li><code>basePort</code>, server port of the first node (15500)</li>
+ * <li><code>dir</code>, the working directory (harness-work)</li>
+ * <li><code>seed</code>, the random seed (42)</li>
+ * <li><code>timeoutSeconds</code>, the limit of each phase (600)</li>
+ * </ul>
+ *
+ * @author Vasu Vardhan(vardhan)
+ * @author Pratyush Kumar(pratyush)
+ * @see javapm.process.ProcessManager
+ */
+public class MigrationLoadHarness {
+    /**
+     * Lines of input kept by <code>TailProcess</code>
+     */
+    private static final int TAIL_LINES = 5;
+
+    private static final Pattern STARTED = Pattern.compile("Started (\\w+)\\[(\\d+)\\]: (.*)");
+
+    private static final Pattern MIGRATED = Pattern.compile(
+            "Successfully migrated (\\w+)\\[(\\d+)\\] in (\\d+) ms, downtime (\\d+) ms");
+
+    private static final Pattern RECEIVED = Pattern.compile("Received (\\w+)\\[(\\d+)\\]: (.*)");
+
+    private static final Pattern RESTARTED = Pattern.compile("Restarted (\\w+)\\[(\\d+)\\]: (.*)");
+
+    private static final Pattern NO_SUCH_PROCESS = Pattern.compile("No such process: (\\d+)");
+
+    private static final Pattern CONNECT_FAILED = Pattern.compile("Connect \\S+ failed");
+
+    /**
+     * One <code>ProcessManager</code> JVM
+     */
+    private static class Node {
+        int index;
+        int port;
+        File directory;
+        Process jvm;
+        PrintWriter console;
+
+        /**
+         * The tracked processes of the <code>mg</code> commands sent
+         * to this node, in order. The console runs one command at a
+         * time, so each outcome belongs to the head.
+         */
+        List<Tracked> pending = new ArrayList<Tracked>();
+    }
+
+    /**
+     * One process, followed across the nodes
+     */
+    private static class Tracked {
+        String arguments;
+        boolean tail;
+        String[] input;
+        int node;
+        long id = -1;
+        int hops;
+
+        /**
+         * Outcomes still expected for the current migration: the
+         * sender result and the receiver line.
+         */
+        int awaiting;
+
+        boolean finished;
+
+        String outputName;
+
+        boolean inFlight() {
+            return awaiting > 0;
+        }
+    }
+
+    private final int nodeCount;
+    private final int processCount;
+    private final int migrationCount;
+    private final int concurrency;
+    private final int lineCount;
+    private final int basePort;
+    private final File directory;
+    private final long timeoutMillis;
+    private final Random random;
+
+    private final List<Node> nodes = new ArrayList<Node>();
+    private final List<Tracked> tracked = new ArrayList<Tracked>();
+    private final Map<String, Tracked> byArguments = new HashMap<String, Tracked>();
+
+    private final List<Long> latencies = new ArrayList<Long>();
+    private final List<Long> downtimes = new ArrayList<Long>();
+    private int started;
+    private int failed;
+    private int vanished;
+
+    public MigrationLoadHarness() {
+        nodeCount = Integer.getInteger("javapm.harness.nodes", 4);
+        processCount = Integer.getInteger("javapm.harness.processes", 200);
+        migrationCount = Integer.getInteger("javapm.harness.migrations", 1000);
+        concurrency = Integer.getInteger("javapm.harness.concurrency", nodeCount);
+        lineCount = Integer.getInteger("javapm.harness.lines", 20);
+        basePort = Integer.getInteger("javapm.harness.basePort", 15500);
+        directory = new File(System.getProperty("javapm.harness.dir", "harness-work")).getAbsoluteFile();
+        timeoutMillis = Long.getLong("javapm.harness.timeoutSeconds", 600) * 1000;
+        random = new Random(Long.getLong("javapm.harness.seed", 42));
+    }
+
+    public static void main(String[] args) throws Exception {
+        new MigrationLoadHarness().run();
+    }
+
+    public void run() throws Exception {
+        try {
+            startNodes();
+            startProcesses();
+            long elapsed = migrate();
+            report(elapsed);
+            verify();
+        } finally {
+            stopNodes();
+        }
+    }
+
+    /**
+     * Start the node JVMs, each in <code>dir/nodeN</code>. The files
+     * of a previous run are removed.
+     */
+    private void startNodes() throws IOException {
+        String java = new File(new File(System.getProperty("java.home"), "bin"), "java").getPath();
+        StringBuilder classPath = new StringBuilder();
+        for (String entry : System.getProperty("java.class.path").split(File.pathSeparator)) {
+            if (classPath.length() > 0) {
+                classPath.append(File.pathSeparator);
+            }
+            classPath.append(new File(entry).getAbsolutePath());
+        }
+        for (int i = 0; i < nodeCount; i++) {
+            final Node node = new Node();
+            node.index = i;
+            node.port = basePort + i;
+            node.directory = new File(directory, "node" + i);
+            if (!node.directory.isDirectory() && !node.directory.mkdirs()) {
+                throw new IOException("can't create " + node.directory);
+            }
+            for (File file : node.directory.listFiles()) {
+                if (file.isFile()) {
+                    file.delete();
+                }
+            }
+            ProcessBuilder builder = new ProcessBuilder(java, "-cp", classPath.toString(),
+                    "-Djavapm.server.port=" + node.port, "-Djavapm.exit.port=0",
+                    ProcessManager.class.getName());
+            builder.directory(node.directory);
+            builder.redirectErrorStream(true);
+            node.jvm = builder.start();
+            node.console = new PrintWriter(node.jvm.getOutputStream(), true);
+            nodes.add(node);
+            Thread reader = new Thread(new Runnable() {
+                public void run() {
+                    readConsole(node);
+                }
+            }, "node" + i);
+            reader.setDaemon(true);
+            reader.start();
+        }
+        System.out.println("Started " + nodeCount + " nodes on ports " + basePort + "-" +
+                (basePort + nodeCount - 1));
+    }
+
+    /**
+     * Write the input files and run the processes, round robin
+     * over the nodes. Even processes sort, odd processes tail.
+     */
+    private void startProcesses() throws Exception {
+        for (int i = 0; i < processCount; i++) {
+            Tracked process = new Tracked();
+            process.node = i % nodeCount;
+            process.input = new String[lineCount];
+            for (int j = 0; j < lineCount; j++) {
+                process.input[j] = randomLine();
+            }
+            String inputName = "p" + i + "-in.txt";
+            process.outputName = "p" + i + "-out.txt";
+            writeLines(new File(nodes.get(process.node).directory, inputName), process.input);
+            String command;
+            if (i % 2 == 0) {
+                process.arguments = inputName + ", " + process.outputName;
+                command = "run SortProcess " + inputName + " " + process.outputName;
+            } else {
+                process.tail = true;
+                process.arguments = TAIL_LINES + ", " + inputName + ", " + process.outputName;
+                command = "run TailProcess " + TAIL_LINES + " " + inputName + " " + process.outputName;
+            }
+            synchronized (this) {
+                tracked.add(process);
+                byArguments.put(process.arguments, process);
+            }
+            nodes.get(process.node).console.println(command);
+        }
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        synchronized (this) {
+            while (started < processCount) {
+                long left = deadline - System.currentTimeMillis();
+                if (left <= 0) {
+                    throw new IOException("only " + started + " of " + processCount + " processes started");
+                }
+                wait(left);
+            }
+        }
+        System.out.println("Started " + processCount + " processes");
+    }
+
+    /**
+     * Issue random migrations, at most <code>concurrency</code> in
+     * flight, then wait for the last ones.
+     *
+     * @return the elapsed time in nanoseconds
+     */
+    private synchronized long migrate() throws InterruptedException {
+        long start = System.nanoTime();
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        int issued = 0;
+        while (issued < migrationCount && System.currentTimeMillis() < deadline) {
+            if (inFlight() >= concurrency) {
+                wait(100);
+                continue;
+            }
+            Tracked process = pickIdle();
+            if (process == null) {
+                if (inFlight() == 0) {
+                    break;
+                }
+                wait(100);
+                continue;
+            }
+            int target = random.nextInt(nodeCount - 1);
+            if (target >= process.node) {
+                target++;
+            }
+            Node source = nodes.get(process.node);
+            process.awaiting = 2;
+            source.pending.add(process);
+            source.console.println("mg " + process.id + " 127.0.0.1:" + nodes.get(target).port);
+            issued++;
+        }
+        while (inFlight() > 0 && System.currentTimeMillis() < deadline) {
+            wait(100);
+        }
+        return System.nanoTime() - start;
+    }
+
+    private void report(long elapsedNanos) {
+        double seconds = elapsedNanos / 1e9;
+        synchronized (this) {
+            System.out.println("-------------------------------");
+            System.out.printf("migrations:        %d in %.1f s%n", latencies.size(), seconds);
+            System.out.printf("migrations/s:      %.1f%n", latencies.size() / seconds);
+            System.out.printf("failed:            %d%n", failed);
+            System.out.printf("finished before mg:%d%n", vanished);
+            System.out.printf("latency p50/p99:   %d / %d ms%n",
+                    percentile(latencies, 50), percentile(latencies, 99));
+            System.out.printf("downtime p50/p99:  %d / %d ms%n",
+                    percentile(downtimes, 50), percentile(downtimes, 99));
+            int maxHops = 0;
+            for (Tracked process : tracked) {
+                maxHops = Math.max(maxHops, process.hops);
+            }
+            System.out.printf("max hops:          %d%n", maxHops);
+        }
+    }
+
+    /**
+     * Wait for the processes to finish, and compare each output file,
+     * on the node the process is on, with the expected output.
+     */
+    private void verify() throws InterruptedException, IOException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        List<Tracked> remaining;
+        synchronized (this) {
+            remaining = new ArrayList<Tracked>(tracked);
+        }
+        while (true) {
+            List<Tracked> wrong = new ArrayList<Tracked>();
+            for (Tracked process : remaining) {
+                if (!Arrays.equals(expectedOutput(process), readOutput(process))) {
+                    wrong.add(process);
+                }
+            }
+            remaining = wrong;
+            if (remaining.isEmpty() || System.currentTimeMillis() >= deadline) {
+                break;
+            }
+            Thread.sleep(1000);
+        }
+        System.out.printf("correct outputs:   %d of %d%n", processCount - remaining.size(), processCount);
+        for (int i = 0; i < remaining.size() && i < 10; i++) {
+            Tracked process = remaining.get(i);
+            System.out.println("wrong output: " + process.arguments + " on node" + process.node +
+                    " after " + process.hops + " hops");
+        }
+    }
+
+    private void stopNodes() throws InterruptedException {
+        for (Node node : nodes) {
+            node.console.println("quit");
+        }
+        for (Node node : nodes) {
+            for (int i = 0; i < 50; i++) {
+                try {
+                    node.jvm.exitValue();
+                    break;
+                } catch (IllegalThreadStateException e) {
+                    Thread.sleep(100);
+                }
+            }
+            node.jvm.destroy();
+        }
+    }
+
+    /**
+     * Follow the console of a node and update the tracked processes
+     */
+    private void readConsole(Node node) {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(node.jvm.getInputStream()));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                handle(node, line);
+            }
+        } catch (IOException e) {
+            System.err.println("node" + node.index + " console error: " + e);
+        }
+    }
+
+    private synchronized void handle(Node node, String line) {
+        Matcher m;
+        if ((m = STARTED.matcher(line)).find()) {
+            Tracked process = byArguments.get(m.group(3));
+            if (process != null) {
+                process.id = Long.parseLong(m.group(2));
+                started++;
+            }
+        } else if ((m = RECEIVED.matcher(line)).find()) {
+            Tracked process = byArguments.get(m.group(3));
+            if (process != null) {
+                process.node = node.index;
+                process.id = Long.parseLong(m.group(2));
+                process.hops++;
+                process.awaiting--;
+            }
+        } else if ((m = MIGRATED.matcher(line)).find()) {
+            Tracked process = popPending(node);
+            latencies.add(Long.parseLong(m.group(3)));
+            downtimes.add(Long.parseLong(m.group(4)));
+            if (process != null) {
+                process.awaiting--;
+            }
+        } else if ((m = RESTARTED.matcher(line)).find()) {
+            Tracked process = byArguments.get(m.group(3));
+            popPending(node);
+            failed++;
+            if (process != null) {
+                process.id = Long.parseLong(m.group(2));
+                process.awaiting = 0;
+            }
+        } else if (NO_SUCH_PROCESS.matcher(line).find()) {
+            Tracked process = popPending(node);
+            vanished++;
+            if (process != null) {
+                process.finished = true;
+                process.awaiting = 0;
+            }
+        } else if (CONNECT_FAILED.matcher(line).find()) {
+            Tracked process = popPending(node);
+            failed++;
+            if (process != null) {
+                process.awaiting = 0;
+            }
+        } else if (line.contains("Exception")) {
+            System.err.println("node" + node.index + ": " + line);
+        }
+        notifyAll();
+    }
+
+    private Tracked popPending(Node node) {
+        return node.pending.isEmpty() ? null : node.pending.remove(0);
+    }
+
+    private int inFlight() {
+        int count = 0;
+        for (Tracked process : tracked) {
+            if (process.inFlight()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Pick a random process which is not migrating and not finished
+     */
+    private Tracked pickIdle() {
+        List<Tracked> idle = new ArrayList<Tracked>();
+        for (Tracked process : tracked) {
+            if (!process.inFlight() && !process.finished && process.id >= 0) {
+                idle.add(process);
+            }
+        }
+        return idle.isEmpty() ? null : idle.get(random.nextInt(idle.size()));
+    }
+
+    /**
+     * The expected output: a sort process sorts the characters of each
+     * line, a tail process keeps the last lines.
+     */
+    private static byte[] expectedOutput(Tracked process) {
+        StringBuilder sb = new StringBuilder();
+        if (process.tail) {
+            for (int i = Math.max(0, process.input.length - TAIL_LINES); i < process.input.length; i++) {
+                sb.append(process.input[i]).append(System.getProperty("line.separator"));
+            }
+        } else {
+            for (String line : process.input) {
+                char[] chars = line.toCharArray();
+                Arrays.sort(chars);
+                sb.append(chars).append(System.getProperty("line.separator"));
+            }
+        }
+        return sb.toString().getBytes();
+    }
+
+    private byte[] readOutput(Tracked process) throws IOException {
+        File file;
+        synchronized (this) {
+            file = new File(nodes.get(process.node).directory, process.outputName);
+        }
+        if (!file.isFile()) {
+            return new byte[0];
+        }
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            byte[] data = new byte[(int) in.length()];
+            in.readFully(data);
+            return data;
+        } finally {
+            in.close();
+        }
+    }
+
+    private String randomLine() {
+        char[] chars = new char[8 + random.nextInt(17)];
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = (char) ('a' + random.nextInt(26));
+        }
+        return new String(chars);
+    }
+
+    private static void writeLines(File file, String[] lines) throws IOException {
+        PrintWriter out = new PrintWriter(new FileOutputStream(file));
+        try {
+            for (String line : lines) {
+                out.println(line);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private static long percentile(List<Long> values, int percent) {
+        if (values.isEmpty()) {
+            return 0;
+        }
+        List<Long> sorted = new ArrayList<Long>(values);
+        Collections.sort(sorted);
+        int index = (int) Math.ceil(percent / 100.0 * sorted.size()) - 1;
+        return sorted.get(Math.max(0, index));
+    }
+}
@@ -0,0 +1,67 @@
+package javapm.process;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <code>getProcess()</code> lookup with many resident processes.
+ * The processes are created but never started.
+ *
+ * @author Pratyush Kumar(pratyush)
+ * @author Vasu Vardhan(vardhan)
+ * @see javapm.process.ProcessManager#getProcess(long)
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProcessLookupBenchmark {
+    @Param({"10", "1000", "100000"})
+    public int processCount;
+
+    private ProcessManager manager;
+
+    private long[] ids;
+
+    private Random random;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        manager = ProcessManager.getInstance();
+        manager.processes.clear();
+        ids = new long[processCount];
+        for (int i = 0; i < processCount; i++) {
+            MigratableProcess process = new SortProcess(
+                    new String[]{"input" + i + ".txt", "output" + i + ".txt"});
+            ids[i] = process.getId();
+            manager.processes.offer(process);
+        }
+        random = new Random(42);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        manager.processes.clear();
+    }
+
+    @Benchmark
+    public MigratableProcess lookup() {
+        return manager.getProcess(ids[random.nextInt(ids.length)]);
+    }
+}
@@ -0,0 +1,97 @@
+package javapm.process;
+
+import javapm.checkpoint.IncrementalCheckpointer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serialization and deserialization of the sample processes, and
+ * the field diff of an incremental checkpoint, which is what the
+ * incremental mode pays instead of a full serialization.
+ * <code>SampleGuiProcess</code> is left out, it needs a display.
+ *
+ * @author Pratyush Kumar(pratyush)
+ * @author Vasu Vardhan(vardhan)
+ * @see javapm.process.MigratableProcess
+ * @see javapm.checkpoint.IncrementalCheckpointer
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SerializationBenchmark {
+    @Param({"SortProcess", "TailProcess"})
+    public String processName;
+
+    private MigratableProcess process;
+
+    private byte[] serialized;
+
+    private File logFile;
+
+    private IncrementalCheckpointer checkpointer;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        String[] args = processName.equals("TailProcess") ?
+                new String[]{"10", "input.txt", "output.txt"} :
+                new String[]{"input.txt", "output.txt"};
+        process = (MigratableProcess) Class.forName("javapm.process." + processName)
+                .getConstructor(String[].class).newInstance((Object) args);
+        serialized = serialize();
+        logFile = File.createTempFile("javapm", ".ckpt");
+        checkpointer = new IncrementalCheckpointer(logFile, Integer.MAX_VALUE);
+        checkpointer.checkpoint(process);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        logFile.delete();
+    }
+
+    @Benchmark
+    public byte[] serialize() throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(buffer);
+        out.writeObject(process);
+        out.close();
+        return buffer.toByteArray();
+    }
+
+    @Benchmark
+    public Object deserialize() throws IOException, ClassNotFoundException {
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(serialized));
+        try {
+            return in.readObject();
+        } finally {
+            in.close();
+        }
+    }
+
+    @Benchmark
+    public long checkpointDiff() throws IOException {
+        return checkpointer.checkpoint(process);
+    }
+}
@@ -0,0 +1,75 @@
+package javapm.process;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.reflections.Reflections;
+
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The startup cost of a <code>ProcessManager</code>: the class path
+ * scan for <code>MigratableProcess</code> classes, loading the config,
+ * and the whole constructor of a manager instance, which is taken out
+ * of the JVM again after each invocation. The instance is never
+ * started, so no socket is bound.
+ *
+ * @author Vasu Vardhan(vardhan)
+ * @author Pratyush Kumar(pratyush)
+ * @see javapm.process.ProcessManager
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StartupBenchmark {
+    /**
+     * The port of the measured instance, it is never bound
+     */
+    private static final int PORT = 0;
+
+    private ProcessManagerConfig config;
+
+    private ProcessManager manager;
+
+    @Setup
+    public void setUp() {
+        config = ProcessManagerConfig.fromSystemProperties().forInstance(PORT, 0, -1);
+    }
+
+    @TearDown(Level.Invocation)
+    public void dispose() {
+        if (manager != null) {
+            manager.dispose();
+            manager = null;
+        }
+    }
+
+    @Benchmark
+    public Set<Class<? extends MigratableProcess>> scanProcessClasses() {
+        return new Reflections("javapm.process").getSubTypesOf(MigratableProcess.class);
+    }
+
+    @Benchmark
+    public ProcessManagerConfig loadConfig() {
+        return ProcessManagerConfig.fromSystemProperties();
+    }
+
+    @Benchmark
+    public ProcessManager construct() {
+        manager = new ProcessManager(config);
+        return manager;
+    }
+}
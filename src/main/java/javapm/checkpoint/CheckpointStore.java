@@ -0,0 +1,229 @@
+package javapm.checkpoint;
+
+import javapm.process.MigratableProcess;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The store of checkpoint logs of one <code>ProcessManager</code>.
+ * Each process has its own <code>IncrementalCheckpointer</code> and
+ * its own log file <code>DIRECTORY/ID.ckpt</code>. The store also
+ * rebuilds a process from a log, by reading the base and replaying
+ * all the deltas after it.
+ *
+ * @author Pratyush Kumar(pratyush)
+ * @author Vasu Vardhan(vardhan)
+ * @see javapm.checkpoint.IncrementalCheckpointer
+ */
+public class CheckpointStore {
+    /**
+     * The file extension of checkpoint logs
+     */
+    public static final String EXTENSION = ".ckpt";
+
+    /**
+     * The directory of checkpoint logs
+     */
+    private File directory;
+
+    /**
+     * The number of deltas between two bases
+     */
+    private int baseInterval;
+
+    /**
+     * The checkpointers of processes, keyed by process ID
+     */
+    private ConcurrentHashMap<Long, IncrementalCheckpointer> checkpointers;
+
+    /**
+     * Constructor of <code>CheckpointStore</code>
+     *
+     * @param directory    the directory of checkpoint logs
+     * @param baseInterval the number of deltas between two bases
+     */
+    public CheckpointStore(File directory, int baseInterval) {
+        this.directory = directory;
+        this.baseInterval = baseInterval;
+        this.checkpointers = new ConcurrentHashMap<Long, IncrementalCheckpointer>();
+    }
+
+    /**
+     * Take a checkpoint of the process. The size of its state is
+     * recorded in its accounting.
+     *
+     * @param process the suspended process
+     * @return the number of bytes written to the log
+     * @throws IOException if the log can't be written
+     * @see javapm.checkpoint.IncrementalCheckpointer#checkpoint(MigratableProcess)
+     */
+    public long checkpoint(MigratableProcess process) throws IOException {
+        IncrementalCheckpointer checkpointer = getCheckpointer(process.getId());
+        long bytes = checkpointer.checkpoint(process);
+        process.getAccounting().setSerializedSize(checkpointer.getStateSize());
+        return bytes;
+    }
+
+    /**
+     * Get the checkpointer of a process, create it if not exist.
+     *
+     * @param id the process ID
+     * @return the checkpointer
+     * @throws IOException if the directory can't be created
+     */
+    public IncrementalCheckpointer getCheckpointer(long id) throws IOException {
+        IncrementalCheckpointer checkpointer = checkpointers.get(id);
+        if (checkpointer == null) {
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("can't create checkpoint directory " + directory);
+            }
+            checkpointer = new IncrementalCheckpointer(getLogFile(id), baseInterval);
+            IncrementalCheckpointer previous = checkpointers.putIfAbsent(id, checkpointer);
+            if (previous != null) {
+                checkpointer = previous;
+            }
+        }
+        return checkpointer;
+    }
+
+    /**
+     * Get the log file of a process
+     *
+     * @param id the process ID
+     * @return the log file, it may not exist
+     */
+    public File getLogFile(long id) {
+        return new File(directory, id + EXTENSION);
+    }
+
+    /**
+     * Forget the checkpointer of a process. The log file is kept.
+     *
+     * @param id the process ID
+     */
+    public void remove(long id) {
+        checkpointers.remove(id);
+    }
+
+    /**
+     * Rebuild the latest state of a process from a checkpoint log.
+     * The first record must be a base, every delta after it sets
+     * the changed fields on the object by reflection.
+     *
+     * @param logFile the checkpoint log
+     * @return the rebuilt process, not started
+     * @throws IOException if the log is broken
+     */
+    public static MigratableProcess restore(File logFile) throws IOException {
+        DataInputStream in = new DataInputStream(new FileInputStream(logFile));
+        try {
+            if (in.readByte() != IncrementalCheckpointer.BASE) {
+                throw new IOException(logFile + " doesn't start with a base");
+            }
+            in.readLong();
+            MigratableProcess process = (MigratableProcess) deserialize(readPayload(in));
+            List<String> keyTable = new ArrayList<String>();
+            int keys = in.readInt();
+            for (int i = 0; i < keys; i++) {
+                keyTable.add(in.readUTF());
+            }
+            while (true) {
+                byte type;
+                try {
+                    type = in.readByte();
+                } catch (EOFException e) {
+                    break;
+                }
+                if (type != IncrementalCheckpointer.DELTA) {
+                    throw new IOException(logFile + " has unknown record " + type);
+                }
+                in.readLong();
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    String key;
+                    short index = in.readShort();
+                    if (index < 0) {
+                        key = in.readUTF();
+                        keyTable.add(key);
+                    } else {
+                        key = keyTable.get(index);
+                    }
+                    apply(process, key, IncrementalCheckpointer.decode(readPayload(in)));
+                }
+            }
+            return process;
+        } catch (ClassNotFoundException e) {
+            throw new IOException(logFile + " has unknown class", e);
+        } catch (IllegalAccessException e) {
+            throw new IOException(logFile + " can't be applied", e);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Set one field of the process. A flattened sub field key is
+     * resolved through the object held by its parent field.
+     *
+     * @param process the rebuilt process
+     * @param key     the field key
+     * @param value   the decoded value
+     * @throws IOException if the key doesn't match any field
+     */
+    private static void apply(MigratableProcess process, String key, Object value)
+            throws IOException, IllegalAccessException {
+        Object owner = process;
+        int split = key.indexOf(IncrementalCheckpointer.PATH_SEPARATOR);
+        if (split >= 0) {
+            owner = findField(process, key.substring(0, split)).get(process);
+            key = key.substring(split + 1);
+            if (owner == null) {
+                throw new IOException("field " + key + " has no owner");
+            }
+        }
+        findField(owner, key).set(owner, value);
+    }
+
+    /**
+     * Find a checkpointed field of an object by its key
+     */
+    private static Field findField(Object owner, String key) throws IOException {
+        for (Field field : IncrementalCheckpointer.checkpointedFields(owner.getClass())) {
+            if (IncrementalCheckpointer.key(field).equals(key)) {
+                return field;
+            }
+        }
+        throw new IOException("unknown field " + key);
+    }
+
+    /**
+     * Read a length prefixed payload
+     */
+    private static byte[] readPayload(DataInputStream in) throws IOException {
+        byte[] payload = new byte[in.readInt()];
+        in.readFully(payload);
+        return payload;
+    }
+
+    /**
+     * Deserialize one object from a byte array
+     */
+    private static Object deserialize(byte[] payload) throws IOException, ClassNotFoundException {
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(payload));
+        try {
+            return in.readObject();
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,497 @@
+package javapm.checkpoint;
+
+import javapm.process.MigratableProcess;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Field level incremental checkpointer of one <code>MigratableProcess</code>.
+ *
+ * The checkpointer keeps the serialized image of every field of the
+ * process from the last checkpoint. A new checkpoint serializes the
+ * fields again and only writes the fields whose image changed, so a
+ * process which only moves <code>step</code>, <code>line</code> or a
+ * stream offset produces a delta of a few bytes.
+ * Every <code>baseInterval</code> deltas, the log is replaced by a
+ * full base (the whole serialized object), which bounds the length of
+ * the log and the restore time. A base is written to a temporary file
+ * which is renamed over the log, so a failed base keeps the last good
+ * log. The images, the key table and the sequence only change once a
+ * record is on disk; after a failed delta the next checkpoint writes a
+ * base, so a partly appended record is never followed by another one.
+ *
+ * The log is a sequence of records:
+ * <pre>
+ * BASE:  [byte 0][long seq][int length][serialized process][int keys]{[UTF key]}
+ * DELTA: [byte 1][long seq][int count]{[short index]([UTF key])[int length][encoded value]}
+ * </pre>
+ * The key of a field is <code>DeclaringClass#field</code>, a flattened
+ * sub field is addressed as <code>Class#field/SubClass#subField</code>.
+ * The base carries the table of keys, a delta refers to a field by its
+ * index in the table. A key unknown to the table is written once with
+ * index <code>-1</code> and appended to the table.
+ * Note: every field is encoded on its own, so two fields which point
+ * to the same object are restored as two copies until the next base.
+ *
+ * @author Vasu Vardhan(vardhan)
+ * @author Pratyush Kumar(pratyush)
+ * @see javapm.checkpoint.CheckpointStore
+ */
+public class IncrementalCheckpointer {
+    /**
+     * Record type of a full base
+     */
+    static final byte BASE = 0;
+
+    /**
+     * Record type of a field delta
+     */
+    static final byte DELTA = 1;
+
+    /**
+     * Separator between a field key and the key of a flattened sub field
+     */
+    static final String PATH_SEPARATOR = "/";
+
+    /**
+     * Type tags of encoded field values
+     */
+    static final byte NULL = 0, INT = 1, LONG = 2, BOOLEAN = 3, DOUBLE = 4,
+            STRING = 5, OBJECT = 6, SHAPE = 7;
+
+    /**
+     * The checkpoint log file
+     */
+    private File logFile;
+
+    /**
+     * The number of deltas between two bases
+     */
+    private int baseInterval;
+
+    /**
+     * The field images of the last checkpoint, keyed by
+     * <code>DeclaringClass#field</code>
+     */
+    private Map<String, byte[]> images;
+
+    /**
+     * The key table of the current base, mapping key to index
+     */
+    private Map<String, Integer> keyTable;
+
+    /**
+     * The number of deltas written since the last base
+     */
+    private int deltasSinceBase;
+
+    /**
+     * The sequence number of the next record
+     */
+    private long sequence;
+
+    /**
+     * The sequence number of the base the log starts with, -1 if no
+     * base was written yet
+     */
+    private long baseSequence;
+
+    /**
+     * The total size of the field images of the last checkpoint
+     */
+    private long stateSize;
+
+    /**
+     * Constructor of <code>IncrementalCheckpointer</code>
+     *
+     * @param logFile      the checkpoint log file
+     * @param baseInterval the number of deltas between two bases
+     */
+    public IncrementalCheckpointer(File logFile, int baseInterval) {
+        this.logFile = logFile;
+        this.baseInterval = Math.max(1, baseInterval);
+        this.images = new HashMap<String, byte[]>();
+        this.keyTable = new HashMap<String, Integer>();
+        this.deltasSinceBase = 0;
+        this.sequence = 0;
+        this.baseSequence = -1;
+    }
+
+    /**
+     * Take a checkpoint of the process. The process should be
+     * suspended, otherwise the fields may change while they are
+     * serialized.
+     * If no base was written yet, or <code>baseInterval</code> deltas
+     * were written since the last base, a new base is written.
+     * Otherwise only the changed fields are appended to the log.
+     *
+     * @param process the process object
+     * @return the number of bytes written to the log
+     * @throws IOException if the log can't be written
+     */
+    public synchronized long checkpoint(MigratableProcess process) throws IOException {
+        Map<String, byte[]> current = new LinkedHashMap<String, byte[]>();
+        Map<String, Object> values = new HashMap<String, Object>();
+        snapshotFields(process, current, values);
+        long size = 0;
+        for (byte[] image : current.values()) {
+            size += image.length;
+        }
+        if (sequence == 0 || deltasSinceBase >= baseInterval) {
+            long bytes = writeBase(process, current);
+            stateSize = size;
+            return bytes;
+        }
+        Map<String, byte[]> changed = new LinkedHashMap<String, byte[]>();
+        String replaced = null;
+        for (Map.Entry<String, byte[]> entry : current.entrySet()) {
+            String key = entry.getKey();
+            if (replaced != null && key.startsWith(replaced)) {
+                continue;
+            }
+            if (Arrays.equals(entry.getValue(), images.get(key))) {
+                continue;
+            }
+            if (entry.getValue()[0] == SHAPE) {
+                // a flattened object changed its class or was null, so
+                // its sub fields can't be applied, send it as a whole
+                changed.put(key, encode(values.get(key), false));
+                replaced = key + PATH_SEPARATOR;
+            } else {
+                changed.put(key, entry.getValue());
+            }
+        }
+        if (changed.isEmpty()) {
+            images = current;
+            stateSize = size;
+            return 0;
+        }
+        long bytes;
+        try {
+            bytes = writeDelta(changed);
+        } catch (IOException e) {
+            reset();
+            throw e;
+        }
+        images = current;
+        stateSize = size;
+        return bytes;
+    }
+
+    /**
+     * Force the next checkpoint to write a full base.
+     */
+    public synchronized void reset() {
+        deltasSinceBase = baseInterval;
+    }
+
+    /**
+     * Get the sequence number of the base the log starts with. It
+     * changes when the log is truncated for a new base, so a copy of
+     * the log must be taken again from the start.
+     *
+     * @return the sequence number, -1 if no base was written yet
+     */
+    public synchronized long getBaseSequence() {
+        return baseSequence;
+    }
+
+    /**
+     * Get the total size of the field images of the last checkpoint,
+     * the size of the process state without the log overhead
+     *
+     * @return the size in bytes, 0 if no checkpoint was taken
+     */
+    public synchronized long getStateSize() {
+        return stateSize;
+    }
+
+    /**
+     * Get the checkpoint log file
+     *
+     * @return the log file
+     */
+    public File getLogFile() {
+        return logFile;
+    }
+
+    /**
+     * Write the whole process as a new base to a temporary file, and
+     * rename it over the log.
+     */
+    private long writeBase(MigratableProcess process, Map<String, byte[]> current)
+            throws IOException {
+        byte[] payload = serialize(process);
+        File temporary = new File(logFile.getPath() + ".tmp");
+        Map<String, Integer> table = new HashMap<String, Integer>();
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(temporary, false));
+        boolean written = false;
+        try {
+            try {
+                out.writeByte(BASE);
+                out.writeLong(sequence);
+                out.writeInt(payload.length);
+                out.write(payload);
+                out.writeInt(current.size());
+                for (String key : current.keySet()) {
+                    table.put(key, table.size());
+                    out.writeUTF(key);
+                }
+            } finally {
+                out.close();
+            }
+            Files.move(temporary.toPath(), logFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            written = true;
+        } finally {
+            if (!written) {
+                temporary.delete();
+            }
+        }
+        baseSequence = sequence++;
+        keyTable = table;
+        images = current;
+        deltasSinceBase = 0;
+        return out.size();
+    }
+
+    /**
+     * Append the changed fields to the log. The new keys join the key
+     * table once the record is written.
+     */
+    private long writeDelta(Map<String, byte[]> changed) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        DataOutputStream record = new DataOutputStream(buffer);
+        List<String> added = new ArrayList<String>();
+        record.writeByte(DELTA);
+        record.writeLong(sequence);
+        record.writeInt(changed.size());
+        for (Map.Entry<String, byte[]> entry : changed.entrySet()) {
+            Integer index = keyTable.get(entry.getKey());
+            if (index == null) {
+                record.writeShort(-1);
+                record.writeUTF(entry.getKey());
+                added.add(entry.getKey());
+            } else {
+                record.writeShort(index);
+            }
+            record.writeInt(entry.getValue().length);
+            record.write(entry.getValue());
+        }
+        record.flush();
+        FileOutputStream out = new FileOutputStream(logFile, true);
+        try {
+            buffer.writeTo(out);
+        } finally {
+            out.close();
+        }
+        for (String key : added) {
+            keyTable.put(key, keyTable.size());
+        }
+        sequence++;
+        deltasSinceBase++;
+        return buffer.size();
+    }
+
+    /**
+     * Encode every checkpointed field of the process one by one.
+     * Fields holding one of our own serializable objects, such as the
+     * transactional streams, are flattened one level: the object is
+     * recorded by its class only, and each of its fields gets its own
+     * image, so a moving <code>offset</code> costs a few bytes.
+     */
+    private void snapshotFields(MigratableProcess process, Map<String, byte[]> images,
+                                Map<String, Object> values) throws IOException {
+        for (Field field : checkpointedFields(process.getClass())) {
+            String key = key(field);
+            Object value = read(field, process);
+            values.put(key, value);
+            if (!isFlattened(value)) {
+                images.put(key, encode(value, true));
+                continue;
+            }
+            images.put(key, encodeShape(value));
+            for (Field sub : checkpointedFields(value.getClass())) {
+                images.put(key + PATH_SEPARATOR + key(sub), encode(read(sub, value), true));
+            }
+        }
+    }
+
+    /**
+     * Read a field, wrapping the reflection error
+     */
+    private static Object read(Field field, Object owner) throws IOException {
+        try {
+            return field.get(owner);
+        } catch (IllegalAccessException e) {
+            throw new IOException("can't read field " + key(field), e);
+        }
+    }
+
+    /**
+     * Get all fields which are part of the object state: the
+     * non-static and non-transient fields of the class and all
+     * its super classes.
+     *
+     * @param objectClass the class of the object
+     * @return the accessible fields
+     */
+    static List<Field> checkpointedFields(Class<?> objectClass) {
+        List<Field> fields = new ArrayList<Field>();
+        for (Class<?> c = objectClass; c != null && c != Object.class; c = c.getSuperclass()) {
+            for (Field field : c.getDeclaredFields()) {
+                int modifiers = field.getModifiers();
+                if (Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers)) {
+                    continue;
+                }
+                field.setAccessible(true);
+                fields.add(field);
+            }
+        }
+        return fields;
+    }
+
+    /**
+     * The key of a field in the image map
+     */
+    static String key(Field field) {
+        return field.getDeclaringClass().getName() + "#" + field.getName();
+    }
+
+    /**
+     * Check if a field value is diffed by its own fields. Only our
+     * own serializable classes without custom serialization are
+     * flattened, JDK classes and arrays are diffed as a whole.
+     */
+    static boolean isFlattened(Object value) {
+        if (value == null || !(value instanceof Serializable)) {
+            return false;
+        }
+        Class<?> c = value.getClass();
+        if (c.isArray() || c.isEnum() || c.getName().startsWith("java.")
+                || c.getName().startsWith("javax.")) {
+            return false;
+        }
+        try {
+            c.getDeclaredMethod("writeObject", ObjectOutputStream.class);
+            return false;
+        } catch (NoSuchMethodException e) {
+            return true;
+        }
+    }
+
+    /**
+     * Encode the shape of a flattened object, which is its class name
+     */
+    private static byte[] encodeShape(Object value) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(buffer);
+        out.writeByte(SHAPE);
+        out.writeUTF(value.getClass().getName());
+        out.flush();
+        return buffer.toByteArray();
+    }
+
+    /**
+     * Encode one field value. Primitive wrappers and short strings are
+     * written with a type tag, other objects are serialized.
+     *
+     * @param value   the field value
+     * @param compact if unset, always serialize the value
+     * @return the encoded value
+     * @throws IOException if the value is not serializable
+     */
+    static byte[] encode(Object value, boolean compact) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(buffer);
+        if (value == null) {
+            out.writeByte(NULL);
+        } else if (compact && value instanceof Integer) {
+            out.writeByte(INT);
+            out.writeInt((Integer) value);
+        } else if (compact && value instanceof Long) {
+            out.writeByte(LONG);
+            out.writeLong((Long) value);
+        } else if (compact && value instanceof Boolean) {
+            out.writeByte(BOOLEAN);
+            out.writeBoolean((Boolean) value);
+        } else if (compact && value instanceof Double) {
+            out.writeByte(DOUBLE);
+            out.writeDouble((Double) value);
+        } else if (compact && value instanceof String && ((String) value).length() < 16384) {
+            out.writeByte(STRING);
+            out.writeUTF((String) value);
+        } else {
+            if (!(value instanceof Serializable)) {
+                throw new IOException(value.getClass().getName() + " is not serializable");
+            }
+            out.writeByte(OBJECT);
+            ObjectOutputStream objectOut = new ObjectOutputStream(out);
+            objectOut.writeObject(value);
+            objectOut.close();
+        }
+        out.flush();
+        return buffer.toByteArray();
+    }
+
+    /**
+     * Decode one field value written by <code>encode()</code>
+     *
+     * @param image the encoded value
+     * @return the field value
+     * @throws IOException if the image is broken
+     * @throws ClassNotFoundException if the class of the value is unknown
+     */
+    static Object decode(byte[] image) throws IOException, ClassNotFoundException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(image));
+        byte tag = in.readByte();
+        switch (tag) {
+            case NULL:
+                return null;
+            case INT:
+                return in.readInt();
+            case LONG:
+                return in.readLong();
+            case BOOLEAN:
+                return in.readBoolean();
+            case DOUBLE:
+                return in.readDouble();
+            case STRING:
+                return in.readUTF();
+            case OBJECT:
+                return new ObjectInputStream(in).readObject();
+            default:
+                throw new IOException("unknown field image " + tag);
+        }
+    }
+
+    /**
+     * Serialize one object into a byte array
+     */
+    static byte[] serialize(Object value) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(buffer);
+        out.writeObject(value);
+        out.close();
+        return buffer.toByteArray();
+    }
+}
@@ -0,0 +1,89 @@
+package javapm.cluster;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A request sent to many nodes in parallel.
+ * Each node is asked in its own daemon <code>Thread</code>, the
+ * caller waits at most <code>timeoutMillis</code> for all answers.
+ * The nodes which failed or didn't answer in time are missing from
+ * the result, a late answer is dropped.
+ *
+ * @author Vasu Vardhan(vardhan)
+ * @author Pratyush Kumar(pratyush)
+ */
+public class FanOut {
+    /**
+     * Log handler
+     *
+     * @see <a href="http://apache.org/log4j/2.x/">Log4J</a>
+     */
+    private static Logger LOG = LogManager.getLogger(FanOut.class);
+
+    /**
+     * The request sent to each node
+     *
+     * @param <T> the type of the answer
+     */
+    public interface Request<T> {
+        /**
+         * Ask one node
+         *
+         * @param node the node name <code>HOST:PORT</code>
+         * @return the answer, null if none
+         * @throws IOException if the node can't be asked
+         */
+        T call(String node) throws IOException;
+    }
+
+    private FanOut() {
+    }
+
+    /**
+     * Send a request to all nodes in parallel
+     *
+     * @param nodes         the node names
+     * @param request       the request
+     * @param timeoutMillis the time to wait for all answers
+     * @param <T>           the type of the answers
+     * @return the answers by node name
+     */
+    public static <T> Map<String, T> call(Collection<String> nodes, final Request<T> request,
+                                          long timeoutMillis) {
+        final Map<String, T> answers = new ConcurrentHashMap<String, T>();
+        final CountDownLatch done = new CountDownLatch(nodes.size());
+        for (final String node : nodes) {
+            Thread thread = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        T answer = request.call(node);
+                        if (answer != null) {
+                            answers.put(node, answer);
+                        }
+                    } catch (IOException e) {
+                        LOG.debug("request to " + node + " failed", e);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }, "fanout-" + node);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        try {
+            done.await(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return new HashMap<String, T>(answers);
+    }
+}
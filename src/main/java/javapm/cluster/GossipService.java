@@ -0,0 +1,268 @@
+package javapm.cluster;
+
+import javapm.metrics.ProcessAccounting;
+import javapm.process.MigratableProcess;
+import javapm.process.ProcessManager;
+import javapm.process.ProcessManagerConfig;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The heartbeat and load gossip between process managers.
+ * Every <code>intervalMillis</code> the service sends a heartbeat to
+ * each member of the <code>Membership</code> over UDP, the seeds
+ * included. A heartbeat carries the <code>LoadSummary</code> of this
+ * node and the members it knows, so a node started with one seed
+ * learns the whole cluster. A lost datagram only delays the view by
+ * one round, and the failure detector tolerates it, so nothing is
+ * acknowledged or resent.
+ *
+ * @author Pratyush Kumar(pratyush)
+ * @author Vasu Vardhan(vardhan)
+ * @see javapm.cluster.LoadSummary
+ * @see javapm.cluster.Membership
+ * @see javapm.cluster.Rebalancer
+ */
+public class GossipService implements Runnable {
+    /**
+     * Log handler
+     *
+     * @see <a href="http://apache.org/log4j/2.x/">Log4J</a>
+     */
+    private static Logger LOG = LogManager.getLogger(GossipService.class);
+
+    /**
+     * Message type of a heartbeat
+     */
+    public static final byte HEARTBEAT = 2;
+
+    /**
+     * Largest gossip message
+     */
+    public static final int MAX_MESSAGE = 16 * 1024;
+
+    /**
+     * Largest number of members told in one heartbeat
+     */
+    public static final int MAX_TOLD = 128;
+
+    /**
+     * The owner of resident processes
+     */
+    private ProcessManager manager;
+
+    /**
+     * The name of this node
+     */
+    private String nodeName;
+
+    /**
+     * The UDP port of this node
+     */
+    private int port;
+
+    /**
+     * The process capacity of this node
+     */
+    private int capacity;
+
+    /**
+     * Interval between two rounds
+     */
+    private long intervalMillis;
+
+    /**
+     * The peer table
+     */
+    private Membership membership;
+
+    /**
+     * Constructor of <code>GossipService</code>
+     *
+     * @param manager the process manager
+     * @param config  the settings of the manager
+     */
+    public GossipService(ProcessManager manager, ProcessManagerConfig config) {
+        this.manager = manager;
+        this.nodeName = config.getNodeName();
+        this.port = config.getGossipPort();
+        this.capacity = config.getNodeCapacity();
+        this.intervalMillis = config.getGossipIntervalMillis();
+        this.membership = new Membership(config.getGossipAddress(), config.getClusterSeeds(),
+                intervalMillis, config.getClusterPhiThreshold(), config.getClusterRemoveMillis());
+    }
+
+    /**
+     * The gossip loop. The socket waits for messages until the next
+     * round is due, then the dead members are dropped and a heartbeat
+     * is sent.
+     */
+    public void run() {
+        DatagramSocket socket;
+        try {
+            socket = new DatagramSocket(port);
+        } catch (SocketException e) {
+            LOG.error("gossip socket bind error", e);
+            return;
+        }
+        byte[] buffer = new byte[MAX_MESSAGE];
+        long nextRound = 0;
+        while (true) {
+            long now = System.currentTimeMillis();
+            if (now >= nextRound) {
+                membership.expire(now);
+                send(socket);
+                nextRound = now + intervalMillis;
+            }
+            try {
+                socket.setSoTimeout((int) Math.max(1, nextRound - System.currentTimeMillis()));
+                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                socket.receive(packet);
+                receive(packet);
+            } catch (SocketTimeoutException e) {
+                // next round
+            } catch (IOException e) {
+                LOG.warn("gossip receive error", e);
+            }
+        }
+    }
+
+    /**
+     * Send a heartbeat to all members
+     */
+    private void send(DatagramSocket socket) {
+        byte[] message;
+        try {
+            message = heartbeat();
+        } catch (IOException e) {
+            LOG.warn("gossip send error", e);
+            return;
+        }
+        for (Membership.Member member : membership.getMembers()) {
+            InetSocketAddress address = toSocketAddress(member.getAddress());
+            if (address == null || address.isUnresolved()) {
+                continue;
+            }
+            try {
+                socket.send(new DatagramPacket(message, message.length, address));
+            } catch (IOException e) {
+                LOG.debug("gossip to " + member.getAddress() + " failed", e);
+            }
+        }
+    }
+
+    /**
+     * Build the heartbeat message: the gossip address of this node,
+     * its summary, and the known members with their node names.
+     */
+    private byte[] heartbeat() throws IOException {
+        List<Membership.Member> told = new ArrayList<Membership.Member>();
+        for (Membership.Member member : membership.getMembers()) {
+            if (member.getNode() != null && told.size() < MAX_TOLD) {
+                told.add(member);
+            }
+        }
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(buffer);
+        out.writeByte(HEARTBEAT);
+        out.writeUTF(membership.getSelf());
+        localSummary().write(out);
+        out.writeShort(told.size());
+        for (Membership.Member member : told) {
+            out.writeUTF(member.getAddress());
+            out.writeUTF(member.getNode());
+        }
+        out.close();
+        return buffer.toByteArray();
+    }
+
+    /**
+     * Record a received heartbeat and learn the members it tells
+     */
+    private void receive(DatagramPacket packet) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+                packet.getData(), packet.getOffset(), packet.getLength()));
+        if (in.readByte() != HEARTBEAT) {
+            return;
+        }
+        String sender = in.readUTF();
+        LoadSummary summary = LoadSummary.read(in);
+        if (summary.getNode().equals(nodeName)) {
+            return;
+        }
+        membership.heartbeat(sender, summary, System.currentTimeMillis());
+        int count = in.readShort();
+        for (int i = 0; i < count; i++) {
+            String address = in.readUTF();
+            String node = in.readUTF();
+            membership.learn(address, node);
+        }
+    }
+
+    /**
+     * Build the summary of this node from the accounting of the
+     * resident processes
+     *
+     * @return the summary, made now
+     */
+    public LoadSummary localSummary() {
+        int processes = 0;
+        double cpu = 0;
+        double throughput = 0;
+        for (MigratableProcess process : manager.processes) {
+            ProcessAccounting accounting = process.getAccounting();
+            processes++;
+            cpu += accounting.getCpuLoad();
+            throughput += accounting.getThroughput();
+        }
+        MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        long max = heap.getMax() > 0 ? heap.getMax() : heap.getCommitted();
+        return new LoadSummary(nodeName, processes, cpu, (double) heap.getUsed() / max,
+                throughput, Runtime.getRuntime().availableProcessors(), max, capacity);
+    }
+
+    /**
+     * Get the summaries of the alive members
+     *
+     * @return the summaries
+     */
+    public List<LoadSummary> getPeers() {
+        return membership.getAlive(System.currentTimeMillis());
+    }
+
+    public Membership getMembership() {
+        return membership;
+    }
+
+    /**
+     * Parse a <code>HOST:PORT</code> address
+     */
+    private static InetSocketAddress toSocketAddress(String address) {
+        int split = address.lastIndexOf(':');
+        if (split < 0) {
+            return null;
+        }
+        try {
+            return new InetSocketAddress(address.substring(0, split),
+                    Integer.parseInt(address.substring(split + 1)));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package javapm.cluster;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * A consistent hash ring of process managers.
+ * Every node is placed on the ring at <code>vnodes</code> points, a
+ * key belongs to the node of the first point at or after the hash of
+ * the key, wrapping around. When a node joins or leaves, only the keys
+ * between its points and their predecessors change owner, about
+ * <code>1/N</code> of all keys, and the virtual nodes spread them over
+ * all other nodes. A ring is not changed after it is built, a new ring
+ * is built for a new set of nodes.
+ *
+ * @author Vasu Vardhan(vardhan)
+ * @author Pratyush Kumar(pratyush)
+ * @see javapm.cluster.RingPlacement
+ */
+public class HashRing {
+    /**
+     * The points of the ring, mapped to node names
+     */
+    private TreeMap<Long, String> points;
+
+    /**
+     * The node names
+     */
+    private Set<String> nodes;
+
+    /**
+     * Constructor of <code>HashRing</code>
+     *
+     * @param nodes  the node names, <code>HOST:PORT</code>
+     * @param vnodes the number of points of each node
+     */
+    public HashRing(Collection<String> nodes, int vnodes) {
+        this.points = new TreeMap<Long, String>();
+        this.nodes = new TreeSet<String>(nodes);
+        for (String node : this.nodes) {
+            for (int i = 0; i < vnodes; i++) {
+                points.put(hash(node + "#" + i), node);
+            }
+        }
+    }
+
+    /**
+     * Get the owner of a key, by a binary search of the points
+     *
+     * @param key the placement key
+     * @return the node name, or null if the ring is empty
+     */
+    public String owner(String key) {
+        if (points.isEmpty()) {
+            return null;
+        }
+        Map.Entry<Long, String> point = points.ceilingEntry(hash(key));
+        return point != null ? point.getValue() : points.firstEntry().getValue();
+    }
+
+    /**
+     * Get the node names of the ring
+     *
+     * @return the sorted node names
+     */
+    public Set<String> getNodes() {
+        return nodes;
+    }
+
+    public boolean isEmpty() {
+        return nodes.isEmpty();
+    }
+
+    /**
+     * Hash a string to a point of the ring, the first 8 bytes of its
+     * MD5 digest
+     *
+     * @param key the string
+     * @return the point
+     */
+    public static long hash(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes("UTF-8"));
+            long point = 0;
+            for (int i = 0; i < 8; i++) {
+                point = (point << 8) | (digest[i] & 0xff);
+            }
+            return point;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 is missing", e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException("UTF-8 is missing", e);
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package javapm.cluster;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The measured bandwidth of the links to other nodes.
+ * Each migration reports the bytes it sent and the time the
+ * transfer took, the estimate of the link is an exponentially
+ * weighted moving average of these samples. A link without a
+ * migration yet has the default bandwidth.
+ *
+ * @author Pratyush Kumar(pratyush)
+ * @author Vasu Vardhan(vardhan)
+ * @see javapm.cluster.Rebalancer
+ */
+public class LinkBandwidth {
+    /**
+     * Weight of a new sample
+     */
+    public static final double ALPHA = 0.3;
+
+    /**
+     * Transfers smaller than this are dominated by latency, they
+     * don't tell the bandwidth
+     */
+    public static final long MIN_SAMPLE_BYTES = 64 * 1024;
+
+    /**
+     * Bandwidth in bytes per second, keyed by node name
+     */
+    private ConcurrentHashMap<String, Double> estimates;
+
+    /**
+     * Bandwidth of an unmeasured link
+     */
+    private double defaultBandwidth;
+
+    /**
+     * Constructor of <code>LinkBandwidth</code>
+     *
+     * @param defaultBandwidth bandwidth of an unmeasured link in
+     *                         bytes per second
+     */
+    public LinkBandwidth(double defaultBandwidth) {
+        this.defaultBandwidth = defaultBandwidth;
+        this.estimates = new ConcurrentHashMap<String, Double>();
+    }
+
+    /**
+     * Add a transfer to the estimate of a link
+     *
+     * @param node  the node name
+     * @param bytes the bytes sent
+     * @param nanos the transfer time
+     */
+    public void record(String node, long bytes, long nanos) {
+        if (bytes < MIN_SAMPLE_BYTES || nanos <= 0) {
+            return;
+        }
+        double sample = bytes * 1e9 / nanos;
+        Double previous = estimates.get(node);
+        estimates.put(node, previous == null ? sample : previous + ALPHA * (sample - previous));
+    }
+
+    /**
+     * Get the estimated bandwidth of a link
+     *
+     * @param node the node name
+     * @return bytes per second
+     */
+    public double get(String node) {
+        Double estimate = estimates.get(node);
+        return estimate == null ? defaultBandwidth : estimate;
+    }
+}
@@ -0,0 +1,215 @@
+package javapm.cluster;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * The load of one node, as it is gossiped to the other nodes.
+ * The load value used for balancing is the number of runnable
+ * processes plus the CPU cores they keep busy; heap usage and IO
+ * throughput are carried along, the heap decides if a node may take
+ * more processes. Cores, max heap and capacity describe the node
+ * itself, the capacity is a limit of runnable processes set by the
+ * operator, 0 if unlimited.
+ *
+ * @author Vasu Vardhan(vardhan)
+ * @author Pratyush Kumar(pratyush)
+ * @see javapm.cluster.GossipService
+ */
+public class LoadSummary {
+    /**
+     * The node name, <code>HOST:PORT</code> of its process server
+     */
+    private String node;
+
+    /**
+     * The number of runnable processes
+     */
+    private int processes;
+
+    /**
+     * CPU cores used by the processes
+     */
+    private double cpu;
+
+    /**
+     * Ratio of used heap to max heap
+     */
+    private double heap;
+
+    /**
+     * IO throughput of the transactional streams in bytes per second
+     */
+    private double throughput;
+
+    /**
+     * The number of CPU cores of the node
+     */
+    private int cores;
+
+    /**
+     * The max heap of the node in bytes
+     */
+    private long maxHeap;
+
+    /**
+     * The largest number of processes the node takes, 0 if unlimited
+     */
+    private int capacity;
+
+    /**
+     * The local time the summary was made or received
+     */
+    private long receivedAt;
+
+    /**
+     * Constructor of <code>LoadSummary</code>
+     *
+     * @param node       the node name
+     * @param processes  the number of runnable processes
+     * @param cpu        CPU cores used by the processes
+     * @param heap       heap usage ratio
+     * @param throughput IO throughput in bytes per second
+     * @param cores      CPU cores of the node
+     * @param maxHeap    max heap of the node in bytes
+     * @param capacity   process capacity of the node, 0 if unlimited
+     */
+    public LoadSummary(String node, int processes, double cpu, double heap, double throughput,
+                       int cores, long maxHeap, int capacity) {
+        this.node = node;
+        this.processes = processes;
+        this.cpu = cpu;
+        this.heap = heap;
+        this.throughput = throughput;
+        this.cores = cores;
+        this.maxHeap = maxHeap;
+        this.capacity = capacity;
+        this.receivedAt = System.currentTimeMillis();
+    }
+
+    /**
+     * Write the summary to a gossip message
+     *
+     * @param out the message stream
+     * @throws IOException if any IO error occurs
+     */
+    public void write(DataOutputStream out) throws IOException {
+        out.writeUTF(node);
+        out.writeInt(processes);
+        out.writeDouble(cpu);
+        out.writeDouble(heap);
+        out.writeDouble(throughput);
+        out.writeInt(cores);
+        out.writeLong(maxHeap);
+        out.writeInt(capacity);
+    }
+
+    /**
+     * Read a summary from a gossip message
+     *
+     * @param in the message stream
+     * @return the summary, received now
+     * @throws IOException if the message is broken
+     */
+    public static LoadSummary read(DataInputStream in) throws IOException {
+        return new LoadSummary(in.readUTF(), in.readInt(), in.readDouble(),
+                in.readDouble(), in.readDouble(), in.readInt(), in.readLong(), in.readInt());
+    }
+
+    /**
+     * Copy the summary, so a planner can charge it without changing
+     * the view
+     *
+     * @return the copy
+     */
+    public synchronized LoadSummary copy() {
+        LoadSummary copy = new LoadSummary(node, processes, cpu, heap, throughput, cores, maxHeap,
+                capacity);
+        copy.receivedAt = receivedAt;
+        return copy;
+    }
+
+    /**
+     * The load value used to compare nodes
+     *
+     * @return runnable processes plus busy cores
+     */
+    public synchronized double getLoad() {
+        return processes + cpu;
+    }
+
+    /**
+     * Account a process moved to this node before its next summary
+     * arrives, so one summary doesn't attract several migrations.
+     *
+     * @param cpu the CPU cores of the moved process
+     */
+    public synchronized void addProcess(double cpu) {
+        this.processes++;
+        this.cpu += cpu;
+    }
+
+    /**
+     * Check if the node takes one more process
+     *
+     * @return if the capacity is unlimited or not reached
+     */
+    public synchronized boolean hasFreeCapacity() {
+        return capacity <= 0 || processes < capacity;
+    }
+
+    public String getNode() {
+        return node;
+    }
+
+    /**
+     * Get the host part of the node name
+     *
+     * @return the host name
+     */
+    public String getHost() {
+        return node.substring(0, node.lastIndexOf(':'));
+    }
+
+    /**
+     * Get the port part of the node name
+     *
+     * @return the process server port
+     */
+    public int getPort() {
+        return Integer.parseInt(node.substring(node.lastIndexOf(':') + 1));
+    }
+
+    public int getProcesses() {
+        return processes;
+    }
+
+    public double getCpu() {
+        return cpu;
+    }
+
+    public double getHeap() {
+        return heap;
+    }
+
+    public double getThroughput() {
+        return throughput;
+    }
+
+    public int getCores() {
+        return cores;
+    }
+
+    public long getMaxHeap() {
+        return maxHeap;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public long getReceivedAt() {
+        return receivedAt;
+    }
+}
@@ -0,0 +1,287 @@
+package javapm.cluster;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The live peer table of a node.
+ * A node joins through a seed list, every heartbeat carries the
+ * members known to its sender, so the table converges to the whole
+ * cluster after a few rounds. Each member has a
+ * <code>PhiAccrualDetector</code> fed by its direct heartbeats:
+ * <ul>
+ * <li><code>JOINING</code>, known but no heartbeat yet,</li>
+ * <li><code>ALIVE</code>, phi below the threshold,</li>
+ * <li><code>SUSPECT</code>, phi above the threshold, the member is
+ * not chosen as a target, it becomes alive with its next heartbeat,</li>
+ * <li><code>DEAD</code>, silent for <code>removeMillis</code>, the
+ * member is dropped from the table. A seed is kept, so a restarted
+ * seed is found again.</li>
+ * </ul>
+ * Members are keyed by their gossip address <code>HOST:PORT</code>.
+ *
+ * @author Vasu Vardhan(vardhan)
+ * @author Pratyush Kumar(pratyush)
+ * @see javapm.cluster.PhiAccrualDetector
+ * @see javapm.cluster.GossipService
+ */
+public class Membership {
+    /**
+     * The status of a member
+     */
+    public enum Status {
+        JOINING, ALIVE, SUSPECT, DEAD
+    }
+
+    /**
+     * One member of the cluster
+     */
+    public static class Member {
+        /**
+         * The gossip address of the member
+         */
+        private String address;
+
+        /**
+         * The node name of the member, null until known
+         */
+        private volatile String node;
+
+        /**
+         * If the member is a seed of this node
+         */
+        private boolean seed;
+
+        /**
+         * The failure detector
+         */
+        private PhiAccrualDetector detector;
+
+        /**
+         * The latest load summary, null until the first heartbeat
+         */
+        private volatile LoadSummary summary;
+
+        Member(String address, String node, boolean seed, long expectedInterval) {
+            this.address = address;
+            this.node = node;
+            this.seed = seed;
+            this.detector = new PhiAccrualDetector(expectedInterval);
+        }
+
+        public String getAddress() {
+            return address;
+        }
+
+        public String getNode() {
+            return node;
+        }
+
+        public boolean isSeed() {
+            return seed;
+        }
+
+        public LoadSummary getSummary() {
+            return summary;
+        }
+
+        public long getLastHeartbeat() {
+            return detector.getLastHeartbeat();
+        }
+
+        public double phi(long now) {
+            return detector.phi(now);
+        }
+    }
+
+    /**
+     * The gossip address of this node
+     */
+    private String self;
+
+    /**
+     * The members, keyed by gossip address
+     */
+    private ConcurrentHashMap<String, Member> members;
+
+    /**
+     * The heartbeat interval of all nodes
+     */
+    private long intervalMillis;
+
+    /**
+     * Phi above which a member is suspected
+     */
+    private double phiThreshold;
+
+    /**
+     * Silence after which a member is dropped
+     */
+    private long removeMillis;
+
+    /**
+     * Constructor of <code>Membership</code>
+     *
+     * @param self           the gossip address of this node
+     * @param seeds          the gossip addresses of the seeds
+     * @param intervalMillis the heartbeat interval
+     * @param phiThreshold   phi above which a member is suspected
+     * @param removeMillis   silence after which a member is dropped
+     */
+    public Membership(String self, List<String> seeds, long intervalMillis,
+                      double phiThreshold, long removeMillis) {
+        this.self = self;
+        this.members = new ConcurrentHashMap<String, Member>();
+        this.intervalMillis = intervalMillis;
+        this.phiThreshold = phiThreshold;
+        this.removeMillis = removeMillis;
+        for (String seed : seeds) {
+            if (!seed.equals(self)) {
+                members.put(seed, new Member(seed, null, true, intervalMillis));
+            }
+        }
+    }
+
+    /**
+     * Record a direct heartbeat of a member
+     *
+     * @param address the gossip address of the sender
+     * @param summary the load summary of the sender
+     * @param now     the arrival time
+     */
+    public void heartbeat(String address, LoadSummary summary, long now) {
+        if (address.equals(self)) {
+            return;
+        }
+        Member member = learn(address, summary.getNode());
+        member.summary = summary;
+        member.detector.heartbeat(now);
+    }
+
+    /**
+     * Add a member told by another node, if it is not known yet
+     *
+     * @param address the gossip address
+     * @param node    the node name
+     * @return the member, or null for this node
+     */
+    public Member learn(String address, String node) {
+        if (address.equals(self)) {
+            return null;
+        }
+        Member member = members.get(address);
+        if (member == null) {
+            member = new Member(address, node, false, intervalMillis);
+            Member previous = members.putIfAbsent(address, member);
+            if (previous != null) {
+                member = previous;
+            }
+        }
+        if (member.node == null) {
+            member.node = node;
+        }
+        return member;
+    }
+
+    /**
+     * Get the status of a member
+     *
+     * @param member the member
+     * @param now    the current time
+     * @return the status
+     */
+    public Status status(Member member, long now) {
+        long last = member.getLastHeartbeat();
+        if (last == 0) {
+            return Status.JOINING;
+        }
+        if (now - last >= removeMillis) {
+            return Status.DEAD;
+        }
+        return member.phi(now) < phiThreshold ? Status.ALIVE : Status.SUSPECT;
+    }
+
+    /**
+     * Drop the dead members, seeds are kept
+     *
+     * @param now the current time
+     */
+    public void expire(long now) {
+        Iterator<Member> it = members.values().iterator();
+        while (it.hasNext()) {
+            Member member = it.next();
+            if (!member.seed && status(member, now) == Status.DEAD) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Get all members
+     *
+     * @return the members
+     */
+    public Collection<Member> getMembers() {
+        return members.values();
+    }
+
+    /**
+     * Get the load summaries of the alive members
+     *
+     * @param now the current time
+     * @return the summaries
+     */
+    public List<LoadSummary> getAlive(long now) {
+        List<LoadSummary> alive = new ArrayList<LoadSummary>();
+        for (Member member : members.values()) {
+            if (member.summary != null && status(member, now) == Status.ALIVE) {
+                alive.add(member.summary);
+            }
+        }
+        return alive;
+    }
+
+    /**
+     * Choose the alive member with the lowest load which can take a
+     * process: its heap is below <code>heapLimit</code> and it has a
+     * free slot of its capacity.
+     *
+     * @param heapLimit the heap usage limit
+     * @return the summary of the member, or null if none
+     */
+    public LoadSummary coldest(double heapLimit) {
+        return coldest(getAlive(System.currentTimeMillis()), heapLimit);
+    }
+
+    /**
+     * Choose the summary with the lowest load which can take a process
+     *
+     * @param peers     the summaries
+     * @param heapLimit the heap usage limit
+     * @return the summary, or null if none
+     * @see javapm.cluster.Membership#coldest(double)
+     */
+    public static LoadSummary coldest(Collection<LoadSummary> peers, double heapLimit) {
+        LoadSummary coldest = null;
+        for (LoadSummary peer : peers) {
+            if (peer.getHeap() >= heapLimit || !peer.hasFreeCapacity()) {
+                continue;
+            }
+            if (coldest == null || peer.getLoad() < coldest.getLoad()) {
+                coldest = peer;
+            }
+        }
+        return coldest;
+    }
+
+    public String getSelf() {
+        return self;
+    }
+
+    public double getPhiThreshold() {
+        return phiThreshold;
+    }
+}
@@ -0,0 +1,121 @@
+package javapm.cluster;
+
+/**
+ * The phi accrual failure detector of one peer.
+ * It keeps a window of the intervals between the heartbeats of the
+ * peer. The suspicion level <code>phi</code> is the negative
+ * logarithm of the probability that a heartbeat is still to come
+ * after the time already waited, under a normal distribution of the
+ * intervals. A phi of 1 means a 10% chance of a false suspicion,
+ * 8 means 1e-8. The standard deviation has a floor, so a very
+ * regular peer is not suspected after one late heartbeat.
+ *
+ * @author Pratyush Kumar(pratyush)
+ * @author Vasu Vardhan(vardhan)
+ * @see javapm.cluster.Membership
+ * @see <a href="https://doi.org/10.1109/RELDIS.2004.1353004">The phi accrual failure detector</a>
+ */
+public class PhiAccrualDetector {
+    /**
+     * Number of intervals kept
+     */
+    public static final int WINDOW = 100;
+
+    /**
+     * The ring buffer of intervals in milliseconds
+     */
+    private long[] intervals;
+
+    /**
+     * Number of intervals in the window
+     */
+    private int count;
+
+    /**
+     * Next write position
+     */
+    private int next;
+
+    /**
+     * Sum of intervals in the window
+     */
+    private double sum;
+
+    /**
+     * Sum of squared intervals in the window
+     */
+    private double squares;
+
+    /**
+     * Time of the last heartbeat, 0 if none
+     */
+    private long lastHeartbeat;
+
+    /**
+     * Floor of the standard deviation in milliseconds
+     */
+    private double minStdDeviation;
+
+    /**
+     * Constructor of <code>PhiAccrualDetector</code>
+     *
+     * @param expectedInterval the heartbeat interval of the peer, it
+     *                         is the first sample, and half of it is
+     *                         the floor of the standard deviation
+     */
+    public PhiAccrualDetector(long expectedInterval) {
+        this.intervals = new long[WINDOW];
+        this.minStdDeviation = expectedInterval / 2.0;
+        add(expectedInterval);
+    }
+
+    /**
+     * Record a heartbeat
+     *
+     * @param now the arrival time in milliseconds
+     */
+    public synchronized void heartbeat(long now) {
+        if (lastHeartbeat > 0) {
+            add(now - lastHeartbeat);
+        }
+        lastHeartbeat = now;
+    }
+
+    /**
+     * Get the suspicion level
+     *
+     * @param now the current time in milliseconds
+     * @return phi, 0 if no heartbeat arrived yet
+     */
+    public synchronized double phi(long now) {
+        if (lastHeartbeat == 0) {
+            return 0;
+        }
+        double mean = sum / count;
+        double variance = squares / count - mean * mean;
+        double std = Math.max(Math.sqrt(Math.max(0, variance)), minStdDeviation);
+        double y = (now - lastHeartbeat - mean) / std;
+        double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+        if (now - lastHeartbeat > mean) {
+            return -Math.log10(e / (1.0 + e));
+        }
+        return -Math.log10(1.0 - 1.0 / (1.0 + e));
+    }
+
+    public synchronized long getLastHeartbeat() {
+        return lastHeartbeat;
+    }
+
+    private void add(long interval) {
+        if (count == WINDOW) {
+            sum -= intervals[next];
+            squares -= (double) intervals[next] * intervals[next];
+        } else {
+            count++;
+        }
+        intervals[next] = interval;
+        sum += interval;
+        squares += (double) interval * interval;
+        next = (next + 1) % WINDOW;
+    }
+}
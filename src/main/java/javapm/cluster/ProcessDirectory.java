@@ -0,0 +1,103 @@
+package javapm.cluster;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The cache of process locations.
+ * Process IDs are unique in the cluster and stay the same when a
+ * process migrates, so the last known node of an ID is a good hint.
+ * The directory is updated when a process starts, migrates or is
+ * received on this node, and by the answers of a cluster-wide
+ * <code>ps</code>. A hint may be stale, the caller checks it with the
+ * node and falls back to asking all nodes. The oldest entries are
+ * dropped beyond <code>MAX_ENTRIES</code>.
+ *
+ * @author Pratyush Kumar(pratyush)
+ * @author Vasu Vardhan(vardhan)
+ * @see javapm.process.ProcessManager#generateID()
+ */
+public class ProcessDirectory {
+    /**
+     * Largest number of entries kept
+     */
+    public static final int MAX_ENTRIES = 10000;
+
+    /**
+     * The location of one process
+     */
+    public static class Location {
+        private String node;
+        private String description;
+        private long updatedAt;
+
+        Location(String node, String description) {
+            this.node = node;
+            this.description = description;
+            this.updatedAt = System.currentTimeMillis();
+        }
+
+        public String getNode() {
+            return node;
+        }
+
+        public String getDescription() {
+            return description;
+        }
+
+        public long getUpdatedAt() {
+            return updatedAt;
+        }
+    }
+
+    /**
+     * The locations by process ID, in access order
+     */
+    private LinkedHashMap<Long, Location> locations;
+
+    /**
+     * Constructor of <code>ProcessDirectory</code>
+     */
+    public ProcessDirectory() {
+        this.locations = new LinkedHashMap<Long, Location>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Location> eldest) {
+                return size() > MAX_ENTRIES;
+            }
+        };
+    }
+
+    /**
+     * Record the node of a process
+     *
+     * @param id          the process ID
+     * @param node        the node name
+     * @param description the printable process
+     */
+    public synchronized void record(long id, String node, String description) {
+        locations.put(id, new Location(node, description));
+    }
+
+    /**
+     * Get the last known location of a process
+     *
+     * @param id the process ID
+     * @return the location, or null if unknown
+     */
+    public synchronized Location lookup(long id) {
+        return locations.get(id);
+    }
+
+    /**
+     * Forget a process, e.g. it finished
+     *
+     * @param id the process ID
+     */
+    public synchronized void forget(long id) {
+        locations.remove(id);
+    }
+
+    public synchronized int size() {
+        return locations.size();
+    }
+}
@@ -0,0 +1,213 @@
+package javapm.cluster;
+
+import javapm.metrics.ProcessAccounting;
+import javapm.process.MigratableProcess;
+import javapm.process.ProcessManager;
+import javapm.process.ProcessManagerConfig;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The automatic load balancing of a process manager.
+ * Each round compares the load of this node with the coldest alive
+ * member of the cluster, and moves at most one process when the
+ * difference reaches <code>threshold</code>. Only this node pushes
+ * its own processes, so no coordination is needed.
+ * <p>
+ * The moved process is the one with the best ratio of load to cost.
+ * The load of a process is 1 plus the CPU cores it uses, the cost is
+ * the time to send its serialized size and its stream files at the
+ * measured bandwidth of the link. Ping-pong is prevented by:
+ * <ul>
+ * <li>the threshold, a move needs a large difference,</li>
+ * <li>no overshoot, a move never makes this node colder than the
+ * target, so the target never sees a reason to move it back,</li>
+ * <li>residency, a process stays <code>minResidency</code> on a node
+ * before it is moved again, and</li>
+ * <li>one move per round, the target is charged with the moved load
+ * until its next summary arrives.</li>
+ * </ul>
+ * The target must have heap usage below the hibernation watermark
+ * and a free slot of its capacity. With ring placement, processes
+ * with a placement key stay on their ring owner and are not moved.
+ *
+ * @author Vasu Vardhan(vardhan)
+ * @author Pratyush Kumar(pratyush)
+ * @see javapm.cluster.GossipService
+ * @see javapm.cluster.LinkBandwidth
+ */
+public class Rebalancer implements Runnable {
+    /**
+     * Log handler
+     *
+     * @see <a href="http://apache.org/log4j/2.x/">Log4J</a>
+     */
+    private static Logger LOG = LogManager.getLogger(Rebalancer.class);
+
+    /**
+     * The owner of resident processes
+     */
+    private ProcessManager manager;
+
+    /**
+     * The load view
+     */
+    private GossipService gossip;
+
+    /**
+     * The link bandwidth estimates
+     */
+    private LinkBandwidth links;
+
+    /**
+     * Interval between two rounds
+     */
+    private long intervalMillis;
+
+    /**
+     * Load difference which starts a move
+     */
+    private double threshold;
+
+    /**
+     * Time a process stays before it may be moved
+     */
+    private long minResidencyMillis;
+
+    /**
+     * Limit of the estimated transfer time
+     */
+    private long maxCostMillis;
+
+    /**
+     * Heap usage above which a node takes no process
+     */
+    private double heapLimit;
+
+    /**
+     * If set, processes with a placement key are left to the ring
+     */
+    private boolean ringPlacement;
+
+    /**
+     * The time each resident process was first seen, keyed by ID
+     */
+    private Map<Long, Long> firstSeen;
+
+    /**
+     * Constructor of <code>Rebalancer</code>
+     *
+     * @param manager the process manager
+     * @param gossip  the load gossip of the manager
+     * @param links   the link bandwidth estimates
+     * @param config  the settings of the manager
+     */
+    public Rebalancer(ProcessManager manager, GossipService gossip, LinkBandwidth links,
+                      ProcessManagerConfig config) {
+        this.manager = manager;
+        this.gossip = gossip;
+        this.links = links;
+        this.intervalMillis = config.getRebalanceIntervalMillis();
+        this.threshold = config.getRebalanceThreshold();
+        this.minResidencyMillis = config.getRebalanceMinResidencyMillis();
+        this.maxCostMillis = config.getRebalanceMaxCostMillis();
+        this.heapLimit = config.getHibernateHeapWatermark() > 0 ?
+                config.getHibernateHeapWatermark() : 1.0;
+        this.firstSeen = new HashMap<Long, Long>();
+        this.ringPlacement = config.isRingPlacement();
+    }
+
+    /**
+     * The rebalancing loop
+     */
+    public void run() {
+        while (true) {
+            try {
+                Thread.sleep(intervalMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                rebalance(System.currentTimeMillis());
+            } catch (RuntimeException e) {
+                LOG.error("rebalance error", e);
+            }
+        }
+    }
+
+    /**
+     * One round: find the coldest member and move one process to it
+     * if the difference is large enough.
+     *
+     * @param now the current time
+     */
+    private void rebalance(long now) {
+        updateResidency(now);
+        LoadSummary local = gossip.localSummary();
+        LoadSummary target = Membership.coldest(manager.getTargets(), heapLimit);
+        if (target == null) {
+            return;
+        }
+        double difference = local.getLoad() - target.getLoad();
+        if (difference < threshold) {
+            return;
+        }
+        double bandwidth = links.get(target.getNode());
+        MigratableProcess best = null;
+        double bestScore = 0;
+        double bestLoad = 0;
+        for (MigratableProcess process : manager.processes) {
+            Long seen = firstSeen.get(process.getId());
+            if (seen == null || now - seen < minResidencyMillis) {
+                continue;
+            }
+            if (ringPlacement && process.getPlacementKey() != null) {
+                continue;
+            }
+            ProcessAccounting accounting = process.getAccounting();
+            double load = 1 + accounting.getCpuLoad();
+            if (2 * load > difference) {
+                continue;
+            }
+            double costMillis = process.getTransferSize() * 1000 / bandwidth;
+            if (costMillis > maxCostMillis) {
+                continue;
+            }
+            double score = load / (1 + costMillis);
+            if (best == null || score > bestScore) {
+                best = process;
+                bestScore = score;
+                bestLoad = load;
+            }
+        }
+        if (best == null) {
+            return;
+        }
+        LOG.info("rebalance " + best + " to " + target.getNode() + ", load " +
+                local.getLoad() + " vs " + target.getLoad());
+        if (manager.migrate(best.getId(), target.getHost(), target.getPort())) {
+            target.addProcess(bestLoad - 1);
+        }
+    }
+
+    /**
+     * Remember when each resident process was first seen, and forget
+     * the processes which are gone
+     */
+    private void updateResidency(long now) {
+        Set<Long> alive = new HashSet<Long>();
+        for (MigratableProcess process : manager.processes) {
+            alive.add(process.getId());
+            if (!firstSeen.containsKey(process.getId())) {
+                firstSeen.put(process.getId(), now);
+            }
+        }
+        firstSeen.keySet().retainAll(alive);
+    }
+}
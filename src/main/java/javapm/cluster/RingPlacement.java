@@ -0,0 +1,210 @@
+package javapm.cluster;
+
+import javapm.process.MigratableProcess;
+import javapm.process.ProcessManager;
+import javapm.process.ProcessManagerConfig;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * The placement of processes on the consistent hash ring.
+ * Each round builds the ring of this node and the alive members. A
+ * process with a placement key belongs to the owner of its key, the
+ * processes of this node which belong to another node are moved
+ * there, at most <code>batchSize</code> per round, grouped by target.
+ * Only the keys of the ranges taken by a joining node, or left by a
+ * leaving node, change owner, so only those processes move.
+ * <p>
+ * Moves start when the ring has been the same for
+ * <code>SETTLE_ROUNDS</code> rounds, so a node which flaps between
+ * alive and suspect doesn't make processes go back and forth.
+ *
+ * @author Pratyush Kumar(pratyush)
+ * @author Vasu Vardhan(vardhan)
+ * @see javapm.cluster.HashRing
+ * @see javapm.process.MigratableProcess#getPlacementKey()
+ */
+public class RingPlacement implements Runnable {
+    /**
+     * Log handler
+     *
+     * @see <a href="http://apache.org/log4j/2.x/">Log4J</a>
+     */
+    private static Logger LOG = LogManager.getLogger(RingPlacement.class);
+
+    /**
+     * Number of rounds the ring must be the same before moves start
+     */
+    public static final int SETTLE_ROUNDS = 2;
+
+    /**
+     * The owner of resident processes
+     */
+    private ProcessManager manager;
+
+    /**
+     * The peer table
+     */
+    private Membership membership;
+
+    /**
+     * The name of this node
+     */
+    private String nodeName;
+
+    /**
+     * The number of points of each node
+     */
+    private int vnodes;
+
+    /**
+     * Largest number of moves in one round
+     */
+    private int batchSize;
+
+    /**
+     * Interval between two rounds
+     */
+    private long intervalMillis;
+
+    /**
+     * The current ring
+     */
+    private volatile HashRing ring;
+
+    /**
+     * Number of rounds the current ring is unchanged
+     */
+    private int stableRounds;
+
+    /**
+     * Constructor of <code>RingPlacement</code>
+     *
+     * @param manager    the process manager
+     * @param membership the peer table
+     * @param config     the settings of the manager
+     */
+    public RingPlacement(ProcessManager manager, Membership membership,
+                         ProcessManagerConfig config) {
+        this.manager = manager;
+        this.membership = membership;
+        this.nodeName = config.getNodeName();
+        this.vnodes = config.getRingVirtualNodes();
+        this.batchSize = config.getRingBatchSize();
+        this.intervalMillis = config.getRingIntervalMillis();
+        this.ring = new HashRing(Collections.singleton(nodeName), vnodes);
+    }
+
+    /**
+     * The placement loop
+     */
+    public void run() {
+        while (true) {
+            try {
+                Thread.sleep(intervalMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                update();
+                if (stableRounds >= SETTLE_ROUNDS) {
+                    place();
+                }
+            } catch (RuntimeException e) {
+                LOG.error("ring placement error", e);
+            }
+        }
+    }
+
+    /**
+     * Rebuild the ring if the alive nodes changed
+     */
+    private void update() {
+        Set<String> nodes = aliveNodes(false);
+        if (nodes.equals(ring.getNodes())) {
+            stableRounds++;
+            return;
+        }
+        LOG.info("ring changed from " + ring.getNodes() + " to " + nodes);
+        ring = new HashRing(nodes, vnodes);
+        stableRounds = 0;
+    }
+
+    /**
+     * Move one batch of the processes which belong to other nodes
+     */
+    private void place() {
+        Map<String, List<MigratableProcess>> moves = new TreeMap<String, List<MigratableProcess>>();
+        HashRing current = ring;
+        for (MigratableProcess process : manager.processes) {
+            String key = process.getPlacementKey();
+            if (key == null) {
+                continue;
+            }
+            String home = current.owner(key);
+            if (home == null || home.equals(nodeName)) {
+                continue;
+            }
+            if (!moves.containsKey(home)) {
+                moves.put(home, new ArrayList<MigratableProcess>());
+            }
+            moves.get(home).add(process);
+        }
+        int moved = 0;
+        for (Map.Entry<String, List<MigratableProcess>> entry : moves.entrySet()) {
+            String home = entry.getKey();
+            int split = home.lastIndexOf(':');
+            for (MigratableProcess process : entry.getValue()) {
+                if (moved++ >= batchSize) {
+                    return;
+                }
+                LOG.info("ring move " + process + " to " + home);
+                manager.migrate(process.getId(), home.substring(0, split),
+                        Integer.parseInt(home.substring(split + 1)));
+            }
+        }
+    }
+
+    /**
+     * Get the home node of a key
+     *
+     * @param key         the placement key
+     * @param excludeSelf if set, the owner of the key once this node
+     *                    has left
+     * @return the node name, or null if no node is alive
+     */
+    public String home(String key, boolean excludeSelf) {
+        if (!excludeSelf) {
+            return ring.owner(key);
+        }
+        return new HashRing(aliveNodes(true), vnodes).owner(key);
+    }
+
+    /**
+     * The names of the alive members, and of this node unless
+     * <code>excludeSelf</code> is set
+     */
+    private Set<String> aliveNodes(boolean excludeSelf) {
+        Set<String> nodes = new TreeSet<String>();
+        if (!excludeSelf) {
+            nodes.add(nodeName);
+        }
+        for (LoadSummary peer : membership.getAlive(System.currentTimeMillis())) {
+            nodes.add(peer.getNode());
+        }
+        return nodes;
+    }
+
+    public HashRing getRing() {
+        return ring;
+    }
+}
@@ -0,0 +1,354 @@
+package javapm.cluster;
+
+import javapm.io.TransactionalFileInputStream;
+import javapm.io.TransactionalStream;
+import javapm.process.ControlClient;
+import javapm.process.MigratableProcess;
+import javapm.process.ProcessManager;
+import javapm.process.ProcessManagerConfig;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The work stealing of a process manager. The rebalancer pushes work
+ * from a hot node, the stealer pulls it to an idle one: when the
+ * processes of this node fall below <code>threshold</code>, it asks
+ * the members with the most processes for some of theirs.
+ * <p>
+ * The asked node decides what it gives. It gives at most half of the
+ * difference of the two nodes, so neither becomes colder than the
+ * other, and it gives the processes which are cheapest to move: the
+ * cost of a process is its serialized size plus the length of its
+ * stream files, an input file the thief already has with the same
+ * length costs nothing. The processes are pushed through the normal
+ * migration, after the answer, so the admission control of the thief
+ * still applies. Like the rebalancer, it gives no process which came
+ * less than <code>minResidency</code> ago, and with ring placement no
+ * process with a placement key, which the ring would move back.
+ *
+ * @author Vasu Vardhan(vardhan)
+ * @author Pratyush Kumar(pratyush)
+ * @see javapm.cluster.Rebalancer
+ * @see javapm.process.ControlClient#steal(String, String, int, int, int)
+ */
+public class WorkStealer implements Runnable {
+    /**
+     * Log handler
+     *
+     * @see <a href="http://apache.org/log4j/2.x/">Log4J</a>
+     */
+    private static Logger LOG = LogManager.getLogger(WorkStealer.class);
+
+    /**
+     * The number of rounds a thief waits for granted processes before
+     * it asks again
+     */
+    private static final int GRACE_ROUNDS = 4;
+
+    /**
+     * The owner of resident processes
+     */
+    private ProcessManager manager;
+
+    /**
+     * Interval between two rounds, 0 if this node doesn't steal
+     */
+    private long intervalMillis;
+
+    /**
+     * The number of processes below which this node steals
+     */
+    private int threshold;
+
+    /**
+     * Largest number of processes asked at once
+     */
+    private int batchSize;
+
+    /**
+     * Timeout of the requests
+     */
+    private int timeoutMillis;
+
+    /**
+     * The time after which this node may ask again
+     */
+    private long waitUntil;
+
+    /**
+     * The number of processes granted to this node
+     */
+    private long stolen;
+
+    /**
+     * The number of processes this node gave away
+     */
+    private long given;
+
+    /**
+     * Time a process stays on this node before it may be given away
+     */
+    private long minResidencyMillis;
+
+    /**
+     * If the processes with a placement key stay on their ring node
+     */
+    private boolean ringPlacement;
+
+    /**
+     * The time each resident process was first seen, by process ID
+     */
+    private Map<Long, Long> firstSeen;
+
+    /**
+     * Constructor of <code>WorkStealer</code>
+     *
+     * @param manager the process manager
+     * @param config  the settings of the manager
+     */
+    public WorkStealer(ProcessManager manager, ProcessManagerConfig config) {
+        this.manager = manager;
+        this.intervalMillis = config.getStealIntervalMillis();
+        this.threshold = config.getStealThreshold();
+        this.batchSize = config.getStealBatchSize();
+        this.timeoutMillis = (int) config.getClusterFanoutTimeoutMillis();
+        this.minResidencyMillis = config.getRebalanceMinResidencyMillis();
+        this.ringPlacement = config.isRingPlacement();
+        this.firstSeen = new HashMap<Long, Long>();
+    }
+
+    /**
+     * The stealing loop
+     */
+    public void run() {
+        while (true) {
+            try {
+                Thread.sleep(intervalMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                updateResidency(System.currentTimeMillis());
+                if (System.currentTimeMillis() >= waitUntil) {
+                    steal();
+                }
+            } catch (RuntimeException e) {
+                LOG.error("steal error", e);
+            }
+        }
+    }
+
+    /**
+     * One round: if this node has fewer processes than the threshold,
+     * ask the members with the most processes, the fullest first,
+     * until enough are granted.
+     *
+     * @return the number of processes granted, by node
+     */
+    public Map<String, Integer> steal() {
+        Map<String, Integer> granted = new LinkedHashMap<String, Integer>();
+        int resident = manager.processes.size() + manager.getAdmission().getTransfers();
+        int wanted = Math.min(batchSize, threshold - resident);
+        if (wanted <= 0) {
+            return granted;
+        }
+        List<LoadSummary> victims = new ArrayList<LoadSummary>(manager.getTargets());
+        Collections.sort(victims, new Comparator<LoadSummary>() {
+            public int compare(LoadSummary a, LoadSummary b) {
+                return b.getProcesses() - a.getProcesses();
+            }
+        });
+        for (LoadSummary victim : victims) {
+            if (wanted <= 0 || victim.getProcesses() < resident + 2) {
+                break;
+            }
+            int count;
+            try {
+                count = ControlClient.steal(victim.getNode(), manager.getNodeName(), resident,
+                        wanted, timeoutMillis);
+            } catch (IOException e) {
+                LOG.warn("steal from " + victim.getNode() + " failed: " + e);
+                continue;
+            }
+            if (count > 0) {
+                granted.put(victim.getNode(), count);
+                LOG.info("stealing " + count + " processes from " + victim.getNode());
+                wanted -= count;
+                resident += count;
+            }
+        }
+        if (!granted.isEmpty()) {
+            synchronized (this) {
+                for (int count : granted.values()) {
+                    stolen += count;
+                }
+            }
+            waitUntil = System.currentTimeMillis() + GRACE_ROUNDS * Math.max(intervalMillis,
+                    timeoutMillis);
+        }
+        return granted;
+    }
+
+    /**
+     * Answer the request of a thief: choose the processes to give and
+     * migrate them in a daemon <code>Thread</code>.
+     *
+     * @param thief    the node name <code>HOST:PORT</code> of the thief
+     * @param resident the number of processes of the thief
+     * @param count    the largest number of processes wanted
+     * @return the number of processes which will be migrated
+     */
+    public int offer(String thief, int resident, int count) {
+        int spare = (manager.processes.size() - resident) / 2;
+        count = Math.min(count, spare);
+        if (count <= 0 || thief.equals(manager.getNodeName()) || manager.isBusy(thief)) {
+            return 0;
+        }
+        final List<MigratableProcess> chosen = cheapest(thief, count);
+        if (chosen.isEmpty()) {
+            return 0;
+        }
+        int split = thief.lastIndexOf(':');
+        final String host = thief.substring(0, split);
+        final int port = Integer.parseInt(thief.substring(split + 1));
+        Thread pusher = new Thread(new Runnable() {
+            public void run() {
+                for (MigratableProcess process : chosen) {
+                    System.out.println("Giving " + process + " to " + host + ":" + port);
+                    if (manager.migrate(process.getId(), host, port)) {
+                        synchronized (WorkStealer.this) {
+                            given++;
+                        }
+                    }
+                }
+            }
+        }, "steal-push");
+        pusher.setDaemon(true);
+        pusher.start();
+        return chosen.size();
+    }
+
+    /**
+     * Choose the processes which are cheapest to move to a thief. The
+     * thief is asked which input files it has, if it doesn't answer
+     * all files are counted.
+     *
+     * @param thief the node name of the thief
+     * @param count the number of processes
+     * @return the processes, cheapest first
+     */
+    private List<MigratableProcess> cheapest(String thief, int count) {
+        long now = System.currentTimeMillis();
+        updateResidency(now);
+        List<MigratableProcess> candidates = new ArrayList<MigratableProcess>();
+        List<String> inputs = new ArrayList<String>();
+        for (MigratableProcess process : manager.processes) {
+            if (!resident(process, now)) {
+                continue;
+            }
+            if (ringPlacement && process.getPlacementKey() != null) {
+                continue;
+            }
+            candidates.add(process);
+            for (TransactionalStream stream : process.getTransactionalStreams()) {
+                if (stream instanceof TransactionalFileInputStream &&
+                        !inputs.contains(stream.getFile().getPath())) {
+                    inputs.add(stream.getFile().getPath());
+                }
+            }
+        }
+        Map<String, Long> cached = new HashMap<String, Long>();
+        if (!inputs.isEmpty()) {
+            try {
+                long[] lengths = ControlClient.stat(thief, inputs, timeoutMillis);
+                for (int i = 0; i < lengths.length && i < inputs.size(); i++) {
+                    cached.put(inputs.get(i), lengths[i]);
+                }
+            } catch (IOException e) {
+                LOG.warn("stat on " + thief + " failed: " + e);
+            }
+        }
+        final Map<MigratableProcess, Long> costs = new HashMap<MigratableProcess, Long>();
+        for (MigratableProcess process : candidates) {
+            costs.put(process, cost(process, cached));
+        }
+        Collections.sort(candidates, new Comparator<MigratableProcess>() {
+            public int compare(MigratableProcess a, MigratableProcess b) {
+                return Long.compare(costs.get(a), costs.get(b));
+            }
+        });
+        return new ArrayList<MigratableProcess>(
+                candidates.subList(0, Math.min(count, candidates.size())));
+    }
+
+    /**
+     * The bytes a migration of a process sends to a thief
+     *
+     * @param process the process
+     * @param cached  the length of the input files on the thief, by path
+     * @return the bytes
+     */
+    private static long cost(MigratableProcess process, Map<String, Long> cached) {
+        long bytes = Math.max(0, process.getAccounting().getSerializedSize());
+        List<File> files = new ArrayList<File>();
+        for (TransactionalStream stream : process.getTransactionalStreams()) {
+            File file = stream.getFile();
+            if (files.contains(file)) {
+                continue;
+            }
+            files.add(file);
+            Long remote = cached.get(file.getPath());
+            if (!(stream instanceof TransactionalFileInputStream) || remote == null ||
+                    remote != file.length()) {
+                bytes += file.length();
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * The printable state, used by the <code>stats</code> command.
+     *
+     * @return the printable information
+     */
+    public synchronized String toString() {
+        return "stealing: " + (intervalMillis > 0 ? "below " + threshold + " processes" : "off") +
+                ", stolen " + stolen + ", given " + given;
+    }
+
+    /**
+     * Remember when each resident process was first seen, and forget
+     * the processes which are gone
+     */
+    private synchronized void updateResidency(long now) {
+        Set<Long> alive = new HashSet<Long>();
+        for (MigratableProcess process : manager.processes) {
+            alive.add(process.getId());
+            if (!firstSeen.containsKey(process.getId())) {
+                firstSeen.put(process.getId(), now);
+            }
+        }
+        firstSeen.keySet().retainAll(alive);
+    }
+
+    /**
+     * Check if a process stayed <code>minResidency</code> on this node
+     */
+    private synchronized boolean resident(MigratableProcess process, long now) {
+        Long seen = firstSeen.get(process.getId());
+        return seen != null && now - seen >= minResidencyMillis;
+    }
+}
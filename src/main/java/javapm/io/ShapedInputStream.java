@@ -0,0 +1,80 @@
+package javapm.io;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * An input stream whose reads take tokens of a
+ * <code>TrafficShaper</code>. The tokens are taken after a read, for
+ * the bytes it returned, so the next read waits and TCP slows the
+ * sender down. A read returns at most <code>CHUNK</code> bytes.
+ *
+ * @author Vasu Vardhan(vardhan)
+ * @author Pratyush Kumar(pratyush)
+ * @see javapm.io.TrafficShaper
+ */
+public class ShapedInputStream extends FilterInputStream {
+    /**
+     * The largest read
+     */
+    public static final int CHUNK = 64 * 1024;
+
+    /**
+     * The shaper
+     */
+    private TrafficShaper shaper;
+
+    /**
+     * The peer address
+     */
+    private String peer;
+
+    /**
+     * The class of the transfer
+     */
+    private TrafficClass traffic;
+
+    /**
+     * Constructor of <code>ShapedInputStream</code>
+     *
+     * @param in      the stream
+     * @param shaper  the shaper
+     * @param peer    the peer address
+     * @param traffic the class of the transfer
+     */
+    public ShapedInputStream(InputStream in, TrafficShaper shaper, String peer,
+                             TrafficClass traffic) {
+        super(in);
+        this.shaper = shaper;
+        this.peer = peer;
+        this.traffic = traffic;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = in.read();
+        if (b >= 0) {
+            shaper.acquire(peer, traffic, 1);
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int n = in.read(b, off, Math.min(len, CHUNK));
+        if (n > 0) {
+            shaper.acquire(peer, traffic, n);
+        }
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = in.skip(Math.min(n, CHUNK));
+        if (skipped > 0) {
+            shaper.acquire(peer, traffic, skipped);
+        }
+        return skipped;
+    }
+}
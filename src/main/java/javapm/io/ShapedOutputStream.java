@@ -0,0 +1,58 @@
+package javapm.io;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * An output stream whose writes take tokens of a
+ * <code>TrafficShaper</code> before they go to the stream.
+ *
+ * @author Vasu Vardhan(vardhan)
+ * @author Pratyush Kumar(pratyush)
+ * @see javapm.io.TrafficShaper
+ */
+public class ShapedOutputStream extends FilterOutputStream {
+    /**
+     * The shaper
+     */
+    private TrafficShaper shaper;
+
+    /**
+     * The peer address
+     */
+    private String peer;
+
+    /**
+     * The class of the transfer
+     */
+    private TrafficClass traffic;
+
+    /**
+     * Constructor of <code>ShapedOutputStream</code>
+     *
+     * @param out     the stream
+     * @param shaper  the shaper
+     * @param peer    the peer address
+     * @param traffic the class of the transfer
+     */
+    public ShapedOutputStream(OutputStream out, TrafficShaper shaper, String peer,
+                              TrafficClass traffic) {
+        super(out);
+        this.shaper = shaper;
+        this.peer = peer;
+        this.traffic = traffic;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        shaper.acquire(peer, traffic, 1);
+        out.write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        shaper.acquire(peer, traffic, len);
+        out.write(b, off, len);
+    }
+}
@@ -0,0 +1,245 @@
+package javapm.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The registry of files which are still arriving on this node.
+ * A receiver stages a file before its first byte arrives and reports
+ * every received range, a <code>TransactionalFileInputStream</code>
+ * on a staged file waits until the bytes at its offset are there, so
+ * a process can run while the rest of its input is received.
+ * Files which are not staged are read without waiting. A file whose
+ * transfer failed stays registered, reads of it fail, until it is
+ * received again.
+ *
+ * @author Vasu Vardhan(vardhan)
+ * @author Pratyush Kumar(pratyush)
+ * @see javapm.io.TransactionalFileInputStream
+ */
+public class StagedFileRegistry {
+    /**
+     * The staged files, by absolute file
+     */
+    private static final Map<File, StagedFile> STAGED = new ConcurrentHashMap<File, StagedFile>();
+
+    private StagedFileRegistry() {
+    }
+
+    /**
+     * Stage a file which is about to be received
+     *
+     * @param file   the file
+     * @param length the final length of the file
+     * @return the staged file
+     */
+    public static StagedFile stage(File file, long length) {
+        StagedFile staged = new StagedFile(file.getAbsoluteFile(), length);
+        STAGED.put(staged.file, staged);
+        return staged;
+    }
+
+    /**
+     * Get a staged file
+     *
+     * @param file the file
+     * @return the staged file, null if the file is not staged
+     */
+    public static StagedFile get(File file) {
+        return STAGED.get(file.getAbsoluteFile());
+    }
+
+    /**
+     * Unregister a failed file which was received again
+     *
+     * @param file the file
+     */
+    public static void clearFailed(File file) {
+        StagedFile staged = get(file);
+        if (staged != null && staged.isFailed()) {
+            STAGED.remove(staged.file, staged);
+        }
+    }
+
+    /**
+     * Check if a file can be replaced: it is not staged, or its
+     * transfer failed
+     *
+     * @param file the file
+     * @return if no transfer of the file is running return <code>true</code>
+     */
+    public static boolean isReplaceable(File file) {
+        StagedFile staged = get(file);
+        return staged == null || staged.isFailed();
+    }
+
+    /**
+     * Wait until the byte at <code>position</code> of a file is
+     * available.
+     *
+     * @param file     the file
+     * @param position the position to read
+     * @return the end of the available range around
+     * <code>position</code>, <code>Long.MAX_VALUE</code> if the file
+     * is not staged (any more)
+     * @throws IOException if the transfer of the file failed, or the
+     *                     wait is interrupted
+     */
+    public static long available(File file, long position) throws IOException {
+        StagedFile staged = STAGED.isEmpty() ? null : get(file);
+        return staged == null ? Long.MAX_VALUE : staged.await(position);
+    }
+
+    /**
+     * A file which is being received. The received ranges are kept
+     * merged, the sender sends the region a process needs first.
+     */
+    public static class StagedFile {
+        /**
+         * The absolute file
+         */
+        private final File file;
+
+        /**
+         * The final length
+         */
+        private final long length;
+
+        /**
+         * The received ranges, start to end
+         */
+        private final TreeMap<Long, Long> ranges;
+
+        /**
+         * Set when all bytes are received
+         */
+        private boolean complete;
+
+        /**
+         * Set when the transfer failed
+         */
+        private boolean failed;
+
+        StagedFile(File file, long length) {
+            this.file = file;
+            this.length = length;
+            this.ranges = new TreeMap<Long, Long>();
+            this.complete = length == 0;
+        }
+
+        /**
+         * Report a received range
+         *
+         * @param start the first byte
+         * @param end   the byte after the range
+         */
+        public synchronized void received(long start, long end) {
+            Map.Entry<Long, Long> before = ranges.floorEntry(start);
+            if (before != null && before.getValue() >= start) {
+                start = before.getKey();
+                end = Math.max(end, before.getValue());
+            }
+            Map.Entry<Long, Long> after = ranges.ceilingEntry(start);
+            while (after != null && after.getKey() <= end) {
+                end = Math.max(end, after.getValue());
+                ranges.remove(after.getKey());
+                after = ranges.ceilingEntry(start);
+            }
+            ranges.put(start, end);
+            notifyAll();
+        }
+
+        /**
+         * Mark the file as completely received and remove it from the
+         * registry
+         */
+        public synchronized void complete() {
+            complete = true;
+            STAGED.remove(file, this);
+            notifyAll();
+        }
+
+        /**
+         * Mark the transfer as failed, waiting readers get an
+         * <code>IOException</code>
+         */
+        public synchronized void fail() {
+            failed = true;
+            STAGED.remove(file, this);
+            notifyAll();
+        }
+
+        /**
+         * Wait until the byte at <code>position</code> is received.
+         * A position at or after the end returns at once, the read
+         * there finds the end of the file.
+         *
+         * @param position the position to read
+         * @return the end of the received range around the position
+         * @throws IOException if the transfer failed or the wait is
+         *                     interrupted
+         */
+        public synchronized long await(long position) throws IOException {
+            while (true) {
+                if (failed) {
+                    throw new IOException("transfer of " + file + " failed");
+                }
+                if (complete) {
+                    return Long.MAX_VALUE;
+                }
+                if (position >= length) {
+                    return position;
+                }
+                Map.Entry<Long, Long> range = ranges.floorEntry(position);
+                if (range != null && range.getValue() > position) {
+                    return range.getValue();
+                }
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("interrupted while waiting for " + file);
+                }
+            }
+        }
+
+        /**
+         * Wait until the whole file is received
+         *
+         * @throws IOException if the transfer failed or the wait is
+         *                     interrupted
+         */
+        public synchronized void awaitComplete() throws IOException {
+            while (!complete) {
+                if (failed) {
+                    throw new IOException("transfer of " + file + " failed");
+                }
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("interrupted while waiting for " + file);
+                }
+            }
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        public long getLength() {
+            return length;
+        }
+
+        public synchronized boolean isComplete() {
+            return complete;
+        }
+
+        public synchronized boolean isFailed() {
+            return failed;
+        }
+    }
+}
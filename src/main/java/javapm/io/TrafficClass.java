@@ -0,0 +1,49 @@
+package javapm.io;
+
+/**
+ * The priority classes of migration traffic, highest first.
+ * A drain is <code>URGENT</code>, a rebalancing or console migration
+ * is <code>NORMAL</code>, copies made ahead of a migration are
+ * <code>BACKGROUND</code>.
+ *
+ * @author Vasu Vardhan(vardhan)
+ * @author Pratyush Kumar(pratyush)
+ * @see javapm.io.TrafficShaper
+ */
+public enum TrafficClass {
+    URGENT("urgent"),
+    NORMAL("normal"),
+    BACKGROUND("background");
+
+    /**
+     * The value of the enum, sent to the receiver
+     */
+    private String value;
+
+    private TrafficClass(String value) {
+        this.value = value;
+    }
+
+    /**
+     * Get the value of enum
+     * @return value
+     */
+    public String getValue() {
+        return value;
+    }
+
+    /**
+     * Get the enum instance by its value
+     *
+     * @param value the value
+     * @return the class, <code>NORMAL</code> if the value is unknown
+     */
+    public static TrafficClass getInstance(String value) {
+        for (TrafficClass instance : TrafficClass.values()) {
+            if (instance.getValue().equals(value)) {
+                return instance;
+            }
+        }
+        return NORMAL;
+    }
+}
@@ -0,0 +1,352 @@
+package javapm.io;
+
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javapm.metrics.MigrationMetrics;
+
+/**
+ * The traffic shaper of migrations. Every byte a migration sends or
+ * receives over TCP takes a token of the node bucket and of the
+ * bucket of the peer, so mass migrations leave bandwidth to the
+ * running processes. A bucket refills at its rate up to the burst
+ * size; a transfer may run a bucket into debt, the next one waits
+ * until the debt is paid. Among the transfers waiting for the node
+ * bucket, a lower class waits as long as a higher class waits.
+ * <p>
+ * A rate of 0 is unlimited. The rates can be changed at any time,
+ * the time transfers waited is recorded per class.
+ *
+ * @author Vasu Vardhan(vardhan)
+ * @author Pratyush Kumar(pratyush)
+ * @see javapm.io.TrafficClass
+ * @see javapm.io.ShapedInputStream
+ * @see javapm.io.ShapedOutputStream
+ */
+public class TrafficShaper {
+    /**
+     * The longest wait before the buckets are checked again
+     */
+    private static final long MAX_WAIT_MILLIS = 100;
+
+    /**
+     * The bucket of the node
+     */
+    private TokenBucket global;
+
+    /**
+     * The buckets of the peers, by peer address
+     */
+    private Map<String, TokenBucket> peers;
+
+    /**
+     * The rates of peers which don't use the default peer rate
+     */
+    private Map<String, Long> peerRates;
+
+    /**
+     * The rate of a peer without its own rate
+     */
+    private long peerRate;
+
+    /**
+     * The burst size of all buckets
+     */
+    private long burst;
+
+    /**
+     * The number of transfers waiting for the node bucket, by class
+     */
+    private int[] waiting;
+
+    /**
+     * The metrics which record the throttle time
+     */
+    private MigrationMetrics metrics;
+
+    /**
+     * Constructor of <code>TrafficShaper</code>
+     *
+     * @param rate     the node rate in bytes per second, 0 is unlimited
+     * @param peerRate the rate of every peer in bytes per second, 0 is
+     *                 unlimited
+     * @param burst    the burst size in bytes
+     * @param metrics  the metrics which record the throttle time
+     */
+    public TrafficShaper(long rate, long peerRate, long burst, MigrationMetrics metrics) {
+        this.burst = burst;
+        this.global = new TokenBucket(rate, burst);
+        this.peers = new HashMap<String, TokenBucket>();
+        this.peerRates = new TreeMap<String, Long>();
+        this.peerRate = peerRate;
+        this.waiting = new int[TrafficClass.values().length];
+        this.metrics = metrics;
+    }
+
+    /**
+     * Shape the reads of a stream
+     *
+     * @param in      the stream
+     * @param peer    the peer address
+     * @param traffic the class of the transfer
+     * @return the shaped stream
+     */
+    public InputStream input(InputStream in, String peer, TrafficClass traffic) {
+        return new ShapedInputStream(in, this, peer, traffic);
+    }
+
+    /**
+     * Shape the writes of a stream
+     *
+     * @param out     the stream
+     * @param peer    the peer address
+     * @param traffic the class of the transfer
+     * @return the shaped stream
+     */
+    public OutputStream output(OutputStream out, String peer, TrafficClass traffic) {
+        return new ShapedOutputStream(out, this, peer, traffic);
+    }
+
+    /**
+     * Take tokens for a transfer, wait until the buckets of the node
+     * and of the peer are out of debt and no higher class waits for
+     * the node bucket.
+     *
+     * @param peer    the peer address
+     * @param traffic the class of the transfer
+     * @param bytes   the number of bytes
+     * @throws InterruptedIOException if the wait is interrupted
+     */
+    public synchronized void acquire(String peer, TrafficClass traffic, long bytes)
+            throws InterruptedIOException {
+        TokenBucket link = peer(peer);
+        long start = System.nanoTime();
+        boolean queued = false;
+        boolean waited = false;
+        try {
+            while (true) {
+                long now = System.nanoTime();
+                long wait = link.delay(now);
+                if (wait == 0) {
+                    if (!queued) {
+                        queued = true;
+                        waiting[traffic.ordinal()]++;
+                    }
+                    wait = global.delay(now);
+                    if (wait == 0 && higherWaiting(traffic)) {
+                        wait = MAX_WAIT_MILLIS * 1000000;
+                    }
+                } else if (queued) {
+                    queued = false;
+                    waiting[traffic.ordinal()]--;
+                }
+                if (wait == 0) {
+                    break;
+                }
+                long millis = Math.min(MAX_WAIT_MILLIS, Math.max(1, wait / 1000000));
+                waited = true;
+                wait(millis);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while shaping traffic to " + peer);
+        } finally {
+            if (queued) {
+                waiting[traffic.ordinal()]--;
+                notifyAll();
+            }
+        }
+        global.take(bytes);
+        link.take(bytes);
+        if (waited) {
+            metrics.throttle(traffic, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Check if a transfer of a higher class waits for the node bucket
+     *
+     * @param traffic the class of the caller
+     * @return if one waits return <code>true</code>
+     */
+    private boolean higherWaiting(TrafficClass traffic) {
+        for (int i = 0; i < traffic.ordinal(); i++) {
+            if (waiting[i] > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Get the bucket of a peer, create it at the first transfer
+     *
+     * @param peer the peer address
+     * @return the bucket
+     */
+    private TokenBucket peer(String peer) {
+        TokenBucket bucket = peers.get(peer);
+        if (bucket == null) {
+            Long rate = peerRates.get(peer);
+            bucket = new TokenBucket(rate == null ? peerRate : rate, burst);
+            peers.put(peer, bucket);
+        }
+        return bucket;
+    }
+
+    /**
+     * Set the rate of the node
+     *
+     * @param rate bytes per second, 0 is unlimited
+     */
+    public synchronized void setRate(long rate) {
+        global.setRate(rate, System.nanoTime());
+        notifyAll();
+    }
+
+    /**
+     * Set the rate of every peer without its own rate
+     *
+     * @param rate bytes per second, 0 is unlimited
+     */
+    public synchronized void setPeerRate(long rate) {
+        peerRate = rate;
+        long now = System.nanoTime();
+        for (Map.Entry<String, TokenBucket> entry : peers.entrySet()) {
+            if (!peerRates.containsKey(entry.getKey())) {
+                entry.getValue().setRate(rate, now);
+            }
+        }
+        notifyAll();
+    }
+
+    /**
+     * Set the rate of one peer
+     *
+     * @param peer the peer address
+     * @param rate bytes per second, 0 is unlimited, negative uses the
+     *             rate of every peer again
+     */
+    public synchronized void setPeerRate(String peer, long rate) {
+        if (rate < 0) {
+            peerRates.remove(peer);
+        } else {
+            peerRates.put(peer, rate);
+        }
+        peer(peer).setRate(rate < 0 ? peerRate : rate, System.nanoTime());
+        notifyAll();
+    }
+
+    public synchronized long getRate() {
+        return global.rate;
+    }
+
+    public synchronized long getPeerRate() {
+        return peerRate;
+    }
+
+    /**
+     * Get the peers with their own rate
+     *
+     * @return the rates, by peer address
+     */
+    public synchronized Map<String, Long> getPeerRates() {
+        return new TreeMap<String, Long>(peerRates);
+    }
+
+    /**
+     * The printable limits, used by the <code>shape</code> command.
+     *
+     * @return the printable information
+     */
+    public synchronized String toString() {
+        StringBuffer sb = new StringBuffer();
+        sb.append("node: " + format(global.rate) + ", peers: " + format(peerRate) +
+                ", burst: " + burst + " bytes");
+        for (Map.Entry<String, Long> entry : peerRates.entrySet()) {
+            sb.append("\n  " + entry.getKey() + ": " + format(entry.getValue()));
+        }
+        return sb.toString();
+    }
+
+    private static String format(long rate) {
+        return rate == 0 ? "unlimited" : rate + " B/s";
+    }
+
+    /**
+     * A token bucket. The tokens are bytes, they may go negative.
+     * The shaper holds its lock for all calls.
+     */
+    private static class TokenBucket {
+        /**
+         * Bytes per second, 0 is unlimited
+         */
+        private long rate;
+
+        /**
+         * The largest number of tokens
+         */
+        private long burst;
+
+        /**
+         * The tokens at <code>last</code>
+         */
+        private double tokens;
+
+        /**
+         * The time of the last refill
+         */
+        private long last;
+
+        TokenBucket(long rate, long burst) {
+            this.rate = rate;
+            this.burst = burst;
+            this.tokens = burst;
+            this.last = System.nanoTime();
+        }
+
+        /**
+         * Add the tokens of the time since the last refill
+         *
+         * @param now the time
+         */
+        private void refill(long now) {
+            if (rate > 0 && now > last) {
+                tokens = Math.min(burst, tokens + (now - last) * (double) rate / 1e9);
+            }
+            last = now;
+        }
+
+        /**
+         * Get the time until the bucket is out of debt
+         *
+         * @param now the time
+         * @return nanoseconds, 0 if a transfer may go
+         */
+        long delay(long now) {
+            if (rate == 0) {
+                return 0;
+            }
+            refill(now);
+            return tokens >= 0 ? 0 : (long) Math.ceil(-tokens * 1e9 / rate);
+        }
+
+        void take(long bytes) {
+            if (rate > 0) {
+                tokens -= bytes;
+            }
+        }
+
+        void setRate(long rate, long now) {
+            refill(now);
+            if (this.rate == 0) {
+                tokens = burst;
+            }
+            this.rate = rate;
+        }
+    }
+}
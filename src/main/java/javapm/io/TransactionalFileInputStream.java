@@ -1,5 +1,6 @@
 package javapm.io; 
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
@@ -23,7 +24,12 @@ import java.io.Serializable;
  * @see java.io.RandomAccessFile
  */
 public class TransactionalFileInputStream extends InputStream
-        implements Serializable {
+        implements Serializable, TransactionalStream {
+    /**
+     * The size of the blocks read ahead by <code>readLine()</code>
+     */
+    private static final int LINE_BLOCK = 64 * 1024;
+
     /**
      * The <code>File</code> object of input file
      */
@@ -42,20 +48,66 @@ public class TransactionalFileInputStream extends InputStream
      */
     private transient RandomAccessFile handler;
 
+    /**
+     * The number of bytes read by this object since it was created
+     * or deserialized. It is a plain field, only the process thread
+     * writes it, so accounting adds nothing but an increment to the
+     * IO path.
+     */
+    private transient long transferred;
+
+    /**
+     * The end of the received range at the offset, if the file is
+     * still arriving. It is <code>transient</code>, 0 makes the next
+     * read ask the <code>StagedFileRegistry</code>.
+     *
+     * @see javapm.io.StagedFileRegistry
+     */
+    private transient long available;
+
+    /**
+     * The block read ahead by <code>readLine()</code>. The bytes from
+     * <code>lineStart</code> to <code>lineEnd</code> are the file from
+     * <code>offset</code> on, the file handler is after them. It is
+     * <code>transient</code>, the offset alone is the state.
+     */
+    private transient byte[] lineBuffer;
+    private transient int lineStart;
+    private transient int lineEnd;
+
     /**
      * The migrated flag. When the flag is set, we should reset the
      * file handler and seek to the previous offset
      */
     private boolean migrated;
 
+    /**
+     * The offset at which the stream ends, before the end of the file
+     * for a stream over a range
+     */
+    private long end;
+
     /**
      * Constructor of TransactionalFileInputStream
      *
      * @param sourceFile the input file object
      */
     public TransactionalFileInputStream(File sourceFile) {
+        this(sourceFile, 0, Long.MAX_VALUE);
+    }
+
+    /**
+     * Constructor of a TransactionalFileInputStream over a range of a
+     * file, e.g. the shard of a job
+     *
+     * @param sourceFile the input file object
+     * @param start      the first offset
+     * @param end        the offset after the range
+     */
+    public TransactionalFileInputStream(File sourceFile, long start, long end) {
         this.sourceFile = sourceFile;
-        this.offset = 0;
+        this.offset = start;
+        this.end = end;
         this.migrated = false;
     }
 
@@ -63,9 +115,11 @@ public class TransactionalFileInputStream extends InputStream
      * Implementation of <code>read()</code>
      * At the beginning, we check the migrated flag, if the flag
      * is set, we reset the file handler and seek the file to the
-     * previous offset. Then, we call <code>handler.read()</code>
+     * previous offset. If the file is still being received, we wait
+     * until the byte at the offset arrived. Then, we call <code>handler.read()</code>
      * to read one byte. Finally, we increase the <code>offset</code>
-     * value.
+     * value, unless the end of the file was reached: a file which
+     * grows is read on from the same offset.
      *
      * @return the next byte of data, or <code>-1</code> if the end of the
      *         file has been reached.
@@ -76,30 +130,224 @@ public class TransactionalFileInputStream extends InputStream
      */
     @Override
     public int read() throws IOException {
+        dropLineBuffer();
         if (migrated || handler == null) {
             handler = new RandomAccessFile(sourceFile, "r");
             migrated = false;
+            available = 0;
             handler.seek(offset);
         }
+        if (offset >= end) {
+            return -1;
+        }
+        if (offset >= available) {
+            available = StagedFileRegistry.available(sourceFile, offset);
+        }
         int result = handler.read();
-        offset++;
+        if (result >= 0) {
+            offset++;
+            transferred++;
+        }
+        return result;
+    }
+
+    /**
+     * Implementation of <code>read(byte[], int, int)</code>, with one
+     * <code>handler.read()</code> for the bytes available at the
+     * offset.
+     *
+     * @param b   the buffer into which the data is read.
+     * @param off the start offset in the buffer.
+     * @param len the maximum number of bytes read.
+     * @return the number of bytes read, or <code>-1</code> if the end
+     *         of the file has been reached.
+     * @throws IOException if an I/O error occurs.
+     * @see java.io.RandomAccessFile#read(byte[], int, int)
+     */
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        dropLineBuffer();
+        int result = readAhead(b, off, len);
+        if (result > 0) {
+            offset += result;
+        }
         return result;
     }
 
+    /**
+     * Read the bytes after the offset without moving it, the line
+     * buffer must be empty
+     */
+    private int readAhead(byte[] b, int off, int len) throws IOException {
+        if (offset >= end) {
+            return -1;
+        }
+        if (migrated || handler == null) {
+            handler = new RandomAccessFile(sourceFile, "r");
+            migrated = false;
+            available = 0;
+            handler.seek(offset);
+        }
+        if (offset >= available) {
+            available = StagedFileRegistry.available(sourceFile, offset);
+        }
+        long limit = Math.min(available, end);
+        if (limit <= offset) {
+            // the staged file ended before the offset
+            return -1;
+        }
+        int result = handler.read(b, off, (int) Math.min(len, limit - offset));
+        if (result > 0) {
+            transferred += result;
+        }
+        return result;
+    }
+
+    /**
+     * Read a line, without its line terminator. The file is read in
+     * blocks, but the offset only moves past the line returned, so it
+     * is exact whenever the process is suspended.
+     *
+     * @return the bytes of the line, or null at the end of the stream
+     * @throws IOException if an I/O error occurs.
+     */
+    public byte[] readLine() throws IOException {
+        ByteArrayOutputStream line = null;
+        while (true) {
+            for (int i = lineStart; i < lineEnd; i++) {
+                if (lineBuffer[i] == '\n') {
+                    byte[] bytes = concat(line, lineStart, i);
+                    offset += i + 1 - lineStart;
+                    lineStart = i + 1;
+                    return bytes;
+                }
+            }
+            if (lineEnd > lineStart) {
+                // the line goes on in the next block
+                if (line == null) {
+                    line = new ByteArrayOutputStream();
+                }
+                line.write(lineBuffer, lineStart, lineEnd - lineStart);
+                offset += lineEnd - lineStart;
+            }
+            lineStart = 0;
+            lineEnd = 0;
+            if (lineBuffer == null) {
+                lineBuffer = new byte[LINE_BLOCK];
+            }
+            int read = readAhead(lineBuffer, 0, lineBuffer.length);
+            if (read < 0) {
+                return line == null ? null : line.toByteArray();
+            }
+            lineEnd = read;
+        }
+    }
+
+    /**
+     * Join the start of a line and its bytes in the line buffer
+     */
+    private byte[] concat(ByteArrayOutputStream line, int from, int to) {
+        if (line == null) {
+            byte[] bytes = new byte[to - from];
+            System.arraycopy(lineBuffer, from, bytes, 0, to - from);
+            return bytes;
+        }
+        line.write(lineBuffer, from, to - from);
+        return line.toByteArray();
+    }
+
+    /**
+     * Forget the bytes read ahead, the file handler goes back to the
+     * offset
+     */
+    private void dropLineBuffer() throws IOException {
+        if (lineEnd > lineStart && handler != null && !migrated) {
+            handler.seek(offset);
+        }
+        lineStart = 0;
+        lineEnd = 0;
+    }
+
+    /**
+     * Move the offset, the next read starts there
+     *
+     * @param position the new offset
+     * @throws IOException if an I/O error occurs.
+     * @see java.io.RandomAccessFile#seek(long)
+     */
+    public void seek(long position) throws IOException {
+        lineStart = 0;
+        lineEnd = 0;
+        offset = position;
+        available = 0;
+        if (handler != null) {
+            handler.seek(position);
+        }
+    }
+
     /**
      * close the handle
      */
     @Override
     public void close() throws IOException {
-    	handler.close();
+        lineStart = 0;
+        lineEnd = 0;
+    	if (handler != null) {
+    		handler.close();
+    		handler = null;
+    	}
     }
     
+    /**
+     * Get the input file
+     *
+     * @return the file object
+     */
+    public File getFile() {
+        return sourceFile;
+    }
+
+    /**
+     * Get the offset at which the stream ends
+     *
+     * @return the offset, <code>Long.MAX_VALUE</code> for the end of
+     * the file
+     */
+    public long getEnd() {
+        return end;
+    }
+
+    /**
+     * Get the current reading offset
+     *
+     * @return the offset in bytes
+     */
+    public long getOffset() {
+        return offset;
+    }
+
+    /**
+     * Get the number of bytes read on this node
+     *
+     * @return the number of bytes
+     */
+    public long getTransferred() {
+        return transferred;
+    }
+
     /**
      * Set the migrated flag
      *
      * @param migrated the migrated value
      */
     public void setMigrated(boolean migrated) {
+        if (migrated) {
+            lineStart = 0;
+            lineEnd = 0;
+        }
         this.migrated = migrated;
     }
 }
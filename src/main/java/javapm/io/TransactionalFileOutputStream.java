@@ -1,6 +1,7 @@
 package javapm.io; 
 
 import java.io.*;
+import java.util.Arrays;
 
 /**
  * Transactional FileInputStream
@@ -12,14 +13,24 @@ import java.io.*;
  * <code>offset</code> to save the IO state, and we use
  * <code>RandomAccessFile</code> to seek the offset before
  * reading or writing.
+ * <p>
+ * A stream can be forwarded: its file stays on its <code>home</code>
+ * node and the stream keeps the bytes written since the last
+ * acknowledged offset, the <code>OutputForwarder</code> of the node
+ * running the process sends them home. The unacknowledged bytes are
+ * part of the stream state, so they move with the process and the
+ * file never does. A scratch stream, whose file the process reads
+ * back, is never forwarded; a pinned stream is always forwarded, its
+ * file stays on the node where it was created.
  *
  * @author Vasu Vardhan(vardhan)
  * @author Pratyush Kumar(pratyush)
  * @see javapm.io.TransactionalFileInputStream
  * @see java.io.RandomAccessFile
+ * @see javapm.process.OutputForwarder
  */
 public class TransactionalFileOutputStream extends OutputStream
-        implements Serializable {
+        implements Serializable, TransactionalStream {
     /**
      * The <code>File</code> object of output file
      */
@@ -38,12 +49,60 @@ public class TransactionalFileOutputStream extends OutputStream
      */
     private transient RandomAccessFile handler;
 
+    /**
+     * The number of bytes written by this object since it was created
+     * or deserialized. It is a plain field, only the process thread
+     * writes it, so accounting adds nothing but an increment to the
+     * IO path.
+     */
+    private transient long transferred;
+
     /**
      * The migrated flag. When the flag is set, we should reset the
      * file handler and seek to the previous offset
      */
     private boolean migrated;
 
+    /**
+     * The node <code>HOST:PORT</code> which holds the file of a
+     * forwarded stream, null if the file is local
+     */
+    private String home;
+
+    /**
+     * The offset up to which the home node acknowledged the bytes
+     */
+    private long acked;
+
+    /**
+     * The bytes from <code>acked</code> to <code>offset</code>, with
+     * room to grow
+     */
+    private byte[] pending;
+
+    /**
+     * The largest number of unacknowledged bytes, a write waits for
+     * the home node beyond it; 0 for no limit. It is the limit of the
+     * manager the process runs on.
+     */
+    private long forwardLimit;
+
+    /**
+     * If a write takes its bytes over the limit, set while the process
+     * is asked to suspend
+     */
+    private transient boolean released;
+
+    /**
+     * If the process reads the file back, so it moves with the process
+     */
+    private boolean scratch;
+
+    /**
+     * If the file stays on its node even without output forwarding
+     */
+    private boolean pinned;
+
     /**
      * Constructor of TransactionalFileOutputStream
      *
@@ -55,6 +114,18 @@ public class TransactionalFileOutputStream extends OutputStream
         this.migrated = false;
     }
 
+    /**
+     * Constructor of a TransactionalFileOutputStream which may be a
+     * scratch file, e.g. a sorted run
+     *
+     * @param targetFile the output file object
+     * @param scratch    if the process reads the file back
+     */
+    public TransactionalFileOutputStream(File targetFile, boolean scratch) {
+        this(targetFile);
+        this.scratch = scratch;
+    }
+
     public File GetTargetFile() {
     	return targetFile;
     }
@@ -72,6 +143,10 @@ public class TransactionalFileOutputStream extends OutputStream
      */
     @Override
     public void write(int b) throws IOException {
+        if (home != null) {
+            append(new byte[] {(byte) b}, 0, 1);
+            return;
+        }
         if (migrated || handler == null) {
             handler = new RandomAccessFile(targetFile, "rw");
             handler.seek(offset);
@@ -79,14 +154,240 @@ public class TransactionalFileOutputStream extends OutputStream
         }
         handler.write(b);
         offset++;
+        transferred++;
     }
     
+    /**
+     * Implementation of <code>write(byte[], int, int)</code>, with one
+     * <code>handler.write()</code> for all bytes.
+     *
+     * @param b   the data.
+     * @param off the start offset in the data.
+     * @param len the number of bytes to write.
+     * @throws IOException if an I/O error occurs.
+     * @see java.io.RandomAccessFile#write(byte[], int, int)
+     */
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (home != null) {
+            append(b, off, len);
+            return;
+        }
+        if (migrated || handler == null) {
+            handler = new RandomAccessFile(targetFile, "rw");
+            handler.seek(offset);
+            migrated = false;
+        }
+        handler.write(b, off, len);
+        offset += len;
+        transferred += len;
+    }
+
+    /**
+     * Keep bytes of a forwarded stream until its home acknowledges
+     * them. The write waits while the limit is reached, then takes all
+     * the bytes at once. Once the stream is released, the write takes
+     * the bytes over the limit, so a process whose home node doesn't
+     * answer can still be suspended.
+     *
+     * @param b   the data.
+     * @param off the start offset in the data.
+     * @param len the number of bytes to write.
+     * @throws IOException if the thread is interrupted while it waits
+     *                     for the home node
+     */
+    private synchronized void append(byte[] b, int off, int len) throws IOException {
+        while (forwardLimit > 0 && offset - acked >= forwardLimit && !released) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("waiting for " + home);
+            }
+        }
+        int count = (int) (offset - acked);
+        if (pending == null || count + len > pending.length) {
+            pending = Arrays.copyOf(pending == null ? new byte[0] : pending,
+                    Math.max(256, Math.max(count + len, count * 2)));
+        }
+        System.arraycopy(b, off, pending, count, len);
+        offset += len;
+        transferred += len;
+    }
+
+    /**
+     * Forward the stream: from now on its file stays on a home node.
+     * It is called while the process is suspended.
+     *
+     * @param home  the node name <code>HOST:PORT</code> of the file
+     * @param limit the largest number of unacknowledged bytes, 0 for
+     *              no limit
+     * @throws IOException if the file handler can't be closed
+     */
+    public synchronized void forward(String home, long limit) throws IOException {
+        close();
+        this.home = home;
+        this.forwardLimit = limit;
+        this.acked = offset;
+        this.pending = null;
+    }
+
+    /**
+     * Make the file of a forwarded stream local again, on its home
+     * node: the unacknowledged bytes are written to the file. It is
+     * called while the process is suspended.
+     *
+     * @throws IOException if the file can't be written
+     */
+    public synchronized void reclaim() throws IOException {
+        if (offset > acked) {
+            RandomAccessFile file = new RandomAccessFile(targetFile, "rw");
+            try {
+                file.seek(acked);
+                file.write(pending, 0, (int) (offset - acked));
+            } finally {
+                file.close();
+            }
+        }
+        home = null;
+        pending = null;
+        migrated = true;
+    }
+
+    /**
+     * Get the unacknowledged bytes of a forwarded stream
+     *
+     * @return a copy of the bytes from <code>getAcked()</code>
+     */
+    public synchronized byte[] getPending() {
+        return pending == null ? new byte[0] : Arrays.copyOf(pending, (int) (offset - acked));
+    }
+
+    /**
+     * Drop the bytes the home node has written
+     *
+     * @param upTo the acknowledged offset
+     */
+    public synchronized void ack(long upTo) {
+        if (upTo <= acked || upTo > offset) {
+            return;
+        }
+        int left = (int) (offset - upTo);
+        System.arraycopy(pending, (int) (upTo - acked), pending, 0, left);
+        acked = upTo;
+        notifyAll();
+    }
+
+    /**
+     * Drop the unacknowledged bytes without writing them, a copy of
+     * the process elsewhere writes them again
+     */
+    public synchronized void discard() {
+        offset = acked;
+        pending = null;
+        notifyAll();
+    }
+
+    /**
+     * Get the home node of a forwarded stream
+     *
+     * @return the node name, null if the file is local
+     */
+    public synchronized String getHome() {
+        return home;
+    }
+
+    public synchronized long getAcked() {
+        return acked;
+    }
+
+    public boolean isScratch() {
+        return scratch;
+    }
+
+    public boolean isPinned() {
+        return pinned;
+    }
+
+    /**
+     * Set the pinned flag, a migration forwards a pinned stream even
+     * without <code>javapm.output.forwarding</code>
+     *
+     * @param pinned the pinned value
+     */
+    public void setPinned(boolean pinned) {
+        this.pinned = pinned;
+    }
+
+    /**
+     * Set the largest number of unacknowledged bytes of a forwarded
+     * stream, when it starts on another manager
+     *
+     * @param limit the bytes, 0 for no limit
+     */
+    public synchronized void setForwardLimit(long limit) {
+        forwardLimit = limit;
+        notifyAll();
+    }
+
+    /**
+     * Release or hold the limit of a forwarded stream. The process
+     * releases it when it is asked to suspend, and holds it again when
+     * it resumes.
+     *
+     * @param released if a write takes its bytes over the limit
+     */
+    public synchronized void setReleased(boolean released) {
+        this.released = released;
+        notifyAll();
+    }
+
+    /**
+     * Serialize only the unacknowledged bytes, not the room to grow
+     */
+    private synchronized void writeObject(ObjectOutputStream out) throws IOException {
+        if (pending != null && pending.length != offset - acked) {
+            pending = Arrays.copyOf(pending, (int) (offset - acked));
+        }
+        out.defaultWriteObject();
+    }
+
     /**
      * close the handle
      */
     @Override
     public void close() throws IOException {
-    	handler.close();
+    	if (handler != null) {
+    		handler.close();
+    		handler = null;
+    	}
+    }
+
+    /**
+     * Get the output file
+     *
+     * @return the file object
+     */
+    public File getFile() {
+        return targetFile;
+    }
+
+    /**
+     * Get the current writing offset
+     *
+     * @return the offset in bytes
+     */
+    public long getOffset() {
+        return offset;
+    }
+
+    /**
+     * Get the number of bytes written on this node
+     *
+     * @return the number of bytes
+     */
+    public long getTransferred() {
+        return transferred;
     }
 
     /**
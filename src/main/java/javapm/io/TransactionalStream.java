@@ -0,0 +1,47 @@
+package javapm.io;
+
+import java.io.Closeable;
+import java.io.File;
+
+/**
+ * The common view of transactional streams.
+ * A transactional stream remembers the file it works on and its
+ * <code>offset</code>, so the process manager can inspect the IO
+ * state of a process without knowing its concrete stream fields.
+ *
+ * @author Vasu Vardhan(vardhan)
+ * @author Pratyush Kumar(pratyush)
+ * @see javapm.io.TransactionalFileInputStream
+ * @see javapm.io.TransactionalFileOutputStream
+ */
+public interface TransactionalStream extends Closeable {
+    /**
+     * Get the file of the stream
+     *
+     * @return the file object
+     */
+    File getFile();
+
+    /**
+     * Get the current offset of the stream
+     *
+     * @return the offset in bytes
+     */
+    long getOffset();
+
+    /**
+     * Get the number of bytes moved by this stream object on this
+     * node. The counter is not serialized.
+     *
+     * @return the number of bytes
+     */
+    long getTransferred();
+
+    /**
+     * Set the migrated flag, the stream reopens its file
+     * and seeks to the offset before the next IO operation.
+     *
+     * @param migrated the migrated value
+     */
+    void setMigrated(boolean migrated);
+}
@@ -0,0 +1,159 @@
+package javapm.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock free latency histogram.
+ * Latencies are recorded in microseconds into log-linear buckets: each
+ * power of two is split into 8 linear sub buckets, so a percentile is
+ * reported with at most 12.5% error, and recording is a few atomic
+ * increments without allocation.
+ *
+ * @author Vasu Vardhan(vardhan)
+ * @author Pratyush Kumar(pratyush)
+ * @see javapm.metrics.MigrationMetrics
+ */
+public class LatencyHistogram implements LatencyHistogramMBean {
+    /**
+     * Number of sub buckets of each power of two
+     */
+    private static final int SUB_BUCKETS = 8;
+
+    /**
+     * log2 of <code>SUB_BUCKETS</code>
+     */
+    private static final int SUB_BITS = 3;
+
+    /**
+     * Number of buckets, enough for any positive long
+     */
+    private static final int BUCKETS = (64 - SUB_BITS + 1) * SUB_BUCKETS;
+
+    /**
+     * Bucket counters
+     */
+    private AtomicLongArray buckets;
+
+    /**
+     * Number of recorded values
+     */
+    private AtomicLong count;
+
+    /**
+     * Sum of recorded values in microseconds
+     */
+    private AtomicLong sum;
+
+    /**
+     * Max recorded value in microseconds
+     */
+    private AtomicLong max;
+
+    /**
+     * Constructor of an empty <code>LatencyHistogram</code>
+     */
+    public LatencyHistogram() {
+        buckets = new AtomicLongArray(BUCKETS);
+        count = new AtomicLong();
+        sum = new AtomicLong();
+        max = new AtomicLong();
+    }
+
+    /**
+     * Record one latency.
+     *
+     * @param nanos the latency in nanoseconds
+     */
+    public void record(long nanos) {
+        long micros = Math.max(0, nanos / 1000);
+        buckets.incrementAndGet(bucket(micros));
+        count.incrementAndGet();
+        sum.addAndGet(micros);
+        long current = max.get();
+        while (micros > current && !max.compareAndSet(current, micros)) {
+            current = max.get();
+        }
+    }
+
+    /**
+     * Get the value at a percentile.
+     *
+     * @param percentile the percentile, between 0 and 1
+     * @return the upper bound of the bucket in microseconds
+     */
+    public long percentileMicros(double percentile) {
+        long total = count.get();
+        if (total == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(percentile * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += buckets.get(i);
+            if (seen >= target) {
+                return Math.min(upperBound(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public double getMeanMillis() {
+        long total = count.get();
+        return total == 0 ? 0 : sum.get() / 1000.0 / total;
+    }
+
+    public double getP50Millis() {
+        return percentileMicros(0.5) / 1000.0;
+    }
+
+    public double getP99Millis() {
+        return percentileMicros(0.99) / 1000.0;
+    }
+
+    public double getMaxMillis() {
+        return max.get() / 1000.0;
+    }
+
+    /**
+     * Clear all recorded values. Values recorded concurrently
+     * may be partly kept.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets.set(i, 0);
+        }
+        count.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+
+    /**
+     * Get the bucket index of a value
+     */
+    static int bucket(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int shift = exponent - SUB_BITS;
+        int sub = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+        return (shift + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * Get the largest value of a bucket
+     */
+    static long upperBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        long lower = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+        return lower + (1L << shift) - 1;
+    }
+}
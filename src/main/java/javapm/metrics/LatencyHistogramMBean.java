@@ -0,0 +1,23 @@
+package javapm.metrics;
+
+/**
+ * The JMX interface of <code>LatencyHistogram</code>.
+ * All latencies are reported in milliseconds.
+ *
+ * @author Vasu Vardhan(vardhan)
+ * @author Pratyush Kumar(pratyush)
+ * @see javapm.metrics.LatencyHistogram
+ */
+public interface LatencyHistogramMBean {
+    long getCount();
+
+    double getMeanMillis();
+
+    double getP50Millis();
+
+    double getP99Millis();
+
+    double getMaxMillis();
+
+    void reset();
+}
@@ -0,0 +1,304 @@
+package javapm.metrics;
+
+import javapm.io.TrafficClass;
+import javapm.metrics.jfr.FlightEvents;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * The migration metrics of one <code>ProcessManager</code>.
+ * It keeps a <code>LatencyHistogram</code> for each
+ * <code>MigrationPhase</code>, the bytes on the wire, and the
+ * success and failure counts. Everything is exposed as JMX MBeans
+ * under the <code>javapm</code> domain:
+ * <pre>
+ * javapm:type=MigrationMetrics
+ * javapm:type=MigrationPhase,phase=suspend
+ * ...
+ * </pre>
+ * Phases and bytes recorded by a migrating thread are also added to
+ * its JFR migration event.
+ *
+ * @author Pratyush Kumar(pratyush)
+ * @author Vasu Vardhan(vardhan)
+ * @see javapm.metrics.LatencyHistogram
+ * @see javapm.metrics.MigrationPhase
+ */
+public class MigrationMetrics implements MigrationMetricsMBean {
+    /**
+     * Log handler
+     *
+     * @see <a href="http://apache.org/log4j/2.x/">Log4J</a>
+     */
+    private static Logger LOG = LogManager.getLogger(MigrationMetrics.class);
+
+    /**
+     * The JMX domain of all MBeans
+     */
+    public static final String DOMAIN = "javapm";
+
+    /**
+     * Latency histograms of each phase
+     */
+    private Map<MigrationPhase, LatencyHistogram> phases;
+
+    /**
+     * Number of successful outbound migrations
+     */
+    private AtomicLong succeeded;
+
+    /**
+     * Number of failed outbound migrations
+     */
+    private AtomicLong failed;
+
+    /**
+     * Number of inbound migrations
+     */
+    private AtomicLong received;
+
+    /**
+     * Bytes sent by migrations
+     */
+    private AtomicLong bytesSent;
+
+    /**
+     * Bytes received by migrations
+     */
+    private AtomicLong bytesReceived;
+
+    /**
+     * Frames asked for again after a bad CRC
+     */
+    private AtomicLong retransmits;
+
+    /**
+     * Inbound migrations refused by the admission control
+     */
+    private AtomicLong refused;
+
+    /**
+     * Nanoseconds transfers waited for the traffic shaper, by class
+     */
+    private Map<TrafficClass, AtomicLong> throttled;
+
+    /**
+     * Constructor of <code>MigrationMetrics</code>
+     */
+    public MigrationMetrics() {
+        phases = new EnumMap<MigrationPhase, LatencyHistogram>(MigrationPhase.class);
+        for (MigrationPhase phase : MigrationPhase.values()) {
+            phases.put(phase, new LatencyHistogram());
+        }
+        succeeded = new AtomicLong();
+        failed = new AtomicLong();
+        received = new AtomicLong();
+        bytesSent = new AtomicLong();
+        bytesReceived = new AtomicLong();
+        retransmits = new AtomicLong();
+        refused = new AtomicLong();
+        throttled = new EnumMap<TrafficClass, AtomicLong>(TrafficClass.class);
+        for (TrafficClass traffic : TrafficClass.values()) {
+            throttled.put(traffic, new AtomicLong());
+        }
+    }
+
+    /**
+     * Register all MBeans to the platform MBean server.
+     * A registration error is logged and ignored, the metrics
+     * are still recorded.
+     */
+    public void register() {
+        register(null);
+    }
+
+    /**
+     * Register all MBeans to the platform MBean server, with an
+     * <code>instance</code> key if several managers run in one JVM.
+     *
+     * @param instance the instance name, null for none
+     */
+    public void register(String instance) {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        String key = instance == null ? "" : ",instance=" + ObjectName.quote(instance);
+        try {
+            server.registerMBean(this, new ObjectName(DOMAIN + ":type=MigrationMetrics" + key));
+            for (Map.Entry<MigrationPhase, LatencyHistogram> entry : phases.entrySet()) {
+                server.registerMBean(entry.getValue(), new ObjectName(DOMAIN +
+                        ":type=MigrationPhase,phase=" + entry.getKey().getValue() + key));
+            }
+        } catch (JMException e) {
+            LOG.error("register migration metrics error", e);
+        }
+    }
+
+    /**
+     * Unregister the MBeans of <code>register(instance)</code>
+     *
+     * @param instance the instance name, null for none
+     */
+    public void unregister(String instance) {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        String key = instance == null ? "" : ",instance=" + ObjectName.quote(instance);
+        try {
+            server.unregisterMBean(new ObjectName(DOMAIN + ":type=MigrationMetrics" + key));
+            for (MigrationPhase phase : phases.keySet()) {
+                server.unregisterMBean(new ObjectName(DOMAIN + ":type=MigrationPhase,phase=" +
+                        phase.getValue() + key));
+            }
+        } catch (JMException e) {
+            LOG.error("unregister migration metrics error", e);
+        }
+    }
+
+    /**
+     * Record the latency of one phase
+     *
+     * @param phase the migration phase
+     * @param nanos the latency in nanoseconds
+     */
+    public void record(MigrationPhase phase, long nanos) {
+        phases.get(phase).record(nanos);
+        FlightEvents.phase(phase, nanos);
+    }
+
+    /**
+     * Get the histogram of one phase
+     *
+     * @param phase the migration phase
+     * @return the histogram
+     */
+    public LatencyHistogram getHistogram(MigrationPhase phase) {
+        return phases.get(phase);
+    }
+
+    public void succeed() {
+        succeeded.incrementAndGet();
+    }
+
+    public void fail() {
+        failed.incrementAndGet();
+    }
+
+    public void receive() {
+        received.incrementAndGet();
+    }
+
+    public void addBytesSent(long bytes) {
+        bytesSent.addAndGet(bytes);
+        FlightEvents.bytes(bytes);
+    }
+
+    public void addBytesReceived(long bytes) {
+        bytesReceived.addAndGet(bytes);
+        FlightEvents.bytes(bytes);
+    }
+
+    public void retransmit(long frames) {
+        retransmits.addAndGet(frames);
+    }
+
+    public void refuse() {
+        refused.incrementAndGet();
+    }
+
+    public void throttle(TrafficClass traffic, long nanos) {
+        throttled.get(traffic).addAndGet(nanos);
+    }
+
+    public long getSucceeded() {
+        return succeeded.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    public long getReceived() {
+        return received.get();
+    }
+
+    public long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+    public long getRetransmits() {
+        return retransmits.get();
+    }
+
+    public long getRefused() {
+        return refused.get();
+    }
+
+    public long getThrottledMillis(TrafficClass traffic) {
+        return throttled.get(traffic).get() / 1000000;
+    }
+
+    public long getThrottledMillis() {
+        long nanos = 0;
+        for (AtomicLong value : throttled.values()) {
+            nanos += value.get();
+        }
+        return nanos / 1000000;
+    }
+
+    /**
+     * Clear all histograms and counters
+     */
+    public void reset() {
+        for (LatencyHistogram histogram : phases.values()) {
+            histogram.reset();
+        }
+        succeeded.set(0);
+        failed.set(0);
+        received.set(0);
+        bytesSent.set(0);
+        bytesReceived.set(0);
+        retransmits.set(0);
+        refused.set(0);
+        for (AtomicLong value : throttled.values()) {
+            value.set(0);
+        }
+    }
+
+    /**
+     * The printable table of all metrics, used by the
+     * <code>stats</code> command.
+     *
+     * @return the printable information
+     */
+    public String toString() {
+        StringBuffer sb = new StringBuffer();
+        sb.append(String.format("%-18s %8s %10s %10s %10s %10s%n",
+                "PHASE", "COUNT", "MEAN(ms)", "P50(ms)", "P99(ms)", "MAX(ms)"));
+        for (Map.Entry<MigrationPhase, LatencyHistogram> entry : phases.entrySet()) {
+            LatencyHistogram histogram = entry.getValue();
+            sb.append(String.format("%-18s %8d %10.2f %10.2f %10.2f %10.2f%n",
+                    entry.getKey().getValue(), histogram.getCount(),
+                    histogram.getMeanMillis(), histogram.getP50Millis(),
+                    histogram.getP99Millis(), histogram.getMaxMillis()));
+        }
+        sb.append("migrations: " + succeeded.get() + " succeeded, " + failed.get() +
+                " failed, " + received.get() + " received, " + refused.get() + " refused\n");
+        sb.append("bytes: " + bytesSent.get() + " sent, " + bytesReceived.get() + " received\n");
+        sb.append("retransmitted frames: " + retransmits.get() + "\n");
+        sb.append("throttled(ms):");
+        for (TrafficClass traffic : TrafficClass.values()) {
+            sb.append(" " + traffic.getValue() + " " + getThrottledMillis(traffic));
+        }
+        return sb.toString();
+    }
+}
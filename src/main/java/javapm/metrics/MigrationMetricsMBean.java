@@ -0,0 +1,28 @@
+package javapm.metrics;
+
+/**
+ * The JMX interface of <code>MigrationMetrics</code>.
+ *
+ * @author Pratyush Kumar(pratyush)
+ * @author Vasu Vardhan(vardhan)
+ * @see javapm.metrics.MigrationMetrics
+ */
+public interface MigrationMetricsMBean {
+    long getSucceeded();
+
+    long getFailed();
+
+    long getReceived();
+
+    long getBytesSent();
+
+    long getBytesReceived();
+
+    long getRetransmits();
+
+    long getRefused();
+
+    long getThrottledMillis();
+
+    void reset();
+}
@@ -0,0 +1,41 @@
+package javapm.metrics;
+
+/**
+ * The phases of a migration.
+ * The sender records <code>SUSPEND</code>, <code>SERIALIZE</code>,
+ * <code>FILE_TRANSFER</code> and <code>OBJECT_TRANSFER</code>, the
+ * receiver records <code>REMOTE_DESERIALIZE</code>,
+ * <code>REATTACH</code> and <code>RESUME</code>. <code>TOTAL</code>
+ * is the whole migration seen by the sender.
+ *
+ * @author Pratyush Kumar(pratyush)
+ * @author Vasu Vardhan(vardhan)
+ * @see javapm.metrics.MigrationMetrics
+ */
+public enum MigrationPhase {
+    SUSPEND("suspend"),
+    SERIALIZE("serialize"),
+    FILE_TRANSFER("fileTransfer"),
+    OBJECT_TRANSFER("objectTransfer"),
+    REMOTE_DESERIALIZE("remoteDeserialize"),
+    REATTACH("reattach"),
+    RESUME("resume"),
+    TOTAL("total");
+
+    /**
+     * The value of the enum, used as JMX name
+     */
+    private String value;
+
+    private MigrationPhase(String value) {
+        this.value = value;
+    }
+
+    /**
+     * Get the value of enum
+     * @return value
+     */
+    public String getValue() {
+        return value;
+    }
+}
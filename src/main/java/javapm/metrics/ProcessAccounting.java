@@ -0,0 +1,234 @@
+package javapm.metrics;
+
+import javapm.io.TransactionalFileInputStream;
+import javapm.io.TransactionalStream;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The resource accounting of one process on this node.
+ * The IO counters of the transactional streams are plain fields, the
+ * accounting reads them from a sampler thread and keeps the totals,
+ * so streams replaced by the process (e.g. reopened input) are still
+ * counted. CPU time is read from the <code>ThreadMXBean</code>, and
+ * accumulates over the threads the process ran on.
+ *
+ * @author Vasu Vardhan(vardhan)
+ * @author Pratyush Kumar(pratyush)
+ * @see javapm.io.TransactionalStream#getTransferred()
+ */
+public class ProcessAccounting {
+    /**
+     * The thread MX bean
+     */
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    /**
+     * The current thread of the process, null if not running
+     */
+    private volatile Thread thread;
+
+    /**
+     * CPU time of the finished threads
+     */
+    private volatile long finishedCpuNanos;
+
+    /**
+     * Bytes read by streams already sampled
+     */
+    private long bytesRead;
+
+    /**
+     * Bytes written by streams already sampled
+     */
+    private long bytesWritten;
+
+    /**
+     * The counters of streams at the last sample
+     */
+    private Map<TransactionalStream, Long> lastCounters;
+
+    /**
+     * The time of the last throughput sample
+     */
+    private long lastSampleNanos;
+
+    /**
+     * The total bytes at the last throughput sample
+     */
+    private long lastSampleBytes;
+
+    /**
+     * The IO throughput in bytes per second
+     */
+    private volatile double throughput;
+
+    /**
+     * The CPU time at the last throughput sample
+     */
+    private long lastSampleCpu;
+
+    /**
+     * The CPU usage in cores, over the last sample interval
+     */
+    private volatile double cpuLoad;
+
+    /**
+     * The time the process was suspended, 0 if not suspended
+     */
+    private volatile long suspendedAt;
+
+    /**
+     * Total time spent suspended
+     */
+    private volatile long suspendNanos;
+
+    /**
+     * The estimated serialized size, -1 if unknown
+     */
+    private volatile long serializedSize;
+
+    /**
+     * Constructor of <code>ProcessAccounting</code>
+     */
+    public ProcessAccounting() {
+        lastCounters = new IdentityHashMap<TransactionalStream, Long>();
+        serializedSize = -1;
+    }
+
+    /**
+     * Called when the process starts on a new thread. If the process
+     * was suspended, the suspended time is added.
+     *
+     * @param thread the process thread
+     */
+    public void attach(Thread thread) {
+        this.thread = thread;
+        if (suspendedAt > 0) {
+            suspendNanos += System.nanoTime() - suspendedAt;
+            suspendedAt = 0;
+        }
+    }
+
+    /**
+     * Called by the process thread when it leaves <code>run()</code>.
+     */
+    public void detach() {
+        if (thread == Thread.currentThread()) {
+            long cpu = THREADS.isCurrentThreadCpuTimeSupported() ?
+                    THREADS.getCurrentThreadCpuTime() : 0;
+            finishedCpuNanos += Math.max(0, cpu);
+            thread = null;
+        }
+    }
+
+    /**
+     * Called when a suspension starts
+     */
+    public void suspending() {
+        suspendedAt = System.nanoTime();
+    }
+
+    /**
+     * Update the IO totals from the stream counters, and the
+     * throughput and CPU usage if <code>updateThroughput</code> is set.
+     *
+     * @param streams          the current streams of the process
+     * @param updateThroughput if set, compute the throughput since the
+     *                         last throughput sample
+     */
+    public synchronized void sample(List<TransactionalStream> streams, boolean updateThroughput) {
+        for (TransactionalStream stream : streams) {
+            long counter = stream.getTransferred();
+            Long last = lastCounters.get(stream);
+            long delta = counter - (last == null ? 0 : last);
+            if (delta > 0) {
+                if (stream instanceof TransactionalFileInputStream) {
+                    bytesRead += delta;
+                } else {
+                    bytesWritten += delta;
+                }
+            }
+            lastCounters.put(stream, counter);
+        }
+        lastCounters.keySet().retainAll(streams);
+        if (updateThroughput) {
+            long now = System.nanoTime();
+            long bytes = bytesRead + bytesWritten;
+            long cpu = getCpuNanos();
+            if (lastSampleNanos > 0 && now > lastSampleNanos) {
+                throughput = (bytes - lastSampleBytes) * 1e9 / (now - lastSampleNanos);
+                cpuLoad = Math.max(0, cpu - lastSampleCpu) / (double) (now - lastSampleNanos);
+            }
+            lastSampleNanos = now;
+            lastSampleBytes = bytes;
+            lastSampleCpu = cpu;
+        }
+    }
+
+    /**
+     * Record the serialized size of the process. It is measured when
+     * the process is serialized anyway, while it is suspended: by a
+     * checkpoint, a migration or a hibernation; a running process is
+     * never serialized for it.
+     *
+     * @param bytes the size in bytes
+     */
+    public void setSerializedSize(long bytes) {
+        serializedSize = bytes;
+    }
+
+    /**
+     * Get the CPU time of the process on this node
+     *
+     * @return CPU time in nanoseconds
+     */
+    public long getCpuNanos() {
+        long cpu = finishedCpuNanos;
+        Thread current = thread;
+        if (current != null && THREADS.isThreadCpuTimeSupported()) {
+            cpu += Math.max(0, THREADS.getThreadCpuTime(current.getId()));
+        }
+        return cpu;
+    }
+
+    public synchronized long getBytesRead() {
+        return bytesRead;
+    }
+
+    public synchronized long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    public double getThroughput() {
+        return throughput;
+    }
+
+    /**
+     * Get the CPU usage of the process over the last sample interval
+     *
+     * @return the number of cores used, 1.0 is one busy core
+     */
+    public double getCpuLoad() {
+        return cpuLoad;
+    }
+
+    /**
+     * Get the time spent suspended on this node, including the
+     * current suspension.
+     *
+     * @return suspended time in nanoseconds
+     */
+    public long getSuspendNanos() {
+        long since = suspendedAt;
+        return suspendNanos + (since > 0 ? System.nanoTime() - since : 0);
+    }
+
+    public long getSerializedSize() {
+        return serializedSize;
+    }
+}
@@ -0,0 +1,29 @@
+package javapm.metrics.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * One file sent or received by the migration protocol.
+ *
+ * @author Vasu Vardhan(vardhan)
+ * @author Pratyush Kumar(pratyush)
+ */
+@Name("javapm.FileTransfer")
+@Label("File Transfer")
+@Category({"JavaPM", "Migration"})
+@Description("A file sent or received during a migration")
+class FileTransferEvent extends jdk.jfr.Event {
+    @Label("Direction")
+    String direction;
+
+    @Label("File")
+    String file;
+
+    @Label("Bytes")
+    @DataAmount
+    long bytes;
+}
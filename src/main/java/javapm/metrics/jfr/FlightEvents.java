@@ -0,0 +1,302 @@
+package javapm.metrics.jfr;
+
+import javapm.metrics.MigrationPhase;
+
+/**
+ * The Java Flight Recorder events of the process manager.
+ * All events are emitted through this class. If the running JVM has
+ * no <code>jdk.jfr</code> module (e.g. a jlink image without it),
+ * every method does nothing and the event classes are never loaded.
+ * <p>
+ * Duration events are started with a <code>begin</code> method, which
+ * returns an opaque handle (null if JFR is missing), and committed with
+ * the matching <code>end</code> method. The migration event of the
+ * current thread also collects the phase latencies and bytes that
+ * <code>MigrationMetrics</code> records on the same thread.
+ *
+ * @author Vasu Vardhan(vardhan)
+ * @author Pratyush Kumar(pratyush)
+ * @see javapm.metrics.MigrationMetrics
+ */
+public class FlightEvents {
+    /**
+     * Directions of migrations and file transfers
+     */
+    public static final String SEND = "send";
+    public static final String RECEIVE = "receive";
+
+    /**
+     * If the JVM supports JFR events
+     */
+    private static final boolean AVAILABLE = detect();
+
+    /**
+     * The migration event of the current thread
+     */
+    private static final ThreadLocal<Object> MIGRATION = new ThreadLocal<Object>();
+
+    private FlightEvents() {
+    }
+
+    /**
+     * Check if the JVM supports JFR events
+     *
+     * @return if supported return <code>true</code>
+     */
+    public static boolean isAvailable() {
+        return AVAILABLE;
+    }
+
+    private static boolean detect() {
+        try {
+            Class.forName("jdk.jfr.Event");
+            return true;
+        } catch (ClassNotFoundException e) {
+            return false;
+        } catch (LinkageError e) {
+            return false;
+        }
+    }
+
+    /**
+     * Emit a process start event
+     *
+     * @param id     the process ID
+     * @param name   the process class name
+     * @param thread the process thread
+     */
+    public static void processStarted(long id, String name, Thread thread) {
+        if (!AVAILABLE) {
+            return;
+        }
+        ProcessStartEvent event = new ProcessStartEvent();
+        if (event.shouldCommit()) {
+            event.processId = id;
+            event.processClass = name;
+            event.processThread = thread;
+            event.commit();
+        }
+    }
+
+    /**
+     * Emit a process resume event
+     *
+     * @param id   the process ID
+     * @param name the process class name
+     */
+    public static void processResumed(long id, String name) {
+        if (!AVAILABLE) {
+            return;
+        }
+        ProcessResumeEvent event = new ProcessResumeEvent();
+        if (event.shouldCommit()) {
+            event.processId = id;
+            event.processClass = name;
+            event.commit();
+        }
+    }
+
+    /**
+     * Start a process suspend event
+     *
+     * @return the event handle
+     */
+    public static Object beginSuspend() {
+        if (!AVAILABLE) {
+            return null;
+        }
+        ProcessSuspendEvent event = new ProcessSuspendEvent();
+        event.begin();
+        return event;
+    }
+
+    /**
+     * Commit a process suspend event
+     *
+     * @param handle the handle of <code>beginSuspend()</code>
+     * @param id     the process ID
+     * @param name   the process class name
+     */
+    public static void endSuspend(Object handle, long id, String name) {
+        if (handle == null) {
+            return;
+        }
+        ProcessSuspendEvent event = (ProcessSuspendEvent) handle;
+        event.end();
+        if (event.shouldCommit()) {
+            event.processId = id;
+            event.processClass = name;
+            event.commit();
+        }
+    }
+
+    /**
+     * Start a process migrated event
+     *
+     * @return the event handle
+     */
+    public static Object beginMigrated() {
+        if (!AVAILABLE) {
+            return null;
+        }
+        ProcessMigratedEvent event = new ProcessMigratedEvent();
+        event.begin();
+        return event;
+    }
+
+    /**
+     * Commit a process migrated event
+     *
+     * @param handle the handle of <code>beginMigrated()</code>
+     * @param id     the process ID
+     * @param name   the process class name
+     */
+    public static void endMigrated(Object handle, long id, String name) {
+        if (handle == null) {
+            return;
+        }
+        ProcessMigratedEvent event = (ProcessMigratedEvent) handle;
+        event.end();
+        if (event.shouldCommit()) {
+            event.processId = id;
+            event.processClass = name;
+            event.commit();
+        }
+    }
+
+    /**
+     * Start a file transfer event
+     *
+     * @return the event handle
+     */
+    public static Object beginFileTransfer() {
+        if (!AVAILABLE) {
+            return null;
+        }
+        FileTransferEvent event = new FileTransferEvent();
+        event.begin();
+        return event;
+    }
+
+    /**
+     * Commit a file transfer event
+     *
+     * @param handle    the handle of <code>beginFileTransfer()</code>
+     * @param direction <code>SEND</code> or <code>RECEIVE</code>
+     * @param file      the file name
+     * @param bytes     the file length
+     */
+    public static void endFileTransfer(Object handle, String direction, String file, long bytes) {
+        if (handle == null) {
+            return;
+        }
+        FileTransferEvent event = (FileTransferEvent) handle;
+        event.end();
+        if (event.shouldCommit()) {
+            event.direction = direction;
+            event.file = file;
+            event.bytes = bytes;
+            event.commit();
+        }
+    }
+
+    /**
+     * Start the migration event of the current thread
+     */
+    public static void beginMigration() {
+        if (!AVAILABLE) {
+            return;
+        }
+        MigrationEvent event = new MigrationEvent();
+        event.begin();
+        MIGRATION.set(event);
+    }
+
+    /**
+     * Add a phase latency to the migration event of the current
+     * thread, if any.
+     *
+     * @param phase the migration phase
+     * @param nanos the latency in nanoseconds
+     */
+    public static void phase(MigrationPhase phase, long nanos) {
+        if (!AVAILABLE) {
+            return;
+        }
+        MigrationEvent event = (MigrationEvent) MIGRATION.get();
+        if (event == null) {
+            return;
+        }
+        switch (phase) {
+            case SUSPEND:
+                event.suspend += nanos;
+                break;
+            case SERIALIZE:
+                event.serialize += nanos;
+                break;
+            case FILE_TRANSFER:
+                event.fileTransfer += nanos;
+                break;
+            case OBJECT_TRANSFER:
+                event.objectTransfer += nanos;
+                break;
+            case REMOTE_DESERIALIZE:
+                event.remoteDeserialize += nanos;
+                break;
+            case REATTACH:
+                event.reattach += nanos;
+                break;
+            case RESUME:
+                event.resume += nanos;
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Add transferred bytes to the migration event of the current
+     * thread, if any.
+     *
+     * @param bytes the number of bytes
+     */
+    public static void bytes(long bytes) {
+        if (!AVAILABLE) {
+            return;
+        }
+        MigrationEvent event = (MigrationEvent) MIGRATION.get();
+        if (event != null) {
+            event.bytes += bytes;
+        }
+    }
+
+    /**
+     * Commit the migration event of the current thread
+     *
+     * @param direction <code>SEND</code> or <code>RECEIVE</code>
+     * @param id        the process ID on this node
+     * @param name      the process class name
+     * @param peer      the other node
+     * @param success   if the migration succeeded
+     */
+    public static void endMigration(String direction, long id, String name, String peer,
+                                    boolean success) {
+        if (!AVAILABLE) {
+            return;
+        }
+        MigrationEvent event = (MigrationEvent) MIGRATION.get();
+        if (event == null) {
+            return;
+        }
+        MIGRATION.remove();
+        event.end();
+        if (event.shouldCommit()) {
+            event.direction = direction;
+            event.processId = id;
+            event.processClass = name;
+            event.peer = peer;
+            event.success = success;
+            event.commit();
+        }
+    }
+}
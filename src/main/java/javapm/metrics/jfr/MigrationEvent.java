@@ -0,0 +1,72 @@
+package javapm.metrics.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * One migration seen by one node. The sender emits it from
+ * <code>mg</code> with direction <code>send</code>, the receiver from
+ * <code>ProcessReceiver.run()</code> with direction <code>receive</code>.
+ * The event duration is the whole migration on that node, the phase
+ * fields are the <code>MigrationPhase</code> latencies.
+ *
+ * @author Pratyush Kumar(pratyush)
+ * @author Vasu Vardhan(vardhan)
+ * @see javapm.metrics.MigrationPhase
+ */
+@Name("javapm.Migration")
+@Label("Migration")
+@Category({"JavaPM", "Migration"})
+@Description("Migration of a process from or to this node")
+class MigrationEvent extends jdk.jfr.Event {
+    @Label("Direction")
+    String direction;
+
+    @Label("Process ID")
+    long processId;
+
+    @Label("Process Class")
+    String processClass;
+
+    @Label("Peer")
+    String peer;
+
+    @Label("Success")
+    boolean success;
+
+    @Label("Bytes")
+    @DataAmount
+    long bytes;
+
+    @Label("Suspend")
+    @Timespan(Timespan.NANOSECONDS)
+    long suspend;
+
+    @Label("Serialize")
+    @Timespan(Timespan.NANOSECONDS)
+    long serialize;
+
+    @Label("File Transfer")
+    @Timespan(Timespan.NANOSECONDS)
+    long fileTransfer;
+
+    @Label("Object Transfer")
+    @Timespan(Timespan.NANOSECONDS)
+    long objectTransfer;
+
+    @Label("Remote Deserialize")
+    @Timespan(Timespan.NANOSECONDS)
+    long remoteDeserialize;
+
+    @Label("Reattach")
+    @Timespan(Timespan.NANOSECONDS)
+    long reattach;
+
+    @Label("Resume")
+    @Timespan(Timespan.NANOSECONDS)
+    long resume;
+}
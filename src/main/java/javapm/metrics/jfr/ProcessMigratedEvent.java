@@ -0,0 +1,25 @@
+package javapm.metrics.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * <code>MigratableProcess.migrated()</code>: the reattach of the
+ * transactional streams. The process keeps its ID.
+ *
+ * @author Vasu Vardhan(vardhan)
+ * @author Pratyush Kumar(pratyush)
+ */
+@Name("javapm.ProcessMigrated")
+@Label("Process Migrated")
+@Category({"JavaPM", "Process"})
+@Description("A migrated process reattached its streams")
+class ProcessMigratedEvent extends jdk.jfr.Event {
+    @Label("Process ID")
+    long processId;
+
+    @Label("Process Class")
+    String processClass;
+}
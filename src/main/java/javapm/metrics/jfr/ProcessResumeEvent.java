@@ -0,0 +1,24 @@
+package javapm.metrics.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * A suspended process which is allowed to continue.
+ *
+ * @author Pratyush Kumar(pratyush)
+ * @author Vasu Vardhan(vardhan)
+ */
+@Name("javapm.ProcessResume")
+@Label("Process Resume")
+@Category({"JavaPM", "Process"})
+@Description("The suspending flag of a process was cleared")
+class ProcessResumeEvent extends jdk.jfr.Event {
+    @Label("Process ID")
+    long processId;
+
+    @Label("Process Class")
+    String processClass;
+}
@@ -0,0 +1,27 @@
+package javapm.metrics.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * A process thread started by <code>ProcessManager.startProcess()</code>.
+ *
+ * @author Pratyush Kumar(pratyush)
+ * @author Vasu Vardhan(vardhan)
+ */
+@Name("javapm.ProcessStart")
+@Label("Process Start")
+@Category({"JavaPM", "Process"})
+@Description("A process started or resumed on a new thread")
+class ProcessStartEvent extends jdk.jfr.Event {
+    @Label("Process ID")
+    long processId;
+
+    @Label("Process Class")
+    String processClass;
+
+    @Label("Process Thread")
+    Thread processThread;
+}
@@ -0,0 +1,25 @@
+package javapm.metrics.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * The wait of <code>MigratableProcess.suspend()</code> until the
+ * process leaves its loop.
+ *
+ * @author Vasu Vardhan(vardhan)
+ * @author Pratyush Kumar(pratyush)
+ */
+@Name("javapm.ProcessSuspend")
+@Label("Process Suspend")
+@Category({"JavaPM", "Process"})
+@Description("Time waited for a process to stop")
+class ProcessSuspendEvent extends jdk.jfr.Event {
+    @Label("Process ID")
+    long processId;
+
+    @Label("Process Class")
+    String processClass;
+}
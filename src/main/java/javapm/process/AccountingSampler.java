@@ -0,0 +1,49 @@
+package javapm.process;
+
+/**
+ * The sampler of per-process resource accounting.
+ * Every second, it folds the IO counters of all resident processes
+ * into their <code>ProcessAccounting</code> and updates the throughput.
+ * The serialized size is not sampled: a running process is never
+ * serialized, its size is recorded when it is suspended.
+ *
+ * @author Pratyush Kumar(pratyush)
+ * @author Vasu Vardhan(vardhan)
+ * @see javapm.metrics.ProcessAccounting
+ */
+public class AccountingSampler implements Runnable {
+    /**
+     * Interval between two samples
+     */
+    public static final long SAMPLE_MILLIS = 1000;
+
+    /**
+     * The owner of resident processes
+     */
+    private ProcessManager manager;
+
+    /**
+     * Constructor of <code>AccountingSampler</code>
+     *
+     * @param manager the process manager
+     */
+    public AccountingSampler(ProcessManager manager) {
+        this.manager = manager;
+    }
+
+    /**
+     * The sampling loop
+     */
+    public void run() {
+        while (true) {
+            try {
+                Thread.sleep(SAMPLE_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            for (MigratableProcess process : manager.processes) {
+                process.getAccounting().sample(process.getTransactionalStreams(), true);
+            }
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package javapm.process;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * The admission control of inbound migrations. Before the sender
+ * suspends a process, it sends the <code>ADMIT</code> opcode and the
+ * bytes the migration will transfer; the receiver answers at once
+ * with 0 if it takes the migration, or with the milliseconds after
+ * which the sender may ask again. A migration is refused when
+ * <ul>
+ * <li><code>maxTransfers</code> migrations are being received,</li>
+ * <li>the admitted migrations would transfer more than
+ * <code>maxBytes</code>; a single migration is always taken when
+ * nothing else is in flight,</li>
+ * <li>the resident and the admitted processes reach
+ * <code>maxProcesses</code>.</li>
+ * </ul>
+ * A limit of 0 is unlimited. An admitted migration holds its share
+ * until the receiver has answered the sender or the connection
+ * failed.
+ *
+ * @author Pratyush Kumar(pratyush)
+ * @author Vasu Vardhan(vardhan)
+ * @see javapm.process.ProcessServer#ADMIT
+ * @see javapm.process.BusyException
+ */
+public class AdmissionControl {
+    /**
+     * The answer of an admitted migration
+     */
+    static final int ADMITTED = 0;
+
+    /**
+     * The manager which receives the migrations
+     */
+    private ProcessManager manager;
+
+    /**
+     * Largest number of migrations received at once
+     */
+    private int maxTransfers;
+
+    /**
+     * Largest number of bytes of the migrations in flight
+     */
+    private long maxBytes;
+
+    /**
+     * Largest number of resident and admitted processes
+     */
+    private int maxProcesses;
+
+    /**
+     * The time a refused sender waits
+     */
+    private long retryAfterMillis;
+
+    /**
+     * The number of admitted migrations
+     */
+    private int transfers;
+
+    /**
+     * The bytes of the admitted migrations
+     */
+    private long bytes;
+
+    /**
+     * Constructor of <code>AdmissionControl</code>
+     *
+     * @param manager the manager which receives the migrations
+     * @param config  the config of the manager
+     */
+    public AdmissionControl(ProcessManager manager, ProcessManagerConfig config) {
+        this.manager = manager;
+        this.maxTransfers = config.getAdmissionMaxTransfers();
+        this.maxBytes = config.getAdmissionMaxBytes();
+        this.maxProcesses = config.getAdmissionMaxProcesses();
+        this.retryAfterMillis = config.getAdmissionRetryAfterMillis();
+    }
+
+    /**
+     * Admit a migration
+     *
+     * @param size the bytes the migration transfers
+     * @return 0 if admitted, otherwise the milliseconds after which
+     * the sender may ask again
+     */
+    public synchronized long admit(long size) {
+        boolean full = maxTransfers > 0 && transfers >= maxTransfers;
+        full |= maxBytes > 0 && transfers > 0 && bytes + size > maxBytes;
+        full |= maxProcesses > 0 && manager.processes.size() + transfers >= maxProcesses;
+        if (full) {
+            manager.getMetrics().refuse();
+            return retryAfterMillis;
+        }
+        transfers++;
+        bytes += size;
+        return ADMITTED;
+    }
+
+    /**
+     * Release an admitted migration
+     *
+     * @param size the bytes given to <code>admit(long)</code>
+     */
+    public synchronized void release(long size) {
+        transfers--;
+        bytes -= size;
+    }
+
+    /**
+     * Get the number of admitted migrations which are still arriving
+     *
+     * @return the number of transfers
+     */
+    public synchronized int getTransfers() {
+        return transfers;
+    }
+
+    /**
+     * Answer the <code>ADMIT</code> request of a sender, after the
+     * opcode
+     *
+     * @param in  the stream from the sender
+     * @param out the stream to the sender
+     * @return the admitted bytes, to be released; -1 if refused
+     * @throws IOException if the connection fails
+     */
+    long answer(DataInputStream in, DataOutputStream out) throws IOException {
+        long size = in.readLong();
+        long retry = admit(size);
+        try {
+            out.writeLong(retry);
+            out.flush();
+        } catch (IOException e) {
+            if (retry == ADMITTED) {
+                release(size);
+            }
+            throw e;
+        }
+        return retry == ADMITTED ? size : -1;
+    }
+
+    /**
+     * Ask a receiver to admit a migration
+     *
+     * @param out  the stream to the receiver
+     * @param in   the stream from the receiver
+     * @param peer the receiver, for the message
+     * @param size the bytes the migration transfers
+     * @throws BusyException if the receiver refused the migration
+     * @throws IOException   if the connection fails
+     */
+    static void request(DataOutputStream out, DataInputStream in, String peer, long size)
+            throws IOException {
+        out.writeInt(ProcessServer.ADMIT);
+        out.writeLong(size);
+        out.flush();
+        long retry = in.readLong();
+        if (retry != ADMITTED) {
+            throw new BusyException(peer, retry);
+        }
+    }
+
+    /**
+     * The printable state, used by the <code>stats</code> command.
+     *
+     * @return the printable information
+     */
+    public synchronized String toString() {
+        return "admission: " + transfers + "/" + limit(maxTransfers) + " transfers, " +
+                bytes + "/" + limit(maxBytes) + " bytes, " + manager.processes.size() + "/" +
+                limit(maxProcesses) + " processes";
+    }
+
+    private static String limit(long limit) {
+        return limit == 0 ? "-" : String.valueOf(limit);
+    }
+}
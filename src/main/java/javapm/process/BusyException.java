@@ -0,0 +1,37 @@
+package javapm.process;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a receiver refuses a migration because it is at one of
+ * its admission limits. The sender may try the same receiver again
+ * after <code>getRetryAfterMillis()</code>, or another receiver now.
+ *
+ * @author Pratyush Kumar(pratyush)
+ * @author Vasu Vardhan(vardhan)
+ * @see javapm.process.AdmissionControl
+ */
+public class BusyException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The time after which the receiver may take the migration
+     */
+    private long retryAfterMillis;
+
+    /**
+     * Constructor of <code>BusyException</code>
+     *
+     * @param peer             the receiver
+     * @param retryAfterMillis the time after which the receiver may
+     *                         take the migration
+     */
+    public BusyException(String peer, long retryAfterMillis) {
+        super(peer + " busy, retry after " + retryAfterMillis + " ms");
+        this.retryAfterMillis = retryAfterMillis;
+    }
+
+    public long getRetryAfterMillis() {
+        return retryAfterMillis;
+    }
+}
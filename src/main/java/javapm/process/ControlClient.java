@@ -0,0 +1,223 @@
+package javapm.process;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The client of the control requests of <code>ProcessServer</code>.
+ * A control request connects to the process server of a node, sends
+ * a negative opcode and reads the answer. Every request has a
+ * timeout, for both the connection and the answer.
+ *
+ * @author Pratyush Kumar(pratyush)
+ * @author Vasu Vardhan(vardhan)
+ * @see javapm.process.ProcessServer#LOOKUP
+ * @see javapm.process.ProcessReceiver
+ */
+public class ControlClient {
+    /**
+     * A process of a remote node
+     */
+    public static class RemoteProcess {
+        private long id;
+        private String status;
+        private String description;
+
+        RemoteProcess(long id, String status, String description) {
+            this.id = id;
+            this.status = status;
+            this.description = description;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public String getStatus() {
+            return status;
+        }
+
+        public String getDescription() {
+            return description;
+        }
+    }
+
+    private ControlClient() {
+    }
+
+    /**
+     * Ask a node for its processes of a placement key
+     *
+     * @param node          the node name <code>HOST:PORT</code>
+     * @param key           the placement key
+     * @param timeoutMillis the timeout
+     * @return the processes
+     * @throws IOException if the node can't be asked
+     */
+    public static List<RemoteProcess> lookup(String node, String key, int timeoutMillis)
+            throws IOException {
+        Socket socket = connect(node, timeoutMillis);
+        try {
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            out.writeInt(ProcessServer.LOOKUP);
+            out.writeUTF(key);
+            return readProcesses(new DataInputStream(socket.getInputStream()));
+        } finally {
+            socket.close();
+        }
+    }
+
+    /**
+     * Ask a node for all its processes, resident and hibernated
+     *
+     * @param node          the node name <code>HOST:PORT</code>
+     * @param timeoutMillis the timeout
+     * @return the processes
+     * @throws IOException if the node can't be asked
+     */
+    public static List<RemoteProcess> ps(String node, int timeoutMillis) throws IOException {
+        Socket socket = connect(node, timeoutMillis);
+        try {
+            new DataOutputStream(socket.getOutputStream()).writeInt(ProcessServer.PS);
+            return readProcesses(new DataInputStream(socket.getInputStream()));
+        } finally {
+            socket.close();
+        }
+    }
+
+    /**
+     * Ask a node if it has a process
+     *
+     * @param node          the node name <code>HOST:PORT</code>
+     * @param id            the process ID
+     * @param timeoutMillis the timeout
+     * @return the process, or null if the node doesn't have it
+     * @throws IOException if the node can't be asked
+     */
+    public static RemoteProcess find(String node, long id, int timeoutMillis) throws IOException {
+        Socket socket = connect(node, timeoutMillis);
+        try {
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            out.writeInt(ProcessServer.FIND);
+            out.writeLong(id);
+            List<RemoteProcess> found = readProcesses(new DataInputStream(socket.getInputStream()));
+            return found.isEmpty() ? null : found.get(0);
+        } finally {
+            socket.close();
+        }
+    }
+
+    /**
+     * Ask a busy node for processes. The node answers with the number
+     * of processes it will migrate to the thief, and pushes them after
+     * the answer.
+     *
+     * @param node          the node name <code>HOST:PORT</code>
+     * @param thief         the node name of the asking node
+     * @param resident      the number of processes of the asking node
+     * @param count         the largest number of processes wanted
+     * @param timeoutMillis the timeout
+     * @return the number of processes the node will migrate
+     * @throws IOException if the node can't be asked
+     */
+    public static int steal(String node, String thief, int resident, int count,
+                            int timeoutMillis) throws IOException {
+        Socket socket = connect(node, timeoutMillis);
+        try {
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            out.writeInt(ProcessServer.STEAL);
+            out.writeUTF(thief);
+            out.writeInt(resident);
+            out.writeInt(count);
+            out.flush();
+            return new DataInputStream(socket.getInputStream()).readInt();
+        } finally {
+            socket.close();
+        }
+    }
+
+    /**
+     * Ask a node for the length of its copies of files
+     *
+     * @param node          the node name <code>HOST:PORT</code>
+     * @param paths         the file paths, as a migration names them
+     * @param timeoutMillis the timeout
+     * @return the length of each file, -1 if the node doesn't have it
+     * or it is still arriving
+     * @throws IOException if the node can't be asked
+     */
+    public static long[] stat(String node, List<String> paths, int timeoutMillis)
+            throws IOException {
+        Socket socket = connect(node, timeoutMillis);
+        try {
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            out.writeInt(ProcessServer.STAT);
+            out.writeInt(paths.size());
+            for (String path : paths) {
+                out.writeUTF(path);
+            }
+            out.flush();
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            long[] lengths = new long[in.readInt()];
+            for (int i = 0; i < lengths.length; i++) {
+                lengths[i] = in.readLong();
+            }
+            return lengths;
+        } finally {
+            socket.close();
+        }
+    }
+
+    /**
+     * Write the answer of a control request: the number of processes,
+     * then the ID, status and description of each.
+     *
+     * @param out       the answer stream
+     * @param processes the resident processes
+     * @param hibernated the hibernated processes
+     * @throws IOException if any IO error occurs
+     */
+    static void writeProcesses(DataOutputStream out, List<MigratableProcess> processes,
+                               List<HibernationManager.HibernatedProcess> hibernated)
+            throws IOException {
+        out.writeInt(processes.size() + hibernated.size());
+        for (MigratableProcess process : processes) {
+            out.writeLong(process.getId());
+            out.writeUTF("resident");
+            out.writeUTF(process.toString());
+        }
+        for (HibernationManager.HibernatedProcess record : hibernated) {
+            out.writeLong(record.getId());
+            out.writeUTF("hibernated");
+            out.writeUTF(record.getDescription());
+        }
+    }
+
+    private static List<RemoteProcess> readProcesses(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        List<RemoteProcess> processes = new ArrayList<RemoteProcess>();
+        for (int i = 0; i < count; i++) {
+            processes.add(new RemoteProcess(in.readLong(), in.readUTF(), in.readUTF()));
+        }
+        return processes;
+    }
+
+    private static Socket connect(String node, int timeoutMillis) throws IOException {
+        int split = node.lastIndexOf(':');
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(node.substring(0, split),
+                    Integer.parseInt(node.substring(split + 1))), timeoutMillis);
+            socket.setSoTimeout(timeoutMillis);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        return socket;
+    }
+}
@@ -0,0 +1,379 @@
+package javapm.process;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The drain of a node, which moves all its processes to other nodes.
+ * A drain runs in three steps:
+ * <ol>
+ * <li>all resident processes are asked to suspend at once, then the
+ * drain waits for each of them, so the suspensions overlap. The
+ * hibernated processes are already stopped, they are queued after
+ * the resident ones.</li>
+ * <li>the targets of the resident processes are planned at once by
+ * <code>ProcessManager.planTargets(List)</code>, so the processes
+ * spread over the members by their free capacity and load.</li>
+ * <li><code>parallelism</code> workers take the suspended processes
+ * and migrate them to their planned target. A hibernated process is
+ * loaded back by the worker just before its migration, so the drain
+ * holds at most <code>parallelism</code> of them in the heap, and it
+ * goes to <code>chooseTarget(MigratableProcess)</code>. If the target can't be
+ * reached, <code>chooseTarget(MigratableProcess)</code> gives one
+ * other target, then the process continues on this node. A target
+ * which is busy is replaced by another one, or asked again after its
+ * retry time if no other one is free.</li>
+ * </ol>
+ * A cancelled drain finishes the migrations in flight, the processes
+ * not sent yet continue on this node. One drain runs at a time, a
+ * node can be drained again once a drain is finished.
+ *
+ * @author Vasu Vardhan(vardhan)
+ * @author Pratyush Kumar(pratyush)
+ * @see javapm.process.ExitListener
+ */
+public class DrainCoordinator {
+    /**
+     * Log handler
+     *
+     * @see <a href="http://apache.org/log4j/2.x/">Log4J</a>
+     */
+    private static Logger LOG = LogManager.getLogger(DrainCoordinator.class);
+
+    /**
+     * The owner of resident processes
+     */
+    private ProcessManager manager;
+
+    /**
+     * The number of migrations run at once
+     */
+    private int parallelism;
+
+    /**
+     * The number of times a busy target is asked again
+     */
+    private int retries;
+
+    /**
+     * The running drain, null if none
+     */
+    private volatile Drain current;
+
+    /**
+     * Constructor of <code>DrainCoordinator</code>
+     *
+     * @param manager     the process manager
+     * @param parallelism the number of migrations run at once
+     * @param retries     the number of times a busy target is asked
+     *                    again
+     */
+    public DrainCoordinator(ProcessManager manager, int parallelism, int retries) {
+        this.manager = manager;
+        this.parallelism = Math.max(1, parallelism);
+        this.retries = Math.max(0, retries);
+    }
+
+    /**
+     * Start a drain in a new <code>Thread</code>
+     *
+     * @param notify the stream which gets the report when the drain
+     *               is finished, may be null
+     * @return the number of processes to drain, -1 if a drain is
+     *         already running
+     */
+    public synchronized int start(PrintStream notify) {
+        if (current != null) {
+            return -1;
+        }
+        current = new Drain(notify);
+        int total = manager.processes.size() + manager.getHibernation().getHibernated().size();
+        new Thread(current, "drain").start();
+        return total;
+    }
+
+    /**
+     * Cancel the running drain
+     *
+     * @return if a drain was running return <code>true</code>
+     */
+    public boolean cancel() {
+        Drain drain = current;
+        if (drain == null) {
+            return false;
+        }
+        drain.cancelled = true;
+        return true;
+    }
+
+    /**
+     * Get the progress of the running drain
+     *
+     * @return the progress line
+     */
+    public String status() {
+        Drain drain = current;
+        if (drain == null) {
+            return "No drain running";
+        }
+        return drain.report("Draining");
+    }
+
+    /**
+     * Check if a drain is running
+     *
+     * @return if running return <code>true</code>
+     */
+    public boolean isRunning() {
+        return current != null;
+    }
+
+    private synchronized void finished() {
+        current = null;
+    }
+
+    /**
+     * A suspended process and its planned target, or the ID of a
+     * hibernated process
+     */
+    private static class Move {
+        MigratableProcess process;
+        String target;
+        long hibernated;
+
+        Move(MigratableProcess process, String target) {
+            this.process = process;
+            this.target = target;
+        }
+
+        Move(long hibernated) {
+            this.hibernated = hibernated;
+        }
+
+        long getId() {
+            return process != null ? process.getId() : hibernated;
+        }
+    }
+
+    /**
+     * One drain
+     */
+    private class Drain implements Runnable {
+        /**
+         * The stream which gets the report, may be null
+         */
+        private PrintStream notify;
+
+        /**
+         * The cancel flag
+         */
+        private volatile boolean cancelled;
+
+        /**
+         * The suspended processes not sent yet, with their planned target
+         */
+        private ConcurrentLinkedQueue<Move> pending;
+
+        /**
+         * The time the drain started
+         */
+        private long started;
+
+        /**
+         * The time the suspensions finished
+         */
+        private volatile long stopped;
+
+        /**
+         * Counters of the processes
+         */
+        private AtomicInteger total;
+        private AtomicInteger migrated;
+        private AtomicInteger failed;
+        private AtomicInteger kept;
+
+        /**
+         * The nodes which got a process
+         */
+        private Set<String> targets;
+
+        Drain(PrintStream notify) {
+            this.notify = notify;
+            this.pending = new ConcurrentLinkedQueue<Move>();
+            this.total = new AtomicInteger();
+            this.migrated = new AtomicInteger();
+            this.failed = new AtomicInteger();
+            this.kept = new AtomicInteger();
+            this.targets = Collections.synchronizedSet(new HashSet<String>());
+        }
+
+        public void run() {
+            try {
+                started = System.nanoTime();
+                suspendAll();
+                stopped = System.nanoTime();
+                List<Thread> workers = new ArrayList<Thread>();
+                for (int i = 0; i < parallelism; i++) {
+                    Thread worker = new Thread(new Runnable() {
+                        public void run() {
+                            work();
+                        }
+                    }, "drain-" + i);
+                    worker.start();
+                    workers.add(worker);
+                }
+                for (Thread worker : workers) {
+                    worker.join();
+                }
+            } catch (InterruptedException e) {
+                LOG.error("drain interrupted", e);
+                cancelled = true;
+                work();
+            } finally {
+                String report = report(cancelled ? "Drain cancelled" : "Drain finished");
+                System.out.println(report);
+                if (notify != null) {
+                    notify.println(report);
+                    notify.close();
+                }
+                finished();
+            }
+        }
+
+        /**
+         * Ask all resident processes to suspend, then wait for them.
+         * Then their targets are planned. The hibernated processes
+         * are queued last, they stay on disk.
+         */
+        private void suspendAll() throws InterruptedException {
+            List<MigratableProcess> processes = new ArrayList<MigratableProcess>();
+            List<Object> events = new ArrayList<Object>();
+            for (MigratableProcess process : manager.processes) {
+                if (!manager.beginMigrating(process.getId())) {
+                    continue;
+                }
+                processes.add(process);
+                events.add(process.requestSuspend());
+                total.incrementAndGet();
+            }
+            for (int i = 0; i < processes.size(); i++) {
+                processes.get(i).awaitSuspended(events.get(i));
+            }
+            List<String> planned = manager.planTargets(processes);
+            for (int i = 0; i < processes.size(); i++) {
+                pending.add(new Move(processes.get(i), planned.get(i)));
+            }
+            HibernationManager hibernation = manager.getHibernation();
+            for (HibernationManager.HibernatedProcess record :
+                    new ArrayList<HibernationManager.HibernatedProcess>(hibernation.getHibernated())) {
+                if (!manager.beginMigrating(record.getId())) {
+                    continue;
+                }
+                pending.add(new Move(record.getId()));
+                total.incrementAndGet();
+            }
+        }
+
+        /**
+         * The worker loop: migrate pending processes until none is
+         * left, or keep them here once the drain is cancelled. A
+         * hibernated process is loaded back first, it stays on disk
+         * if the drain is cancelled.
+         */
+        private void work() {
+            Move move;
+            while ((move = pending.poll()) != null) {
+                try {
+                    if (move.process == null) {
+                        if (cancelled) {
+                            kept.incrementAndGet();
+                            continue;
+                        }
+                        move.process = manager.getHibernation().rehydrate(move.hibernated);
+                        if (move.process == null) {
+                            failed.incrementAndGet();
+                            continue;
+                        }
+                    }
+                    if (cancelled) {
+                        manager.resumeProcess(move.process);
+                        kept.incrementAndGet();
+                    } else {
+                        send(move.process, move.target);
+                    }
+                } finally {
+                    manager.endMigrating(move.getId());
+                }
+            }
+        }
+
+        /**
+         * Migrate one suspended process to its planned target, or to
+         * a second target if the first can't be reached. A busy
+         * target is replaced, or asked again after its retry time.
+         */
+        private void send(MigratableProcess process, String target) {
+            boolean redirected = false;
+            for (int attempt = 0, busy = 0; attempt < 2 && busy <= retries; attempt++) {
+                if (!redirected && (attempt > 0 || target == null)) {
+                    target = manager.chooseTarget(process);
+                }
+                redirected = false;
+                if (target == null) {
+                    break;
+                }
+                int split = target.lastIndexOf(':');
+                try {
+                    if (manager.migrateSuspended(process, target.substring(0, split),
+                            Integer.parseInt(target.substring(split + 1)), started, stopped)) {
+                        migrated.incrementAndGet();
+                        targets.add(target);
+                    } else {
+                        // the process was restarted here by the failed migration
+                        failed.incrementAndGet();
+                    }
+                    return;
+                } catch (BusyException e) {
+                    String other = manager.chooseTarget(process);
+                    if (other == null || other.equals(target)) {
+                        busy++;
+                        try {
+                            Thread.sleep(e.getRetryAfterMillis());
+                        } catch (InterruptedException ie) {
+                            Thread.currentThread().interrupt();
+                            break;
+                        }
+                    } else {
+                        System.out.println(e.getMessage() + ", redirecting to " + other);
+                        target = other;
+                    }
+                    redirected = true;
+                    attempt--;
+                } catch (IOException e) {
+                    System.out.println("Connect " + target + " failed: " + e.getMessage());
+                }
+            }
+            manager.resumeProcess(process);
+            failed.incrementAndGet();
+        }
+
+        /**
+         * The progress line
+         */
+        String report(String state) {
+            return state + ": " + migrated.get() + " of " + total.get() + " processes migrated to " +
+                    targets.size() + " nodes, " + failed.get() + " failed, " + kept.get() +
+                    " kept, in " + (System.nanoTime() - started) / 1000000 + " ms";
+        }
+    }
+}
@@ -5,16 +5,14 @@
  */
 package javapm.process;
 
+import javapm.cluster.LoadSummary;
+
 import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.PrintStream;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.Iterator;
-import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.logging.Level;
 //import java.util.logging.Logger;
 
 /**
@@ -27,48 +25,115 @@ public class ExitListener implements Runnable{
     ServerSocket serverSock;
     Socket clientSock;
     
-    final int PORT = 15444;
-       public ExitListener() throws IOException {
-               serverSock= new ServerSocket(PORT);
-        }
+    /**
+     * The port notified on the peer node
+     */
+    final int notifyPort;
+
+    /**
+     * The manager to drain
+     */
+    final ProcessManager manager;
+
+    /**
+     * Constructor of <code>ExitListener</code>
+     *
+     * @param manager    the manager to drain
+     * @param port       the port to listen on
+     * @param notifyPort the port notified on the peer node
+     * @throws IOException if the port can't be bound
+     */
+    public ExitListener(ProcessManager manager, int port, int notifyPort) throws IOException {
+        this.manager = manager;
+        serverSock = new ServerSocket(port);
+        this.notifyPort = notifyPort;
+    }
 
+    /**
+     * Accept requests until the JVM exits. A request is one line:
+     * <ul>
+     * <li><code>cancel</code> cancels the running drain,</li>
+     * <li><code>status</code> answers the progress of the drain,</li>
+     * <li>any other line (the old clients send <code>-1</code>)
+     * starts a drain. The client is notified on
+     * <code>notifyPort</code>, and gets the report there when the
+     * drain is finished.</li>
+     * </ul>
+     * The answer is written back on the request connection.
+     *
+     * @see javapm.process.DrainCoordinator
+     */
     @Override
     public void run() {
-        try {
-            System.out.println("runing");
-            clientSock=serverSock.accept();
-            BufferedReader br = new BufferedReader( new InputStreamReader(clientSock.getInputStream() ));
-            String line = br.readLine();
-            System.out.println("accepted");
-            if(line.equals("-1"))
-            {
-                System.out.print("end");
+        while (true) {
+            try {
+                clientSock = serverSock.accept();
+            } catch (IOException ex) {
+                System.out.println(ex);
+                return;
+            }
+            try {
+                handle(clientSock);
+            } catch (IOException ex) {
+                System.out.println(ex);
+            } finally {
+                try {
+                    clientSock.close();
+                } catch (IOException ex) {
+                    // already closed
+                }
             }
-            
-            ProcessManager pm = ProcessManager.getInstance();
-        ConcurrentLinkedQueue<javapm.process.MigratableProcess> processes = pm.processes;
-        Iterator<javapm.process.MigratableProcess> it = processes.iterator();
-        
-        //notify client that this server is exiting
-        Socket sock = new Socket(pm.IP, 15442);
-        PrintStream sockOut = new PrintStream(sock.getOutputStream());
-        sockOut.println("ending JavaPM instance");
-        sockOut.println("try node 172.31.134.34");
-        
-        //before migrating rell how many nodes are there
-        sockOut.println(processes.size());
-        
-        //finally migrate whatever process left to the client
-        while (it.hasNext()) {
-            javapm.process.MigratableProcess process = it.next();
-            long id=process.getId();
-            pm.processCommand("mg "+id+" "+pm.IP);
-                
         }
+    }
+
+    /**
+     * Answer one request
+     */
+    private void handle(Socket client) throws IOException {
+        BufferedReader br = new BufferedReader( new InputStreamReader(client.getInputStream() ));
+        PrintStream reply = new PrintStream(client.getOutputStream());
+        String line = br.readLine();
+        ProcessManager pm = manager;
+        DrainCoordinator drain = pm.getDrain();
+        if (line == null) {
+            return;
+        }
+        if (line.trim().equals("cancel")) {
+            reply.println(drain.cancel() ? "drain cancelling" : "no drain running");
+            return;
+        }
+        if (line.trim().equals("status")) {
+            reply.println(drain.status());
+            return;
+        }
+        if (drain.isRunning()) {
+            reply.println("drain running");
+            return;
+        }
+
+        //notify the client that this server is exiting, and which node takes over
+        PrintStream sockOut = null;
+        try {
+            Socket sock = new Socket(client.getInetAddress(), notifyPort);
+            sockOut = new PrintStream(sock.getOutputStream());
+            LoadSummary next = pm.chooseTarget();
+            sockOut.println("ending JavaPM instance");
+            sockOut.println(next != null ? "try node " + next.getNode() : "no healthy peer known");
+            //before migrating tell how many processes are there
+            sockOut.println(pm.processes.size());
         } catch (IOException ex) {
-            System.out.println(ex);
+            System.out.println("notify " + client.getInetAddress() + " failed: " + ex.getMessage());
+        }
+
+        //migrate all processes in parallel, the report goes to the client at the end
+        int total = drain.start(sockOut);
+        if (total < 0) {
+            reply.println("drain running");
+            if (sockOut != null) {
+                sockOut.close();
+            }
+        } else {
+            reply.println("draining " + total);
         }
     }
-    
-    
 }
@@ -0,0 +1,359 @@
+package javapm.process;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+
+import javapm.io.TransactionalFileInputStream;
+import javapm.io.TransactionalFileOutputStream;
+
+/**
+ * The external merge sort example of <code>MigratableProcess</code>
+ * Sort the lines of a file which may be larger than the heap.
+ * <p>
+ * First the input is cut into sorted runs: the lines are read until
+ * they fill the memory budget, sorted, and written to a run file next
+ * to the output. Then the runs are merged, at most <code>fanIn</code>
+ * at once, with a binary heap of run cursors ordered by their current
+ * line; the last pass writes the output. Every step works on one line,
+ * so the process can be suspended between any two lines.
+ * <p>
+ * The whole state is transactional: the runs are scratch output
+ * streams while they are written and input streams after, held in an
+ * array field, so a migration moves them with their offsets, and the
+ * heap is kept in plain fields. A migrated sort resumes at the line it
+ * stopped at, in any phase.
+ *
+ * @author Vasu Vardhan(vardhan)
+ * @author Pratyush Kumar(pratyush)
+ * @see javapm.process.MigratableProcess#getTransactionalStreams()
+ * @see javapm.io.TransactionalFileOutputStream#TransactionalFileOutputStream(File, boolean)
+ */
+public class ExternalSortProcess extends MigratableProcess {
+    /**
+     * The phases of the sort
+     */
+    private static final int READ = 0;
+    private static final int WRITE = 1;
+    private static final int MERGE = 2;
+    private static final int DONE = 3;
+
+    /**
+     * Default memory budget of the lines of a run, in bytes
+     */
+    private static final long DEFAULT_MEMORY = 16 * 1024 * 1024;
+
+    /**
+     * Default number of runs merged at once
+     */
+    private static final int DEFAULT_FAN_IN = 16;
+
+    /**
+     * The estimated heap bytes of a line besides its characters
+     */
+    private static final int LINE_OVERHEAD = 48;
+
+    /**
+     * The phase the process is in
+     */
+    private int phase;
+
+    /**
+     * The memory budget of a run, in bytes
+     */
+    private long memory;
+
+    /**
+     * The largest number of runs merged at once
+     */
+    private int fanIn;
+
+    private TransactionalFileInputStream inputStream;
+
+    private TransactionalFileOutputStream outputStream;
+
+    /**
+     * If the whole input is in runs or in <code>lines</code>
+     */
+    private boolean inputDone;
+
+    /**
+     * The lines of the run which is read or written
+     */
+    private ArrayList<String> lines;
+
+    /**
+     * The estimated heap bytes of <code>lines</code>
+     */
+    private long buffered;
+
+    /**
+     * The number of lines of <code>lines</code> written to the run
+     */
+    private int written;
+
+    /**
+     * The run which is written, by the <code>WRITE</code> phase or by
+     * a merge pass which is not the last
+     */
+    private TransactionalFileOutputStream runStream;
+
+    /**
+     * The number given to the next run file
+     */
+    private int nextRun;
+
+    /**
+     * The complete runs, oldest first. A merge pass reads the first
+     * <code>ways</code> of them.
+     */
+    private TransactionalFileInputStream[] runs;
+
+    /**
+     * The number of runs of the current merge pass, 0 between passes
+     */
+    private int ways;
+
+    /**
+     * The current line of each run of the pass, null when it is done
+     */
+    private String[] heads;
+
+    /**
+     * The binary heap of the runs of the pass, ordered by their heads
+     */
+    private int[] heap;
+
+    /**
+     * The number of runs in <code>heap</code>
+     */
+    private int heapSize;
+
+    /**
+     * The constructor with parameters.
+     *
+     * @param args command line arguments from </code>ProcessManager
+     * <code>
+     */
+    public ExternalSortProcess(String[] args) {
+        super(args);
+        phase = DONE;
+        if (arguments.size() < 2) {
+            System.out.println("ExternalSortProcess[" + id + "]: " +
+                    "usage: run ExternalSortProcess INPUT OUTPUT [MEMORY_BYTES [FAN_IN]]");
+            return;
+        }
+        memory = arguments.size() > 2 ? Long.parseLong(arguments.get(2)) : DEFAULT_MEMORY;
+        fanIn = arguments.size() > 3 ? Integer.parseInt(arguments.get(3)) : DEFAULT_FAN_IN;
+        if (memory <= 0 || fanIn < 2) {
+            System.out.println("ExternalSortProcess[" + id + "]: " +
+                    "MEMORY_BYTES must be positive and FAN_IN at least 2");
+            return;
+        }
+        inputStream = new TransactionalFileInputStream(new File(arguments.get(0)));
+        outputStream = new TransactionalFileOutputStream(new File(arguments.get(1)));
+        lines = new ArrayList<String>();
+        runs = new TransactionalFileInputStream[0];
+        phase = READ;
+    }
+
+    /**
+     * Implementation of <code>processing()</code> from
+     * <code>MigratableProcess</code>.
+     * This function should loop with the <code>suspending</code>
+     * flag. Each <code>step()</code> reads, writes or merges one line.
+     *
+     * @throws IOException if any IO error occurs.
+     */
+    @Override
+    public void processing() throws IOException {
+        while (!suspending && phase != DONE) {
+            switch (phase) {
+            case READ:
+                read();
+                break;
+            case WRITE:
+                write();
+                break;
+            case MERGE:
+                merge();
+                break;
+            default:
+                LOG.error("ExternalSortProcess[" + id + "]: failed");
+                phase = DONE;
+            }
+        }
+    }
+
+    /**
+     * Read one line into the current run, sort the run when the memory
+     * budget or the input is used up
+     */
+    private void read() throws IOException {
+        String line = readLine(inputStream);
+        if (line == null) {
+            inputDone = true;
+            inputStream.close();
+        } else {
+            lines.add(line);
+            buffered += 2L * line.length() + LINE_OVERHEAD;
+        }
+        if (line != null && buffered < memory) {
+            return;
+        }
+        if (lines.isEmpty()) {
+            phase = MERGE;
+            return;
+        }
+        Collections.sort(lines);
+        File file = new File(arguments.get(1) + ".run" + nextRun++);
+        file.delete();
+        runStream = new TransactionalFileOutputStream(file, true);
+        written = 0;
+        phase = WRITE;
+    }
+
+    /**
+     * Write one line of the sorted run, close the run after its last
+     * line
+     */
+    private void write() throws IOException {
+        writeLine(runStream, lines.get(written++));
+        if (written < lines.size()) {
+            return;
+        }
+        runStream.close();
+        addRun(runStream.getFile());
+        runStream = null;
+        lines.clear();
+        buffered = 0;
+        LOG.info("ExternalSortProcess[" + id + "]: run " + (nextRun - 1) + " of " + written +
+                " lines");
+        written = 0;
+        phase = inputDone ? MERGE : READ;
+    }
+
+    /**
+     * Start a merge pass, emit the smallest head of the pass, or end
+     * the pass. The last pass writes the output, the others a new run.
+     */
+    private void merge() throws IOException {
+        if (ways == 0) {
+            if (runs.length == 0) {
+                outputStream.close();
+                phase = DONE;
+                return;
+            }
+            ways = Math.min(fanIn, runs.length);
+            if (ways < runs.length) {
+                File file = new File(arguments.get(1) + ".run" + nextRun++);
+                file.delete();
+                runStream = new TransactionalFileOutputStream(file, true);
+            }
+            heads = new String[ways];
+            heap = new int[ways];
+            heapSize = 0;
+            for (int i = 0; i < ways; i++) {
+                heads[i] = readLine(runs[i]);
+                if (heads[i] != null) {
+                    heap[heapSize++] = i;
+                    siftUp(heapSize - 1);
+                }
+            }
+            return;
+        }
+        if (heapSize > 0) {
+            int run = heap[0];
+            writeLine(runStream != null ? runStream : outputStream, heads[run]);
+            heads[run] = readLine(runs[run]);
+            if (heads[run] == null) {
+                heap[0] = heap[--heapSize];
+            }
+            siftDown(0);
+            return;
+        }
+        for (int i = 0; i < ways; i++) {
+            runs[i].close();
+            runs[i].getFile().delete();
+        }
+        runs = Arrays.copyOfRange(runs, ways, runs.length);
+        LOG.info("ExternalSortProcess[" + id + "]: merged " + ways + " runs, " + runs.length +
+                " left");
+        ways = 0;
+        heads = null;
+        heap = null;
+        if (runStream == null) {
+            outputStream.close();
+            phase = DONE;
+        } else {
+            runStream.close();
+            addRun(runStream.getFile());
+            runStream = null;
+        }
+    }
+
+    /**
+     * Append a complete run, the array is replaced so the streams of
+     * the process are consistent for other threads
+     */
+    private void addRun(File file) {
+        TransactionalFileInputStream[] more = Arrays.copyOf(runs, runs.length + 1);
+        more[runs.length] = new TransactionalFileInputStream(file);
+        runs = more;
+    }
+
+    private void siftUp(int i) {
+        while (i > 0) {
+            int parent = (i - 1) / 2;
+            if (heads[heap[parent]].compareTo(heads[heap[i]]) <= 0) {
+                return;
+            }
+            swap(i, parent);
+            i = parent;
+        }
+    }
+
+    private void siftDown(int i) {
+        while (true) {
+            int smallest = i;
+            for (int child = 2 * i + 1; child <= 2 * i + 2 && child < heapSize; child++) {
+                if (heads[heap[child]].compareTo(heads[heap[smallest]]) < 0) {
+                    smallest = child;
+                }
+            }
+            if (smallest == i) {
+                return;
+            }
+            swap(i, smallest);
+            i = smallest;
+        }
+    }
+
+    private void swap(int i, int j) {
+        int run = heap[i];
+        heap[i] = heap[j];
+        heap[j] = run;
+    }
+
+    /**
+     * Read a line, without its line terminator. The stream reads
+     * blocks ahead, but its offset stays at the next line.
+     *
+     * @param in the stream
+     * @return the line, or null at the end of the stream
+     * @see javapm.io.TransactionalFileInputStream#readLine()
+     */
+    private static String readLine(TransactionalFileInputStream in) throws IOException {
+        byte[] line = in.readLine();
+        return line == null ? null : new String(line, StandardCharsets.UTF_8);
+    }
+
+    private static void writeLine(TransactionalFileOutputStream out, String line)
+            throws IOException {
+        byte[] bytes = (line + "\n").getBytes(StandardCharsets.UTF_8);
+        out.write(bytes, 0, bytes.length);
+    }
+}
@@ -0,0 +1,500 @@
+package javapm.process;
+
+import javapm.io.TransactionalStream;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The hibernation of idle processes.
+ * A hibernated process is suspended, serialized to a spill file and
+ * dropped from the process queue, so its object graph and its thread
+ * no longer take heap. A background thread samples the IO offsets of
+ * all resident processes, and hibernates a process when:
+ * <ul>
+ * <li>its offsets did not move for <code>idleMillis</code>, or</li>
+ * <li>the heap usage after the last collection crosses
+ * <code>heapWatermark</code>, then the least recently active process
+ * is chosen.</li>
+ * </ul>
+ * A process which waits for its input to grow, like
+ * <code>tail -f</code>, is never chosen: it has no wake timer, so it
+ * would stop following.
+ * A hibernated process is loaded back when it is addressed by a
+ * command, or when its wake timer expires.
+ *
+ * @author Pratyush Kumar(pratyush)
+ * @author Vasu Vardhan(vardhan)
+ * @see javapm.process.ProcessManager
+ */
+public class HibernationManager implements Runnable {
+    /**
+     * Log handler
+     *
+     * @see <a href="http://apache.org/log4j/2.x/">Log4J</a>
+     */
+    private static Logger LOG = LogManager.getLogger(HibernationManager.class);
+
+    /**
+     * The file extension of spill files
+     */
+    public static final String EXTENSION = ".hib";
+
+    /**
+     * The record of a hibernated process
+     */
+    public static class HibernatedProcess {
+        /**
+         * The process ID
+         */
+        private long id;
+
+        /**
+         * The printable information of the process
+         */
+        private String description;
+
+        /**
+         * The spill file
+         */
+        private File spillFile;
+
+        /**
+         * The time the process was hibernated
+         */
+        private long hibernatedAt;
+
+        /**
+         * The time the process should be woken up, 0 means never
+         */
+        private long wakeAt;
+
+        HibernatedProcess(long id, String description, File spillFile, long wakeAt) {
+            this.id = id;
+            this.description = description;
+            this.spillFile = spillFile;
+            this.hibernatedAt = System.currentTimeMillis();
+            this.wakeAt = wakeAt;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public String getDescription() {
+            return description;
+        }
+
+        /**
+         * The estimated memory reclaimed, which is the serialized
+         * size of the process graph.
+         *
+         * @return reclaimed bytes
+         */
+        public long getReclaimedBytes() {
+            return spillFile.length();
+        }
+
+        public long getHibernatedAt() {
+            return hibernatedAt;
+        }
+
+        public long getWakeAt() {
+            return wakeAt;
+        }
+    }
+
+    /**
+     * The activity of a resident process
+     */
+    private static class Activity {
+        /**
+         * The sum of stream offsets at the last sample
+         */
+        long offsets;
+
+        /**
+         * The last time the offsets moved or the process was addressed
+         */
+        long lastActive;
+
+        Activity(long offsets, long lastActive) {
+            this.offsets = offsets;
+            this.lastActive = lastActive;
+        }
+    }
+
+    /**
+     * The owner of resident processes
+     */
+    private ProcessManager manager;
+
+    /**
+     * The directory of spill files
+     */
+    private File spillDirectory;
+
+    /**
+     * Idle time before a process is hibernated, 0 disables it
+     */
+    private long idleMillis;
+
+    /**
+     * Heap usage ratio that triggers hibernation, 0 disables it
+     */
+    private double heapWatermark;
+
+    /**
+     * Interval between two samples
+     */
+    private long checkMillis;
+
+    /**
+     * Hibernated processes, keyed by process ID
+     */
+    private ConcurrentHashMap<Long, HibernatedProcess> hibernated;
+
+    /**
+     * Activity of resident processes, keyed by process ID
+     */
+    private ConcurrentHashMap<Long, Activity> activities;
+
+    /**
+     * Constructor of <code>HibernationManager</code>
+     *
+     * @param manager the process manager
+     * @param config  the settings of the manager
+     */
+    public HibernationManager(ProcessManager manager, ProcessManagerConfig config) {
+        this.manager = manager;
+        this.spillDirectory = config.getHibernateDirectory();
+        this.idleMillis = config.getHibernateIdleMillis();
+        this.heapWatermark = config.getHibernateHeapWatermark();
+        this.checkMillis = config.getHibernateCheckMillis();
+        this.hibernated = new ConcurrentHashMap<Long, HibernatedProcess>();
+        this.activities = new ConcurrentHashMap<Long, Activity>();
+    }
+
+    /**
+     * The sampling loop. Each round wakes the due processes, then
+     * hibernates idle processes, then relieves the heap pressure.
+     */
+    public void run() {
+        while (true) {
+            try {
+                Thread.sleep(checkMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+            long now = System.currentTimeMillis();
+            wakeDueProcesses(now);
+            sample(now);
+            if (idleMillis > 0) {
+                for (MigratableProcess process : manager.processes) {
+                    Activity activity = activities.get(process.getId());
+                    if (activity != null && now - activity.lastActive >= idleMillis &&
+                            !process.isWaitingForInput()) {
+                        hibernate(process, 0);
+                    }
+                }
+            }
+            if (heapWatermark > 0 && heapUsage() >= heapWatermark) {
+                MigratableProcess victim = leastRecentlyActive();
+                if (victim != null) {
+                    LOG.info("heap usage over " + heapWatermark + ", hibernate " + victim);
+                    hibernate(victim, 0);
+                }
+            }
+        }
+    }
+
+    /**
+     * Suspend a process and spill it to disk.
+     * If the spill fails, the process continues on this node. A
+     * process which is migrating, or which already finished, is left
+     * alone.
+     *
+     * @param process the resident process
+     * @param wakeAt  the time to wake the process, 0 means never
+     * @return if success return <code>true</code>
+     *         else return <code>false</code>
+     * @see javapm.process.ProcessManager#beginMigrating(long)
+     */
+    public boolean hibernate(MigratableProcess process, long wakeAt) {
+        long id = process.getId();
+        if (!manager.beginMigrating(id)) {
+            LOG.info(process.getClass().getSimpleName() + "[" + id + "] is migrating");
+            return false;
+        }
+        try {
+            if (!manager.processes.contains(process)) {
+                return false;
+            }
+            return spill(process, wakeAt);
+        } finally {
+            manager.endMigrating(id);
+        }
+    }
+
+    /**
+     * Suspend a process marked as migrating and spill it to disk
+     *
+     * @param process the resident process
+     * @param wakeAt  the time to wake the process, 0 means never
+     * @return if success return <code>true</code>
+     *         else return <code>false</code>
+     */
+    private boolean spill(MigratableProcess process, long wakeAt) {
+        long id = process.getId();
+        try {
+            process.suspend();
+        } catch (InterruptedException e) {
+            LOG.error(process.getClass().getSimpleName() + "[" + id + "] suspend error", e);
+            return false;
+        }
+        activities.remove(id);
+        File spillFile = new File(spillDirectory, id + EXTENSION);
+        try {
+            if (!spillDirectory.isDirectory() && !spillDirectory.mkdirs()) {
+                throw new IOException("can't create spill directory " + spillDirectory);
+            }
+            ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(spillFile));
+            try {
+                out.writeObject(process);
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            LOG.error(process.getClass().getSimpleName() + "[" + id + "] hibernate error", e);
+            spillFile.delete();
+            process.resume();
+            manager.startProcess(process);
+            return false;
+        }
+        for (TransactionalStream stream : process.getTransactionalStreams()) {
+            try {
+                stream.close();
+            } catch (IOException e) {
+                LOG.warn(process.getClass().getSimpleName() + "[" + id + "] close stream error", e);
+            }
+        }
+        hibernated.put(id, new HibernatedProcess(id, process.toString(), spillFile, wakeAt));
+        return true;
+    }
+
+    /**
+     * Load a hibernated process back into memory. The process
+     * keeps its ID, its streams reopen at their offsets. The
+     * process is not started.
+     *
+     * @param id the process ID
+     * @return the process object, or null if the process is not
+     *         hibernated or can't be loaded
+     */
+    public MigratableProcess rehydrate(long id) {
+        HibernatedProcess record = hibernated.remove(id);
+        if (record == null) {
+            return null;
+        }
+        try {
+            ObjectInputStream in = new ObjectInputStream(new FileInputStream(record.spillFile));
+            MigratableProcess process;
+            try {
+                process = (MigratableProcess) in.readObject();
+            } finally {
+                in.close();
+            }
+            process.reattach();
+            process.getAccounting().setSerializedSize(record.spillFile.length());
+            record.spillFile.delete();
+            touch(id);
+            return process;
+        } catch (IOException e) {
+            LOG.error("rehydrate process " + id + " error", e);
+        } catch (ClassNotFoundException e) {
+            LOG.error("rehydrate process " + id + " error", e);
+        }
+        hibernated.put(id, record);
+        return null;
+    }
+
+    /**
+     * Load a hibernated process back and start it.
+     *
+     * @param id the process ID
+     * @return the process object, or null if failed
+     */
+    public MigratableProcess wake(long id) {
+        MigratableProcess process = rehydrate(id);
+        if (process != null) {
+            manager.startProcess(process);
+        }
+        return process;
+    }
+
+    /**
+     * Mark a process as active, it is called when a process is addressed.
+     *
+     * @param id the process ID
+     */
+    public void touch(long id) {
+        Activity activity = activities.get(id);
+        if (activity != null) {
+            activity.lastActive = System.currentTimeMillis();
+        } else {
+            activities.put(id, new Activity(-1, System.currentTimeMillis()));
+        }
+    }
+
+    /**
+     * Check if a process is hibernated
+     *
+     * @param id the process ID
+     * @return if hibernated return <code>true</code>
+     */
+    public boolean isHibernated(long id) {
+        return hibernated.containsKey(id);
+    }
+
+    /**
+     * Get all hibernated processes
+     *
+     * @return the records of hibernated processes
+     */
+    public Collection<HibernatedProcess> getHibernated() {
+        return hibernated.values();
+    }
+
+    /**
+     * Get the time a resident process was last active
+     *
+     * @param id the process ID
+     * @return the time in milliseconds, 0 if unknown
+     */
+    public long getLastActive(long id) {
+        Activity activity = activities.get(id);
+        return activity == null ? 0 : activity.lastActive;
+    }
+
+    /**
+     * Update the activity of resident processes with their offsets,
+     * and forget the processes which are gone.
+     */
+    private void sample(long now) {
+        Set<Long> alive = new HashSet<Long>();
+        for (MigratableProcess process : manager.processes) {
+            long offsets = 0;
+            for (TransactionalStream stream : process.getTransactionalStreams()) {
+                offsets += stream.getOffset();
+            }
+            alive.add(process.getId());
+            Activity activity = activities.get(process.getId());
+            if (activity == null) {
+                activities.put(process.getId(), new Activity(offsets, now));
+            } else if (activity.offsets != offsets) {
+                activity.offsets = offsets;
+                activity.lastActive = now;
+            }
+        }
+        Iterator<Long> it = activities.keySet().iterator();
+        while (it.hasNext()) {
+            if (!alive.contains(it.next())) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Wake the processes whose timer expired. A process a drain has
+     * queued is left to the drain.
+     */
+    private void wakeDueProcesses(long now) {
+        for (HibernatedProcess record : hibernated.values()) {
+            if (record.wakeAt > 0 && record.wakeAt <= now && manager.beginMigrating(record.id)) {
+                try {
+                    MigratableProcess process = wake(record.id);
+                    if (process != null) {
+                        LOG.info("wake timer expired, woke " + process);
+                    }
+                } finally {
+                    manager.endMigrating(record.id);
+                }
+            }
+        }
+    }
+
+    /**
+     * Choose the least recently active resident process which doesn't
+     * wait for its input
+     */
+    private MigratableProcess leastRecentlyActive() {
+        List<MigratableProcess> candidates = new ArrayList<MigratableProcess>();
+        for (MigratableProcess process : manager.processes) {
+            if (!process.isWaitingForInput()) {
+                candidates.add(process);
+            }
+        }
+        if (candidates.isEmpty()) {
+            return null;
+        }
+        return Collections.min(candidates, new Comparator<MigratableProcess>() {
+            public int compare(MigratableProcess a, MigratableProcess b) {
+                long diff = getLastActive(a.getId()) - getLastActive(b.getId());
+                return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+            }
+        });
+    }
+
+    /**
+     * The ratio of the old generation in use after the last collection
+     * to its max. The current heap usage counts the garbage which is
+     * not collected yet, so normal allocation would cross the
+     * watermark. The old generation is the heap pool with a collection
+     * usage and the largest max; if there is none, the heap usage is
+     * taken.
+     */
+    private static double heapUsage() {
+        MemoryUsage old = null;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() != MemoryType.HEAP || !pool.isCollectionUsageThresholdSupported()) {
+                continue;
+            }
+            MemoryUsage usage = pool.getCollectionUsage();
+            if (usage != null && (old == null || limit(usage) > limit(old))) {
+                old = usage;
+            }
+        }
+        if (old == null) {
+            old = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        }
+        return (double) old.getUsed() / limit(old);
+    }
+
+    /**
+     * The max of a memory usage, its committed size if the max is not
+     * defined
+     */
+    private static long limit(MemoryUsage usage) {
+        return usage.getMax() > 0 ? usage.getMax() : Math.max(1, usage.getCommitted());
+    }
+}
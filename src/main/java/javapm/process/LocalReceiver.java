@@ -0,0 +1,134 @@
+package javapm.process;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+
+import javapm.checkpoint.CheckpointStore;
+import javapm.metrics.MigrationMetrics;
+import javapm.metrics.MigrationPhase;
+import javapm.metrics.jfr.FlightEvents;
+
+/**
+ * The receiver of one migration over the local transport.
+ * The sender may ask for admission first, like over TCP. Then it
+ * writes the number of stream files, then for each file
+ * the name the process uses and the absolute path on the sender. Then
+ * the object name follows: a <code>.ckpt</code> checkpoint log is
+ * handed over by path too, a serialized object is sent inline with
+ * its length. The receiver answers with a boolean, like
+ * <code>ProcessReceiver</code>.
+ *
+ * @author Pratyush Kumar(pratyush)
+ * @author Vasu Vardhan(vardhan)
+ * @see javapm.process.LocalTransport
+ * @see javapm.process.ProcessReceiver
+ */
+public class LocalReceiver implements Runnable {
+    /**
+     * The peer name of local migrations
+     */
+    static final String PEER = "local";
+
+    /**
+     * Channel communication with client
+     */
+    private SocketChannel channel;
+
+    /**
+     * The manager which receives the process
+     */
+    private ProcessManager manager;
+
+    /**
+     * Constructor with an accepted channel
+     *
+     * @param manager the receiving manager
+     * @param channel the accepted channel
+     */
+    LocalReceiver(ProcessManager manager, SocketChannel channel) {
+        this.manager = manager;
+        this.channel = channel;
+    }
+
+    /**
+     * Receive the files and the process, then start the process
+     */
+    public void run() {
+        FlightEvents.beginMigration();
+        MigratableProcess process = null;
+        long admitted = -1;
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    Channels.newInputStream(channel)));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    Channels.newOutputStream(channel)));
+            MigrationMetrics metrics = manager.getMetrics();
+            int files = in.readInt();
+            if (files == ProcessServer.ADMIT) {
+                admitted = manager.getAdmission().answer(in, out);
+                if (admitted < 0) {
+                    return;
+                }
+                files = in.readInt();
+            }
+            long start = System.nanoTime();
+            for (int i = 0; i < files; i++) {
+                String name = in.readUTF();
+                File source = new File(in.readUTF());
+                if (!LocalTransport.handOver(source, new File(name))) {
+                    metrics.addBytesReceived(source.length());
+                }
+            }
+            metrics.record(MigrationPhase.FILE_TRANSFER, System.nanoTime() - start);
+            String objectName = in.readUTF();
+            Object object;
+            if (objectName.endsWith(CheckpointStore.EXTENSION)) {
+                File log = new File(objectName);
+                LocalTransport.handOver(new File(in.readUTF()), log);
+                start = System.nanoTime();
+                try {
+                    object = ProcessReceiver.readProcess(objectName);
+                } finally {
+                    log.delete();
+                }
+            } else {
+                byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                metrics.addBytesReceived(bytes.length);
+                start = System.nanoTime();
+                ObjectInputStream objectIn = new ObjectInputStream(new ByteArrayInputStream(bytes));
+                try {
+                    object = objectIn.readObject();
+                } finally {
+                    objectIn.close();
+                }
+            }
+            metrics.record(MigrationPhase.REMOTE_DESERIALIZE, System.nanoTime() - start);
+            process = ProcessReceiver.accept(manager, object, out, PEER);
+            channel.close();
+        } catch (IOException e) {
+            System.out.println("processing local request error" + e);
+        } catch (ClassNotFoundException e) {
+            System.out.println("client sent unrecognized object" + e);
+        } finally {
+            if (admitted >= 0) {
+                manager.getAdmission().release(admitted);
+            }
+            FlightEvents.endMigration(FlightEvents.RECEIVE, process == null ? -1 : process.getId(),
+                    process == null ? null : process.getClass().getName(), PEER, false);
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // already closed
+            }
+        }
+    }
+}
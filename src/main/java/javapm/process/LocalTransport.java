@@ -0,0 +1,231 @@
+package javapm.process;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The same-host transport of migrations. Every node listens on a
+ * Unix domain socket <code>javapm-PORT.sock</code> in
+ * <code>javapm.local.dir</code>, next to its process server. A
+ * migration to a process server on this host goes over that socket:
+ * the stream files are handed over by path and hard linked (copied if
+ * the link fails, e.g. across file systems), and the process object is
+ * sent inline instead of through a temporary file.
+ * <p>
+ * A hard link shares the file with the sender, the receiver appends
+ * to the same file the sender wrote. Unix domain sockets need Java 16,
+ * the build targets Java 17.
+ *
+ * @author Vasu Vardhan(vardhan)
+ * @author Pratyush Kumar(pratyush)
+ * @see javapm.process.LocalReceiver
+ * @see javapm.process.UnixSockets
+ */
+public class LocalTransport implements Runnable {
+    /**
+     * Log handler
+     *
+     * @see <a href="http://apache.org/log4j/2.x/">Log4J</a>
+     */
+    private static Logger LOG = LogManager.getLogger(LocalTransport.class);
+
+    /**
+     * If the JVM supports Unix domain sockets
+     */
+    private static final boolean AVAILABLE = detect();
+
+    /**
+     * The directory of the socket files
+     */
+    private File directory;
+
+    /**
+     * The process server port of this node
+     */
+    private int port;
+
+    /**
+     * If set, migrations to this host use the local transport
+     */
+    private boolean enabled;
+
+    /**
+     * The host names already checked, mapped to if they are this host
+     */
+    private Map<String, Boolean> localHosts;
+
+    /**
+     * Server channel of this node
+     */
+    private ServerSocketChannel serverChannel;
+
+    /**
+     * The manager of this node
+     */
+    private ProcessManager manager;
+
+    /**
+     * Constructor of <code>LocalTransport</code>
+     *
+     * @param manager the manager of this node
+     * @param config  the config of this node
+     */
+    public LocalTransport(ProcessManager manager, ProcessManagerConfig config) {
+        this.manager = manager;
+        this.directory = config.getLocalDirectory();
+        this.port = config.getServerPort();
+        this.enabled = config.isLocalTransport() && AVAILABLE;
+        this.localHosts = new ConcurrentHashMap<String, Boolean>();
+    }
+
+    /**
+     * Check if the JVM supports Unix domain sockets
+     *
+     * @return if supported return <code>true</code>
+     */
+    public static boolean isAvailable() {
+        return AVAILABLE;
+    }
+
+    private static boolean detect() {
+        try {
+            Class.forName("java.net.UnixDomainSocketAddress");
+            return true;
+        } catch (ClassNotFoundException e) {
+            return false;
+        } catch (LinkageError e) {
+            return false;
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Get the socket file of the node with a process server port
+     *
+     * @param port the process server port
+     * @return the socket file
+     */
+    File socketFile(int port) {
+        return new File(directory, "javapm-" + port + ".sock");
+    }
+
+    /**
+     * Bind the socket of this node and accept migrations until the
+     * socket is closed. Each migration runs in its own
+     * <code>LocalReceiver</code> thread. If the socket can't be bound,
+     * this node keeps receiving over TCP only.
+     */
+    public void run() {
+        if (!enabled) {
+            return;
+        }
+        try {
+            directory.mkdirs();
+            serverChannel = UnixSockets.bind(socketFile(port));
+            socketFile(port).deleteOnExit();
+        } catch (IOException e) {
+            LOG.error("local socket bind error, using TCP only", e);
+            return;
+        }
+        while (serverChannel.isOpen()) {
+            try {
+                SocketChannel channel = serverChannel.accept();
+                new Thread(new LocalReceiver(manager, channel), "local-receiver").start();
+            } catch (IOException e) {
+                if (serverChannel.isOpen()) {
+                    LOG.error("local socket accept error", e);
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Connect the local socket of the process server at
+     * <code>host:port</code>, if it runs on this host.
+     *
+     * @param host the host of the receiver
+     * @param port the process server port of the receiver
+     * @return the connected channel, null if the receiver must be
+     * reached over TCP
+     */
+    SocketChannel connect(String host, int port) {
+        if (!enabled || !isLocalHost(host)) {
+            return null;
+        }
+        File file = socketFile(port);
+        if (!file.exists()) {
+            return null;
+        }
+        try {
+            return UnixSockets.connect(file);
+        } catch (IOException e) {
+            LOG.debug("local connect " + file + " failed, using TCP", e);
+            return null;
+        }
+    }
+
+    /**
+     * Check if a host name is an address of this host
+     *
+     * @param host the host name
+     * @return if it is this host return <code>true</code>
+     */
+    boolean isLocalHost(String host) {
+        Boolean local = localHosts.get(host);
+        if (local == null) {
+            try {
+                InetAddress address = InetAddress.getByName(host);
+                local = address.isLoopbackAddress() || address.isAnyLocalAddress() ||
+                        NetworkInterface.getByInetAddress(address) != null;
+            } catch (IOException e) {
+                local = false;
+            }
+            localHosts.put(host, local);
+        }
+        return local;
+    }
+
+    /**
+     * Make a file of the sender available under the name the receiver
+     * expects. Nothing is done if both names are the same file,
+     * otherwise the target is replaced by a hard link to the source,
+     * or by a copy if the link fails.
+     *
+     * @param source the file of the sender
+     * @param target the file of the receiver
+     * @return if the file was linked or already in place return
+     * <code>true</code>, if it was copied return <code>false</code>
+     * @throws IOException if the file can't be linked nor copied
+     */
+    static boolean handOver(File source, File target) throws IOException {
+        if (target.exists() && Files.isSameFile(source.toPath(), target.toPath())) {
+            return true;
+        }
+        Files.deleteIfExists(target.toPath());
+        try {
+            Files.createLink(target.toPath(), source.toPath());
+            return true;
+        } catch (IOException e) {
+            LOG.debug("link " + source + " failed, copying", e);
+        } catch (UnsupportedOperationException e) {
+            LOG.debug("link " + source + " not supported, copying", e);
+        }
+        Files.copy(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        return false;
+    }
+}
@@ -1,16 +1,22 @@
 package javapm.process; 
 import javapm.io.TransactionalFileInputStream;
 import javapm.io.TransactionalFileOutputStream;
+import javapm.io.TransactionalStream;
+import javapm.metrics.ProcessAccounting;
+import javapm.metrics.jfr.FlightEvents;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.Serializable;
 import java.lang.reflect.Field;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 /**
  * The abstract class of Migratable Process
@@ -46,12 +52,36 @@ public abstract class MigratableProcess implements Runnable, Serializable{
      */
     protected long id;
 
+    /**
+     * The key which places the process on the hash ring, e.g. a
+     * tenant ID, null to use the path of its input file
+     */
+    protected String placementKey;
+
+    /**
+     * The resource accounting of this process on the current node.
+     * It is <code>transient</code>, each node accounts its own share.
+     */
+    private transient ProcessAccounting accounting;
+
+    /**
+     * The manager running this process, set when it starts. It is
+     * <code>transient</code>, a received process belongs to the
+     * receiving manager.
+     */
+    transient ProcessManager manager;
+
+    /**
+     * The thread running this process, set when it starts
+     */
+    transient volatile Thread thread;
+
     /**
      * Constructor of MigratableProcess without any argument.
      */
     public MigratableProcess(){
         initProcess(new String[0]);
-        this.id = ProcessManager.getInstance().generateID();
+        this.id = ProcessManager.current().generateID();
     }
 
     /**
@@ -61,7 +91,7 @@ public abstract class MigratableProcess implements Runnable, Serializable{
      */
     public MigratableProcess(String[] arguments){
         initProcess(arguments);
-        this.id = ProcessManager.getInstance().generateID();
+        this.id = ProcessManager.current().generateID();
     }
 
     /**
@@ -94,7 +124,8 @@ public abstract class MigratableProcess implements Runnable, Serializable{
         }catch (IOException e){
             LOG.error(this.getClass().getSimpleName() + "[" + id + "]", e);
         }finally {
-            ProcessManager.getInstance().finishProcess(this);
+            getAccounting().detach();
+            (manager != null ? manager : ProcessManager.current()).finishProcess(this);
             suspending = false;
         }
     }
@@ -108,11 +139,68 @@ public abstract class MigratableProcess implements Runnable, Serializable{
      *                              interrupted
      */
     public void suspend() throws InterruptedException {
+        Object event = requestSuspend();
+        awaitSuspended(event);
+    }
+
+    /**
+     * Set the <code>suspending</code> flag without waiting, so many
+     * processes can be suspended at once.
+     *
+     * @return the handle of the suspend event, for
+     *         <code>awaitSuspended(Object)</code>
+     */
+    public Object requestSuspend() {
+        Object event = FlightEvents.beginSuspend();
+        getAccounting().suspending();
         suspending = true;
-        while(suspending)
+        releaseOutputs(true);
+        return event;
+    }
+
+    /**
+     * Release or hold the forward limit of the output streams, so a
+     * write which waits for an unreachable home node doesn't keep the
+     * process from suspending
+     *
+     * @param released if the writes take their bytes over the limit
+     * @see javapm.io.TransactionalFileOutputStream#setReleased(boolean)
+     */
+    private void releaseOutputs(boolean released) {
+        for (TransactionalStream stream : getTransactionalStreams()) {
+            if (stream instanceof TransactionalFileOutputStream) {
+                ((TransactionalFileOutputStream) stream).setReleased(released);
+            }
+        }
+    }
+
+    /**
+     * Wait the process breaks from its idle loop after
+     * <code>requestSuspend()</code>. The wait also ends when the
+     * process is no longer running, e.g. it finished before the flag
+     * was set; then the flag stays set.
+     *
+     * @param event the handle of <code>requestSuspend()</code>
+     * @throws InterruptedException if the waiting thread is interrupted
+     */
+    public void awaitSuspended(Object event) throws InterruptedException {
+        while(suspending && isRunning())
         {
         	Thread.sleep(10);
         }
+        FlightEvents.endSuspend(event, id, getClass().getName());
+    }
+
+    /**
+     * Check if the process runs: its thread is alive and it is one of
+     * the <code>processes</code> of its manager
+     *
+     * @return if it runs return <code>true</code>
+     */
+    boolean isRunning() {
+        Thread running = thread;
+        return running != null && running.isAlive() &&
+                (manager == null || manager.processes.contains(this));
     }
 
     /**
@@ -122,62 +210,146 @@ public abstract class MigratableProcess implements Runnable, Serializable{
      */
     public void resume(){
     	suspending = false;
+        releaseOutputs(false);
+    	FlightEvents.processResumed(id, getClass().getName());
     }
     
     
     /**
-     * Using reflection to set <code>migrated</code> flag of
-     *  <code>TransactionalFileInputStream</code>,
-     * <code>TransactionalFileOutputStream</code>, 
-     * and generate a new process ID after the migration.
+     * Set the <code>migrated</code> flag of all transactional streams
+     * after the migration. The process ID is unique in the cluster,
+     * so it is kept, and the process can be tracked across nodes.
      *
      * @see javapm.process.ProcessManager#generateID()
+     * @see javapm.process.MigratableProcess#reattach()
+     */
+    public void migrated(){
+        Object event = FlightEvents.beginMigrated();
+        reattach();
+        FlightEvents.endMigrated(event, id, getClass().getName());
+    }
+
+    /**
+     * Set the <code>migrated</code> flag of all transactional streams,
+     * so they reopen their files and seek to the saved offset. The
+     * process ID is kept, this is used when a process is loaded back
+     * on the same node, without a migrated event.
+     *
      * @see javapm.io.TransactionalFileInputStream#setMigrated(boolean)
      * @see javapm.io.TransactionalFileOutputStream#setMigrated(boolean)
      */
-    public void migrated(){
-        this.id = ProcessManager.getInstance().generateID();
-
-        Field f[] = this.getClass().getDeclaredFields();
-        for (int i = 0; i < f.length; i++) {
-        	if(f[i].getType().getSimpleName().equals("TransactionalFileInputStream"))
-        	{
-        		f[i].setAccessible(true);
-        		TransactionalFileInputStream in = null;
-        		try {
-					in = (TransactionalFileInputStream) f[i].get(this);
-				} catch (IllegalArgumentException e) {
-
-					e.printStackTrace();
-				} catch (IllegalAccessException e) {
-
-					e.printStackTrace();
-				}
-        		if(in != null) {
-        			in.setMigrated(true);
-        		}
-
-        	}
-        	if(f[i].getType().getSimpleName().equals("TransactionalFileOutputStream"))
-        	{
-        		f[i].setAccessible(true);
-        		TransactionalFileOutputStream out = null;
-        		try {
-					out = (TransactionalFileOutputStream) f[i].get(this);
-				} catch (IllegalArgumentException e) {
-					e.printStackTrace();
-				} catch (IllegalAccessException e) {
-					e.printStackTrace();
-				}
-        		if(out != null)
-        		{
-	        		out.setMigrated(true);
-        		}
-        	}
-         }
+    public void reattach(){
+        for (TransactionalStream stream : getTransactionalStreams()) {
+            stream.setMigrated(true);
+        }
+    }
+
+    /**
+     * Using reflection to find all transactional streams held by
+     * the fields of the process, including the fields declared in
+     * super classes. The elements of an array of streams count too,
+     * a process which changes the set of its streams replaces the
+     * array, so another thread never sees it half done.
+     *
+     * @return the transactional streams, in field order
+     * @see javapm.io.TransactionalStream
+     */
+    public List<TransactionalStream> getTransactionalStreams(){
+        List<TransactionalStream> streams = new ArrayList<TransactionalStream>();
+        for (Class<?> c = this.getClass(); c != MigratableProcess.class; c = c.getSuperclass()) {
+            Field f[] = c.getDeclaredFields();
+            for (int i = 0; i < f.length; i++) {
+                Class<?> type = f[i].getType();
+                boolean array = type.isArray() &&
+                        TransactionalStream.class.isAssignableFrom(type.getComponentType());
+                if (!array && !TransactionalStream.class.isAssignableFrom(type))
+                    continue;
+                f[i].setAccessible(true);
+                try {
+                    Object value = f[i].get(this);
+                    if (array && value != null) {
+                        for (TransactionalStream stream : (TransactionalStream[]) value) {
+                            if (stream != null) {
+                                streams.add(stream);
+                            }
+                        }
+                    } else if (value != null) {
+                        streams.add((TransactionalStream) value);
+                    }
+                } catch (IllegalAccessException e) {
+                    LOG.error(this.getClass().getSimpleName() + "[" + id + "]", e);
+                }
+            }
+        }
+        return streams;
+    }
+
+    /**
+     * Estimate the bytes a migration of the process sends: the
+     * serialized object and the files of its streams
+     *
+     * @return the bytes
+     */
+    public long getTransferSize(){
+        long bytes = Math.max(0, getAccounting().getSerializedSize());
+        Set<File> files = new HashSet<File>();
+        for (TransactionalStream stream : getTransactionalStreams()) {
+            if (files.add(stream.getFile())) {
+                bytes += stream.getFile().length();
+            }
+        }
+        return bytes;
     }
     
 
+    /**
+     * Check if the process waits for its input to grow, like
+     * <code>tail -f</code>. Its offsets don't move while it waits, but
+     * it is not idle, so it is not hibernated.
+     *
+     * @return if it waits return <code>true</code>
+     * @see javapm.process.HibernationManager
+     */
+    public boolean isWaitingForInput(){
+        return false;
+    }
+
+    /**
+     * Get the key which places the process on the hash ring.
+     * It is the key given to <code>run -k</code>, otherwise the path
+     * of the first input file, so the process runs near its data.
+     *
+     * @return the key, or null if the process has neither
+     * @see javapm.cluster.RingPlacement
+     */
+    public String getPlacementKey(){
+        if (placementKey != null) {
+            return placementKey;
+        }
+        for (TransactionalStream stream : getTransactionalStreams()) {
+            if (stream instanceof TransactionalFileInputStream) {
+                return stream.getFile().getPath();
+            }
+        }
+        return null;
+    }
+
+    public void setPlacementKey(String placementKey){
+        this.placementKey = placementKey;
+    }
+
+    /**
+     * Get the resource accounting of this process on the current node
+     *
+     * @return the accounting object
+     */
+    public synchronized ProcessAccounting getAccounting(){
+        if (accounting == null) {
+            accounting = new ProcessAccounting();
+        }
+        return accounting;
+    }
+
     /**
      * Get the process id
      *
@@ -0,0 +1,161 @@
+package javapm.process;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+
+/**
+ * The frame format of a pipelined migration.
+ * A frame is <code>(file index, sequence, position, length, crc,
+ * bytes)</code>. The CRC covers the header and the bytes, it is
+ * CRC32C if the JVM has it (Java 9), CRC32 otherwise; the sender
+ * names the algorithm at the start, so both sides use the same.
+ * After the last frame the sender sends the frame count and a
+ * SHA-256 digest of the process state and of every frame header and
+ * CRC, in sequence order, so a lost, duplicated or misplaced frame is
+ * found without reading the files again.
+ *
+ * @author Vasu Vardhan(vardhan)
+ * @author Pratyush Kumar(pratyush)
+ * @see javapm.process.PipelinedReceiver
+ */
+final class MigrationFrames {
+    /**
+     * The file index which ends a round of frames
+     */
+    static final int END = -1;
+
+    /**
+     * The file index and sequence of the process state, when it is
+     * sent again
+     */
+    static final int OBJECT = -2;
+
+    /**
+     * The number of retransmit rounds before the migration fails
+     */
+    static final int MAX_ROUNDS = 3;
+
+    /**
+     * The length of the transfer digest
+     */
+    static final int DIGEST_LENGTH = 32;
+
+    /**
+     * The checksum algorithm of this JVM
+     */
+    static final String ALGORITHM = detect();
+
+    private MigrationFrames() {
+    }
+
+    private static String detect() {
+        try {
+            Class.forName("java.util.zip.CRC32C");
+            return "CRC32C";
+        } catch (ClassNotFoundException e) {
+            return "CRC32";
+        }
+    }
+
+    /**
+     * Create a checksum
+     *
+     * @param algorithm <code>CRC32C</code> or <code>CRC32</code>
+     * @return the checksum
+     * @throws IOException if this JVM doesn't have the algorithm
+     */
+    static Checksum checksum(String algorithm) throws IOException {
+        if ("CRC32".equals(algorithm)) {
+            return new CRC32();
+        }
+        if (!"CRC32C".equals(algorithm)) {
+            throw new IOException("unknown checksum " + algorithm);
+        }
+        try {
+            return (Checksum) Class.forName("java.util.zip.CRC32C").getDeclaredConstructor().newInstance();
+        } catch (ClassNotFoundException e) {
+            throw new IOException("CRC32C needs Java 9");
+        } catch (ReflectiveOperationException e) {
+            throw new IOException("CRC32C not available", e);
+        }
+    }
+
+    /**
+     * Compute the CRC of a frame
+     *
+     * @param checksum the checksum, it is reset
+     * @param index    the file index
+     * @param seq      the frame sequence
+     * @param position the position in the file
+     * @param buffer   the bytes
+     * @param length   the number of bytes
+     * @return the CRC
+     */
+    static int crc(Checksum checksum, int index, int seq, long position, byte[] buffer,
+                   int length) {
+        ByteBuffer header = ByteBuffer.allocate(20);
+        header.putInt(index).putInt(seq).putLong(position).putInt(length);
+        checksum.reset();
+        checksum.update(header.array(), 0, 20);
+        checksum.update(buffer, 0, length);
+        return (int) checksum.getValue();
+    }
+
+    /**
+     * Write a frame
+     *
+     * @param out      the stream to the receiver
+     * @param checksum the checksum
+     * @param index    the file index
+     * @param seq      the frame sequence
+     * @param position the position in the file
+     * @param buffer   the bytes
+     * @param length   the number of bytes
+     * @return the CRC of the frame
+     * @throws IOException if any IO error occurs
+     */
+    static int writeFrame(DataOutputStream out, Checksum checksum, int index, int seq,
+                          long position, byte[] buffer, int length) throws IOException {
+        int crc = crc(checksum, index, seq, position, buffer, length);
+        out.writeInt(index);
+        out.writeInt(seq);
+        out.writeLong(position);
+        out.writeInt(length);
+        out.writeInt(crc);
+        out.write(buffer, 0, length);
+        return crc;
+    }
+
+    /**
+     * Compute the digest of a transfer
+     *
+     * @param object the process state
+     * @param frames the frames in sequence order, each
+     *               <code>{index, position, length, crc}</code>
+     * @return the digest
+     */
+    static byte[] digest(byte[] object, List<long[]> frames) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        digest.update(object);
+        ByteBuffer record = ByteBuffer.allocate(32);
+        for (long[] frame : frames) {
+            record.clear();
+            for (long value : frame) {
+                record.putLong(value);
+            }
+            digest.update(record.array(), 0, record.position());
+        }
+        return digest.digest();
+    }
+}
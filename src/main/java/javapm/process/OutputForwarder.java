@@ -0,0 +1,385 @@
+package javapm.process;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javapm.io.TrafficClass;
+import javapm.io.TransactionalFileOutputStream;
+import javapm.io.TransactionalStream;
+
+/**
+ * The output forwarding of a process manager. With
+ * <code>javapm.output.forwarding</code> a migration leaves the output
+ * files where they are: the node a process leaves becomes the home
+ * of its output streams, and the streams keep what the process writes
+ * until the home acknowledges it. Each round sends the unacknowledged
+ * bytes of the resident processes to their home nodes, one batch per
+ * home, and drops the bytes up to the acknowledged offsets.
+ * <p>
+ * A batch writes the bytes at their offsets, so a batch sent twice,
+ * e.g. by the node a process just left, writes the same bytes again.
+ * When a process comes back to the home of a stream, the stream
+ * writes the rest itself and is local again. The bytes of a process
+ * which finished are still sent until they are acknowledged.
+ *
+ * @author Vasu Vardhan(vardhan)
+ * @author Pratyush Kumar(pratyush)
+ * @see javapm.io.TransactionalFileOutputStream#forward(String)
+ * @see javapm.process.ProcessServer#FORWARD
+ */
+public class OutputForwarder implements Runnable {
+    /**
+     * Log handler
+     *
+     * @see <a href="http://apache.org/log4j/2.x/">Log4J</a>
+     */
+    private static Logger LOG = LogManager.getLogger(OutputForwarder.class);
+
+    /**
+     * The owner of resident processes
+     */
+    private ProcessManager manager;
+
+    /**
+     * If migrations forward the output streams
+     */
+    private boolean enabled;
+
+    /**
+     * Interval between two rounds
+     */
+    private long intervalMillis;
+
+    /**
+     * The largest number of unacknowledged bytes of a stream forwarded
+     * by this manager
+     */
+    private long limit;
+
+    /**
+     * Timeout of the batches, for the connection and each read
+     */
+    private int timeoutMillis;
+
+    /**
+     * The number of batches and bytes sent
+     */
+    private long batches;
+    private long sentBytes;
+
+    /**
+     * The bytes written for other nodes
+     */
+    private long receivedBytes;
+
+    /**
+     * The forwarded streams of finished processes with bytes to send
+     */
+    private List<TransactionalFileOutputStream> draining;
+
+    /**
+     * Constructor of <code>OutputForwarder</code>
+     *
+     * @param manager the process manager
+     * @param config  the settings of the manager
+     */
+    public OutputForwarder(ProcessManager manager, ProcessManagerConfig config) {
+        this.manager = manager;
+        this.enabled = config.isOutputForwarding();
+        this.intervalMillis = config.getOutputForwardMillis();
+        this.timeoutMillis = (int) Math.max(config.getClusterFanoutTimeoutMillis(), 10000);
+        this.draining = new ArrayList<TransactionalFileOutputStream>();
+        this.limit = config.getOutputForwardBuffer();
+    }
+
+    /**
+     * The forwarding loop
+     */
+    public void run() {
+        while (true) {
+            try {
+                Thread.sleep(intervalMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                forward();
+            } catch (RuntimeException e) {
+                LOG.error("forward error", e);
+            }
+        }
+    }
+
+    /**
+     * Check if a stream is an output stream whose file is on a home
+     * node, a migration doesn't send its file
+     *
+     * @param stream the stream
+     * @return if it is forwarded return <code>true</code>
+     */
+    static boolean isForwarded(TransactionalStream stream) {
+        return stream instanceof TransactionalFileOutputStream &&
+                ((TransactionalFileOutputStream) stream).getHome() != null;
+    }
+
+    /**
+     * Forward the local output streams of a suspended process which
+     * leaves this node, this node becomes their home. Scratch streams
+     * stay with the process, pinned streams are forwarded even if
+     * forwarding is off.
+     *
+     * @param process the suspended process
+     * @throws IOException if a stream can't be closed
+     */
+    void detach(MigratableProcess process) throws IOException {
+        for (TransactionalStream stream : process.getTransactionalStreams()) {
+            if (!(stream instanceof TransactionalFileOutputStream) || isForwarded(stream)) {
+                continue;
+            }
+            TransactionalFileOutputStream output = (TransactionalFileOutputStream) stream;
+            if (!output.isScratch() && (enabled || output.isPinned())) {
+                ((TransactionalFileOutputStream) stream).forward(manager.getNodeName(), limit);
+            }
+        }
+    }
+
+    /**
+     * Get the largest number of unacknowledged bytes of a stream
+     * forwarded by this manager
+     *
+     * @return the bytes, 0 for no limit
+     */
+    long getLimit() {
+        return limit;
+    }
+
+    /**
+     * Make the streams of a process which starts on their home node
+     * local again, the other forwarded streams take the limit of this
+     * manager
+     *
+     * @param process the process, before it starts
+     */
+    void attach(MigratableProcess process) {
+        for (TransactionalStream stream : process.getTransactionalStreams()) {
+            if (isForwarded(stream) && !manager.getNodeName().equals(
+                    ((TransactionalFileOutputStream) stream).getHome())) {
+                ((TransactionalFileOutputStream) stream).setForwardLimit(limit);
+            } else if (isForwarded(stream)) {
+                try {
+                    ((TransactionalFileOutputStream) stream).reclaim();
+                } catch (IOException e) {
+                    LOG.error(process.getClass().getSimpleName() + "[" + process.getId() +
+                            "] can't write " + stream.getFile(), e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Keep the forwarded streams of a process which finished here, so
+     * their last bytes are still sent
+     *
+     * @param process the finished process
+     */
+    void finished(MigratableProcess process) {
+        for (TransactionalStream stream : process.getTransactionalStreams()) {
+            if (isForwarded(stream) && stream.getOffset() >
+                    ((TransactionalFileOutputStream) stream).getAcked()) {
+                synchronized (this) {
+                    draining.add((TransactionalFileOutputStream) stream);
+                }
+            }
+        }
+    }
+
+    /**
+     * Drop the unacknowledged bytes of the forwarded streams of a
+     * process which is not kept here, e.g. a migration which failed
+     * after the process was started
+     *
+     * @param process the process
+     */
+    void discard(MigratableProcess process) {
+        for (TransactionalStream stream : process.getTransactionalStreams()) {
+            if (isForwarded(stream)) {
+                synchronized (this) {
+                    draining.remove(stream);
+                }
+                ((TransactionalFileOutputStream) stream).discard();
+            }
+        }
+    }
+
+    /**
+     * One round: send the unacknowledged bytes of the resident
+     * processes, and of the finished ones, to their home nodes
+     *
+     * @return the number of bytes acknowledged
+     */
+    public long forward() {
+        // a stream is listed once, even if a job lists the streams of its shards
+        Set<TransactionalStream> all = new LinkedHashSet<TransactionalStream>();
+        for (MigratableProcess process : manager.processes) {
+            all.addAll(process.getTransactionalStreams());
+        }
+        synchronized (this) {
+            all.addAll(draining);
+        }
+        Map<String, List<TransactionalFileOutputStream>> byHome =
+                new LinkedHashMap<String, List<TransactionalFileOutputStream>>();
+        for (TransactionalStream stream : all) {
+            if (!isForwarded(stream) || stream.getOffset() ==
+                    ((TransactionalFileOutputStream) stream).getAcked()) {
+                continue;
+            }
+            String home = ((TransactionalFileOutputStream) stream).getHome();
+            List<TransactionalFileOutputStream> streams = byHome.get(home);
+            if (streams == null) {
+                streams = new ArrayList<TransactionalFileOutputStream>();
+                byHome.put(home, streams);
+            }
+            streams.add((TransactionalFileOutputStream) stream);
+        }
+        long acked = 0;
+        for (Map.Entry<String, List<TransactionalFileOutputStream>> entry : byHome.entrySet()) {
+            try {
+                acked += send(entry.getKey(), entry.getValue());
+            } catch (IOException e) {
+                LOG.warn("forward to " + entry.getKey() + " failed: " + e);
+            }
+        }
+        synchronized (this) {
+            for (int i = draining.size() - 1; i >= 0; i--) {
+                if (draining.get(i).getOffset() == draining.get(i).getAcked()) {
+                    draining.remove(i);
+                }
+            }
+        }
+        return acked;
+    }
+
+    /**
+     * Send one batch to a home node
+     *
+     * @param home    the home node <code>HOST:PORT</code>
+     * @param streams its streams with unacknowledged bytes
+     * @return the number of bytes acknowledged
+     * @throws IOException if the batch fails
+     */
+    private long send(String home, List<TransactionalFileOutputStream> streams)
+            throws IOException {
+        int split = home.lastIndexOf(':');
+        ShapedSocket socket = new ShapedSocket(home.substring(0, split),
+                Integer.parseInt(home.substring(split + 1)), manager.getShaper(),
+                TrafficClass.NORMAL);
+        long[] from = new long[streams.size()];
+        long total = 0;
+        long acked = 0;
+        try {
+            socket.setSoTimeout(timeoutMillis);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    socket.getOutputStream()));
+            out.writeInt(ProcessServer.FORWARD);
+            out.writeInt(streams.size());
+            for (int i = 0; i < from.length; i++) {
+                TransactionalFileOutputStream stream = streams.get(i);
+                byte[] bytes;
+                synchronized (stream) {
+                    from[i] = stream.getAcked();
+                    bytes = stream.getPending();
+                }
+                out.writeUTF(stream.getFile().getPath());
+                out.writeLong(from[i]);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+                total += bytes.length;
+            }
+            out.flush();
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            for (int i = 0; i < from.length; i++) {
+                long upTo = in.readLong();
+                if (upTo > from[i]) {
+                    streams.get(i).ack(upTo);
+                    acked += upTo - from[i];
+                }
+            }
+        } finally {
+            socket.close();
+        }
+        synchronized (this) {
+            batches++;
+            sentBytes += total;
+        }
+        return acked;
+    }
+
+    /**
+     * Receive a batch, after the <code>FORWARD</code> opcode, and
+     * answer the offset written up to for each stream, -1 if its file
+     * can't be written
+     *
+     * @param socket the connected socket
+     * @param peer   the sender
+     * @throws IOException if the connection fails
+     */
+    void receive(Socket socket, String peer) throws IOException {
+        DataInputStream in = new DataInputStream(manager.getShaper().input(
+                socket.getInputStream(), peer, TrafficClass.NORMAL));
+        int count = in.readInt();
+        long[] upTo = new long[count];
+        long total = 0;
+        for (int i = 0; i < count; i++) {
+            File file = new File(in.readUTF());
+            long from = in.readLong();
+            byte[] bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+            try {
+                RandomAccessFile target = new RandomAccessFile(file, "rw");
+                try {
+                    target.seek(from);
+                    target.write(bytes);
+                } finally {
+                    target.close();
+                }
+                upTo[i] = from + bytes.length;
+                total += bytes.length;
+            } catch (IOException e) {
+                LOG.error("can't write forwarded " + file + " from " + peer, e);
+                upTo[i] = -1;
+            }
+        }
+        DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+        for (long offset : upTo) {
+            out.writeLong(offset);
+        }
+        out.flush();
+        synchronized (this) {
+            receivedBytes += total;
+        }
+    }
+
+    /**
+     * The printable state, used by the <code>stats</code> command.
+     *
+     * @return the printable information
+     */
+    public synchronized String toString() {
+        return "forwarding: " + (enabled ? "on" : "off") + ", " + batches + " batches, " +
+                sentBytes + " bytes sent, " + receivedBytes + " bytes written for other nodes";
+    }
+}
@@ -0,0 +1,489 @@
+package javapm.process;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.RandomAccessFile;
+import java.net.Socket;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.zip.Checksum;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javapm.checkpoint.CheckpointStore;
+import javapm.io.StagedFileRegistry;
+import javapm.io.TrafficClass;
+import javapm.io.TransactionalFileInputStream;
+import javapm.io.TransactionalStream;
+import javapm.metrics.MigrationMetrics;
+import javapm.metrics.MigrationPhase;
+import javapm.metrics.jfr.FlightEvents;
+
+/**
+ * The receiver of a pipelined migration. The sender writes the
+ * <code>PIPELINED</code> opcode, then
+ * <ol>
+ * <li>the checksum algorithm and the <code>TrafficClass</code>, the
+ * rest is received through the traffic shaper,</li>
+ * <li>the object name and the process state with its CRC,</li>
+ * <li>the number of stream files, and the name and length of each.
+ * The receiver answers with the length and digest of its pre-staged
+ * copy of each file, the sender with the number of bytes of each copy
+ * it keeps,</li>
+ * <li>frames of <code>MigrationFrames</code>, ended by the index -1.
+ * The region an input stream reads next is sent first,</li>
+ * <li>the number of frames and the transfer digest.</li>
+ * </ol>
+ * A frame with a bad CRC is not written. The receiver answers the
+ * digest with the sequences of the bad or missing frames, the sender
+ * sends them again, up to <code>MAX_ROUNDS</code> times; an empty
+ * list ends the retransmission. Then the digest is checked.
+ * The frames are written to the files by a second thread, while this
+ * thread deserializes the process, reattaches its streams and starts
+ * it as soon as the output files are complete and every input stream
+ * has the bytes at its offset. The input streams wait for the ranges
+ * which haven't arrived yet. When all frames are in, the receiver
+ * answers with a boolean like <code>ProcessReceiver</code>. If the
+ * frames fail after the process started, the process is dropped and
+ * its files stay failed, so nothing reads their missing regions.
+ *
+ * @author Pratyush Kumar(pratyush)
+ * @author Vasu Vardhan(vardhan)
+ * @see javapm.process.ProcessServer#PIPELINED
+ * @see javapm.io.StagedFileRegistry
+ */
+public class PipelinedReceiver {
+    /**
+     * Log handler
+     *
+     * @see <a href="http://apache.org/log4j/2.x/">Log4J</a>
+     */
+    private static Logger LOG = LogManager.getLogger(PipelinedReceiver.class);
+
+    /**
+     * The longest frame accepted, a longer one means the stream is
+     * out of step
+     */
+    private static final int MAX_FRAME = 16 * 1024 * 1024;
+
+    /**
+     * The manager which receives the process
+     */
+    private ProcessManager manager;
+
+    /**
+     * Socket communication with client
+     */
+    private Socket socket;
+
+    /**
+     * The staged stream files, by file index
+     */
+    private StagedFileRegistry.StagedFile[] staged;
+
+    /**
+     * The error of the frame thread, null if none
+     */
+    private volatile IOException frameError;
+
+    /**
+     * The checksum of the sender
+     */
+    private Checksum checksum;
+
+    /**
+     * The received frames with a good CRC, by sequence
+     */
+    private Map<Integer, long[]> frames;
+
+    /**
+     * The process state, null until it arrived with a good CRC
+     */
+    private volatile byte[] object;
+
+    /**
+     * Released when the process state arrived, or the transfer failed
+     */
+    private CountDownLatch objectArrived;
+
+    /**
+     * The frame buffer, it grows as needed
+     */
+    private byte[] buffer = new byte[0];
+
+    /**
+     * Constructor of <code>PipelinedReceiver</code>
+     *
+     * @param manager the receiving manager
+     * @param socket  the connected socket, after the opcode
+     */
+    PipelinedReceiver(ProcessManager manager, Socket socket) {
+        this.manager = manager;
+        this.socket = socket;
+    }
+
+    /**
+     * Receive and start the process
+     *
+     * @param peer the sender
+     * @return the started process, null if the migration failed
+     * @throws IOException if the connection fails before the files
+     *                     are staged
+     */
+    MigratableProcess receive(String peer) throws IOException {
+        DataInputStream header = new DataInputStream(socket.getInputStream());
+        checksum = MigrationFrames.checksum(header.readUTF());
+        TrafficClass traffic = TrafficClass.getInstance(header.readUTF());
+        final DataInputStream in = new DataInputStream(
+                manager.getShaper().input(socket.getInputStream(), peer, traffic));
+        final DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+        MigrationMetrics metrics = manager.getMetrics();
+        frames = new HashMap<Integer, long[]>();
+        objectArrived = new CountDownLatch(1);
+        String objectName = in.readUTF();
+        byte[] block = new byte[in.readInt()];
+        int crc = in.readInt();
+        in.readFully(block);
+        metrics.addBytesReceived(block.length);
+        receivedObject(block, crc);
+        int files = in.readInt();
+        staged = new StagedFileRegistry.StagedFile[files];
+        final RandomAccessFile[] handlers = new RandomAccessFile[files];
+        File[] names = new File[files];
+        long[] lengths = new long[files];
+        for (int i = 0; i < files; i++) {
+            names[i] = new File(in.readUTF());
+            lengths[i] = in.readLong();
+            PreStager.Fingerprint copy = manager.getPreStager().copy(names[i]);
+            if (copy != null && copy.length > 0 && copy.length <= lengths[i]) {
+                out.writeLong(copy.length);
+                out.write(copy.digest);
+            } else {
+                out.writeLong(0);
+            }
+        }
+        out.flush();
+        try {
+            for (int i = 0; i < files; i++) {
+                handlers[i] = new RandomAccessFile(names[i], "rw");
+                if (handlers[i].length() != lengths[i]) {
+                    handlers[i].setLength(lengths[i]);
+                }
+                staged[i] = StagedFileRegistry.stage(names[i], lengths[i]);
+            }
+            for (int i = 0; i < files; i++) {
+                long base = in.readLong();
+                if (base < 0 || base > lengths[i]) {
+                    throw new IOException("bad pre-staged length " + base);
+                }
+                if (base > 0) {
+                    staged[i].received(0, base);
+                }
+            }
+        } catch (IOException e) {
+            fail(handlers);
+            throw e;
+        }
+        Thread frames = new Thread(new Runnable() {
+            public void run() {
+                receiveFrames(in, out, handlers);
+            }
+        }, "receive-frames");
+        frames.start();
+
+        MigratableProcess process = null;
+        boolean started = false;
+        try {
+            objectArrived.await();
+            if (object == null) {
+                throw new IOException("process state lost: " + frameError);
+            }
+            long start = System.nanoTime();
+            Object received = readObject(objectName, object);
+            manager.getMetrics().record(MigrationPhase.REMOTE_DESERIALIZE,
+                    System.nanoTime() - start);
+            if (received instanceof MigratableProcess) {
+                process = (MigratableProcess) received;
+                process.getAccounting().setSerializedSize(object.length);
+                start = System.nanoTime();
+                process.migrated();
+                metrics.record(MigrationPhase.REATTACH, System.nanoTime() - start);
+                awaitRegions(process);
+                start = System.nanoTime();
+                manager.startProcess(process);
+                started = true;
+                metrics.record(MigrationPhase.RESUME, System.nanoTime() - start);
+                System.out.println("Received " + process.toString());
+            }
+        } catch (IOException e) {
+            System.out.println("processing client request error" + e);
+        } catch (ClassNotFoundException e) {
+            System.out.println("client sent unrecognized object" + e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            frames.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            frameError = new IOException("interrupted");
+        }
+        boolean status = started && frameError == null;
+        if (started && !status) {
+            drop(process);
+        }
+        out.writeBoolean(status);
+        out.close();
+        if (!status) {
+            return null;
+        }
+        metrics.receive();
+        manager.getDirectory().record(process.getId(), manager.getNodeName(), process.toString());
+        FlightEvents.endMigration(FlightEvents.RECEIVE, process.getId(),
+                process.getClass().getName(), peer, true);
+        return process;
+    }
+
+    /**
+     * Write the frames to the stream files, ask for the bad frames
+     * again and check the digest
+     *
+     * @param in       the stream from the sender
+     * @param out      the stream to the sender
+     * @param handlers the open stream files
+     */
+    private void receiveFrames(DataInputStream in, DataOutputStream out,
+                               RandomAccessFile[] handlers) {
+        long start = System.nanoTime();
+        Object[] events = new Object[handlers.length];
+        for (int i = 0; i < events.length; i++) {
+            events[i] = FlightEvents.beginFileTransfer();
+        }
+        long bytes = 0;
+        try {
+            bytes += receiveRound(in, handlers);
+            int count = in.readInt();
+            byte[] digest = new byte[MigrationFrames.DIGEST_LENGTH];
+            in.readFully(digest);
+            for (int round = 0; ; round++) {
+                List<Integer> bad = new ArrayList<Integer>();
+                if (object == null) {
+                    bad.add(MigrationFrames.OBJECT);
+                }
+                for (int seq = 0; seq < count; seq++) {
+                    if (!frames.containsKey(seq)) {
+                        bad.add(seq);
+                    }
+                }
+                if (bad.isEmpty() || round == MigrationFrames.MAX_ROUNDS) {
+                    out.writeInt(0);
+                    out.flush();
+                    if (!bad.isEmpty()) {
+                        throw new IOException(bad.size() + " frames still bad after " +
+                                round + " retransmits");
+                    }
+                    break;
+                }
+                manager.getMetrics().retransmit(bad.size());
+                out.writeInt(bad.size());
+                for (int seq : bad) {
+                    out.writeInt(seq);
+                }
+                out.flush();
+                bytes += receiveRound(in, handlers);
+            }
+            List<long[]> ordered = new ArrayList<long[]>();
+            for (int seq = 0; seq < count; seq++) {
+                ordered.add(frames.get(seq));
+            }
+            if (!Arrays.equals(digest, MigrationFrames.digest(object, ordered))) {
+                throw new IOException("transfer digest mismatch");
+            }
+            for (int i = 0; i < handlers.length; i++) {
+                handlers[i].close();
+                staged[i].complete();
+                FlightEvents.endFileTransfer(events[i], FlightEvents.RECEIVE,
+                        staged[i].getFile().getPath(), staged[i].getLength());
+            }
+        } catch (IOException e) {
+            frameError = e;
+            fail(handlers);
+        } finally {
+            objectArrived.countDown();
+        }
+        manager.getMetrics().addBytesReceived(bytes);
+        manager.getMetrics().record(MigrationPhase.FILE_TRANSFER, System.nanoTime() - start);
+    }
+
+    /**
+     * Receive frames until the end of a round. Frames with a good CRC
+     * are written and reported to the <code>StagedFileRegistry</code>,
+     * the others are dropped.
+     *
+     * @param in       the stream from the sender
+     * @param handlers the open stream files
+     * @return the number of bytes received
+     * @throws IOException if the stream is broken
+     */
+    private long receiveRound(DataInputStream in, RandomAccessFile[] handlers)
+            throws IOException {
+        long bytes = 0;
+        while (true) {
+            int index = in.readInt();
+            if (index == MigrationFrames.END) {
+                return bytes;
+            }
+            int seq = in.readInt();
+            long position = in.readLong();
+            int length = in.readInt();
+            int crc = in.readInt();
+            if (length < 0 || length > MAX_FRAME) {
+                throw new IOException("bad frame length " + length);
+            }
+            if (buffer.length < length) {
+                buffer = new byte[length];
+            }
+            in.readFully(buffer, 0, length);
+            bytes += length;
+            if (index == MigrationFrames.OBJECT) {
+                receivedObject(Arrays.copyOf(buffer, length), crc);
+                continue;
+            }
+            if (MigrationFrames.crc(checksum, index, seq, position, buffer, length) != crc ||
+                    index < 0 || index >= handlers.length || position < 0 ||
+                    position + length > staged[index].getLength()) {
+                LOG.warn("bad frame " + seq + " of file " + index + " at " + position);
+                continue;
+            }
+            handlers[index].seek(position);
+            handlers[index].write(buffer, 0, length);
+            staged[index].received(position, position + length);
+            frames.put(seq, new long[]{index, position, length, crc});
+        }
+    }
+
+    /**
+     * Keep the process state if its CRC is good
+     *
+     * @param block the process state
+     * @param crc   the CRC of the sender
+     */
+    private void receivedObject(byte[] block, int crc) {
+        if (object != null) {
+            return;
+        }
+        if (MigrationFrames.crc(checksum, MigrationFrames.OBJECT, MigrationFrames.OBJECT, 0,
+                block, block.length) != crc) {
+            LOG.warn("bad process state, " + block.length + " bytes");
+            return;
+        }
+        object = block;
+        objectArrived.countDown();
+    }
+
+    /**
+     * Wait until the process can start: its output files must be
+     * complete, its input streams need the byte at their offset.
+     *
+     * @param process the reattached process
+     * @throws IOException if a transfer failed
+     */
+    private void awaitRegions(MigratableProcess process) throws IOException {
+        for (TransactionalStream stream : process.getTransactionalStreams()) {
+            StagedFileRegistry.StagedFile file = StagedFileRegistry.get(stream.getFile());
+            if (file == null) {
+                continue;
+            }
+            if (stream instanceof TransactionalFileInputStream) {
+                file.await(stream.getOffset());
+            } else {
+                file.awaitComplete();
+            }
+        }
+        if (frameError != null) {
+            throw frameError;
+        }
+    }
+
+    /**
+     * Stop a process started before its files failed to arrive. The
+     * sender still has the process, so it isn't finished here: it is
+     * only taken out, and the output it forwarded is discarded.
+     *
+     * @param process the started process
+     */
+    private void drop(MigratableProcess process) {
+        try {
+            process.suspend();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        manager.processes.remove(process);
+        manager.getDirectory().forget(process.getId());
+        manager.getForwarder().discard(process);
+        System.out.println("Dropped " + process.toString() + ": " + frameError);
+    }
+
+    /**
+     * Fail all staged files and close their handlers
+     *
+     * @param handlers the open stream files
+     */
+    private void fail(RandomAccessFile[] handlers) {
+        for (int i = 0; i < handlers.length; i++) {
+            if (staged[i] != null) {
+                staged[i].fail();
+            }
+            if (handlers[i] != null) {
+                try {
+                    handlers[i].close();
+                } catch (IOException e) {
+                    // already closed
+                }
+            }
+        }
+    }
+
+    /**
+     * Read the process state. A checkpoint log is restored from a
+     * file, a serialized object is read from memory.
+     *
+     * @param objectName the object name of the sender
+     * @param object     the object bytes
+     * @return the object
+     */
+    private static Object readObject(String objectName, byte[] object)
+            throws IOException, ClassNotFoundException {
+        if (objectName.endsWith(CheckpointStore.EXTENSION)) {
+            File file = new File(objectName);
+            FileOutputStream fos = new FileOutputStream(file);
+            try {
+                fos.write(object);
+            } finally {
+                fos.close();
+            }
+            try {
+                return ProcessReceiver.readProcess(objectName);
+            } finally {
+                file.delete();
+            }
+        }
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(object));
+        try {
+            return in.readObject();
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,535 @@
+package javapm.process;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javapm.cluster.LoadSummary;
+import javapm.io.StagedFileRegistry;
+import javapm.io.TrafficClass;
+import javapm.io.TransactionalFileInputStream;
+import javapm.io.TransactionalStream;
+
+/**
+ * The pre-staging of input files. Each round copies the input files
+ * of the resident processes to the likely targets of their next
+ * migration, the standby nodes of <code>javapm.prestage.targets</code>
+ * or else the least loaded members, as <code>BACKGROUND</code>
+ * traffic. A copy is written next to its final path and renamed when
+ * its SHA-256 digest is checked; a node never replaces a file it did
+ * not receive this way, or a file one of its processes uses.
+ * <p>
+ * A pipelined migration asks the receiver for its copy of every
+ * stream file: the receiver answers with the length and digest of a
+ * copy which is unchanged since it arrived, the sender keeps it if
+ * its own file starts with the same bytes, and sends the rest only.
+ * So a migration to a node which has the inputs sends the process
+ * state and the output files.
+ *
+ * @author Vasu Vardhan(vardhan)
+ * @author Pratyush Kumar(pratyush)
+ * @see javapm.process.ProcessServer#STAGE
+ * @see javapm.process.PipelinedReceiver
+ */
+public class PreStager implements Runnable {
+    /**
+     * Log handler
+     *
+     * @see <a href="http://apache.org/log4j/2.x/">Log4J</a>
+     */
+    private static Logger LOG = LogManager.getLogger(PreStager.class);
+
+    /**
+     * The suffix of a copy which is still arriving
+     */
+    static final String SUFFIX = ".prestage";
+
+    /**
+     * The copy buffer size
+     */
+    private static final int BUFFER = 64 * 1024;
+
+    /**
+     * The owner of resident processes
+     */
+    private ProcessManager manager;
+
+    /**
+     * Interval between two rounds, 0 if this node doesn't copy
+     */
+    private long intervalMillis;
+
+    /**
+     * The standby nodes, empty to use the least loaded members
+     */
+    private List<String> standby;
+
+    /**
+     * The number of least loaded members copied to
+     */
+    private int fanout;
+
+    /**
+     * Timeout of the copies, for the connection and each read
+     */
+    private int timeoutMillis;
+
+    /**
+     * The copies made on other nodes, by node, then by file
+     */
+    private Map<String, Map<File, Fingerprint>> sent;
+
+    /**
+     * The digests of local files, by file
+     */
+    private Map<File, Fingerprint> local;
+
+    /**
+     * The copies received from other nodes, by absolute file
+     */
+    private Map<File, Fingerprint> received;
+
+    /**
+     * The number of files and bytes copied to other nodes
+     */
+    private long sentFiles;
+    private long sentBytes;
+
+    /**
+     * The number of files and bytes received
+     */
+    private long receivedFiles;
+    private long receivedBytes;
+
+    /**
+     * The bytes migrations didn't send because the receiver had them
+     */
+    private long skippedBytes;
+
+    /**
+     * Constructor of <code>PreStager</code>
+     *
+     * @param manager the process manager
+     * @param config  the settings of the manager
+     */
+    public PreStager(ProcessManager manager, ProcessManagerConfig config) {
+        this.manager = manager;
+        this.intervalMillis = config.getPrestageIntervalMillis();
+        this.standby = config.getPrestageTargets();
+        this.fanout = config.getPrestageFanout();
+        this.timeoutMillis = (int) Math.max(config.getClusterFanoutTimeoutMillis(), 10000);
+        this.sent = new HashMap<String, Map<File, Fingerprint>>();
+        this.local = new HashMap<File, Fingerprint>();
+        this.received = new HashMap<File, Fingerprint>();
+    }
+
+    /**
+     * The copying loop
+     */
+    public void run() {
+        while (true) {
+            try {
+                Thread.sleep(intervalMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                stage();
+            } catch (RuntimeException e) {
+                LOG.error("prestage error", e);
+            }
+        }
+    }
+
+    /**
+     * One round: copy the input files of the resident processes to
+     * the targets which don't have the current version yet
+     *
+     * @return the number of files copied
+     */
+    public int stage() {
+        Set<File> files = new LinkedHashSet<File>();
+        for (MigratableProcess process : manager.processes) {
+            for (TransactionalStream stream : process.getTransactionalStreams()) {
+                File file = stream.getFile();
+                if (stream instanceof TransactionalFileInputStream && file.isFile() &&
+                        StagedFileRegistry.get(file) == null) {
+                    files.add(file);
+                }
+            }
+        }
+        int copied = 0;
+        if (files.isEmpty()) {
+            return copied;
+        }
+        for (String node : targets()) {
+            for (File file : files) {
+                try {
+                    Fingerprint print = fingerprint(file);
+                    if (print.equals(sent(node, file))) {
+                        continue;
+                    }
+                    if (copy(node, file, print)) {
+                        copied++;
+                    }
+                    synchronized (this) {
+                        sent.get(node).put(file, print);
+                    }
+                } catch (IOException e) {
+                    LOG.warn("prestage of " + file + " to " + node + " failed: " + e);
+                    break;
+                }
+            }
+        }
+        return copied;
+    }
+
+    /**
+     * The likely targets: the standby nodes, or the least loaded
+     * members. Busy nodes are left out.
+     *
+     * @return the node names
+     */
+    private List<String> targets() {
+        List<String> targets = new ArrayList<String>();
+        if (!standby.isEmpty()) {
+            for (String node : standby) {
+                if (!node.equals(manager.getNodeName()) && !manager.isBusy(node)) {
+                    targets.add(node);
+                }
+            }
+            return targets;
+        }
+        List<LoadSummary> members = manager.getTargets();
+        Collections.sort(members, new Comparator<LoadSummary>() {
+            public int compare(LoadSummary a, LoadSummary b) {
+                return Double.compare(a.getLoad(), b.getLoad());
+            }
+        });
+        for (LoadSummary member : members) {
+            if (targets.size() == fanout) {
+                break;
+            }
+            if (member.hasFreeCapacity()) {
+                targets.add(member.getNode());
+            }
+        }
+        return targets;
+    }
+
+    private synchronized Fingerprint sent(String node, File file) {
+        Map<File, Fingerprint> copies = sent.get(node);
+        if (copies == null) {
+            copies = new HashMap<File, Fingerprint>();
+            sent.put(node, copies);
+        }
+        return copies.get(file);
+    }
+
+    /**
+     * Copy a file to a node
+     *
+     * @param node  the node name <code>HOST:PORT</code>
+     * @param file  the file
+     * @param print the fingerprint of the file
+     * @return if the file was copied return <code>true</code>, if the
+     * node has it or refused it return <code>false</code>
+     * @throws IOException if the node can't be reached
+     */
+    private boolean copy(String node, File file, Fingerprint print) throws IOException {
+        int split = node.lastIndexOf(':');
+        ShapedSocket socket = new ShapedSocket(node.substring(0, split),
+                Integer.parseInt(node.substring(split + 1)), manager.getShaper(),
+                TrafficClass.BACKGROUND);
+        try {
+            socket.setSoTimeout(timeoutMillis);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    socket.getOutputStream(), BUFFER));
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            out.writeInt(ProcessServer.STAGE);
+            out.writeUTF(file.getPath());
+            out.writeLong(print.length);
+            out.write(print.digest);
+            out.flush();
+            if (!in.readBoolean()) {
+                return false;
+            }
+            InputStream source = new BufferedInputStream(new FileInputStream(file), BUFFER);
+            try {
+                copy(source, out, print.length);
+            } finally {
+                source.close();
+            }
+            out.flush();
+            if (!in.readBoolean()) {
+                throw new IOException("copy rejected");
+            }
+        } finally {
+            socket.close();
+        }
+        synchronized (this) {
+            sentFiles++;
+            sentBytes += print.length;
+        }
+        LOG.info("prestaged " + file + " on " + node + ", " + print.length + " bytes");
+        return true;
+    }
+
+    /**
+     * Receive a copy, after the <code>STAGE</code> opcode. The copy is
+     * refused if this node has it already, if the file is arriving by
+     * a migration or used by a process, or if it exists and was not
+     * received by pre-staging.
+     *
+     * @param socket the connected socket
+     * @param peer   the sender
+     * @throws IOException if the connection fails
+     */
+    void receive(Socket socket, String peer) throws IOException {
+        DataInputStream header = new DataInputStream(socket.getInputStream());
+        DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+        File file = new File(header.readUTF());
+        long length = header.readLong();
+        byte[] digest = new byte[MigrationFrames.DIGEST_LENGTH];
+        header.readFully(digest);
+        Fingerprint copy = copy(file);
+        boolean wanted = copy == null ? !file.exists() :
+                copy.length != length || !Arrays.equals(copy.digest, digest);
+        wanted &= StagedFileRegistry.isReplaceable(file) && !inUse(file);
+        out.writeBoolean(wanted);
+        out.flush();
+        if (!wanted) {
+            return;
+        }
+        DataInputStream in = new DataInputStream(manager.getShaper().input(
+                socket.getInputStream(), peer, TrafficClass.BACKGROUND));
+        File temporary = new File(file.getPath() + SUFFIX);
+        MessageDigest sha = sha256();
+        OutputStream target = new BufferedOutputStream(new FileOutputStream(temporary), BUFFER);
+        boolean good = false;
+        try {
+            try {
+                byte[] buffer = new byte[BUFFER];
+                long left = length;
+                while (left > 0) {
+                    int n = (int) Math.min(buffer.length, left);
+                    in.readFully(buffer, 0, n);
+                    sha.update(buffer, 0, n);
+                    target.write(buffer, 0, n);
+                    left -= n;
+                }
+            } finally {
+                target.close();
+            }
+            good = Arrays.equals(sha.digest(), digest) && StagedFileRegistry.isReplaceable(file) &&
+                    !inUse(file);
+            if (good) {
+                Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+                StagedFileRegistry.clearFailed(file);
+                synchronized (this) {
+                    received.put(file.getAbsoluteFile(), new Fingerprint(length,
+                            file.lastModified(), digest));
+                    receivedFiles++;
+                    receivedBytes += length;
+                }
+                System.out.println("Prestaged " + file + " from " + peer);
+            }
+        } finally {
+            if (!good) {
+                temporary.delete();
+            }
+        }
+        out.writeBoolean(good);
+        out.flush();
+    }
+
+    /**
+     * Get the received copy of a file, if it is unchanged since it
+     * arrived
+     *
+     * @param file the file
+     * @return the fingerprint of the copy, null if there is none
+     */
+    synchronized Fingerprint copy(File file) {
+        File key = file.getAbsoluteFile();
+        Fingerprint copy = received.get(key);
+        if (copy != null && (copy.length != file.length() ||
+                copy.modified != file.lastModified())) {
+            received.remove(key);
+            return null;
+        }
+        return copy;
+    }
+
+    /**
+     * Get the digest of the first bytes of a local file. The digest of
+     * a whole file is kept until the file changes.
+     *
+     * @param file   the file
+     * @param length the number of bytes
+     * @return the digest
+     * @throws IOException if the file can't be read
+     */
+    byte[] digest(File file, long length) throws IOException {
+        if (length == file.length()) {
+            return fingerprint(file).digest;
+        }
+        return digest(file, length, sha256());
+    }
+
+    /**
+     * Record the bytes a migration didn't send
+     *
+     * @param bytes the number of bytes
+     */
+    synchronized void skipped(long bytes) {
+        skippedBytes += bytes;
+    }
+
+    /**
+     * Get the fingerprint of a local file
+     *
+     * @param file the file
+     * @return the fingerprint
+     * @throws IOException if the file can't be read
+     */
+    private Fingerprint fingerprint(File file) throws IOException {
+        long length = file.length();
+        long modified = file.lastModified();
+        synchronized (this) {
+            Fingerprint print = local.get(file);
+            if (print != null && print.length == length && print.modified == modified) {
+                return print;
+            }
+        }
+        Fingerprint print = new Fingerprint(length, modified, digest(file, length, sha256()));
+        synchronized (this) {
+            local.put(file, print);
+        }
+        return print;
+    }
+
+    /**
+     * Check if a resident process uses a file
+     *
+     * @param file the file
+     * @return if it is used return <code>true</code>
+     */
+    boolean inUse(File file) {
+        File key = file.getAbsoluteFile();
+        for (MigratableProcess process : manager.processes) {
+            for (TransactionalStream stream : process.getTransactionalStreams()) {
+                if (stream.getFile().getAbsoluteFile().equals(key)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static byte[] digest(File file, long length, MessageDigest sha) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[BUFFER];
+            long left = length;
+            while (left > 0) {
+                int n = in.read(buffer, 0, (int) Math.min(buffer.length, left));
+                if (n < 0) {
+                    throw new IOException(file + " is shorter than " + length);
+                }
+                sha.update(buffer, 0, n);
+                left -= n;
+            }
+        } finally {
+            in.close();
+        }
+        return sha.digest();
+    }
+
+    private static void copy(InputStream in, OutputStream out, long length) throws IOException {
+        byte[] buffer = new byte[BUFFER];
+        long left = length;
+        while (left > 0) {
+            int n = in.read(buffer, 0, (int) Math.min(buffer.length, left));
+            if (n < 0) {
+                throw new IOException("file shrank during the copy");
+            }
+            out.write(buffer, 0, n);
+            left -= n;
+        }
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * The printable state, used by the <code>stats</code> command.
+     *
+     * @return the printable information
+     */
+    public synchronized String toString() {
+        return "prestaged: " + sentFiles + " files, " + sentBytes + " bytes sent, " +
+                receivedFiles + " files, " + receivedBytes + " bytes received, " +
+                skippedBytes + " bytes not migrated";
+    }
+
+    /**
+     * The length, modification time and SHA-256 digest of a file
+     */
+    static class Fingerprint {
+        final long length;
+        final long modified;
+        final byte[] digest;
+
+        Fingerprint(long length, long modified, byte[] digest) {
+            this.length = length;
+            this.modified = modified;
+            this.digest = digest;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Fingerprint)) {
+                return false;
+            }
+            Fingerprint that = (Fingerprint) other;
+            return length == that.length && modified == that.modified &&
+                    Arrays.equals(digest, that.digest);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(digest);
+        }
+    }
+}
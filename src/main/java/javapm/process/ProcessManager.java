@@ -3,16 +3,55 @@ package javapm.process;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.reflections.Reflections;
+import javapm.checkpoint.CheckpointStore;
+import javapm.cluster.GossipService;
+import javapm.cluster.LinkBandwidth;
+import javapm.cluster.LoadSummary;
+import javapm.cluster.FanOut;
+import javapm.cluster.Membership;
+import javapm.cluster.ProcessDirectory;
+import javapm.cluster.Rebalancer;
+import javapm.cluster.RingPlacement;
+import javapm.cluster.WorkStealer;
+import javapm.checkpoint.IncrementalCheckpointer;
+import javapm.io.TrafficClass;
+import javapm.io.TrafficShaper;
+import javapm.io.TransactionalFileInputStream;
+import javapm.io.TransactionalStream;
+import javapm.metrics.MigrationMetrics;
+import javapm.metrics.MigrationPhase;
+import javapm.metrics.ProcessAccounting;
+import javapm.metrics.jfr.FlightEvents;
 
 import java.io.*;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.UnknownHostException;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
 //import java.util.logging.Logger;
 //import javapm.process.ExitListener;
 
@@ -43,11 +82,45 @@ public class ProcessManager {
      */
     public static String IP;
     
+    /**
+     * The number of process IDs of one node. A process ID is
+     * <code>nodeId * ID_SPACE + sequence</code>, so the node which
+     * started a process can be read from its ID.
+     */
+    public static final long ID_SPACE = 1000000000L;
+
+    /**
+     * The number of sequence numbers reserved in the sequence file at
+     * once
+     */
+    private static final long ID_BLOCK = 1000;
+
+    /**
+     * The file of the sequence, in the checkpoint directory
+     */
+    static final String SEQUENCE_FILE = "sequence";
+
+    /**
+     * The buffer size of a whole-file transfer
+     */
+    static final int FILE_CHUNK = 64 * 1024;
+
     /**
      * The singleton instance of <code>ProcessManager</code>
      */
     private static ProcessManager singleton;
 
+    /**
+     * The managers of this JVM, by the port of their process server
+     */
+    private static final Map<Integer, ProcessManager> INSTANCES =
+            new ConcurrentHashMap<Integer, ProcessManager>();
+
+    /**
+     * The manager a thread works for, while it runs a command
+     */
+    private static final ThreadLocal<ProcessManager> CURRENT = new ThreadLocal<ProcessManager>();
+
     /**
      * The counter for process ID. By using the <code>AtomicLong</code>,
      * We assure the ID generation is thread-safe.
@@ -56,6 +129,11 @@ public class ProcessManager {
      */
     private AtomicLong idCounter;
 
+    /**
+     * The first sequence number not reserved in the sequence file
+     */
+    private volatile long idLimit;
+
     /**
      * The linked queue of current processes.
      * By using the <code>ConcurrentLinkedQueue</code> we assure the
@@ -73,31 +151,230 @@ public class ProcessManager {
      */
     Set<Class<? extends MigratableProcess>> processClasses;
 
+    /**
+     * The runtime settings of this manager
+     */
+    private ProcessManagerConfig config;
+
+    /**
+     * The store of incremental checkpoint logs
+     *
+     * @see javapm.checkpoint.CheckpointStore
+     */
+    private CheckpointStore checkpointStore;
+
+    /**
+     * The hibernation of idle processes
+     *
+     * @see javapm.process.HibernationManager
+     */
+    private HibernationManager hibernation;
+
+    /**
+     * The migration metrics, exposed by JMX
+     *
+     * @see javapm.metrics.MigrationMetrics
+     */
+    private MigrationMetrics metrics;
+
+    /**
+     * The traffic shaper of migrations over TCP
+     *
+     * @see javapm.io.TrafficShaper
+     */
+    private TrafficShaper shaper;
+
+    /**
+     * The admission control of inbound migrations
+     *
+     * @see javapm.process.AdmissionControl
+     */
+    private AdmissionControl admission;
+
+    /**
+     * The nodes which refused a migration, mapped to the time they
+     * may take one again
+     */
+    private Map<String, Long> busyUntil;
+
+    /**
+     * The IDs of processes being migrated
+     */
+    private Set<Long> migrating;
+
+    /**
+     * The bandwidth estimates of the links to other nodes
+     *
+     * @see javapm.cluster.LinkBandwidth
+     */
+    private LinkBandwidth links;
+
+    /**
+     * The load gossip with other nodes
+     *
+     * @see javapm.cluster.GossipService
+     */
+    private GossipService gossip;
+
+    /**
+     * The placement of keyed processes on the hash ring
+     *
+     * @see javapm.cluster.RingPlacement
+     */
+    private RingPlacement placement;
+
+    /**
+     * The work stealing between this node and the others
+     *
+     * @see javapm.cluster.WorkStealer
+     */
+    private WorkStealer stealer;
+
+    /**
+     * The pre-staging of input files on likely targets
+     *
+     * @see javapm.process.PreStager
+     */
+    private PreStager prestager;
+
+    /**
+     * The replication of processes to their standby nodes
+     *
+     * @see javapm.process.Replicator
+     */
+    private Replicator replicator;
+
+    /**
+     * The processes replicated to this node
+     *
+     * @see javapm.process.ReplicaStore
+     */
+    private ReplicaStore replicas;
+
+    /**
+     * The forwarding of output to the home of the files
+     *
+     * @see javapm.process.OutputForwarder
+     */
+    private OutputForwarder forwarder;
+
+    /**
+     * The drain of this node
+     *
+     * @see javapm.process.DrainCoordinator
+     */
+    private DrainCoordinator drain;
+
+    /**
+     * The last known node of processes
+     *
+     * @see javapm.cluster.ProcessDirectory
+     */
+    private ProcessDirectory directory;
+
+    /**
+     * The same-host transport
+     *
+     * @see javapm.process.LocalTransport
+     */
+    private LocalTransport localTransport;
+
+    /**
+     * Constructor of the singleton <code>ProcessManager</code>, from
+     * the system properties
+     *
+     * @see javapm.process.ProcessManagerConfig#fromSystemProperties()
+     */
+    private ProcessManager() {
+        this(ProcessManagerConfig.fromSystemProperties(), null);
+    }
+
+    /**
+     * Constructor of another <code>ProcessManager</code> in this JVM.
+     * It has its own processes, process server, cluster membership
+     * and metrics; a migration to a manager of this JVM hands the
+     * process object over without serialization.
+     *
+     * @param config the config, e.g. from
+     *               <code>ProcessManagerConfig.forInstance()</code>
+     * @see javapm.process.ProcessManagerConfig#forInstance(int, int, long)
+     */
+    public ProcessManager(ProcessManagerConfig config) {
+        this(config, String.valueOf(config.getServerPort()));
+    }
+
     /**
      * Constructor of <code>ProcessManager</code>
-     * The constructor is invisible since we need to keep
-     * the <code>ProcessManager</code> is single instance.
      * In the constructor we use <code>Reflections</code> library
      * to get all classes inherited from <code>MigratableProcess</code>
      *
+     * @param config   the config
+     * @param instance the JMX name of the instance, null for the
+     *                 singleton
      * @see <a href="https://code.google.com/p/reflections/">Reflections Library</a>
      */
-    private ProcessManager() {
-        idCounter = new AtomicLong(0);
+    private ProcessManager(ProcessManagerConfig config, String instance) {
         processes = new ConcurrentLinkedQueue<MigratableProcess>();
         Reflections reflections = new Reflections("javapm.process");
         processClasses = reflections.getSubTypesOf(MigratableProcess.class);
+        this.config = config;
+        idLimit = readSequence();
+        idCounter = new AtomicLong(idLimit);
+        checkpointStore = new CheckpointStore(config.getCheckpointDirectory(),
+                config.getCheckpointBaseInterval());
+        hibernation = new HibernationManager(this, config);
+        metrics = new MigrationMetrics();
+        metrics.register(instance);
+        shaper = new TrafficShaper(config.getShaperBandwidth(), config.getShaperPeerBandwidth(),
+                config.getShaperBurst(), metrics);
+        admission = new AdmissionControl(this, config);
+        busyUntil = new ConcurrentHashMap<String, Long>();
+        migrating = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+        links = new LinkBandwidth(config.getRebalanceBandwidth());
+        gossip = new GossipService(this, config);
+        placement = new RingPlacement(this, gossip.getMembership(), config);
+        stealer = new WorkStealer(this, config);
+        prestager = new PreStager(this, config);
+        replicator = new Replicator(this, config);
+        replicas = new ReplicaStore(this, config);
+        forwarder = new OutputForwarder(this, config);
+        drain = new DrainCoordinator(this, config.getDrainParallelism(),
+                config.getAdmissionRetries());
+        directory = new ProcessDirectory();
+        localTransport = new LocalTransport(this, config);
+        if (INSTANCES.putIfAbsent(config.getServerPort(), this) != null) {
+            throw new IllegalStateException("a manager of this JVM runs on port " +
+                    config.getServerPort());
+        }
+    }
+
+    /**
+     * Take a manager of <code>ProcessManager(ProcessManagerConfig)</code>
+     * which was never started out of this JVM: its port and its MBeans
+     * are free again
+     */
+    void dispose() {
+        INSTANCES.remove(config.getServerPort(), this);
+        metrics.unregister(String.valueOf(config.getServerPort()));
     }
 
     /**
-     * Start the <code>ProcessServer</code> in a new <code>Thread</code>
+     * Start the <code>ProcessServer</code> in a new <code>Thread</code>,
+     * on the port of <code>javapm.server.port</code>, and the local
+     * transport in a daemon <code>Thread</code> if it is enabled
      *
      * @see javapm.process.ProcessServer
+     * @see javapm.process.LocalTransport
      * @see java.lang.Thread#start()
      */
     public void startServer() {
-        Thread serverThread = new Thread(new ProcessServer());
+        Thread serverThread = new Thread(new ProcessServer(this, config.getServerPort()));
         serverThread.start();
+        if (localTransport.isEnabled()) {
+            Thread localThread = new Thread(localTransport, "local-server");
+            localThread.setDaemon(true);
+            localThread.start();
+        }
     }
 
     /**
@@ -123,11 +400,106 @@ public class ProcessManager {
         }
     }
     
+    /**
+     * Start the <code>HibernationManager</code> in a daemon
+     * <code>Thread</code>
+     *
+     * @see javapm.process.HibernationManager
+     */
+    public void startHibernation() {
+        Thread hibernationThread = new Thread(hibernation, "hibernation");
+        hibernationThread.setDaemon(true);
+        hibernationThread.start();
+    }
+
+    /**
+     * Start the <code>AccountingSampler</code> in a daemon
+     * <code>Thread</code>
+     *
+     * @see javapm.process.AccountingSampler
+     */
+    public void startAccounting() {
+        Thread samplerThread = new Thread(new AccountingSampler(this), "accounting");
+        samplerThread.setDaemon(true);
+        samplerThread.start();
+    }
+
+    /**
+     * Start the <code>GossipService</code>, the <code>Rebalancer</code>
+     * and the <code>WorkStealer</code> in daemon <code>Thread</code>s.
+     * The gossip runs if <code>javapm.gossip.port</code> is set, it
+     * joins the cluster through <code>javapm.cluster.seeds</code>. The
+     * rebalancer runs if <code>javapm.rebalance.intervalSeconds</code>
+     * is set too, the stealer if <code>javapm.steal.intervalMillis</code>
+     * is set. The <code>PreStager</code> runs if
+     * <code>javapm.prestage.intervalMillis</code> is set, with gossip
+     * or with standby nodes. The <code>Replicator</code>, the
+     * failover watch of the <code>ReplicaStore</code> and the
+     * <code>OutputForwarder</code> always run.
+     *
+     * @see javapm.cluster.GossipService
+     * @see javapm.cluster.Rebalancer
+     * @see javapm.cluster.WorkStealer
+     * @see javapm.process.PreStager
+     * @see javapm.process.Replicator
+     * @see javapm.process.ReplicaStore
+     * @see javapm.process.OutputForwarder
+     */
+    public void startCluster() {
+        Thread forwarderThread = new Thread(forwarder, "forwarder");
+        forwarderThread.setDaemon(true);
+        forwarderThread.start();
+        Thread replicatorThread = new Thread(replicator, "replicator");
+        replicatorThread.setDaemon(true);
+        replicatorThread.start();
+        Thread failoverThread = new Thread(replicas, "failover");
+        failoverThread.setDaemon(true);
+        failoverThread.start();
+        if (config.getPrestageIntervalMillis() > 0 && (config.getGossipPort() > 0 ||
+                !config.getPrestageTargets().isEmpty())) {
+            Thread prestageThread = new Thread(prestager, "prestage");
+            prestageThread.setDaemon(true);
+            prestageThread.start();
+        }
+        if (config.getGossipPort() <= 0) {
+            return;
+        }
+        Thread gossipThread = new Thread(gossip, "gossip");
+        gossipThread.setDaemon(true);
+        gossipThread.start();
+        if (config.getRebalanceIntervalMillis() > 0) {
+            Thread rebalancerThread = new Thread(new Rebalancer(this, gossip, links, config),
+                    "rebalancer");
+            rebalancerThread.setDaemon(true);
+            rebalancerThread.start();
+        }
+        if (config.getStealIntervalMillis() > 0) {
+            Thread stealerThread = new Thread(stealer, "stealer");
+            stealerThread.setDaemon(true);
+            stealerThread.start();
+        }
+        if (config.isRingPlacement()) {
+            Thread placementThread = new Thread(placement, "ring");
+            placementThread.setDaemon(true);
+            placementThread.start();
+        }
+    }
+
+    /**
+     * Start the <code>ExitListener</code> in a new <code>Thread</code>,
+     * unless <code>javapm.exit.port</code> is 0
+     *
+     * @see javapm.process.ExitListener
+     */
     public void startExitListener()
     {
+        if (config.getExitPort() <= 0) {
+            return;
+        }
         Thread exitListener;
         try {
-            exitListener = new Thread(new ExitListener());
+            exitListener = new Thread(new ExitListener(this, config.getExitPort(),
+                    config.getExitNotifyPort()), "exit-listener");
             exitListener.start();
         } catch (IOException ex) {
             LOG.fatal("Exit Listener creation failed",ex);
@@ -137,24 +509,171 @@ public class ProcessManager {
 
     /**
      * Generate a process ID by using <code>getAndIncrement</code>.
+     * The ID combines the node ID of <code>javapm.node.id</code> with
+     * the sequence of this node, so it is unique in the cluster. A
+     * process keeps its ID when it migrates.
+     * The sequence is reserved in blocks in the sequence file, so a
+     * restarted node goes on after the last block of its earlier run.
      * This function is thread-safe
      *
      * @return the process ID
      * @see java.util.concurrent.atomic.AtomicLong#getAndIncrement()
+     * @see javapm.process.ProcessManager#ID_SPACE
      */
     public long generateID() {
-        return idCounter.getAndIncrement();
+        long sequence = idCounter.getAndIncrement();
+        if (sequence >= idLimit) {
+            reserveSequence(sequence);
+        }
+        return config.getNodeId() * ID_SPACE + sequence;
+    }
+
+    /**
+     * Reserve the block of a sequence number in the sequence file.
+     * The file is replaced by a rename, so it is never half written.
+     *
+     * @param sequence the sequence number
+     */
+    private synchronized void reserveSequence(long sequence) {
+        if (sequence < idLimit) {
+            return;
+        }
+        if (sequence >= ID_SPACE) {
+            throw new IllegalStateException("process IDs of node " + config.getNodeId() +
+                    " exhausted");
+        }
+        long limit = sequence - sequence % ID_BLOCK + ID_BLOCK;
+        File directory = config.getCheckpointDirectory();
+        File file = new File(directory, SEQUENCE_FILE);
+        File temporary = new File(directory, SEQUENCE_FILE + ".tmp");
+        try {
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("can't create " + directory);
+            }
+            Files.write(temporary.toPath(), (limit + "\n").getBytes("UTF-8"));
+            Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            LOG.error("can't save the process ID sequence to " + file +
+                    ", a restart may reuse IDs", e);
+        }
+        idLimit = limit;
+    }
+
+    /**
+     * Read the sequence file
+     *
+     * @return the first free sequence number, 0 if there is no file
+     */
+    private long readSequence() {
+        File file = new File(config.getCheckpointDirectory(), SEQUENCE_FILE);
+        if (!file.exists()) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(new String(Files.readAllBytes(file.toPath()), "UTF-8").trim());
+        } catch (IOException e) {
+            LOG.error("can't read the process ID sequence from " + file, e);
+        } catch (NumberFormatException e) {
+            LOG.error("broken process ID sequence in " + file, e);
+        }
+        return 0;
+    }
+
+    /**
+     * Get the location directory of this manager
+     *
+     * @return the directory
+     */
+    public ProcessDirectory getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Get the name of this node
+     *
+     * @return <code>HOST:PORT</code> of the process server
+     */
+    public String getNodeName() {
+        return config.getNodeName();
+    }
+
+    /**
+     * Get the hibernation of this manager
+     *
+     * @return the hibernation manager
+     */
+    HibernationManager getHibernation() {
+        return hibernation;
+    }
+
+    /**
+     * Get the drain of this manager
+     *
+     * @return the drain coordinator
+     */
+    public DrainCoordinator getDrain() {
+        return drain;
+    }
+
+    /**
+     * Get the migration metrics of this manager
+     *
+     * @return the metrics object
+     */
+    public MigrationMetrics getMetrics() {
+        return metrics;
+    }
+
+    public TrafficShaper getShaper() {
+        return shaper;
+    }
+
+    public AdmissionControl getAdmission() {
+        return admission;
+    }
+
+    public WorkStealer getStealer() {
+        return stealer;
+    }
+
+    public PreStager getPreStager() {
+        return prestager;
+    }
+
+    public Replicator getReplicator() {
+        return replicator;
+    }
+
+    public ReplicaStore getReplicas() {
+        return replicas;
+    }
+
+    public OutputForwarder getForwarder() {
+        return forwarder;
+    }
+
+    CheckpointStore getCheckpointStore() {
+        return checkpointStore;
     }
 
     /**
      * Callback for process exit, remove process from <code>processes</code>
      * queue. The <code>processes.remove(Object)</code> is thread-safe.
+     * A process which finished, and was not suspended, leaves the
+     * directory and the checkpoint store; its forwarded output is
+     * still sent home.
      *
      * @param process the process instance
      * @see java.util.concurrent.ConcurrentLinkedQueue#remove(Object)
      */
     public void finishProcess(MigratableProcess process) {
         processes.remove(process);
+        if (!process.suspending) {
+            directory.forget(process.getId());
+            checkpointStore.remove(process.getId());
+            forwarder.finished(process);
+        }
     }
 
     /**
@@ -179,6 +698,27 @@ public class ProcessManager {
      */
     public boolean startProcess(String processName, String[] args)
             throws IllegalAccessException, InstantiationException, IllegalArgumentException, InvocationTargetException {
+        return startProcess(processName, args, null);
+    }
+
+    /**
+     * Start a process with a placement key, see
+     * <code>startProcess(String, String[])</code>
+     *
+     * @param processName  the process name
+     * @param args         the process arguments
+     * @param placementKey the key of the process on the hash ring,
+     *                     null to use its input file
+     * @return if success return <code>true</code>
+     *         else return <code>false</code>
+     * @throws IllegalAccessException can't access process constructor
+     * @throws InstantiationException can't find default process constructor
+     * @throws InvocationTargetException 
+     * @throws IllegalArgumentException 
+     * @see javapm.process.MigratableProcess#getPlacementKey()
+     */
+    public boolean startProcess(String processName, String[] args, String placementKey)
+            throws IllegalAccessException, InstantiationException, IllegalArgumentException, InvocationTargetException {
         Iterator<Class<? extends MigratableProcess>> it = processClasses.iterator();
         while (it.hasNext()) {
             Class<? extends MigratableProcess> process = it.next();
@@ -192,7 +732,9 @@ public class ProcessManager {
             		break;
             	}
             	MigratableProcess processInstance = (MigratableProcess) ctor.newInstance((Object) args);
+                processInstance.setPlacementKey(placementKey);
                 startProcess(processInstance);
+                System.out.println("Started " + processInstance.toString());
                 
                 return true;
             }
@@ -203,15 +745,23 @@ public class ProcessManager {
     /**
      * Start a process by using <code>MigratableProcess</code> object.
      * Add the process object to the linked queue. This function is
-     * thread-safe.
+     * thread-safe. The process is registered before its thread starts,
+     * so a process which finishes at once leaves no entry behind, and
+     * it is running as soon as its thread is alive.
      *
      * @param process
      * @see java.util.concurrent.ConcurrentLinkedQueue#offer(Object)
      */
     public void startProcess(MigratableProcess process) {
+        process.manager = this;
+        forwarder.attach(process);
         Thread thread = new Thread(process);
-        thread.start();
+        process.thread = thread;
+        process.getAccounting().attach(thread);
         processes.offer(process);
+        directory.record(process.getId(), config.getNodeName(), process.toString());
+        thread.start();
+        FlightEvents.processStarted(process.getId(), process.getClass().getName(), thread);
     }
 
     /**
@@ -227,6 +777,29 @@ public class ProcessManager {
         return singleton;
     }
 
+    /**
+     * Get the manager the current thread works for. A manager binds
+     * itself while it runs a command, so new processes take their ID
+     * from it; other threads get the singleton.
+     *
+     * @return the <code>ProcessManager</code> instance
+     */
+    public static ProcessManager current() {
+        ProcessManager manager = CURRENT.get();
+        return manager != null ? manager : getInstance();
+    }
+
+    /**
+     * Get the manager of this JVM which runs its process server on
+     * a port
+     *
+     * @param port the process server port
+     * @return the manager, null if none
+     */
+    public static ProcessManager getInstance(int port) {
+        return INSTANCES.get(port);
+    }
+
     /**
      * Lookup a process in <code>processes</code> by process ID
      *
@@ -234,7 +807,7 @@ public class ProcessManager {
      * @return the <code>MigratableProcess</code> object if found,
      *         else return null
      */
-    private MigratableProcess getProcess(long id) {
+    MigratableProcess getProcess(long id) {
         Iterator<MigratableProcess> it = processes.iterator();
         while (it.hasNext()) {
             MigratableProcess process = it.next();
@@ -261,6 +834,21 @@ public class ProcessManager {
         String[] args = commandLine.split("\\s+");
         if (args.length == 0)
             return;
+        ProcessManager bound = CURRENT.get();
+        CURRENT.set(this);
+        try {
+            processCommand(args);
+        } finally {
+            CURRENT.set(bound);
+        }
+    }
+
+    /**
+     * Process a split command line
+     *
+     * @param args command arguments
+     */
+    private void processCommand(String[] args) {
         switch (ProcessManagerCommand.getInstance(args[0].toLowerCase())) {
             case HELP:
                 processHelpCommand();
@@ -272,7 +860,7 @@ public class ProcessManager {
                 processLsCommand();
                 break;
             case PS:
-                processPsCommand();
+                processPsCommand(args);
                 break;
             case RUN:
                 processRunCommand(args);
@@ -280,6 +868,48 @@ public class ProcessManager {
             case MG:
                 processMigrateCommand(args);
                 break;
+            case CHECKPOINT:
+                processCheckpointCommand(args);
+                break;
+            case RESTORE:
+                processRestoreCommand(args);
+                break;
+            case HIBERNATE:
+                processHibernateCommand(args);
+                break;
+            case WAKE:
+                processWakeCommand(args);
+                break;
+            case STATS:
+                processStatsCommand(args);
+                break;
+            case CLUSTER:
+                processClusterCommand();
+                break;
+            case PEERS:
+                processPeersCommand();
+                break;
+            case LOCATE:
+                processLocateCommand(args);
+                break;
+            case DRAIN:
+                processDrainCommand(args);
+                break;
+            case TENANT:
+                processTenantCommand(args);
+                break;
+            case SHAPE:
+                processShapeCommand(args);
+                break;
+            case STEAL:
+                processStealCommand();
+                break;
+            case PRESTAGE:
+                processPrestageCommand();
+                break;
+            case REPLICATE:
+                processReplicateCommand(args);
+                break;
             case UNKNOWN:
             default:
                 System.out.println("unknown command '" + args[0] + "'");
@@ -306,39 +936,184 @@ public class ProcessManager {
     
     
     /**
-     * List all running processes
+     * List all running processes with their resource accounting:
+     * CPU time, bytes read and written by transactional streams,
+     * current IO throughput, time suspended and estimated serialized
+     * size. <code>ps -s KEY</code> sorts by a column.
+     * <code>ps -a</code> also lists hibernated processes with the
+     * memory they gave back, <code>ps PROCESS_ID</code> prints the
+     * details of one process and wakes it if it is hibernated.
+     *
+     * @param args command arguments
+     * @see javapm.process.PsSortKey
      */
-    private void processPsCommand() {
-        if (processes.isEmpty()) {
+    private void processPsCommand(String[] args) {
+        PsSortKey sortKey = PsSortKey.ID;
+        if (args.length > 2 && args[1].equals("-s")) {
+            sortKey = PsSortKey.getInstance(args[2].toLowerCase());
+            if (sortKey == null) {
+                System.out.println("usage: ps -s id|cpu|read|written|rate|suspend|size");
+                return;
+            }
+        }
+        if (args.length > 1 && args[1].equals("-c")) {
+            processPsClusterCommand();
+        } else if (args.length > 1 && args[1].equals("-a")) {
+            processPsAllCommand();
+        } else if (args.length > 1 && !args[1].equals("-s")) {
+            processPsDetailCommand(args[1]);
+        } else if (processes.isEmpty()) {
             System.out.println("No running process");
+            if (!hibernation.getHibernated().isEmpty()) {
+                System.out.println(hibernation.getHibernated().size() +
+                        " hibernated, use 'ps -a' to list them");
+            }
         } else {
-            Iterator<MigratableProcess> it = processes.iterator();
-            while (it.hasNext()) {
-                MigratableProcess process = it.next();
-                System.out.println(process.toString());
-                System.out.println("with process id"+process.id);
+            final PsSortKey key = sortKey;
+            List<MigratableProcess> sorted = new ArrayList<MigratableProcess>(processes);
+            Collections.sort(sorted, new Comparator<MigratableProcess>() {
+                public int compare(MigratableProcess a, MigratableProcess b) {
+                    return Double.compare(key.sortValue(b), key.sortValue(a));
+                }
+            });
+            String format = "%-14s %9s %10s %10s %10s %11s %9s  %s%n";
+            System.out.printf(format, "ID", "CPU(ms)", "READ", "WRITTEN", "RATE(B/s)",
+                    "SUSPEND(ms)", "SIZE", "PROCESS");
+            for (MigratableProcess process : sorted) {
+                ProcessAccounting accounting = process.getAccounting();
+                accounting.sample(process.getTransactionalStreams(), false);
+                long size = accounting.getSerializedSize();
+                System.out.printf(format, process.getId(),
+                        accounting.getCpuNanos() / 1000000,
+                        accounting.getBytesRead(), accounting.getBytesWritten(),
+                        String.format("%.0f", accounting.getThroughput()),
+                        accounting.getSuspendNanos() / 1000000,
+                        size < 0 ? "-" : String.valueOf(size), process.toString());
             }
         }
     }
 
     /**
-     * Run a process by using process name and arguments.
-     *
+     * List resident and hibernated processes.
+     */
+    private void processPsAllCommand() {
+        String format = "%-14s %-11s %-10s %s%n";
+        System.out.printf(format, "ID", "STATUS", "RECLAIMED", "PROCESS");
+        for (MigratableProcess process : processes) {
+            System.out.printf(format, process.getId(), "resident", "-", process.toString());
+        }
+        long reclaimed = 0;
+        for (HibernationManager.HibernatedProcess record : hibernation.getHibernated()) {
+            reclaimed += record.getReclaimedBytes();
+            System.out.printf(format, record.getId(), "hibernated",
+                    record.getReclaimedBytes(), record.getDescription());
+        }
+        System.out.println("Memory reclaimed by hibernation: " + reclaimed + " bytes");
+    }
+
+    /**
+     * List the processes of all alive nodes. The nodes are asked in
+     * parallel with a <code>PS</code> request, the nodes which don't
+     * answer within <code>javapm.cluster.fanoutTimeoutMillis</code>
+     * are listed as missing. The answers update the directory.
+     *
+     * @see javapm.cluster.FanOut
+     * @see javapm.process.ControlClient#ps(String, int)
+     */
+    private void processPsClusterCommand() {
+        final int timeout = (int) config.getClusterFanoutTimeoutMillis();
+        List<String> nodes = new ArrayList<String>();
+        if (config.getGossipPort() > 0) {
+            for (LoadSummary peer : gossip.getPeers()) {
+                nodes.add(peer.getNode());
+            }
+        }
+        long started = System.nanoTime();
+        Map<String, List<ControlClient.RemoteProcess>> answers = FanOut.call(nodes,
+                new FanOut.Request<List<ControlClient.RemoteProcess>>() {
+                    public List<ControlClient.RemoteProcess> call(String node) throws IOException {
+                        return ControlClient.ps(node, timeout);
+                    }
+                }, timeout);
+        long elapsed = (System.nanoTime() - started) / 1000000;
+        String format = "%-14s %-22s %-11s %s%n";
+        System.out.printf(format, "ID", "NODE", "STATUS", "PROCESS");
+        int count = 0;
+        for (MigratableProcess process : processes) {
+            System.out.printf(format, process.getId(), config.getNodeName(), "resident",
+                    process.toString());
+            count++;
+        }
+        for (HibernationManager.HibernatedProcess record : hibernation.getHibernated()) {
+            System.out.printf(format, record.getId(), config.getNodeName(), "hibernated",
+                    record.getDescription());
+            count++;
+        }
+        for (Map.Entry<String, List<ControlClient.RemoteProcess>> answer : answers.entrySet()) {
+            for (ControlClient.RemoteProcess process : answer.getValue()) {
+                directory.record(process.getId(), answer.getKey(), process.getDescription());
+                System.out.printf(format, process.getId(), answer.getKey(), process.getStatus(),
+                        process.getDescription());
+                count++;
+            }
+        }
+        System.out.println(count + " processes on " + (answers.size() + 1) + " nodes in " +
+                elapsed + " ms");
+        for (String node : nodes) {
+            if (!answers.containsKey(node)) {
+                System.out.println("No answer from " + node);
+            }
+        }
+    }
+
+    /**
+     * Print the details of a process. A hibernated process is woken
+     * up first.
+     *
+     * @param idString the process ID
+     */
+    private void processPsDetailCommand(String idString) {
+        long id = Long.parseLong(idString);
+        MigratableProcess process = getProcess(id);
+        if (process == null && hibernation.isHibernated(id)) {
+            process = hibernation.wake(id);
+        }
+        if (process == null) {
+            System.out.println("No such process: " + idString);
+            return;
+        }
+        hibernation.touch(id);
+        System.out.println(process.toString());
+        System.out.println("status: resident");
+        for (TransactionalStream stream : process.getTransactionalStreams()) {
+            System.out.println("stream: " + stream.getFile() + " at offset " + stream.getOffset());
+        }
+    }
+
+    /**
+     * Run a process by using process name and arguments.
+     *
      * @param args command arguments
      * @see javapm.process.ProcessManager#startProcess(String, String[])
      */
     private void processRunCommand(String[] args) {
-        if (args.length <= 1) {
-            System.out.println("usage: run PROCESS_NAME ARG...");
+        String placementKey = null;
+        int first = 1;
+        if (args.length > 2 && args[1].equals("-k")) {
+            placementKey = args[2];
+            first = 3;
+        }
+        if (args.length <= first) {
+            System.out.println("usage: run [-k KEY] PROCESS_NAME ARG...");
         } else {
-            String processName = args[1];
-            String[] processArgs = new String[args.length - 2];
-            for (int i = 2; i < args.length; i++) {
-                processArgs[i - 2] = args[i];
+            String processName = args[first];
+            String[] processArgs = new String[args.length - first - 1];
+            for (int i = first + 1; i < args.length; i++) {
+                processArgs[i - first - 1] = args[i];
             }
             boolean contains = false;
             try {
-                contains = startProcess(processName, processArgs);
+                contains = startProcess(processName, processArgs, placementKey);
             } catch (Exception e) {
                 LOG.error("run command " + processName + " error", e);
                 return;
@@ -358,49 +1133,1073 @@ public class ProcessManager {
     }
 
     /**
-     * Migrate the specific process by using process ID
-     * First lookup the process by ID, then we connect 
-     * the specific host by <code>Socket</code>.
-     * If connected, suspend the process and call
-     * <code>statMigrating()</code>.
+     * Start or command another manager in this JVM.
+     * <ul>
+     * <li><code>tenant</code> lists the managers of this JVM,</li>
+     * <li><code>tenant add PORT [GOSSIP_PORT NODE_ID]</code> starts a
+     * manager with its process server on <code>PORT</code>; in the
+     * cluster it needs a node ID no other manager of this JVM has,</li>
+     * <li><code>tenant PORT COMMAND...</code> runs a command on the
+     * manager of <code>PORT</code>.</li>
+     * </ul>
      *
      * @param args command arguments
-     * @see javapm.process.ProcessManager#getProcess(long)
-     * @see javapm.process.ProcessManager#startMigrating(Socket, MigratableProcess, String)
+     * @see javapm.process.ProcessManagerConfig#forInstance(int, int, long)
+     */
+    private void processTenantCommand(String[] args) {
+        if (args.length == 1) {
+            String format = "%-22s %8s %6s%n";
+            System.out.printf(format, "NODE", "NODE_ID", "PROCS");
+            for (ProcessManager manager : new TreeMap<Integer, ProcessManager>(INSTANCES).values()) {
+                System.out.printf(format, manager.getNodeName() + (manager == this ? "*" : ""),
+                        manager.config.getNodeId(), manager.processes.size());
+            }
+            return;
+        }
+        if (args[1].equals("add") && args.length > 2) {
+            int port = Integer.parseInt(args[2]);
+            int gossipPort = args.length > 3 ? Integer.parseInt(args[3]) : 0;
+            long nodeId = args.length > 4 ? Long.parseLong(args[4]) : -1;
+            ProcessManager tenant;
+            try {
+                ProcessManagerConfig tenantConfig = config.forInstance(port, gossipPort, nodeId);
+                for (ProcessManager manager : INSTANCES.values()) {
+                    if (manager.config.getNodeId() == tenantConfig.getNodeId()) {
+                        System.out.println("Node ID " + tenantConfig.getNodeId() + " is used by " +
+                                manager.getNodeName());
+                        return;
+                    }
+                }
+                new ServerSocket(port).close();
+                tenant = new ProcessManager(tenantConfig);
+            } catch (IOException e) {
+                System.out.println("Port " + port + " is in use");
+                return;
+            } catch (IllegalArgumentException e) {
+                System.out.println(e.getMessage());
+                return;
+            } catch (IllegalStateException e) {
+                System.out.println(e.getMessage());
+                return;
+            }
+            tenant.startServer();
+            tenant.startHibernation();
+            tenant.startAccounting();
+            tenant.startCluster();
+            System.out.println("Started tenant " + tenant.getNodeName());
+            return;
+        }
+        if (args.length < 3) {
+            System.out.println("usage: tenant [add PORT [GOSSIP_PORT NODE_ID] | PORT COMMAND...]");
+            return;
+        }
+        ProcessManager tenant = INSTANCES.get(Integer.parseInt(args[1]));
+        if (tenant == null) {
+            System.out.println("No such tenant: " + args[1]);
+            return;
+        }
+        if (ProcessManagerCommand.getInstance(args[2].toLowerCase()) == ProcessManagerCommand.QUIT) {
+            System.out.println("quit would stop all tenants, use it on the console");
+            return;
+        }
+        StringBuilder line = new StringBuilder();
+        for (int i = 2; i < args.length; i++) {
+            line.append(args[i]).append(' ');
+        }
+        tenant.processCommand(line.toString().trim());
+    }
+
+    /**
+     * Print the limits of the traffic shaper and the time migrations
+     * waited for it, or change a limit. A peer is its address, the
+     * limit of a peer applies to both directions.
+     *
+     * @param args command arguments
+     * @see javapm.io.TrafficShaper
+     */
+    private void processShapeCommand(String[] args) {
+        try {
+            if (args.length == 1) {
+                StringBuilder sb = new StringBuilder(shaper.toString());
+                sb.append("\nthrottled(ms):");
+                for (TrafficClass traffic : TrafficClass.values()) {
+                    sb.append(" " + traffic.getValue() + " " + metrics.getThrottledMillis(traffic));
+                }
+                System.out.println(sb.toString());
+            } else if (args.length == 3 && args[1].equals("node")) {
+                shaper.setRate(parseRate(args[2]));
+                System.out.println(shaper);
+            } else if (args.length == 3 && args[1].equals("peer")) {
+                shaper.setPeerRate(parseRate(args[2]));
+                System.out.println(shaper);
+            } else if (args.length == 4 && args[1].equals("peer")) {
+                String address = InetAddress.getByName(args[2]).getHostAddress();
+                shaper.setPeerRate(address, args[3].equals("default") ? -1 : parseRate(args[3]));
+                System.out.println(shaper);
+            } else {
+                System.out.println("usage: shape [node RATE | peer [HOST] RATE | peer HOST default]");
+            }
+        } catch (NumberFormatException e) {
+            System.out.println("bad rate: " + e.getMessage());
+        } catch (UnknownHostException e) {
+            System.out.println("unknown host: " + args[2]);
+        }
+    }
+
+    /**
+     * Parse a rate of the <code>shape</code> command
+     *
+     * @param value bytes per second
+     * @return the rate
+     * @throws NumberFormatException if the value is no rate
+     */
+    private static long parseRate(String value) {
+        long rate = Long.parseLong(value);
+        if (rate < 0) {
+            throw new NumberFormatException(value);
+        }
+        return rate;
+    }
+
+    /**
+     * Migrate the specific process by using process ID.
+     * The host may carry the port of its process server as
+     * <code>HOST:PORT</code>, otherwise the default
+     * <code>ProcessServer.PORT</code> is used. Without a host, the
+     * target is chosen by <code>chooseTarget()</code>, a busy target
+     * is replaced by the next one.
+     *
+     * @param args command arguments
+     * @see javapm.process.ProcessManager#migrate(long, String, int)
+     * @see javapm.process.ProcessManager#chooseTarget()
      */
     private void processMigrateCommand(String[] args) {
-        if (args.length <= 2) {
-            System.out.println("usage: mg PROCESS_ID HOSTNAME");
+        if (args.length == 2) {
+            long id = Long.parseLong(args[1]);
+            for (int attempt = 0; attempt <= config.getAdmissionRetries(); attempt++) {
+                LoadSummary target = chooseTarget();
+                if (target == null) {
+                    System.out.println("No healthy peer, use mg PROCESS_ID HOSTNAME[:PORT]");
+                    return;
+                }
+                if (migrate(id, target.getHost(), target.getPort(), TrafficClass.NORMAL, 0)) {
+                    target.addProcess(0);
+                    return;
+                }
+                if (!isBusy(target.getNode())) {
+                    return;
+                }
+            }
+        } else if (args.length < 2) {
+            System.out.println("usage: mg PROCESS_ID [HOSTNAME[:PORT]]");
         } else {
             long id = Long.parseLong(args[1]);
             String hostName = args[2];
-            MigratableProcess process = getProcess(id);
+            int port = ProcessServer.PORT;
+            int split = hostName.lastIndexOf(':');
+            if (split > 0) {
+                port = Integer.parseInt(hostName.substring(split + 1));
+                hostName = hostName.substring(0, split);
+            }
+            migrate(id, hostName, port);
+        }
+    }
+
+    /**
+     * Migrate a process to the process server at
+     * <code>hostName:port</code>.
+     * First lookup the process by ID, then we connect 
+     * the specific host by <code>Socket</code>.
+     * If connected, suspend the process (or load it back if it is
+     * hibernated) and call <code>startMigrating()</code>. A process
+     * is migrated by one caller at a time, the console and the
+     * rebalancer may both call this method.
+     *
+     * @param id the process ID
+     * @param hostName the host of the receiver
+     * @param port the process server port of the receiver
+     * @return if the process runs on the receiver return <code>true</code>
+     * @see javapm.process.ProcessManager#getProcess(long)
+     * @see javapm.process.ProcessManager#startMigrating(ShapedSocket, MigratableProcess, String, long, long)
+     */
+    public boolean migrate(long id, String hostName, int port) {
+        return migrate(id, hostName, port, TrafficClass.NORMAL);
+    }
+
+    /**
+     * Migrate a process to the process server at
+     * <code>hostName:port</code>, its transfer is shaped in a traffic
+     * class.
+     *
+     * @param id the process ID
+     * @param hostName the host of the receiver
+     * @param port the process server port of the receiver
+     * @param traffic the class of the transfer
+     * @return if the process runs on the receiver return <code>true</code>
+     * @see javapm.io.TrafficShaper
+     */
+    public boolean migrate(long id, String hostName, int port, TrafficClass traffic) {
+        return migrate(id, hostName, port, traffic, config.getAdmissionRetries());
+    }
+
+    /**
+     * Migrate a process, and ask a receiver which refuses it again
+     * after the time it answered
+     *
+     * @param id the process ID
+     * @param hostName the host of the receiver
+     * @param port the process server port of the receiver
+     * @param traffic the class of the transfer
+     * @param retries the number of times a refusing receiver is asked
+     *                again
+     * @return if the process runs on the receiver return <code>true</code>
+     * @see javapm.process.AdmissionControl
+     */
+    private boolean migrate(long id, String hostName, int port, TrafficClass traffic,
+                            int retries) {
+        if (!migrating.add(id)) {
+            System.out.println("Process " + id + " is migrating");
+            return false;
+        }
+        try {
+            for (int attempt = 0; ; attempt++) {
+                try {
+                    return tryMigrate(id, hostName, port, traffic);
+                } catch (BusyException e) {
+                    System.out.println(e.getMessage());
+                    if (attempt >= retries) {
+                        return false;
+                    }
+                    Thread.sleep(e.getRetryAfterMillis());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            migrating.remove(id);
+        }
+    }
+
+    /**
+     * Migrate a process once, the caller has marked it as migrating.
+     * The receiver is asked for admission before the process is
+     * suspended.
+     *
+     * @param id the process ID
+     * @param hostName the host of the receiver
+     * @param port the process server port of the receiver
+     * @param traffic the class of the transfer
+     * @return if the process runs on the receiver return <code>true</code>
+     * @throws BusyException if the receiver refused the migration, the
+     *                       process keeps running here
+     */
+    private boolean tryMigrate(long id, String hostName, int port, TrafficClass traffic)
+            throws BusyException {
+        MigratableProcess process = getProcess(id);
+        boolean suspended = false;
+        if (process == null && !hibernation.isHibernated(id)) {
+            System.out.println("No such process: " + id);
+            return false;
+        }
+        ShapedSocket socket = null;
+        ProcessManager sibling = getSibling(hostName, port);
+        SocketChannel local = sibling == null ? localTransport.connect(hostName, port) : null;
+        try {
+            if (sibling == null && local == null) {
+                socket = new ShapedSocket(hostName, port, shaper, traffic);
+            }
+            requestAdmission(sibling, socket, local, hostName + ":" + port,
+                    process == null ? 0 : process.getTransferSize());
             if (process == null) {
-                System.out.println("No such process: " + args[1]);
-                return;
+                process = hibernation.rehydrate(id);
+                suspended = true;
+                if (process == null) {
+                    close(socket, local);
+                    System.out.println("No such process: " + id);
+                    return false;
+                }
             }
-            Socket socket = null;
-            try {
-            	socket = new Socket(hostName, ProcessServer.PORT);
-                
+            
+	            long started = System.nanoTime();
+	            FlightEvents.beginMigration();
 	            try {
-	                process.suspend();
+	                if (!suspended)
+	                    process.suspend();
 	            } catch (InterruptedException e) {
 	                LOG.error(process.getClass().getSimpleName() +
 	                        "[" + id + "] suspend error", e);
-	                return;
+	                FlightEvents.endMigration(FlightEvents.SEND, id,
+	                        process.getClass().getName(), hostName, false);
+	                close(socket, local);
+	                return false;
+	            }
+	            long stopped = System.nanoTime();
+	            metrics.record(MigrationPhase.SUSPEND, stopped - started);
+	            if (sibling != null) {
+	                return handOver(sibling, process, hostName + ":" + port, started, stopped);
 	            }
-	            startMigrating(socket, process, hostName);
+	            if (local != null) {
+	                return startLocalMigrating(local, process, hostName + ":" + port,
+	                        started, stopped);
+	            }
+	            boolean status = startMigrating(socket, process, hostName + ":" + port,
+	                    started, stopped);
 
 	            socket.close();
+	            return status;
+        }
+        catch (BusyException e) {
+            close(socket, local);
+            throw e;
+        }
+        catch (IOException e) {
+        	System.out.println("Connect " + hostName + " failed: " +
+                    e.getMessage());
+        	close(socket, local);
+        	return false;
+        }
+    }
+
+    /**
+     * Ask the receiver to admit a migration. A refusing receiver is
+     * remembered as busy until the time it answered, so the choice of
+     * a target passes over it.
+     *
+     * @param sibling the receiving manager of this JVM, may be null
+     * @param socket  the TCP socket, may be null
+     * @param local   the local channel, may be null
+     * @param peer    the receiver, <code>HOST:PORT</code>
+     * @param size    the bytes the migration transfers
+     * @throws BusyException if the receiver refused the migration
+     * @throws IOException   if the connection fails
+     * @see javapm.process.AdmissionControl
+     */
+    private void requestAdmission(ProcessManager sibling, Socket socket, SocketChannel local,
+                                  String peer, long size) throws IOException {
+        try {
+            if (sibling != null) {
+                long retry = sibling.admission.admit(size);
+                if (retry != AdmissionControl.ADMITTED) {
+                    throw new BusyException(peer, retry);
+                }
+                // the handoff takes no time, only the limits are checked
+                sibling.admission.release(size);
+            } else if (local != null) {
+                AdmissionControl.request(new DataOutputStream(Channels.newOutputStream(local)),
+                        new DataInputStream(Channels.newInputStream(local)), peer, size);
+            } else {
+                AdmissionControl.request(new DataOutputStream(socket.getOutputStream()),
+                        new DataInputStream(socket.getInputStream()), peer, size);
+            }
+        } catch (BusyException e) {
+            busyUntil.put(peer, System.currentTimeMillis() + e.getRetryAfterMillis());
+            throw e;
+        }
+    }
+
+    /**
+     * Check if the failure detector sees a node alive. Without gossip
+     * no node is known alive.
+     *
+     * @param node the node name <code>HOST:PORT</code>
+     * @return if it is an alive member return <code>true</code>
+     */
+    public boolean isAlive(String node) {
+        if (config.getGossipPort() <= 0) {
+            return false;
+        }
+        for (LoadSummary peer : gossip.getPeers()) {
+            if (peer.getNode().equals(node)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Check if a node refused a migration and its retry time has not
+     * passed yet
+     *
+     * @param node the node name <code>HOST:PORT</code>
+     * @return if it is busy return <code>true</code>
+     */
+    public boolean isBusy(String node) {
+        Long until = busyUntil.get(node);
+        if (until == null) {
+            return false;
+        }
+        if (until > System.currentTimeMillis()) {
+            return true;
+        }
+        busyUntil.remove(node, until);
+        return false;
+    }
+
+    /**
+     * Get the alive members which may take a migration now, the busy
+     * ones are left out
+     *
+     * @return the summaries, empty if gossip is off
+     */
+    public List<LoadSummary> getTargets() {
+        List<LoadSummary> targets = new ArrayList<LoadSummary>();
+        if (config.getGossipPort() <= 0) {
+            return targets;
+        }
+        for (LoadSummary peer : gossip.getPeers()) {
+            if (!isBusy(peer.getNode())) {
+                targets.add(peer);
+            }
+        }
+        return targets;
+    }
+
+    /**
+     * Migrate a process which the caller has suspended and marked as
+     * migrating, it is used by the drain. If the migration fails after
+     * the connection, the process is restarted on this node.
+     *
+     * @param process  the suspended process
+     * @param hostName the host of the receiver
+     * @param port     the process server port of the receiver
+     * @param started  the time the suspension started
+     * @param stopped  the time the process stopped
+     * @return if the process runs on the receiver return <code>true</code>
+     * @throws IOException if the receiver can't be reached, the process
+     *                     is still suspended
+     */
+    boolean migrateSuspended(MigratableProcess process, String hostName, int port,
+                             long started, long stopped) throws IOException {
+        ProcessManager sibling = getSibling(hostName, port);
+        if (sibling != null) {
+            requestAdmission(sibling, null, null, hostName + ":" + port,
+                    process.getTransferSize());
+            FlightEvents.beginMigration();
+            metrics.record(MigrationPhase.SUSPEND, stopped - started);
+            return handOver(sibling, process, hostName + ":" + port, started, stopped);
+        }
+        SocketChannel local = localTransport.connect(hostName, port);
+        if (local != null) {
+            try {
+                requestAdmission(null, null, local, hostName + ":" + port,
+                        process.getTransferSize());
+            } catch (IOException e) {
+                close(null, local);
+                throw e;
+            }
+            FlightEvents.beginMigration();
+            metrics.record(MigrationPhase.SUSPEND, stopped - started);
+            return startLocalMigrating(local, process, hostName + ":" + port, started, stopped);
+        }
+        ShapedSocket socket = new ShapedSocket(hostName, port, shaper, TrafficClass.URGENT);
+        try {
+            requestAdmission(null, socket, null, hostName + ":" + port, process.getTransferSize());
+        } catch (IOException e) {
+            close(socket, null);
+            throw e;
+        }
+        FlightEvents.beginMigration();
+        metrics.record(MigrationPhase.SUSPEND, stopped - started);
+        return startMigrating(socket, process, hostName + ":" + port, started, stopped);
+    }
+
+    /**
+     * Get the other manager of this JVM which runs the process server
+     * at <code>host:port</code>
+     *
+     * @param hostName the host of the receiver
+     * @param port     the process server port of the receiver
+     * @return the manager, null if the receiver is not in this JVM
+     */
+    private ProcessManager getSibling(String hostName, int port) {
+        ProcessManager sibling = INSTANCES.get(port);
+        if (sibling == null || sibling == this || !localTransport.isLocalHost(hostName)) {
+            return null;
+        }
+        return sibling;
+    }
+
+    /**
+     * Migrate a suspended process to another manager of this JVM.
+     * The live object is handed over, nothing is serialized and the
+     * streams stay open.
+     *
+     * @param sibling the receiving manager
+     * @param process the suspended process
+     * @param peer    the receiver, <code>HOST:PORT</code>
+     * @param started the time the migration started
+     * @param stopped the time the process stopped
+     * @return always <code>true</code>
+     */
+    private boolean handOver(ProcessManager sibling, MigratableProcess process, String peer,
+                             long started, long stopped) {
+        long start = System.nanoTime();
+        sibling.adopt(process);
+        metrics.record(MigrationPhase.OBJECT_TRANSFER, System.nanoTime() - start);
+        finishMigrating(process, peer, started, stopped, true);
+        return true;
+    }
+
+    /**
+     * Continue a process suspended by another manager of this JVM
+     *
+     * @param process the suspended process
+     */
+    private void adopt(MigratableProcess process) {
+        long start = System.nanoTime();
+        resumeProcess(process);
+        metrics.record(MigrationPhase.RESUME, System.nanoTime() - start);
+        metrics.receive();
+        System.out.println("Received " + process.toString());
+    }
+
+    /**
+     * Close the connection of a migration which didn't start
+     *
+     * @param socket the TCP socket, may be null
+     * @param local  the local channel, may be null
+     */
+    private static void close(Socket socket, SocketChannel local) {
+        try {
+            if (socket != null) {
+                socket.close();
+            }
+            if (local != null) {
+                local.close();
+            }
+        } catch (IOException e) {
+            LOG.debug("close migration connection error", e);
+        }
+    }
+
+    /**
+     * Mark a process as migrating
+     *
+     * @param id the process ID
+     * @return if the process was not migrating return <code>true</code>
+     */
+    boolean beginMigrating(long id) {
+        return migrating.add(id);
+    }
+
+    /**
+     * Clear the migrating mark of a process
+     *
+     * @param id the process ID
+     */
+    void endMigrating(long id) {
+        migrating.remove(id);
+    }
+
+    /**
+     * Drain this node, print the progress or cancel the drain.
+     *
+     * @param args command arguments
+     * @see javapm.process.DrainCoordinator
+     */
+    private void processDrainCommand(String[] args) {
+        if (args.length > 1 && args[1].equals("cancel")) {
+            System.out.println(drain.cancel() ? "Drain cancelling" : "No drain running");
+        } else if (args.length > 1 && args[1].equals("status")) {
+            System.out.println(drain.status());
+        } else if (args.length > 1) {
+            System.out.println("usage: drain [cancel|status]");
+        } else {
+            int total = drain.start(null);
+            System.out.println(total < 0 ? "A drain is running" : "Draining " + total + " processes");
+        }
+    }
+
+    /**
+     * Take an incremental checkpoint of a running process.
+     * The process is suspended while its fields are compared with
+     * the last checkpoint, then it continues.
+     *
+     * @param args command arguments
+     * @see javapm.checkpoint.CheckpointStore#checkpoint(MigratableProcess)
+     */
+    private void processCheckpointCommand(String[] args) {
+        if (args.length <= 1) {
+            System.out.println("usage: checkpoint PROCESS_ID");
+            return;
+        }
+        long id = Long.parseLong(args[1]);
+        MigratableProcess process = getProcess(id);
+        if (process == null) {
+            System.out.println("No such process: " + args[1]);
+            return;
+        }
+        try {
+            process.suspend();
+        } catch (InterruptedException e) {
+            LOG.error(process.getClass().getSimpleName() +
+                    "[" + id + "] suspend error", e);
+            return;
+        }
+        try {
+            long bytes = checkpointStore.checkpoint(process);
+            System.out.println("Checkpointed " + process.getClass().getSimpleName() +
+                    "[" + id + "]: " + bytes + " bytes written to " +
+                    checkpointStore.getLogFile(id));
+        } catch (IOException e) {
+            LOG.error(process.getClass().getSimpleName() +
+                    "[" + id + "] checkpoint error", e);
+        } finally {
+            resumeProcess(process);
+        }
+    }
+
+    /**
+     * Rebuild a process from its checkpoint log and start it.
+     * Like a migrated process, the restored process keeps its ID.
+     *
+     * @param args command arguments
+     * @see javapm.checkpoint.CheckpointStore#restore(File)
+     */
+    private void processRestoreCommand(String[] args) {
+        if (args.length <= 1) {
+            System.out.println("usage: restore PROCESS_ID");
+            return;
+        }
+        long id = Long.parseLong(args[1]);
+        if (getProcess(id) != null) {
+            System.out.println("Process " + id + " is running");
+            return;
+        }
+        File logFile = checkpointStore.getLogFile(id);
+        if (!logFile.exists()) {
+            System.out.println("No checkpoint of process " + id);
+            return;
+        }
+        try {
+            MigratableProcess process = CheckpointStore.restore(logFile);
+            checkpointStore.remove(id);
+            process.migrated();
+            startProcess(process);
+            System.out.println("Restored " + process.toString());
+        } catch (IOException e) {
+            LOG.error("restore process " + id + " error", e);
+        }
+    }
+
+    /**
+     * Hibernate a resident process. With <code>WAKE_SECONDS</code>,
+     * the process is woken up by a timer.
+     *
+     * @param args command arguments
+     * @see javapm.process.HibernationManager#hibernate(MigratableProcess, long)
+     */
+    private void processHibernateCommand(String[] args) {
+        if (args.length <= 1) {
+            System.out.println("usage: hibernate PROCESS_ID [WAKE_SECONDS]");
+            return;
+        }
+        long id = Long.parseLong(args[1]);
+        MigratableProcess process = getProcess(id);
+        if (process == null) {
+            System.out.println("No such process: " + args[1]);
+            return;
+        }
+        long wakeAt = 0;
+        if (args.length > 2) {
+            wakeAt = System.currentTimeMillis() + Long.parseLong(args[2]) * 1000;
+        }
+        if (hibernation.hibernate(process, wakeAt)) {
+            System.out.println("Hibernated " + process.toString());
+        }
+    }
+
+    /**
+     * Wake a hibernated process.
+     *
+     * @param args command arguments
+     * @see javapm.process.HibernationManager#wake(long)
+     */
+    private void processWakeCommand(String[] args) {
+        if (args.length <= 1) {
+            System.out.println("usage: wake PROCESS_ID");
+            return;
+        }
+        long id = Long.parseLong(args[1]);
+        if (!hibernation.isHibernated(id)) {
+            System.out.println("Process " + id + " is not hibernated");
+            return;
+        }
+        MigratableProcess process = hibernation.wake(id);
+        if (process != null) {
+            System.out.println("Woke " + process.toString());
+        }
+    }
+
+    /**
+     * Print the migration metrics, <code>stats reset</code> clears them.
+     *
+     * @param args command arguments
+     * @see javapm.metrics.MigrationMetrics
+     */
+    private void processStatsCommand(String[] args) {
+        if (args.length > 1 && args[1].equals("reset")) {
+            metrics.reset();
+            System.out.println("Migration metrics cleared");
+            return;
+        }
+        System.out.println(metrics.toString());
+        System.out.println(admission.toString());
+        System.out.println(stealer.toString());
+        System.out.println(prestager.toString());
+        System.out.println(replicator.toString());
+        System.out.println(replicas.toString());
+        System.out.println(forwarder.toString());
+    }
+
+    /**
+     * Replicate a process to a standby, stop it, fail over the
+     * processes of a primary now, or print the replicated processes.
+     *
+     * @param args command arguments
+     * @see javapm.process.Replicator
+     * @see javapm.process.ReplicaStore#failover(String)
+     */
+    private void processReplicateCommand(String[] args) {
+        if (args.length == 1) {
+            for (Map.Entry<Long, String> entry : replicator.getReplicated().entrySet()) {
+                System.out.println(entry.getKey() + " -> " + entry.getValue());
             }
-            catch (IOException e) {
-            	System.out.println("Connect " + hostName + " failed: " +
-                        e.getMessage());
-            	return;
+            for (Map.Entry<String, Integer> entry : replicas.getPrimaries().entrySet()) {
+                System.out.println(entry.getValue() + " processes of " + entry.getKey());
+            }
+            return;
+        }
+        try {
+            if (args[1].equals("failover") && args.length > 2) {
+                System.out.println("Resumed " + replicas.failover(args[2]) + " processes of " +
+                        args[2]);
+            } else if (args[1].equals("stop") && args.length > 2) {
+                long id = Long.parseLong(args[2]);
+                System.out.println(replicator.stop(id) ? "Stopped replicating " + id :
+                        "Process " + id + " is not replicated");
+            } else {
+                long id = Long.parseLong(args[1]);
+                if (getProcess(id) == null) {
+                    System.out.println("No such process " + id);
+                    return;
+                }
+                String standby = replicator.start(id, args.length > 2 ? args[2] : null);
+                if (standby == null) {
+                    System.out.println("No standby, set javapm.replication.standby");
+                } else {
+                    System.out.println("Replicating " + id + " to " + standby);
+                }
             }
+        } catch (NumberFormatException e) {
+            System.out.println("invalid process ID");
         }
+    }
+
+    /**
+     * Run one round of pre-staging now, and print the number of
+     * copied files.
+     *
+     * @see javapm.process.PreStager#stage()
+     */
+    private void processPrestageCommand() {
+        System.out.println("Copied " + prestager.stage() + " input files");
+    }
+
+    /**
+     * Run one round of work stealing now, and print the processes
+     * granted by each node.
+     *
+     * @see javapm.cluster.WorkStealer#steal()
+     */
+    private void processStealCommand() {
+        if (config.getGossipPort() <= 0) {
+            System.out.println("Gossip is off, set javapm.gossip.port");
+            return;
+        }
+        Map<String, Integer> granted = stealer.steal();
+        if (granted.isEmpty()) {
+            System.out.println("Nothing to steal, " + processes.size() + " processes, threshold " +
+                    config.getStealThreshold());
+            return;
+        }
+        for (Map.Entry<String, Integer> entry : granted.entrySet()) {
+            System.out.println(entry.getKey() + " gives " + entry.getValue() + " processes");
+        }
+    }
+
+    /**
+     * Print the load of this node and of the alive members, with the
+     * bandwidth measured to each of them.
+     *
+     * @see javapm.cluster.GossipService
+     */
+    private void processClusterCommand() {
+        if (config.getGossipPort() <= 0) {
+            System.out.println("Gossip is off, set javapm.gossip.port");
+            return;
+        }
+        String format = "%-22s %6s %6s %6s %12s %7s %8s %12s%n";
+        System.out.printf(format, "NODE", "PROCS", "CPU", "HEAP", "IO(B/s)", "LOAD", "AGE(ms)",
+                "LINK(B/s)");
+        List<LoadSummary> nodes = new ArrayList<LoadSummary>();
+        nodes.add(gossip.localSummary());
+        nodes.addAll(gossip.getPeers());
+        long now = System.currentTimeMillis();
+        for (LoadSummary node : nodes) {
+            boolean local = node.getNode().equals(config.getNodeName());
+            System.out.printf(format, node.getNode() + (local ? "*" : ""), node.getProcesses(),
+                    String.format("%.2f", node.getCpu()), String.format("%.2f", node.getHeap()),
+                    String.format("%.0f", node.getThroughput()), String.format("%.2f", node.getLoad()),
+                    now - node.getReceivedAt(),
+                    local ? "-" : String.format("%.0f", links.get(node.getNode())));
+        }
+    }
+
+    /**
+     * Print the peer table: the status and suspicion level of every
+     * member, the age of its last heartbeat, its capacity and load.
+     *
+     * @see javapm.cluster.Membership
+     */
+    private void processPeersCommand() {
+        if (config.getGossipPort() <= 0) {
+            System.out.println("Gossip is off, set javapm.gossip.port");
+            return;
+        }
+        Membership membership = gossip.getMembership();
+        String format = "%-22s %-22s %-8s %6s %8s %5s %7s %5s %6s %6s%n";
+        System.out.printf(format, "NODE", "GOSSIP", "STATUS", "PHI", "AGE(ms)", "CORES",
+                "HEAP(M)", "CAP", "PROCS", "LOAD");
+        long now = System.currentTimeMillis();
+        for (Membership.Member member : membership.getMembers()) {
+            LoadSummary summary = member.getSummary();
+            long last = member.getLastHeartbeat();
+            String node = member.getNode() == null ? "?" : member.getNode();
+            if (summary == null) {
+                System.out.printf(format, node + (member.isSeed() ? " (seed)" : ""),
+                        member.getAddress(), membership.status(member, now), "-", "-", "-", "-",
+                        "-", "-", "-");
+                continue;
+            }
+            System.out.printf(format, node + (member.isSeed() ? " (seed)" : ""),
+                    member.getAddress(), membership.status(member, now),
+                    String.format("%.2f", Math.min(member.phi(now), 999.99)), now - last,
+                    summary.getCores(), summary.getMaxHeap() / (1024 * 1024),
+                    summary.getCapacity() > 0 ? String.valueOf(summary.getCapacity()) : "-",
+                    summary.getProcesses(), String.format("%.2f", summary.getLoad()));
+        }
+    }
 
+    /**
+     * Choose the target of a migration without a host: the alive
+     * member with the lowest load whose heap is below the hibernation
+     * watermark and which has a free slot of its capacity.
+     *
+     * @return the summary of the target, or null if no member fits
+     * @see javapm.cluster.Membership#coldest(double)
+     */
+    public LoadSummary chooseTarget() {
+        if (config.getGossipPort() <= 0) {
+            return null;
+        }
+        return Membership.coldest(getTargets(), heapLimit());
+    }
+
+    /**
+     * Plan the targets of many processes at once, e.g. for a drain.
+     * The processes with a placement key go to their ring owner once
+     * this node has left, the others are spread over copies of the
+     * member summaries, each copy is charged with the processes given
+     * to it, so no member gets more than its capacity.
+     *
+     * @param batch the processes
+     * @return the node name of each process, in order, null if no
+     *         member fits
+     */
+    List<String> planTargets(List<MigratableProcess> batch) {
+        List<LoadSummary> peers = new ArrayList<LoadSummary>();
+        for (LoadSummary peer : getTargets()) {
+            peers.add(peer.copy());
+        }
+        List<String> targets = new ArrayList<String>();
+        for (MigratableProcess process : batch) {
+            String key = process.getPlacementKey();
+            String home = config.isRingPlacement() && key != null ? placement.home(key, true) : null;
+            if (home != null) {
+                targets.add(home);
+                continue;
+            }
+            LoadSummary target = Membership.coldest(peers, heapLimit());
+            if (target != null) {
+                target.addProcess(process.getAccounting().getCpuLoad());
+                targets.add(target.getNode());
+            } else {
+                targets.add(null);
+            }
+        }
+        return targets;
+    }
+
+    /**
+     * The heap usage above which a member takes no process
+     */
+    private double heapLimit() {
+        return config.getHibernateHeapWatermark() > 0 ?
+                config.getHibernateHeapWatermark() : 1.0;
+    }
+
+    /**
+     * Choose the target of a process when this node leaves: the owner
+     * of its placement key once this node is off the ring, if ring
+     * placement is on, otherwise <code>chooseTarget()</code>.
+     *
+     * @param process the process
+     * @return the node name <code>HOST:PORT</code>, or null if no
+     *         member fits
+     */
+    public String chooseTarget(MigratableProcess process) {
+        String key = process.getPlacementKey();
+        if (config.isRingPlacement() && key != null) {
+            String home = placement.home(key, true);
+            if (home != null) {
+                return home;
+            }
+        }
+        LoadSummary target = chooseTarget();
+        if (target == null) {
+            return null;
+        }
+        // charge the target now, so a drain spreads over the members
+        target.addProcess(process.getAccounting().getCpuLoad());
+        return target.getNode();
+    }
+
+    /**
+     * Find the resident processes of a placement key
+     *
+     * @param key the placement key
+     * @return the processes
+     */
+    public List<MigratableProcess> findByKey(String key) {
+        List<MigratableProcess> found = new ArrayList<MigratableProcess>();
+        for (MigratableProcess process : processes) {
+            if (key.equals(process.getPlacementKey())) {
+                found.add(process);
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Locate a placement key: its home node is found by a binary
+     * search of the local ring, which every node builds from the
+     * membership, then the home node is asked for its processes of
+     * the key with a <code>LOOKUP</code> request.
+     *
+     * @param args command arguments
+     * @see javapm.cluster.HashRing#owner(String)
+     * @see javapm.process.ProcessServer#LOOKUP
+     */
+    private void processLocateCommand(String[] args) {
+        if (args.length > 2 && args[1].equals("-p")) {
+            locateProcess(Long.parseLong(args[2]));
+            return;
+        }
+        if (args.length <= 1) {
+            System.out.println("usage: locate KEY | locate -p PROCESS_ID");
+            return;
+        }
+        if (!config.isRingPlacement()) {
+            System.out.println("Ring placement is off, set javapm.ring.placement");
+            return;
+        }
+        String key = args[1];
+        long started = System.nanoTime();
+        String home = placement.home(key, false);
+        List<String> found = new ArrayList<String>();
+        if (home.equals(config.getNodeName())) {
+            for (MigratableProcess process : findByKey(key)) {
+                found.add(process.toString());
+            }
+        } else {
+            try {
+                for (ControlClient.RemoteProcess process : ControlClient.lookup(home, key,
+                        (int) config.getClusterFanoutTimeoutMillis())) {
+                    found.add(process.getDescription());
+                }
+            } catch (IOException e) {
+                System.out.println("Connect " + home + " failed: " + e.getMessage());
+                return;
+            }
+        }
+        System.out.println(key + " -> " + home + " (" +
+                (System.nanoTime() - started) / 1000000 + " ms)");
+        if (found.isEmpty()) {
+            System.out.println("  no process");
+        }
+        for (String process : found) {
+            System.out.println("  " + process);
+        }
+    }
+
+    /**
+     * Locate a process by its ID. The node of the directory is asked
+     * first with a <code>FIND</code> request, if it doesn't have the
+     * process any more, all alive nodes are asked in parallel.
+     *
+     * @param id the process ID
+     * @see javapm.cluster.ProcessDirectory
+     * @see javapm.process.ControlClient#find(String, long, int)
+     */
+    private void locateProcess(final long id) {
+        long started = System.nanoTime();
+        if (getProcess(id) != null || hibernation.isHibernated(id)) {
+            System.out.println(id + " -> " + config.getNodeName() + " (local)");
+            return;
+        }
+        final int timeout = (int) config.getClusterFanoutTimeoutMillis();
+        ProcessDirectory.Location hint = directory.lookup(id);
+        if (hint != null && !hint.getNode().equals(config.getNodeName())) {
+            try {
+                ControlClient.RemoteProcess process = ControlClient.find(hint.getNode(), id, timeout);
+                if (process != null) {
+                    directory.record(id, hint.getNode(), process.getDescription());
+                    System.out.println(id + " -> " + hint.getNode() + " (directory, " +
+                            (System.nanoTime() - started) / 1000000 + " ms)");
+                    System.out.println("  " + process.getStatus() + " " + process.getDescription());
+                    return;
+                }
+            } catch (IOException e) {
+                LOG.debug("directory hint " + hint.getNode() + " failed", e);
+            }
+        }
+        List<String> nodes = new ArrayList<String>();
+        if (config.getGossipPort() > 0) {
+            for (LoadSummary peer : gossip.getPeers()) {
+                nodes.add(peer.getNode());
+            }
+        }
+        Map<String, ControlClient.RemoteProcess> answers = FanOut.call(nodes,
+                new FanOut.Request<ControlClient.RemoteProcess>() {
+                    public ControlClient.RemoteProcess call(String node) throws IOException {
+                        return ControlClient.find(node, id, timeout);
+                    }
+                }, timeout);
+        long elapsed = (System.nanoTime() - started) / 1000000;
+        if (answers.isEmpty()) {
+            directory.forget(id);
+            System.out.println("No such process: " + id + " (" + nodes.size() + " nodes asked, " +
+                    elapsed + " ms)");
+            return;
+        }
+        for (Map.Entry<String, ControlClient.RemoteProcess> answer : answers.entrySet()) {
+            directory.record(id, answer.getKey(), answer.getValue().getDescription());
+            System.out.println(id + " -> " + answer.getKey() + " (fan-out, " + elapsed + " ms)");
+            System.out.println("  " + answer.getValue().getStatus() + " " +
+                    answer.getValue().getDescription());
+        }
     }
 
     /**
@@ -420,34 +2219,47 @@ public class ProcessManager {
      */
     private void sendFile(Socket socket,String filename) throws IOException
     {
-        File myFile = new File(filename);
-        byte[] myByteArray = new byte[1024];
-        DataInputStream in = new DataInputStream(socket.getInputStream());
-        DataOutputStream out = new DataOutputStream(socket.getOutputStream());
-        out.writeUTF(filename);
-        out.writeLong(myFile.length());
-        System.out.println("file length: " + myFile.length());
-        FileInputStream fis = new FileInputStream(myFile);
-        //bis.read(mybytearray, 0, mybytearray.length);
-        OutputStream os = new BufferedOutputStream(socket.getOutputStream()) ;
-        //os.write((int)myFile.length());
-        int readableBytes=1024*25;
-        int n=(int)(myFile.length()/readableBytes);
-        int r=(int)(myFile.length()%readableBytes);
-        byte b[];
-        for(int i=0;i<n;i++)
-        {            
-            b=new byte[readableBytes];
-            fis.read(b);
-            os.write(b);  
-            os.flush();
-        }
-        b=new byte[r];
-        fis.read(b);
-        os.write(b);  
-        os.flush();
-        
-        
+        sendFile(socket, new File(filename), filename);
+    }
+
+    /**
+     * Send a local file under another name, the receiver stores
+     * the file as <code>remoteName</code>. The bytes are followed by
+     * their CRC32, which the receiver checks.
+     *
+     * @param socket the server socket
+     * @param myFile the local file
+     * @param remoteName the file name on the receiver
+     * @return the number of bytes sent
+     * @throws IOException if any IO error occurs
+     */
+    long sendFile(Socket socket, File myFile, String remoteName) throws IOException
+    {
+        Object event = FlightEvents.beginFileTransfer();
+        long length = myFile.length();
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                socket.getOutputStream(), FILE_CHUNK));
+        out.writeUTF(remoteName);
+        out.writeLong(length);
+        metrics.addBytesSent(length);
+        CRC32 crc = new CRC32();
+        DataInputStream fis = new DataInputStream(new FileInputStream(myFile));
+        try {
+            byte[] b = new byte[FILE_CHUNK];
+            for (long left = length; left > 0; ) {
+                int n = (int) Math.min(b.length, left);
+                fis.readFully(b, 0, n);
+                crc.update(b, 0, n);
+                out.write(b, 0, n);
+                left -= n;
+            }
+        } finally {
+            fis.close();
+        }
+        out.writeLong(crc.getValue());
+        out.flush();
+        FlightEvents.endFileTransfer(event, FlightEvents.SEND, remoteName, length);
+        return length;
     }
 //    
 //    private void startMigrating(Socket socket, MigratableProcess process, String hostName) throws IOException {
@@ -502,55 +2314,481 @@ public class ProcessManager {
     changing startMigrating so as to send object as a file
     */
     
-    private void startMigrating(Socket socket, MigratableProcess process, String hostName) throws IOException {
-    	/**
-         * adding code to transfer a file
-         * 
-         * 
-         */
-        String fileName = "i.txt";//to be modified later
-        sendFile(socket, fileName);
-        fileName = "o.txt";
-        sendFile(socket, fileName);
-        fileName = "object"+process.id + ".ser";
-        FileOutputStream fos = new FileOutputStream(fileName);
-        ObjectOutputStream out = new ObjectOutputStream(fos);
-        
- 	DataInputStream in = new DataInputStream(socket.getInputStream());
+    /**
+     * Send the stream files and the state of a suspended process, then
+     * wait for the status of the receiver. If the migration fails, the
+     * process restarts on this node. The bytes sent and the transfer
+     * time are added to the bandwidth estimate of the link.
+     *
+     * @param socket the server socket
+     * @param process the suspended process
+     * @param peer the receiver, <code>HOST:PORT</code>
+     * @param started the time the migration started
+     * @param stopped the time the process stopped
+     * @return if the process runs on the receiver return <code>true</code>
+     * @throws IOException if the socket can't be closed
+     */
+    private boolean startMigrating(ShapedSocket socket, MigratableProcess process, String peer,
+                                long started, long stopped) throws IOException {
+        DataInputStream in = new DataInputStream(socket.getInputStream());
         
         boolean status = false;
         try {    	
-            out.writeObject((Object)process);
-            sendFile(socket, fileName);
+            forwarder.detach(process);
+            long start = System.nanoTime();
+            long bytes;
+            if (config.isPipelinedMigration()) {
+                bytes = sendPipelined(socket, process);
+            } else {
+                bytes = sendStreamFiles(socket, process);
+                metrics.record(MigrationPhase.FILE_TRANSFER, System.nanoTime() - start);
+                if (config.isIncrementalMigration()) {
+                    bytes += sendCheckpoint(socket, process);
+                } else {
+                    bytes += sendObject(socket, process);
+                }
+            }
+            links.record(peer, bytes, System.nanoTime() - start);
             status = in.readBoolean();
         }
     	catch (IOException e1) {
     		LOG.error(process.getClass().getSimpleName() +
                     "[" + process.getId() + "] migration error", e1);
+            metrics.fail();
+            FlightEvents.endMigration(FlightEvents.SEND, process.getId(),
+                    process.getClass().getName(), peer, false);
     		restartProcess(process);
         	socket.close();
-        	return;
+        	return false;
     	}
+        socket.close();
+        finishMigrating(process, peer, started, stopped, status);
+        return status;
+    }
+
+    /**
+     * Migrate a suspended process over the local transport. The
+     * stream files are handed over by path, the receiver links them,
+     * and the process object is serialized into the channel.
+     *
+     * @param channel the local channel to the receiver
+     * @param process the suspended process
+     * @param peer the receiver, <code>HOST:PORT</code>
+     * @param started the time the migration started
+     * @param stopped the time the process stopped
+     * @return if the process runs on the receiver return <code>true</code>
+     * @see javapm.process.LocalReceiver
+     */
+    private boolean startLocalMigrating(SocketChannel channel, MigratableProcess process,
+                                        String peer, long started, long stopped) {
+        boolean status = false;
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    Channels.newOutputStream(channel)));
+            DataInputStream in = new DataInputStream(Channels.newInputStream(channel));
+            long start = System.nanoTime();
+            Set<File> files = new LinkedHashSet<File>();
+            for (TransactionalStream stream : process.getTransactionalStreams()) {
+                if (stream.getFile().isFile() && !OutputForwarder.isForwarded(stream)) {
+                    files.add(stream.getFile());
+                }
+            }
+            out.writeInt(files.size());
+            for (File file : files) {
+                out.writeUTF(file.getPath());
+                out.writeUTF(file.getAbsolutePath());
+            }
+            metrics.record(MigrationPhase.FILE_TRANSFER, System.nanoTime() - start);
+            long bytes;
+            start = System.nanoTime();
+            if (config.isIncrementalMigration()) {
+                IncrementalCheckpointer checkpointer =
+                        checkpointStore.getCheckpointer(process.getId());
+                checkpointer.checkpoint(process);
+                metrics.record(MigrationPhase.SERIALIZE, System.nanoTime() - start);
+                start = System.nanoTime();
+                out.writeUTF(remoteObjectName(process, CheckpointStore.EXTENSION));
+                out.writeUTF(checkpointer.getLogFile().getAbsolutePath());
+                bytes = 0;
+            } else {
+                ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+                ObjectOutputStream objectOut = new ObjectOutputStream(buffer);
+                objectOut.writeObject((Object) process);
+                objectOut.close();
+                metrics.record(MigrationPhase.SERIALIZE, System.nanoTime() - start);
+                start = System.nanoTime();
+                out.writeUTF(remoteObjectName(process, ".ser"));
+                out.writeInt(buffer.size());
+                buffer.writeTo(out);
+                bytes = buffer.size();
+            }
+            out.flush();
+            metrics.addBytesSent(bytes);
+            metrics.record(MigrationPhase.OBJECT_TRANSFER, System.nanoTime() - start);
+            status = in.readBoolean();
+        } catch (IOException e) {
+            LOG.error(process.getClass().getSimpleName() +
+                    "[" + process.getId() + "] local migration error", e);
+        } finally {
+            close(null, channel);
+        }
+        finishMigrating(process, peer, started, stopped, status);
+        return status;
+    }
+
+    /**
+     * Report the end of a migration. If it succeeded, the node forgets
+     * the checkpointer of the process, else the process restarts on
+     * this node.
+     *
+     * @param process the migrated process
+     * @param peer the receiver, <code>HOST:PORT</code>
+     * @param started the time the migration started
+     * @param stopped the time the process stopped
+     * @param status if the process runs on the receiver
+     */
+    private void finishMigrating(MigratableProcess process, String peer, long started,
+                                 long stopped, boolean status) {
         if (status) {
+            long now = System.nanoTime();
+            long elapsed = now - started;
+            metrics.succeed();
+            metrics.record(MigrationPhase.TOTAL, elapsed);
+            directory.record(process.getId(), peer, process.toString());
+            checkpointStore.remove(process.getId());
+            FlightEvents.endMigration(FlightEvents.SEND, process.getId(),
+                    process.getClass().getName(), peer, true);
             System.out.println("Successfully migrated " +
                     process.getClass().getSimpleName() +
-                    "[" + process.getId() + "]");
+                    "[" + process.getId() + "] in " + elapsed / 1000000 + " ms, downtime " +
+                    (now - stopped) / 1000000 + " ms");
         } 
         else {
+            metrics.fail();
+            FlightEvents.endMigration(FlightEvents.SEND, process.getId(),
+                    process.getClass().getName(), peer, false);
             System.out.println("Failed to migrate " +
                     process.getClass().getSimpleName() +
                     "[" + process.getId() + "]");
     		restartProcess(process);
         }
-        try {
-            out.close();
-            fos.close();
+    }
+
+    /**
+     * Send a process as a pipelined migration: the state first, then
+     * the stream files in frames. The output files go first, they must
+     * be complete before the process starts; an input file is sent
+     * from the offset of its stream, the beginning follows last.
+     * Every frame carries a CRC, the transfer ends with a digest of the
+     * state and the frames; the frames the receiver finds bad are sent
+     * again. The bytes a receiver has in a pre-staged copy are not
+     * sent.
+     *
+     * @param socket the server socket
+     * @param process the suspended process
+     * @return the number of bytes sent
+     * @throws IOException if any IO error occurs
+     * @see javapm.process.PipelinedReceiver
+     */
+    private long sendPipelined(ShapedSocket socket, MigratableProcess process)
+            throws IOException {
+        int frameSize = config.getMigrationFrameSize();
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                socket.getOutputStream(), frameSize + 16));
+        out.writeInt(ProcessServer.PIPELINED);
+        Checksum checksum = MigrationFrames.checksum(MigrationFrames.ALGORITHM);
+        out.writeUTF(MigrationFrames.ALGORITHM);
+        out.writeUTF(socket.getTraffic().getValue());
+        long start = System.nanoTime();
+        String objectName;
+        byte[] object;
+        if (config.isIncrementalMigration()) {
+            IncrementalCheckpointer checkpointer = checkpointStore.getCheckpointer(process.getId());
+            checkpointer.checkpoint(process);
+            objectName = remoteObjectName(process, CheckpointStore.EXTENSION);
+            object = Files.readAllBytes(checkpointer.getLogFile().toPath());
+        } else {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            ObjectOutputStream objectOut = new ObjectOutputStream(buffer);
+            objectOut.writeObject((Object) process);
+            objectOut.close();
+            objectName = remoteObjectName(process, ".ser");
+            object = buffer.toByteArray();
         }
-        catch (IOException e) {
-	        System.out.println("file close failed: " +
-	                e.getMessage());
+        metrics.record(MigrationPhase.SERIALIZE, System.nanoTime() - start);
+        start = System.nanoTime();
+        out.writeUTF(objectName);
+        out.writeInt(object.length);
+        out.writeInt(MigrationFrames.crc(checksum, MigrationFrames.OBJECT, MigrationFrames.OBJECT,
+                0, object, object.length));
+        out.write(object);
+        out.flush();
+        metrics.record(MigrationPhase.OBJECT_TRANSFER, System.nanoTime() - start);
+
+        start = System.nanoTime();
+        Map<File, Long> readFrom = new LinkedHashMap<File, Long>();
+        Set<File> files = new LinkedHashSet<File>();
+        for (TransactionalStream stream : process.getTransactionalStreams()) {
+            File file = stream.getFile();
+            if (!file.isFile() || OutputForwarder.isForwarded(stream)) {
+                continue;
+            }
+            if (stream instanceof TransactionalFileInputStream) {
+                Long from = readFrom.get(file);
+                readFrom.put(file, from == null ? stream.getOffset() :
+                        Math.min(from, stream.getOffset()));
+            } else if (!readFrom.containsKey(file)) {
+                files.add(file);
+            }
         }
-        socket.close();
+        files.removeAll(readFrom.keySet());
+        files.addAll(readFrom.keySet());
+        List<File> ordered = new ArrayList<File>(files);
+        long[] lengths = new long[ordered.size()];
+        out.writeInt(ordered.size());
+        for (int i = 0; i < lengths.length; i++) {
+            lengths[i] = ordered.get(i).length();
+            out.writeUTF(ordered.get(i).getPath());
+            out.writeLong(lengths[i]);
+        }
+        out.flush();
+        long[] bases = readCopies(socket, ordered, lengths);
+        for (long base : bases) {
+            out.writeLong(base);
+        }
+        byte[] buffer = new byte[frameSize];
+        List<long[]> frames = new ArrayList<long[]>();
+        long bytes = 0;
+        for (int i = 0; i < lengths.length; i++) {
+            Object event = FlightEvents.beginFileTransfer();
+            Long from = readFrom.get(ordered.get(i));
+            long split = from == null ? bases[i] : Math.max(bases[i], Math.min(from, lengths[i]));
+            RandomAccessFile file = new RandomAccessFile(ordered.get(i), "r");
+            try {
+                bytes += sendFrames(out, checksum, i, file, split, lengths[i], buffer, frames);
+                bytes += sendFrames(out, checksum, i, file, bases[i], split, buffer, frames);
+            } finally {
+                file.close();
+            }
+            FlightEvents.endFileTransfer(event, FlightEvents.SEND, ordered.get(i).getPath(),
+                    lengths[i]);
+        }
+        out.writeInt(MigrationFrames.END);
+        out.writeInt(frames.size());
+        out.write(MigrationFrames.digest(object, frames));
+        out.flush();
+        bytes += resendFrames(socket, out, checksum, object, ordered, frames, buffer);
+        metrics.record(MigrationPhase.FILE_TRANSFER, System.nanoTime() - start);
+        metrics.addBytesSent(object.length + bytes);
+        return object.length + bytes;
+    }
+
+    /**
+     * Read the answer of a pipelined receiver to the file table: the
+     * length and digest of its pre-staged copy of each file. A copy
+     * is kept if the file of this node starts with the same bytes.
+     *
+     * @param socket  the server socket
+     * @param files   the stream files, by file index
+     * @param lengths the lengths of the files
+     * @return the number of bytes the receiver keeps, by file index
+     * @throws IOException if any IO error occurs
+     * @see javapm.process.PreStager
+     */
+    private long[] readCopies(Socket socket, List<File> files, long[] lengths)
+            throws IOException {
+        DataInputStream in = new DataInputStream(socket.getInputStream());
+        long[] bases = new long[files.size()];
+        for (int i = 0; i < bases.length; i++) {
+            long length = in.readLong();
+            if (length <= 0) {
+                continue;
+            }
+            byte[] digest = new byte[MigrationFrames.DIGEST_LENGTH];
+            in.readFully(digest);
+            if (length <= lengths[i] &&
+                    Arrays.equals(digest, prestager.digest(files.get(i), length))) {
+                bases[i] = length;
+                prestager.skipped(length);
+            }
+        }
+        return bases;
+    }
+
+    /**
+     * Send a range of a file in frames
+     *
+     * @param out      the stream to the receiver
+     * @param checksum the frame checksum
+     * @param index    the file index
+     * @param file     the open file
+     * @param from     the first byte
+     * @param to       the byte after the range
+     * @param buffer   the frame buffer
+     * @param frames   the sent frames, each sent frame is added as
+     *                 <code>{index, position, length, crc}</code>
+     * @return the number of bytes sent
+     * @throws IOException if any IO error occurs
+     */
+    private static long sendFrames(DataOutputStream out, Checksum checksum, int index,
+                                   RandomAccessFile file, long from, long to, byte[] buffer,
+                                   List<long[]> frames) throws IOException {
+        file.seek(from);
+        long position = from;
+        while (position < to) {
+            int length = (int) Math.min(buffer.length, to - position);
+            file.readFully(buffer, 0, length);
+            int crc = MigrationFrames.writeFrame(out, checksum, index, frames.size(), position,
+                    buffer, length);
+            frames.add(new long[]{index, position, length, crc});
+            position += length;
+        }
+        return to - from;
+    }
+
+    /**
+     * Send the frames the receiver asks for again, until it asks for
+     * none. The receiver gives up after
+     * <code>MigrationFrames.MAX_ROUNDS</code> rounds.
+     *
+     * @param socket   the server socket
+     * @param out      the stream to the receiver
+     * @param checksum the frame checksum
+     * @param object   the process state
+     * @param files    the stream files, by file index
+     * @param frames   the sent frames, by sequence
+     * @param buffer   the frame buffer
+     * @return the number of bytes sent again
+     * @throws IOException if any IO error occurs
+     */
+    private long resendFrames(Socket socket, DataOutputStream out, Checksum checksum,
+                              byte[] object, List<File> files, List<long[]> frames,
+                              byte[] buffer) throws IOException {
+        DataInputStream in = new DataInputStream(socket.getInputStream());
+        long bytes = 0;
+        int count;
+        while ((count = in.readInt()) > 0) {
+            metrics.retransmit(count);
+            for (int i = 0; i < count; i++) {
+                int seq = in.readInt();
+                if (seq == MigrationFrames.OBJECT) {
+                    MigrationFrames.writeFrame(out, checksum, MigrationFrames.OBJECT,
+                            MigrationFrames.OBJECT, 0, object, object.length);
+                    bytes += object.length;
+                    continue;
+                }
+                long[] frame = frames.get(seq);
+                int length = (int) frame[2];
+                RandomAccessFile file = new RandomAccessFile(files.get((int) frame[0]), "r");
+                try {
+                    file.seek(frame[1]);
+                    file.readFully(buffer, 0, length);
+                } finally {
+                    file.close();
+                }
+                MigrationFrames.writeFrame(out, checksum, (int) frame[0], seq, frame[1],
+                        buffer, length);
+                bytes += length;
+            }
+            out.writeInt(MigrationFrames.END);
+            out.flush();
+            LOG.info("sent " + count + " frames again");
+        }
+        return bytes;
+    }
+
+    /**
+     * Send the files of the transactional streams of a process, so
+     * the streams find their files under the same path on the
+     * receiver. The number of files is sent first, a file which
+     * doesn't exist yet (e.g. output not written) is skipped, and so
+     * is the file of a forwarded output stream.
+     *
+     * @param socket the server socket
+     * @param process the suspended process
+     * @return the number of bytes sent
+     * @throws IOException if any IO error occurs
+     */
+    private long sendStreamFiles(Socket socket, MigratableProcess process) throws IOException {
+        Set<File> files = new LinkedHashSet<File>();
+        for (TransactionalStream stream : process.getTransactionalStreams()) {
+            if (stream.getFile().isFile() && !OutputForwarder.isForwarded(stream)) {
+                files.add(stream.getFile());
+            }
+        }
+        new DataOutputStream(socket.getOutputStream()).writeInt(files.size());
+        long bytes = 0;
+        for (File file : files) {
+            bytes += sendFile(socket, file, file.getPath());
+        }
+        return bytes;
+    }
+
+    /**
+     * The name of the object file on the receiver. Several nodes
+     * may send a process with the same ID at once, so the name is
+     * made unique.
+     *
+     * @param process the process object
+     * @param extension the file extension
+     * @return the file name
+     */
+    private static String remoteObjectName(MigratableProcess process, String extension) {
+        return "object" + process.id + "-" + UUID.randomUUID() + extension;
+    }
+
+    /**
+     * Write the whole process object to a temporary file and send
+     * the file as <code>objectID-UUID.ser</code>.
+     *
+     * @param socket the server socket
+     * @param process the suspended process
+     * @return the number of bytes sent
+     * @throws IOException if any IO error occurs
+     */
+    private long sendObject(Socket socket, MigratableProcess process) throws IOException {
+        File file = File.createTempFile("object" + process.id, ".ser");
+        try {
+            long start = System.nanoTime();
+            FileOutputStream fos = new FileOutputStream(file);
+            ObjectOutputStream out = new ObjectOutputStream(fos);
+            try {
+                out.writeObject((Object)process);
+            } finally {
+                out.close();
+            }
+            metrics.record(MigrationPhase.SERIALIZE, System.nanoTime() - start);
+            process.getAccounting().setSerializedSize(file.length());
+            start = System.nanoTime();
+            long bytes = sendFile(socket, file, remoteObjectName(process, ".ser"));
+            metrics.record(MigrationPhase.OBJECT_TRANSFER, System.nanoTime() - start);
+            return bytes;
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * Take a last incremental checkpoint of the process, then send
+     * its checkpoint log as <code>objectID-UUID.ckpt</code>. The receiver
+     * rebuilds the process from the base and the deltas.
+     *
+     * @param socket the server socket
+     * @param process the suspended process
+     * @return the number of bytes sent
+     * @throws IOException if any IO error occurs
+     * @see javapm.checkpoint.CheckpointStore#restore(File)
+     */
+    private long sendCheckpoint(Socket socket, MigratableProcess process) throws IOException {
+        long start = System.nanoTime();
+        IncrementalCheckpointer checkpointer = checkpointStore.getCheckpointer(process.getId());
+        checkpointer.checkpoint(process);
+        metrics.record(MigrationPhase.SERIALIZE, System.nanoTime() - start);
+        start = System.nanoTime();
+        long bytes = sendFile(socket, checkpointer.getLogFile(),
+                remoteObjectName(process, CheckpointStore.EXTENSION));
+        metrics.record(MigrationPhase.OBJECT_TRANSFER, System.nanoTime() - start);
+        return bytes;
     }
 
     
@@ -565,8 +2803,20 @@ public class ProcessManager {
 		process.resume();
 		process.migrated();
 		startProcess(process);
+		System.out.println("Restarted " + process.toString());
 	}
 
+    /**
+     * Continue a process suspended on this node. The process
+     * keeps its ID and its open streams.
+     *
+     * @param process the process object
+     */
+    void resumeProcess(MigratableProcess process) {
+        process.resume();
+        startProcess(process);
+    }
+
 	
 
     
@@ -578,11 +2828,37 @@ public class ProcessManager {
         sb.append("All commands are listed as below\n");
         sb.append("ls:   list all migratable programs\n");
         sb.append("ps:   list all running process\n");
+        sb.append("      ps [-s id|cpu|read|written|rate|suspend|size]\n");
+        sb.append("      ps [-a | -c | PROCESS_ID], -c lists the processes of all nodes\n");
         sb.append("run:  start process.\n");
-        sb.append("      run PROCESS_NAME ARG...\n");
+        sb.append("      run [-k KEY] PROCESS_NAME ARG...\n");
         sb.append("mg:   migrate process to another machine\n");
         sb.append(System.getProperty("user.dir"));
-        sb.append("      mg PROCESS_ID HOSTNAME\n");
+        sb.append("      mg PROCESS_ID [HOSTNAME[:PORT]], the coldest peer if no host\n");
+        sb.append("checkpoint: write an incremental checkpoint of a process\n");
+        sb.append("      checkpoint PROCESS_ID\n");
+        sb.append("restore: restart a process from its checkpoint\n");
+        sb.append("      restore PROCESS_ID\n");
+        sb.append("hibernate: spill a process to disk\n");
+        sb.append("      hibernate PROCESS_ID [WAKE_SECONDS]\n");
+        sb.append("wake: load a hibernated process back\n");
+        sb.append("      wake PROCESS_ID\n");
+        sb.append("stats: print migration metrics\n");
+        sb.append("      stats [reset]\n");
+        sb.append("cluster: print the load of all nodes\n");
+        sb.append("peers: print the members of the cluster and their health\n");
+        sb.append("locate: find the home node and the processes of a placement key\n");
+        sb.append("      locate KEY | locate -p PROCESS_ID\n");
+        sb.append("drain: migrate all processes to other nodes\n");
+        sb.append("      drain [cancel|status]\n");
+        sb.append("tenant: start or command another manager in this JVM\n");
+        sb.append("      tenant [add PORT [GOSSIP_PORT] | PORT COMMAND...]\n");
+        sb.append("shape: print or set the migration bandwidth, in bytes per second, 0 is unlimited\n");
+        sb.append("      shape [node RATE | peer [HOST] RATE | peer HOST default]\n");
+        sb.append("steal: ask busy nodes for processes if this node has few\n");
+        sb.append("prestage: copy the input files of the processes to the likely targets now\n");
+        sb.append("replicate: keep a hot standby of a process, or take over the processes of a node\n");
+        sb.append("      replicate [PROCESS_ID [HOST:PORT] | stop PROCESS_ID | failover NODE]\n");
         sb.append("quit: quit Process Manager\n");
         sb.append("help: show help information\n");
         System.out.println(sb.toString());
@@ -604,6 +2880,9 @@ public class ProcessManager {
         }
         ProcessManager.getInstance().startServer();
         ProcessManager.getInstance().startExitListener();
+        ProcessManager.getInstance().startHibernation();
+        ProcessManager.getInstance().startAccounting();
+        ProcessManager.getInstance().startCluster();
         ProcessManager.getInstance().startConsole();
         
     }
@@ -32,6 +32,75 @@ public enum ProcessManagerCommand {
      */
     MG("mg"),
 
+    /**
+     * Take an incremental checkpoint of a process
+     */
+    CHECKPOINT("checkpoint"),
+
+    /**
+     * Restart a process from its checkpoint
+     */
+    RESTORE("restore"),
+
+    /**
+     * Spill a process to disk
+     */
+    HIBERNATE("hibernate"),
+
+    /**
+     * Load a hibernated process back
+     */
+    WAKE("wake"),
+
+    /**
+     * Print migration metrics
+     */
+    STATS("stats"),
+
+    /**
+     * Print the load of the cluster
+     */
+    CLUSTER("cluster"),
+
+    /**
+     * Print the peer table of the cluster
+     */
+    PEERS("peers"),
+
+    /**
+     * Find the home node and the processes of a placement key
+     */
+    LOCATE("locate"),
+
+    /**
+     * Migrate all processes to other nodes
+     */
+    DRAIN("drain"),
+
+    /**
+     * Start or command another manager in this JVM
+     */
+    TENANT("tenant"),
+    /**
+     * Print or change the limits of the migration traffic shaper
+     */
+    SHAPE("shape"),
+
+    /**
+     * Ask busy nodes for processes
+     */
+    STEAL("steal"),
+
+    /**
+     * Copy input files to the likely targets
+     */
+    PRESTAGE("prestage"),
+
+    /**
+     * Replicate processes to a hot standby
+     */
+    REPLICATE("replicate"),
+
     /**
      * Quit the program
      */
@@ -0,0 +1,1005 @@
+package javapm.process;
+
+import javapm.cluster.HashRing;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The runtime settings of a <code>ProcessManager</code>.
+ * Every setting is read from a <code>javapm.*</code> system property,
+ * so a node can be tuned with <code>-D</code> options on the command
+ * line. If a property is missing, the default value is used.
+ *
+ * @author Pratyush Kumar(pratyush)
+ * @author Vasu Vardhan(vardhan)
+ * @see javapm.process.ProcessManager
+ */
+public class ProcessManagerConfig implements Cloneable {
+    /**
+     * Default directory of the checkpoint logs
+     */
+    public static final String DEFAULT_CHECKPOINT_DIR = "checkpoints";
+
+    /**
+     * Default number of deltas written between two full bases
+     */
+    public static final int DEFAULT_CHECKPOINT_BASE_INTERVAL = 16;
+
+    /**
+     * Default directory of hibernated processes
+     */
+    public static final String DEFAULT_HIBERNATE_DIR = "hibernated";
+
+    /**
+     * Default directory of the checkpoint logs replicated to this node
+     */
+    public static final String DEFAULT_REPLICATION_DIR = "replicas";
+
+    /**
+     * Default heap usage ratio which triggers hibernation
+     */
+    public static final double DEFAULT_HIBERNATE_HEAP_WATERMARK = 0.85;
+
+    /**
+     * Default interval between two hibernation checks
+     */
+    public static final long DEFAULT_HIBERNATE_CHECK_SECONDS = 5;
+
+    /**
+     * Default port of the exit listener
+     */
+    public static final int DEFAULT_EXIT_PORT = 15444;
+
+    /**
+     * Default port the exit listener notifies on the peer node
+     */
+    public static final int DEFAULT_EXIT_NOTIFY_PORT = 15442;
+
+    /**
+     * Default interval between two gossip rounds
+     */
+    public static final long DEFAULT_GOSSIP_INTERVAL_MILLIS = 250;
+
+    /**
+     * Default phi above which a member is suspected
+     */
+    public static final double DEFAULT_CLUSTER_PHI_THRESHOLD = 8.0;
+
+    /**
+     * Default silence after which a member is dropped
+     */
+    public static final long DEFAULT_CLUSTER_REMOVE_SECONDS = 30;
+
+    /**
+     * Default number of migrations a drain runs at once
+     */
+    public static final int DEFAULT_DRAIN_PARALLELISM = 4;
+
+    /**
+     * Default size of the file frames of a pipelined migration
+     */
+    public static final int DEFAULT_MIGRATION_FRAME_SIZE = 64 * 1024;
+
+    /**
+     * Default burst size of the migration traffic shaper
+     */
+    public static final long DEFAULT_SHAPER_BURST = 256 * 1024;
+
+    /**
+     * Default number of migrations a node receives at once
+     */
+    public static final int DEFAULT_ADMISSION_MAX_TRANSFERS = 8;
+
+    /**
+     * Default time a refused sender waits before it asks again
+     */
+    public static final long DEFAULT_ADMISSION_RETRY_AFTER_MILLIS = 500;
+
+    /**
+     * Default number of times a refused sender asks the same node again
+     */
+    public static final int DEFAULT_ADMISSION_RETRIES = 2;
+
+    /**
+     * Default directory of the local transport sockets
+     */
+    public static final String DEFAULT_LOCAL_DIR =
+            new File(System.getProperty("java.io.tmpdir"), "javapm").getPath();
+
+    /**
+     * Default time to wait for the answers of all nodes
+     */
+    public static final long DEFAULT_CLUSTER_FANOUT_TIMEOUT_MILLIS = 1000;
+
+    /**
+     * The number of node IDs derived from the node name
+     */
+    private static final int DERIVED_NODE_IDS = 10000;
+
+    /**
+     * Default number of points of a node on the hash ring
+     */
+    public static final int DEFAULT_RING_VIRTUAL_NODES = 64;
+
+    /**
+     * Default largest number of ring moves in one round
+     */
+    public static final int DEFAULT_RING_BATCH_SIZE = 8;
+
+    /**
+     * Default interval between two ring placement rounds
+     */
+    public static final long DEFAULT_RING_INTERVAL_MILLIS = 1000;
+
+    /**
+     * Default load difference which starts a rebalancing migration
+     */
+    public static final double DEFAULT_REBALANCE_THRESHOLD = 2.0;
+
+    /**
+     * Default time a process stays on a node before it may be moved again
+     */
+    public static final long DEFAULT_REBALANCE_MIN_RESIDENCY_SECONDS = 30;
+
+    /**
+     * Default limit of the estimated transfer time of a moved process
+     */
+    public static final long DEFAULT_REBALANCE_MAX_COST_SECONDS = 10;
+
+    /**
+     * Default link bandwidth, until a migration measured it
+     */
+    public static final long DEFAULT_REBALANCE_BANDWIDTH = 10 * 1024 * 1024;
+
+    /**
+     * Default largest number of processes stolen at once
+     */
+    public static final int DEFAULT_STEAL_BATCH_SIZE = 2;
+
+    /**
+     * Default number of least loaded members input files are copied to
+     */
+    public static final int DEFAULT_PRESTAGE_FANOUT = 1;
+
+    /**
+     * Default interval between two replication rounds
+     */
+    public static final long DEFAULT_REPLICATION_INTERVAL_MILLIS = 1000;
+
+    /**
+     * Default silence of a primary after which its standby takes over
+     */
+    public static final long DEFAULT_REPLICATION_FAILOVER_MILLIS = 5000;
+
+    /**
+     * Default interval between two batches of forwarded output
+     */
+    public static final long DEFAULT_OUTPUT_FORWARD_MILLIS = 200;
+
+    /**
+     * Default largest number of unacknowledged bytes of a forwarded
+     * output stream
+     */
+    public static final long DEFAULT_OUTPUT_FORWARD_BUFFER = 1024 * 1024;
+
+    /**
+     * The directory which keeps one checkpoint log per process
+     */
+    private File checkpointDirectory;
+
+    /**
+     * The number of deltas written before the checkpointer
+     * writes a new full base
+     */
+    private int checkpointBaseInterval;
+
+    /**
+     * If set, migration ships the checkpoint log of the process
+     * instead of the whole serialized object
+     */
+    private boolean incrementalMigration;
+
+    /**
+     * The spill directory of hibernated processes
+     */
+    private File hibernateDirectory;
+
+    /**
+     * Idle time before a process is hibernated, 0 disables it
+     */
+    private long hibernateIdleMillis;
+
+    /**
+     * Heap usage ratio which triggers hibernation, 0 disables it
+     */
+    private double hibernateHeapWatermark;
+
+    /**
+     * Interval between two hibernation checks
+     */
+    private long hibernateCheckMillis;
+
+    /**
+     * The port of the process server
+     */
+    private int serverPort;
+
+    /**
+     * The port of the exit listener, 0 disables it
+     */
+    private int exitPort;
+
+    /**
+     * The port the exit listener notifies on the peer node
+     */
+    private int exitNotifyPort;
+
+    /**
+     * The address other nodes use to reach this node
+     */
+    private String nodeHost;
+
+    /**
+     * The UDP port of the load gossip, 0 disables it
+     */
+    private int gossipPort;
+
+    /**
+     * The seed nodes of the cluster, as <code>HOST:GOSSIP_PORT</code>
+     */
+    private List<String> clusterSeeds;
+
+    /**
+     * Phi above which a member is suspected
+     */
+    private double clusterPhiThreshold;
+
+    /**
+     * Silence after which a member is dropped
+     */
+    private long clusterRemoveMillis;
+
+    /**
+     * The largest number of processes this node takes, 0 if unlimited
+     */
+    private int nodeCapacity;
+
+    /**
+     * Interval between two gossip rounds
+     */
+    private long gossipIntervalMillis;
+
+    /**
+     * The number of migrations a drain runs at once
+     */
+    private int drainParallelism;
+
+    /**
+     * The ID of this node in process IDs, -1 to derive it from the
+     * node name
+     */
+    private long nodeId;
+
+    /**
+     * Time to wait for the answers of all nodes
+     */
+    private long clusterFanoutTimeoutMillis;
+
+    /**
+     * If set, migrations send the process state before the framed
+     * stream files
+     */
+    private boolean pipelinedMigration;
+
+    /**
+     * The size of the file frames of a pipelined migration
+     */
+    private int migrationFrameSize;
+
+    /**
+     * Migration bandwidth of this node in bytes per second, 0 is
+     * unlimited
+     */
+    private long shaperBandwidth;
+
+    /**
+     * Migration bandwidth to or from one peer in bytes per second, 0
+     * is unlimited
+     */
+    private long shaperPeerBandwidth;
+
+    /**
+     * Burst size of the migration traffic shaper
+     */
+    private long shaperBurst;
+
+    /**
+     * Largest number of migrations received at once, 0 is unlimited
+     */
+    private int admissionMaxTransfers;
+
+    /**
+     * Largest number of bytes of the migrations received at once, 0 is
+     * unlimited
+     */
+    private long admissionMaxBytes;
+
+    /**
+     * Largest number of resident and arriving processes, 0 is the
+     * node capacity
+     */
+    private int admissionMaxProcesses;
+
+    /**
+     * Time a refused sender waits before it asks again
+     */
+    private long admissionRetryAfterMillis;
+
+    /**
+     * Number of times a refused sender asks the same node again
+     */
+    private int admissionRetries;
+
+    /**
+     * If set, migrations to this host use Unix domain sockets
+     */
+    private boolean localTransport;
+
+    /**
+     * The directory of the local transport sockets
+     */
+    private File localDirectory;
+
+    /**
+     * If set, processes with a placement key run on their ring owner
+     */
+    private boolean ringPlacement;
+
+    /**
+     * The number of points of a node on the hash ring
+     */
+    private int ringVirtualNodes;
+
+    /**
+     * Largest number of ring moves in one round
+     */
+    private int ringBatchSize;
+
+    /**
+     * Interval between two ring placement rounds
+     */
+    private long ringIntervalMillis;
+
+    /**
+     * Interval between two rebalancing rounds, 0 disables it
+     */
+    private long rebalanceIntervalMillis;
+
+    /**
+     * Load difference which starts a rebalancing migration
+     */
+    private double rebalanceThreshold;
+
+    /**
+     * Time a process stays on a node before it may be moved again
+     */
+    private long rebalanceMinResidencyMillis;
+
+    /**
+     * Limit of the estimated transfer time of a moved process
+     */
+    private long rebalanceMaxCostMillis;
+
+    /**
+     * Link bandwidth in bytes per second, until a migration measured it
+     */
+    private long rebalanceBandwidth;
+
+    /**
+     * Interval between two work stealing rounds, 0 disables it
+     */
+    private long stealIntervalMillis;
+
+    /**
+     * The number of processes below which a node steals, 0 is the
+     * number of cores
+     */
+    private int stealThreshold;
+
+    /**
+     * Largest number of processes stolen at once
+     */
+    private int stealBatchSize;
+
+    /**
+     * Interval between two pre-staging rounds, 0 disables it
+     */
+    private long prestageIntervalMillis;
+
+    /**
+     * The standby nodes input files are copied to, empty to use the
+     * least loaded members
+     */
+    private List<String> prestageTargets;
+
+    /**
+     * The number of least loaded members input files are copied to
+     */
+    private int prestageFanout;
+
+    /**
+     * The standby of replicated processes, null if none
+     */
+    private String replicationStandby;
+
+    /**
+     * Interval between two replication rounds
+     */
+    private long replicationIntervalMillis;
+
+    /**
+     * Silence of a primary after which its standby takes over
+     */
+    private long replicationFailoverMillis;
+
+    /**
+     * The directory of the checkpoint logs replicated to this node
+     */
+    private File replicationDirectory;
+
+    /**
+     * If migrations leave the output files on the node and forward
+     * the output
+     */
+    private boolean outputForwarding;
+
+    /**
+     * Interval between two batches of forwarded output
+     */
+    private long outputForwardMillis;
+
+    /**
+     * Largest number of unacknowledged bytes of a forwarded stream
+     */
+    private long outputForwardBuffer;
+
+    /**
+     * Constructor of <code>ProcessManagerConfig</code> with
+     * default values.
+     */
+    public ProcessManagerConfig() {
+        this.checkpointDirectory = new File(DEFAULT_CHECKPOINT_DIR);
+        this.checkpointBaseInterval = DEFAULT_CHECKPOINT_BASE_INTERVAL;
+        this.incrementalMigration = false;
+        this.hibernateDirectory = new File(DEFAULT_HIBERNATE_DIR);
+        this.hibernateIdleMillis = 0;
+        this.hibernateHeapWatermark = DEFAULT_HIBERNATE_HEAP_WATERMARK;
+        this.hibernateCheckMillis = DEFAULT_HIBERNATE_CHECK_SECONDS * 1000;
+        this.serverPort = ProcessServer.PORT;
+        this.exitPort = DEFAULT_EXIT_PORT;
+        this.exitNotifyPort = DEFAULT_EXIT_NOTIFY_PORT;
+        this.nodeHost = localHost();
+        this.gossipPort = 0;
+        this.clusterSeeds = new ArrayList<String>();
+        this.clusterPhiThreshold = DEFAULT_CLUSTER_PHI_THRESHOLD;
+        this.clusterRemoveMillis = DEFAULT_CLUSTER_REMOVE_SECONDS * 1000;
+        this.nodeCapacity = 0;
+        this.gossipIntervalMillis = DEFAULT_GOSSIP_INTERVAL_MILLIS;
+        this.drainParallelism = DEFAULT_DRAIN_PARALLELISM;
+        this.nodeId = -1;
+        this.clusterFanoutTimeoutMillis = DEFAULT_CLUSTER_FANOUT_TIMEOUT_MILLIS;
+        this.pipelinedMigration = true;
+        this.migrationFrameSize = DEFAULT_MIGRATION_FRAME_SIZE;
+        this.shaperBandwidth = 0;
+        this.shaperPeerBandwidth = 0;
+        this.shaperBurst = DEFAULT_SHAPER_BURST;
+        this.admissionMaxTransfers = DEFAULT_ADMISSION_MAX_TRANSFERS;
+        this.admissionMaxBytes = 0;
+        this.admissionMaxProcesses = 0;
+        this.admissionRetryAfterMillis = DEFAULT_ADMISSION_RETRY_AFTER_MILLIS;
+        this.admissionRetries = DEFAULT_ADMISSION_RETRIES;
+        this.localTransport = true;
+        this.localDirectory = new File(DEFAULT_LOCAL_DIR);
+        this.ringPlacement = false;
+        this.ringVirtualNodes = DEFAULT_RING_VIRTUAL_NODES;
+        this.ringBatchSize = DEFAULT_RING_BATCH_SIZE;
+        this.ringIntervalMillis = DEFAULT_RING_INTERVAL_MILLIS;
+        this.rebalanceIntervalMillis = 0;
+        this.rebalanceThreshold = DEFAULT_REBALANCE_THRESHOLD;
+        this.rebalanceMinResidencyMillis = DEFAULT_REBALANCE_MIN_RESIDENCY_SECONDS * 1000;
+        this.rebalanceMaxCostMillis = DEFAULT_REBALANCE_MAX_COST_SECONDS * 1000;
+        this.rebalanceBandwidth = DEFAULT_REBALANCE_BANDWIDTH;
+        this.stealIntervalMillis = 0;
+        this.stealThreshold = 0;
+        this.stealBatchSize = DEFAULT_STEAL_BATCH_SIZE;
+        this.prestageIntervalMillis = 0;
+        this.prestageTargets = new ArrayList<String>();
+        this.prestageFanout = DEFAULT_PRESTAGE_FANOUT;
+        this.replicationIntervalMillis = DEFAULT_REPLICATION_INTERVAL_MILLIS;
+        this.replicationFailoverMillis = DEFAULT_REPLICATION_FAILOVER_MILLIS;
+        this.replicationDirectory = new File(DEFAULT_REPLICATION_DIR);
+        this.outputForwardMillis = DEFAULT_OUTPUT_FORWARD_MILLIS;
+        this.outputForwardBuffer = DEFAULT_OUTPUT_FORWARD_BUFFER;
+    }
+
+    /**
+     * Build the config from the system properties.
+     * <ul>
+     * <li><code>javapm.checkpoint.dir</code></li>
+     * <li><code>javapm.checkpoint.baseInterval</code></li>
+     * <li><code>javapm.checkpoint.migrate</code></li>
+     * <li><code>javapm.hibernate.dir</code></li>
+     * <li><code>javapm.hibernate.idleSeconds</code></li>
+     * <li><code>javapm.hibernate.heapWatermark</code></li>
+     * <li><code>javapm.hibernate.checkSeconds</code></li>
+     * <li><code>javapm.server.port</code></li>
+     * <li><code>javapm.exit.port</code></li>
+     * <li><code>javapm.exit.notifyPort</code></li>
+     * <li><code>javapm.node.host</code></li>
+     * <li><code>javapm.node.capacity</code></li>
+     * <li><code>javapm.migration.pipelined</code>, default true</li>
+     * <li><code>javapm.migration.frameSize</code>, bytes</li>
+     * <li><code>javapm.shaper.bandwidth</code>, bytes per second of all
+     * migrations of this node, 0 is unlimited</li>
+     * <li><code>javapm.shaper.peerBandwidth</code>, bytes per second to
+     * or from one peer, 0 is unlimited</li>
+     * <li><code>javapm.shaper.burst</code>, bytes</li>
+     * <li><code>javapm.admission.maxTransfers</code>, 0 is unlimited</li>
+     * <li><code>javapm.admission.maxBytes</code>, 0 is unlimited</li>
+     * <li><code>javapm.admission.maxProcesses</code>, the default is
+     * <code>javapm.node.capacity</code></li>
+     * <li><code>javapm.admission.retryAfterMillis</code></li>
+     * <li><code>javapm.admission.retries</code></li>
+     * <li><code>javapm.local.transport</code>, default true</li>
+     * <li><code>javapm.local.dir</code>, shared by the nodes of a host</li>
+     * <li><code>javapm.node.id</code>, the prefix of process IDs, a
+     * distinct value on every node. It is required with
+     * <code>javapm.gossip.port</code>; a node out of the cluster
+     * defaults to a hash of its node name. The sequence of a node is
+     * kept in its checkpoint directory, so a restarted node doesn't
+     * reuse the IDs of its earlier run</li>
+     * <li><code>javapm.gossip.port</code></li>
+     * <li><code>javapm.gossip.intervalMillis</code></li>
+     * <li><code>javapm.cluster.seeds</code>, comma separated, or the
+     * older <code>javapm.gossip.peers</code></li>
+     * <li><code>javapm.cluster.phiThreshold</code></li>
+     * <li><code>javapm.cluster.removeSeconds</code></li>
+     * <li><code>javapm.cluster.fanoutTimeoutMillis</code></li>
+     * <li><code>javapm.drain.parallelism</code></li>
+     * <li><code>javapm.ring.placement</code></li>
+     * <li><code>javapm.ring.vnodes</code></li>
+     * <li><code>javapm.ring.batchSize</code></li>
+     * <li><code>javapm.ring.intervalMillis</code></li>
+     * <li><code>javapm.rebalance.intervalSeconds</code></li>
+     * <li><code>javapm.rebalance.threshold</code></li>
+     * <li><code>javapm.rebalance.minResidencySeconds</code></li>
+     * <li><code>javapm.rebalance.maxCostSeconds</code></li>
+     * <li><code>javapm.rebalance.bandwidth</code>, bytes per second</li>
+     * <li><code>javapm.steal.intervalMillis</code></li>
+     * <li><code>javapm.steal.threshold</code>, the default is the
+     * number of cores</li>
+     * <li><code>javapm.steal.batchSize</code></li>
+     * <li><code>javapm.prestage.intervalMillis</code></li>
+     * <li><code>javapm.prestage.targets</code>, comma separated standby
+     * nodes <code>HOST:PORT</code></li>
+     * <li><code>javapm.prestage.fanout</code>, without standby nodes</li>
+     * <li><code>javapm.replication.standby</code>, <code>HOST:PORT</code>
+     * of the standby of <code>replicate</code></li>
+     * <li><code>javapm.replication.intervalMillis</code></li>
+     * <li><code>javapm.replication.failoverMillis</code></li>
+     * <li><code>javapm.replication.dir</code></li>
+     * <li><code>javapm.output.forwarding</code>, <code>true</code> to
+     * keep output files on their node</li>
+     * <li><code>javapm.output.forwardMillis</code></li>
+     * <li><code>javapm.output.forwardBuffer</code>, in bytes, 0 for no
+     * limit</li>
+     * </ul>
+     *
+     * @return the config object
+     */
+    public static ProcessManagerConfig fromSystemProperties() {
+        ProcessManagerConfig config = new ProcessManagerConfig();
+        config.checkpointDirectory = new File(System.getProperty(
+                "javapm.checkpoint.dir", DEFAULT_CHECKPOINT_DIR));
+        config.checkpointBaseInterval = Integer.getInteger(
+                "javapm.checkpoint.baseInterval", DEFAULT_CHECKPOINT_BASE_INTERVAL);
+        config.incrementalMigration = Boolean.getBoolean("javapm.checkpoint.migrate");
+        config.hibernateDirectory = new File(System.getProperty(
+                "javapm.hibernate.dir", DEFAULT_HIBERNATE_DIR));
+        config.hibernateIdleMillis = Long.getLong("javapm.hibernate.idleSeconds", 0) * 1000;
+        config.hibernateHeapWatermark = Double.parseDouble(System.getProperty(
+                "javapm.hibernate.heapWatermark", String.valueOf(DEFAULT_HIBERNATE_HEAP_WATERMARK)));
+        config.hibernateCheckMillis = Long.getLong("javapm.hibernate.checkSeconds",
+                DEFAULT_HIBERNATE_CHECK_SECONDS) * 1000;
+        config.serverPort = Integer.getInteger("javapm.server.port", ProcessServer.PORT);
+        config.exitPort = Integer.getInteger("javapm.exit.port", DEFAULT_EXIT_PORT);
+        config.exitNotifyPort = Integer.getInteger("javapm.exit.notifyPort",
+                DEFAULT_EXIT_NOTIFY_PORT);
+        config.nodeHost = System.getProperty("javapm.node.host", config.nodeHost);
+        config.gossipPort = Integer.getInteger("javapm.gossip.port", 0);
+        config.nodeCapacity = Integer.getInteger("javapm.node.capacity", 0);
+        config.pipelinedMigration = Boolean.parseBoolean(System.getProperty(
+                "javapm.migration.pipelined", "true"));
+        config.migrationFrameSize = Integer.getInteger("javapm.migration.frameSize",
+                DEFAULT_MIGRATION_FRAME_SIZE);
+        config.shaperBandwidth = Long.getLong("javapm.shaper.bandwidth", 0);
+        config.shaperPeerBandwidth = Long.getLong("javapm.shaper.peerBandwidth", 0);
+        config.shaperBurst = Long.getLong("javapm.shaper.burst", DEFAULT_SHAPER_BURST);
+        config.admissionMaxTransfers = Integer.getInteger("javapm.admission.maxTransfers",
+                DEFAULT_ADMISSION_MAX_TRANSFERS);
+        config.admissionMaxBytes = Long.getLong("javapm.admission.maxBytes", 0);
+        config.admissionMaxProcesses = Integer.getInteger("javapm.admission.maxProcesses", 0);
+        config.admissionRetryAfterMillis = Long.getLong("javapm.admission.retryAfterMillis",
+                DEFAULT_ADMISSION_RETRY_AFTER_MILLIS);
+        config.admissionRetries = Integer.getInteger("javapm.admission.retries",
+                DEFAULT_ADMISSION_RETRIES);
+        config.localTransport = Boolean.parseBoolean(System.getProperty(
+                "javapm.local.transport", "true"));
+        config.localDirectory = new File(System.getProperty("javapm.local.dir", DEFAULT_LOCAL_DIR));
+        config.nodeId = Long.getLong("javapm.node.id", -1);
+        if (config.nodeId >= Long.MAX_VALUE / ProcessManager.ID_SPACE) {
+            throw new IllegalArgumentException("javapm.node.id too large: " + config.nodeId);
+        }
+        if (config.gossipPort != 0 && config.nodeId < 0) {
+            throw new IllegalArgumentException("javapm.node.id is required with javapm.gossip.port");
+        }
+        config.gossipIntervalMillis = Long.getLong("javapm.gossip.intervalMillis",
+                DEFAULT_GOSSIP_INTERVAL_MILLIS);
+        String seeds = System.getProperty("javapm.cluster.seeds",
+                System.getProperty("javapm.gossip.peers", ""));
+        for (String seed : seeds.split(",")) {
+            if (seed.trim().length() > 0) {
+                config.clusterSeeds.add(seed.trim());
+            }
+        }
+        config.clusterPhiThreshold = Double.parseDouble(System.getProperty(
+                "javapm.cluster.phiThreshold", String.valueOf(DEFAULT_CLUSTER_PHI_THRESHOLD)));
+        config.clusterRemoveMillis = Long.getLong("javapm.cluster.removeSeconds",
+                DEFAULT_CLUSTER_REMOVE_SECONDS) * 1000;
+        config.clusterFanoutTimeoutMillis = Long.getLong("javapm.cluster.fanoutTimeoutMillis",
+                DEFAULT_CLUSTER_FANOUT_TIMEOUT_MILLIS);
+        config.drainParallelism = Integer.getInteger("javapm.drain.parallelism",
+                DEFAULT_DRAIN_PARALLELISM);
+        config.ringPlacement = Boolean.getBoolean("javapm.ring.placement");
+        config.ringVirtualNodes = Integer.getInteger("javapm.ring.vnodes",
+                DEFAULT_RING_VIRTUAL_NODES);
+        config.ringBatchSize = Integer.getInteger("javapm.ring.batchSize", DEFAULT_RING_BATCH_SIZE);
+        config.ringIntervalMillis = Long.getLong("javapm.ring.intervalMillis",
+                DEFAULT_RING_INTERVAL_MILLIS);
+        config.rebalanceIntervalMillis = Long.getLong("javapm.rebalance.intervalSeconds", 0) * 1000;
+        config.rebalanceThreshold = Double.parseDouble(System.getProperty(
+                "javapm.rebalance.threshold", String.valueOf(DEFAULT_REBALANCE_THRESHOLD)));
+        config.rebalanceMinResidencyMillis = Long.getLong("javapm.rebalance.minResidencySeconds",
+                DEFAULT_REBALANCE_MIN_RESIDENCY_SECONDS) * 1000;
+        config.rebalanceMaxCostMillis = Long.getLong("javapm.rebalance.maxCostSeconds",
+                DEFAULT_REBALANCE_MAX_COST_SECONDS) * 1000;
+        config.rebalanceBandwidth = Long.getLong("javapm.rebalance.bandwidth",
+                DEFAULT_REBALANCE_BANDWIDTH);
+        config.stealIntervalMillis = Long.getLong("javapm.steal.intervalMillis", 0);
+        config.stealThreshold = Integer.getInteger("javapm.steal.threshold", 0);
+        config.stealBatchSize = Integer.getInteger("javapm.steal.batchSize",
+                DEFAULT_STEAL_BATCH_SIZE);
+        config.prestageIntervalMillis = Long.getLong("javapm.prestage.intervalMillis", 0);
+        for (String target : System.getProperty("javapm.prestage.targets", "").split(",")) {
+            if (target.trim().length() > 0) {
+                config.prestageTargets.add(target.trim());
+            }
+        }
+        config.prestageFanout = Integer.getInteger("javapm.prestage.fanout",
+                DEFAULT_PRESTAGE_FANOUT);
+        config.replicationStandby = System.getProperty("javapm.replication.standby");
+        config.replicationIntervalMillis = Long.getLong("javapm.replication.intervalMillis",
+                DEFAULT_REPLICATION_INTERVAL_MILLIS);
+        config.replicationFailoverMillis = Long.getLong("javapm.replication.failoverMillis",
+                DEFAULT_REPLICATION_FAILOVER_MILLIS);
+        config.replicationDirectory = new File(System.getProperty(
+                "javapm.replication.dir", DEFAULT_REPLICATION_DIR));
+        config.outputForwarding = Boolean.parseBoolean(System.getProperty(
+                "javapm.output.forwarding", "false"));
+        config.outputForwardMillis = Long.getLong("javapm.output.forwardMillis",
+                DEFAULT_OUTPUT_FORWARD_MILLIS);
+        config.outputForwardBuffer = Long.getLong("javapm.output.forwardBuffer",
+                DEFAULT_OUTPUT_FORWARD_BUFFER);
+        return config;
+    }
+
+    public File getCheckpointDirectory() {
+        return checkpointDirectory;
+    }
+
+    public int getCheckpointBaseInterval() {
+        return checkpointBaseInterval;
+    }
+
+    public boolean isIncrementalMigration() {
+        return incrementalMigration;
+    }
+
+    public File getHibernateDirectory() {
+        return hibernateDirectory;
+    }
+
+    public long getHibernateIdleMillis() {
+        return hibernateIdleMillis;
+    }
+
+    public double getHibernateHeapWatermark() {
+        return hibernateHeapWatermark;
+    }
+
+    public long getHibernateCheckMillis() {
+        return hibernateCheckMillis;
+    }
+
+    public int getServerPort() {
+        return serverPort;
+    }
+
+    public int getExitPort() {
+        return exitPort;
+    }
+
+    public int getExitNotifyPort() {
+        return exitNotifyPort;
+    }
+
+    public String getNodeHost() {
+        return nodeHost;
+    }
+
+    /**
+     * Get the name of this node, which is the address of its
+     * process server
+     *
+     * @return <code>HOST:PORT</code>
+     */
+    public String getNodeName() {
+        return nodeHost + ":" + serverPort;
+    }
+
+    /**
+     * Get the gossip address of this node
+     *
+     * @return <code>HOST:GOSSIP_PORT</code>
+     */
+    public String getGossipAddress() {
+        return nodeHost + ":" + gossipPort;
+    }
+
+    /**
+     * Get the ID of this node in process IDs. If
+     * <code>javapm.node.id</code> is not set, it is derived from the
+     * node name; that is only allowed out of the cluster.
+     *
+     * @return the node ID
+     */
+    public long getNodeId() {
+        if (nodeId >= 0) {
+            return nodeId;
+        }
+        return (HashRing.hash(getNodeName()) & 0x7fffffffffffffffL) % DERIVED_NODE_IDS;
+    }
+
+    /**
+     * Derive the config of another manager in this JVM. It runs its
+     * process server on <code>serverPort</code> and gossips on
+     * <code>gossipPort</code> (0 for none) with the same seeds. Its
+     * checkpoints, hibernated and replicated processes are kept in sub directories
+     * named after the port, and it has no exit listener. Without a
+     * node ID, it is derived from its node name, which is only allowed
+     * out of the cluster.
+     *
+     * @param serverPort the process server port
+     * @param gossipPort the gossip port, 0 to stay out of the cluster
+     * @param nodeId     the node ID in process IDs, -1 to derive it
+     * @return the new config
+     * @throws IllegalArgumentException if a manager in the cluster has
+     *                                  no node ID
+     */
+    public ProcessManagerConfig forInstance(int serverPort, int gossipPort, long nodeId) {
+        if (gossipPort != 0 && nodeId < 0) {
+            throw new IllegalArgumentException("a manager in the cluster needs a node ID");
+        }
+        if (nodeId >= Long.MAX_VALUE / ProcessManager.ID_SPACE) {
+            throw new IllegalArgumentException("node ID too large: " + nodeId);
+        }
+        ProcessManagerConfig config;
+        try {
+            config = (ProcessManagerConfig) clone();
+        } catch (CloneNotSupportedException e) {
+            throw new AssertionError(e);
+        }
+        config.serverPort = serverPort;
+        config.gossipPort = gossipPort;
+        config.exitPort = 0;
+        config.nodeId = nodeId;
+        config.checkpointDirectory = new File(checkpointDirectory, String.valueOf(serverPort));
+        config.hibernateDirectory = new File(hibernateDirectory, String.valueOf(serverPort));
+        config.replicationDirectory = new File(replicationDirectory, String.valueOf(serverPort));
+        return config;
+    }
+
+    public boolean isPipelinedMigration() {
+        return pipelinedMigration;
+    }
+
+    public int getMigrationFrameSize() {
+        return migrationFrameSize;
+    }
+
+    public long getShaperBandwidth() {
+        return shaperBandwidth;
+    }
+
+    public long getShaperPeerBandwidth() {
+        return shaperPeerBandwidth;
+    }
+
+    public long getShaperBurst() {
+        return shaperBurst;
+    }
+
+    public int getAdmissionMaxTransfers() {
+        return admissionMaxTransfers;
+    }
+
+    public long getAdmissionMaxBytes() {
+        return admissionMaxBytes;
+    }
+
+    public int getAdmissionMaxProcesses() {
+        return admissionMaxProcesses > 0 ? admissionMaxProcesses : nodeCapacity;
+    }
+
+    public long getAdmissionRetryAfterMillis() {
+        return admissionRetryAfterMillis;
+    }
+
+    public int getAdmissionRetries() {
+        return admissionRetries;
+    }
+
+    public boolean isLocalTransport() {
+        return localTransport;
+    }
+
+    public File getLocalDirectory() {
+        return localDirectory;
+    }
+
+    public long getClusterFanoutTimeoutMillis() {
+        return clusterFanoutTimeoutMillis;
+    }
+
+    public int getNodeCapacity() {
+        return nodeCapacity;
+    }
+
+    public int getGossipPort() {
+        return gossipPort;
+    }
+
+    public List<String> getClusterSeeds() {
+        return clusterSeeds;
+    }
+
+    public double getClusterPhiThreshold() {
+        return clusterPhiThreshold;
+    }
+
+    public long getClusterRemoveMillis() {
+        return clusterRemoveMillis;
+    }
+
+    public long getGossipIntervalMillis() {
+        return gossipIntervalMillis;
+    }
+
+    public int getDrainParallelism() {
+        return drainParallelism;
+    }
+
+    public boolean isRingPlacement() {
+        return ringPlacement;
+    }
+
+    public int getRingVirtualNodes() {
+        return ringVirtualNodes;
+    }
+
+    public int getRingBatchSize() {
+        return ringBatchSize;
+    }
+
+    public long getRingIntervalMillis() {
+        return ringIntervalMillis;
+    }
+
+    public long getRebalanceIntervalMillis() {
+        return rebalanceIntervalMillis;
+    }
+
+    public double getRebalanceThreshold() {
+        return rebalanceThreshold;
+    }
+
+    public long getRebalanceMinResidencyMillis() {
+        return rebalanceMinResidencyMillis;
+    }
+
+    public long getRebalanceMaxCostMillis() {
+        return rebalanceMaxCostMillis;
+    }
+
+    public long getRebalanceBandwidth() {
+        return rebalanceBandwidth;
+    }
+
+    public long getStealIntervalMillis() {
+        return stealIntervalMillis;
+    }
+
+    public int getStealThreshold() {
+        return stealThreshold > 0 ? stealThreshold : Runtime.getRuntime().availableProcessors();
+    }
+
+    public int getStealBatchSize() {
+        return stealBatchSize;
+    }
+
+    public long getPrestageIntervalMillis() {
+        return prestageIntervalMillis;
+    }
+
+    public List<String> getPrestageTargets() {
+        return prestageTargets;
+    }
+
+    public int getPrestageFanout() {
+        return prestageFanout;
+    }
+
+    public String getReplicationStandby() {
+        return replicationStandby;
+    }
+
+    public long getReplicationIntervalMillis() {
+        return replicationIntervalMillis;
+    }
+
+    public long getReplicationFailoverMillis() {
+        return replicationFailoverMillis;
+    }
+
+    public File getReplicationDirectory() {
+        return replicationDirectory;
+    }
+
+    public boolean isOutputForwarding() {
+        return outputForwarding;
+    }
+
+    public long getOutputForwardMillis() {
+        return outputForwardMillis;
+    }
+
+    public long getOutputForwardBuffer() {
+        return outputForwardBuffer;
+    }
+
+    /**
+     * The address of the local host, or the loopback address if
+     * the host name can't be resolved
+     */
+    private static String localHost() {
+        try {
+            return InetAddress.getLocalHost().getHostAddress();
+        } catch (UnknownHostException e) {
+            return "127.0.0.1";
+        }
+    }
+}
@@ -1,8 +1,8 @@
 package javapm.process;
 
-import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
@@ -12,6 +12,17 @@ import java.io.ObjectInputStream;
 import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import javapm.checkpoint.CheckpointStore;
+import javapm.io.StagedFileRegistry;
+import javapm.io.TrafficClass;
+import javapm.metrics.MigrationMetrics;
+import javapm.metrics.MigrationPhase;
+import javapm.metrics.jfr.FlightEvents;
 
 /**
  * The socket receiver of socket server.
@@ -29,10 +40,21 @@ public class ProcessReceiver implements Runnable{
 	 */
 	Socket clientSocket;
 
+	/**
+	 * The manager which receives the process
+	 */
+	ProcessManager manager;
+
+	/**
+	 * The shaped stream from the client
+	 */
+	private InputStream input;
+
 	/**
 	 * Constructor with an already exist socket as input.
 	 */
-	ProcessReceiver(Socket clientSocket) {
+	ProcessReceiver(ProcessManager manager, Socket clientSocket) {
+		this.manager = manager;
 		this.clientSocket = clientSocket;
 	}
 
@@ -42,89 +64,270 @@ public class ProcessReceiver implements Runnable{
      * determine which class the process is, then send a
      * signal to the client to tell if the migration succeed.
      */
-        private String getfile() throws FileNotFoundException, IOException
-        {
-            byte[] mybytearray = new byte[1024*1024];
-            InputStream is = clientSocket.getInputStream();
-            DataInputStream in = new DataInputStream(clientSocket.getInputStream());
-            DataOutputStream out = new DataOutputStream(clientSocket.getOutputStream());
-            String fileName = in.readUTF();
-            System.out.println("filename is :"+ fileName);
-            FileOutputStream fos = new FileOutputStream(fileName);
-            BufferedOutputStream bos = new BufferedOutputStream(fos);
- 
-            long fileSize = in.readLong();
-            /*int bytesRead = is.read(mybytearray, 0,(int)fileSize );
-            System.out.println("filesize"+fileSize);
-           bos.write(mybytearray, 0, bytesRead);
-            System.out.println("bytesRead"+bytesRead);
-            bos.close();
-                    */
-            int readableBytes=(1024*25);        
-        int n=(int)(fileSize/readableBytes);
-        int r=(int)(fileSize%readableBytes);
-        byte b[];
-        //waitForSocket(fileLength);
-        for(int i=0;i<n;i++)
-        {
-            waitForSocket((1024*25));
-            b= new byte[1024*25];
-            in.read(b);
-            fos.write(b);
+    /**
+     * Receive one file of a whole-file migration, and check its CRC32.
+     *
+     * @return the file name
+     * @throws IOException if any IO error occurs, or the CRC is wrong
+     * @see javapm.process.ProcessManager#sendFile(Socket, File, String)
+     */
+    String getfile() throws FileNotFoundException, IOException
+    {
+        Object event = FlightEvents.beginFileTransfer();
+        DataInputStream in = new DataInputStream(input());
+        String fileName = in.readUTF();
+        long fileSize = in.readLong();
+        manager.getMetrics().addBytesReceived(fileSize);
+        CRC32 crc = new CRC32();
+        FileOutputStream fos = new FileOutputStream(fileName);
+        try {
+            byte[] b = new byte[ProcessManager.FILE_CHUNK];
+            for (long left = fileSize; left > 0; ) {
+                int n = (int) Math.min(b.length, left);
+                in.readFully(b, 0, n);
+                crc.update(b, 0, n);
+                fos.write(b, 0, n);
+                left -= n;
+            }
+        } finally {
+            fos.close();
         }
-        waitForSocket(r);
-        b=new byte[r];
-        in.read(b);
-        fos.write(b);        
-            return fileName;
-
+        if (in.readLong() != crc.getValue()) {
+            new File(fileName).delete();
+            throw new IOException("CRC mismatch in " + fileName);
         }
+        StagedFileRegistry.clearFailed(new File(fileName));
+        FlightEvents.endFileTransfer(event, FlightEvents.RECEIVE, fileName, fileSize);
+        return fileName;
+    }
         
-        //added from neetesh
-        public void waitForSocket(long size) throws IOException
-            {
-            try
-            {      
-                InputStream is = clientSocket.getInputStream();
-                DataInputStream in = new DataInputStream(is);
-                for(int attempts=0;!(in.available()>=size);attempts++,Thread.sleep(10))
-                    if(attempts>1000)
-                    {
-                        System.out.println("error : timeout");
-                        System.exit(1);
+    /**
+     * Get the stream from the client. Whole-file migrations are
+     * shaped as <code>NORMAL</code> traffic.
+     *
+     * @return the shaped stream
+     * @throws IOException if the socket is closed
+     * @see javapm.io.TrafficShaper
+     */
+    private InputStream input() throws IOException {
+        if (input == null) {
+            input = manager.getShaper().input(clientSocket.getInputStream(),
+                    clientSocket.getInetAddress().getHostAddress(), TrafficClass.NORMAL);
+        }
+        return input;
+    }
+
+    /**
+     * Read the received process state. A <code>.ckpt</code> file is an
+     * incremental checkpoint log, other files hold the whole
+     * serialized object.
+     *
+     * @param objectFileName the received file
+     * @return the process object
+     * @see javapm.checkpoint.CheckpointStore#restore(File)
+     */
+    static Object readProcess(String objectFileName) throws IOException, ClassNotFoundException {
+        if (objectFileName.endsWith(CheckpointStore.EXTENSION)) {
+            return CheckpointStore.restore(new File(objectFileName));
+        }
+        ObjectInputStream in = new ObjectInputStream(new FileInputStream(objectFileName));
+        try {
+            return in.readObject();
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Start a received process and tell the sender the status. The
+     * status is sent before the process starts, so the sender doesn't
+     * wait for the start.
+     *
+     * @param manager the receiving manager
+     * @param object the received object
+     * @param out    the stream to the sender
+     * @param peer   the sender
+     * @return the started process, null if the object is not a process
+     * @throws IOException if the status can't be sent
+     */
+    static MigratableProcess accept(ProcessManager manager, Object object, DataOutputStream out,
+                                    String peer) throws IOException {
+        if (!(object instanceof MigratableProcess)) {
+            out.writeBoolean(false);
+            out.flush();
+            return null;
+        }
+        MigrationMetrics metrics = manager.getMetrics();
+        MigratableProcess process = (MigratableProcess) object;
+        long start = System.nanoTime();
+        process.migrated();
+        metrics.record(MigrationPhase.REATTACH, System.nanoTime() - start);
+        out.writeBoolean(true);
+        out.flush();
+        start = System.nanoTime();
+        manager.startProcess(process);
+        metrics.record(MigrationPhase.RESUME, System.nanoTime() - start);
+        metrics.receive();
+        System.out.println("Received " + process.toString());
+        manager.getDirectory().record(process.getId(), manager.getNodeName(),
+                process.toString());
+        FlightEvents.endMigration(FlightEvents.RECEIVE, process.getId(),
+                process.getClass().getName(), peer, true);
+        return process;
+    }
+
+    /**
+     * Answer a control request
+     *
+     * @param opcode the control opcode
+     * @see javapm.process.ProcessServer#LOOKUP
+     * @see javapm.process.ControlClient
+     */
+    private void control(int opcode) throws IOException {
+        DataInputStream in = new DataInputStream(clientSocket.getInputStream());
+        DataOutputStream out = new DataOutputStream(clientSocket.getOutputStream());
+        List<HibernationManager.HibernatedProcess> none = Collections.emptyList();
+        switch (opcode) {
+            case ProcessServer.LOOKUP:
+                ControlClient.writeProcesses(out, manager.findByKey(in.readUTF()), none);
+                break;
+            case ProcessServer.PS:
+                ControlClient.writeProcesses(out, new ArrayList<MigratableProcess>(manager.processes),
+                        new ArrayList<HibernationManager.HibernatedProcess>(
+                                manager.getHibernation().getHibernated()));
+                break;
+            case ProcessServer.FIND:
+                long id = in.readLong();
+                List<MigratableProcess> found = new ArrayList<MigratableProcess>();
+                List<HibernationManager.HibernatedProcess> hibernated =
+                        new ArrayList<HibernationManager.HibernatedProcess>();
+                MigratableProcess process = manager.getProcess(id);
+                if (process != null) {
+                    found.add(process);
+                } else {
+                    for (HibernationManager.HibernatedProcess record :
+                            manager.getHibernation().getHibernated()) {
+                        if (record.getId() == id) {
+                            hibernated.add(record);
+                        }
                     }
-            }    
-            catch(InterruptedException ex)
-            {
-                System.out.println("exception on waitforsocket" +ex);
-            }            
+                }
+                ControlClient.writeProcesses(out, found, hibernated);
+                break;
+            case ProcessServer.STEAL:
+                String thief = in.readUTF();
+                int resident = in.readInt();
+                out.writeInt(manager.getStealer().offer(thief, resident, in.readInt()));
+                break;
+            case ProcessServer.STAT:
+                int count = in.readInt();
+                out.writeInt(count);
+                for (int i = 0; i < count; i++) {
+                    File file = new File(in.readUTF());
+                    StagedFileRegistry.StagedFile staged = StagedFileRegistry.get(file);
+                    out.writeLong(staged != null || !file.isFile() ? -1 : file.length());
+                }
+                break;
+            default:
+                System.out.println("unknown control request " + opcode);
+                break;
         }
-        
+        out.close();
+        clientSocket.close();
+    }
+
+    /**
+     * Receive a pipelined migration
+     *
+     * @param peer the sender
+     * @see javapm.process.PipelinedReceiver
+     */
+    private void receivePipelined(String peer) {
+        FlightEvents.beginMigration();
+        MigratableProcess process = null;
+        try {
+            process = new PipelinedReceiver(manager, clientSocket).receive(peer);
+            clientSocket.close();
+        } catch (IOException e) {
+            System.out.println("processing client request error" + e);
+        } finally {
+            FlightEvents.endMigration(FlightEvents.RECEIVE, process == null ? -1 : process.getId(),
+                    process == null ? null : process.getClass().getName(), peer, false);
+        }
+    }
 
 	public void run() {
+		String peer = clientSocket.getInetAddress().getHostAddress();
+		long admitted = -1;
+		try {
+			DataInputStream in = new DataInputStream(clientSocket.getInputStream());
+			int files = in.readInt();
+			if (files == ProcessServer.ADMIT) {
+				admitted = manager.getAdmission().answer(in,
+						new DataOutputStream(clientSocket.getOutputStream()));
+				if (admitted < 0) {
+					clientSocket.close();
+					return;
+				}
+				files = in.readInt();
+			}
+			if (files == ProcessServer.PIPELINED) {
+				receivePipelined(peer);
+			} else if (files == ProcessServer.STAGE) {
+				manager.getPreStager().receive(clientSocket, peer);
+				clientSocket.close();
+			} else if (files == ProcessServer.REPLICATE) {
+				manager.getReplicas().receive(clientSocket, peer);
+				clientSocket.close();
+			} else if (files == ProcessServer.FORWARD) {
+				manager.getForwarder().receive(clientSocket, peer);
+				clientSocket.close();
+			} else if (files < 0) {
+				control(files);
+			} else {
+				receive(peer, files);
+			}
+		} catch (IOException e) {
+			System.out.println("processing client request error"+e);
+		} finally {
+			if (admitted >= 0) {
+				manager.getAdmission().release(admitted);
+			}
+		}
+	}
+
+	/**
+	 * Receive a whole-file migration
+	 *
+	 * @param peer  the sender
+	 * @param files the number of stream files
+	 */
+	private void receive(String peer, int files) {
+		FlightEvents.beginMigration();
+		MigratableProcess process = null;
 		try {
                         //getfile("i.txt");
                         //getfile("o.txt");
-			getfile();
-                        getfile();
+			for (int i = 0; i < files; i++) {
+				getfile();
+			}
                         String objectFileName = getfile();
                         //ObjectInputStream in = new ObjectInputStream(clientSocket.getInputStream());
 			DataOutputStream out = new DataOutputStream(clientSocket.getOutputStream());
-                        FileInputStream fis = new FileInputStream(objectFileName);
-                        ObjectInputStream in = new ObjectInputStream(fis); 
-			Object object = in.readObject();
-                        object = (MigratableProcess)object;
-			MigratableProcess process = null;
-            if(object instanceof MigratableProcess){
-            	process = (MigratableProcess)object;
-            	process.migrated();
-            	out.writeBoolean(true);
-	            ProcessManager.getInstance().startProcess(process);
-            }
-            else {
-            	out.writeBoolean(false);
-            }
-            in.close();
+			MigrationMetrics metrics = manager.getMetrics();
+			long start = System.nanoTime();
+			Object object;
+			long size = new File(objectFileName).length();
+			try {
+				object = readProcess(objectFileName);
+			} finally {
+				new File(objectFileName).delete();
+			}
+			if (object instanceof MigratableProcess) {
+				((MigratableProcess) object).getAccounting().setSerializedSize(size);
+			}
+			metrics.record(MigrationPhase.REMOTE_DESERIALIZE, System.nanoTime() - start);
+            process = accept(manager, object, out, peer);
             out.close();
             clientSocket.close();
 		}
@@ -132,6 +335,9 @@ public class ProcessReceiver implements Runnable{
 			System.out.println("processing client request error"+e);
         } catch (ClassNotFoundException e) {
         	System.out.println("client sent unrecognized object"+e);
+        } finally {
+        	FlightEvents.endMigration(FlightEvents.RECEIVE, process == null ? -1 : process.getId(),
+        	        process == null ? null : process.getClass().getName(), peer, false);
         }
 	}
 }
@@ -30,6 +30,61 @@ public class ProcessServer implements Runnable{
      */
     public static final int PORT = 15440;
 
+    /**
+     * Control opcodes. A connection starts with an int, a migration
+     * sends the number of its stream files, a control request sends
+     * a negative opcode instead.
+     */
+    public static final int LOOKUP = -1;
+    public static final int PS = -2;
+    public static final int FIND = -3;
+
+    /**
+     * Opcode of a pipelined migration, the process state travels
+     * before the framed stream files
+     *
+     * @see javapm.process.PipelinedReceiver
+     */
+    public static final int PIPELINED = -4;
+
+    /**
+     * Opcode of an admission request, it precedes a migration on the
+     * same connection
+     *
+     * @see javapm.process.AdmissionControl
+     */
+    public static final int ADMIT = -5;
+
+    /**
+     * Opcodes of work stealing, an idle node asks for processes and
+     * is asked which input files it has
+     *
+     * @see javapm.cluster.WorkStealer
+     */
+    public static final int STEAL = -6;
+    public static final int STAT = -7;
+
+    /**
+     * Opcode of a pre-staged input file, copied before a migration
+     *
+     * @see javapm.process.PreStager
+     */
+    public static final int STAGE = -8;
+
+    /**
+     * Opcode of a replication round, from a primary to its standby
+     *
+     * @see javapm.process.Replicator
+     */
+    public static final int REPLICATE = -9;
+
+    /**
+     * Opcode of a batch of forwarded output, to the home of the files
+     *
+     * @see javapm.process.OutputForwarder
+     */
+    public static final int FORWARD = -10;
+
     /**
      * Log handler
      *
@@ -47,6 +102,37 @@ public class ProcessServer implements Runnable{
      */
     private boolean running;
 
+    /**
+     * The port this server binds
+     */
+    private int port;
+
+    /**
+     * The manager which receives the processes
+     */
+    private ProcessManager manager;
+
+    /**
+     * Constructor of <code>ProcessServer</code> on the default
+     * <code>PORT</code>
+     *
+     * @param manager the manager which receives the processes
+     */
+    public ProcessServer(ProcessManager manager) {
+        this(manager, PORT);
+    }
+
+    /**
+     * Constructor of <code>ProcessServer</code>
+     *
+     * @param manager the manager which receives the processes
+     * @param port the port to bind
+     */
+    public ProcessServer(ProcessManager manager, int port) {
+        this.manager = manager;
+        this.port = port;
+    }
+
     /**
      * The implementation of <code>Runnable</code> interface
      * First <code>bind()</code> the port, then idle loop to
@@ -83,13 +169,12 @@ public class ProcessServer implements Runnable{
     }
 
     /**
-     * Bind the <code>PORT</code>.
+     * Bind the <code>port</code>.
      * If bind failed, the program exit with -1.
      */
     private void bind(){
         try {
-        	
-            serverSocket = new ServerSocket(PORT);
+            serverSocket = new ServerSocket(port);
         } catch (IOException e) {
             LOG.fatal("ServerSocket bind error", e);
             System.exit(-1);
@@ -119,6 +204,6 @@ public class ProcessServer implements Runnable{
             LOG.fatal("ServerSocket accept error", e);
             System.exit(-1);
         }
-        new Thread(new ProcessReceiver(clientSocket)).start();
+        new Thread(new ProcessReceiver(manager, clientSocket)).start();
     }
 }
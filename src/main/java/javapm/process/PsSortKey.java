@@ -0,0 +1,81 @@
+package javapm.process;
+
+import javapm.metrics.ProcessAccounting;
+
+/**
+ * The enum of columns which <code>ps -s KEY</code> sorts by.
+ * Except <code>id</code>, processes are sorted in descending order,
+ * so the heaviest processes come first.
+ *
+ * @author Pratyush Kumar(pratyush)
+ * @author Vasu Vardhan(vardhan)
+ * @see javapm.metrics.ProcessAccounting
+ */
+public enum PsSortKey {
+    ID("id"),
+    CPU("cpu"),
+    READ("read"),
+    WRITTEN("written"),
+    RATE("rate"),
+    SUSPEND("suspend"),
+    SIZE("size");
+
+    /**
+     * The value of the enum
+     */
+    private String value;
+
+    private PsSortKey(String value) {
+        this.value = value;
+    }
+
+    /**
+     * Get the value of enum
+     * @return value
+     */
+    public String getValue() {
+        return value;
+    }
+
+    /**
+     * Get the sort value of a process. Larger values come first.
+     *
+     * @param process the process object
+     * @return the sort value
+     */
+    public double sortValue(MigratableProcess process) {
+        ProcessAccounting accounting = process.getAccounting();
+        switch (this) {
+            case CPU:
+                return accounting.getCpuNanos();
+            case READ:
+                return accounting.getBytesRead();
+            case WRITTEN:
+                return accounting.getBytesWritten();
+            case RATE:
+                return accounting.getThroughput();
+            case SUSPEND:
+                return accounting.getSuspendNanos();
+            case SIZE:
+                return accounting.getSerializedSize();
+            case ID:
+            default:
+                return -process.getId();
+        }
+    }
+
+    /**
+     * Get the enum instance by its value.
+     *
+     * @param value the column name
+     * @return if found return the key, else return null
+     */
+    public static PsSortKey getInstance(String value) {
+        for (PsSortKey instance : PsSortKey.values()) {
+            if (instance.getValue().equals(value)) {
+                return instance;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,476 @@
+package javapm.process;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javapm.checkpoint.CheckpointStore;
+import javapm.io.TrafficClass;
+import javapm.io.TransactionalFileOutputStream;
+import javapm.io.TransactionalStream;
+
+/**
+ * The standby side of hot-standby replication. It keeps the
+ * checkpoint log of every replicated process in
+ * <code>javapm.replication.dir</code>, and the replicated files in
+ * <code>javapm.replication.dir/PRIMARY/ID/</code>, apart from the
+ * files of this node.
+ * <p>
+ * The rounds of a primary are its heartbeat. When no round arrived
+ * for <code>javapm.replication.failoverMillis</code> and the failure
+ * detector doesn't see the primary alive either, its processes are
+ * restored from their logs and started here. The replicated output
+ * files are truncated to the offsets of the restored streams, so they
+ * hold exactly what the process wrote up to its last replicated
+ * checkpoint, and all files are moved to the paths of the streams.
+ * A process whose paths exist here, or are used by a resident
+ * process, is not taken over and its replica is kept. A primary which
+ * comes back is told which of its processes were taken over.
+ *
+ * @author Vasu Vardhan(vardhan)
+ * @author Pratyush Kumar(pratyush)
+ * @see javapm.process.Replicator
+ * @see javapm.checkpoint.CheckpointStore#restore(File)
+ */
+public class ReplicaStore implements Runnable {
+    /**
+     * Log handler
+     *
+     * @see <a href="http://apache.org/log4j/2.x/">Log4J</a>
+     */
+    private static Logger LOG = LogManager.getLogger(ReplicaStore.class);
+
+    /**
+     * The receiving manager
+     */
+    private ProcessManager manager;
+
+    /**
+     * The directory of the replicated logs
+     */
+    private File directory;
+
+    /**
+     * Silence of a primary after which it fails over
+     */
+    private long failoverMillis;
+
+    /**
+     * The primary of each replicated process, by process ID
+     */
+    private Map<Long, String> primaries;
+
+    /**
+     * The length of each replicated log, by process ID
+     */
+    private Map<Long, Long> logs;
+
+    /**
+     * The time of the last round of each primary
+     */
+    private Map<String, Long> heard;
+
+    /**
+     * The processes this node took over
+     */
+    private Set<Long> takenOver;
+
+    /**
+     * Constructor of <code>ReplicaStore</code>
+     *
+     * @param manager the process manager
+     * @param config  the settings of the manager
+     */
+    public ReplicaStore(ProcessManager manager, ProcessManagerConfig config) {
+        this.manager = manager;
+        this.directory = config.getReplicationDirectory();
+        this.failoverMillis = config.getReplicationFailoverMillis();
+        this.primaries = new HashMap<Long, String>();
+        this.logs = new HashMap<Long, Long>();
+        this.heard = new HashMap<String, Long>();
+        this.takenOver = new HashSet<Long>();
+    }
+
+    /**
+     * The failure watch loop
+     */
+    public void run() {
+        while (true) {
+            try {
+                Thread.sleep(Math.max(1, failoverMillis / 4));
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                long now = System.currentTimeMillis();
+                for (String primary : silent(now)) {
+                    if (!manager.isAlive(primary)) {
+                        failover(primary);
+                    }
+                }
+            } catch (RuntimeException e) {
+                LOG.error("failover error", e);
+            }
+        }
+    }
+
+    private synchronized List<String> silent(long now) {
+        List<String> silent = new ArrayList<String>();
+        for (Map.Entry<String, Long> entry : heard.entrySet()) {
+            if (now - entry.getValue() >= failoverMillis) {
+                silent.add(entry.getKey());
+            }
+        }
+        return silent;
+    }
+
+    /**
+     * Receive a round of a primary, after the <code>REPLICATE</code>
+     * opcode. The round is read whole before it is applied, so a slow
+     * primary doesn't hold up the others or a failover.
+     *
+     * @param socket the connected socket
+     * @param peer   the sender address
+     * @throws IOException if the connection fails
+     */
+    void receive(Socket socket, String peer) throws IOException {
+        DataInputStream in = new DataInputStream(manager.getShaper().input(
+                socket.getInputStream(), peer, TrafficClass.NORMAL));
+        DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+        String primary = in.readUTF();
+        List<Replica> round = new ArrayList<Replica>();
+        while (in.readBoolean()) {
+            Replica replica = new Replica();
+            replica.id = in.readLong();
+            replica.reset = in.readBoolean();
+            replica.from = in.readLong();
+            replica.log = new byte[in.readInt()];
+            in.readFully(replica.log);
+            int files = in.readInt();
+            for (int i = 0; i < files; i++) {
+                Range range = new Range();
+                range.path = in.readUTF();
+                range.start = in.readLong();
+                long end = in.readLong();
+                if (end - range.start > Integer.MAX_VALUE || end < range.start) {
+                    throw new IOException("bad range of " + range.path + " from " + primary);
+                }
+                range.bytes = new byte[(int) (end - range.start)];
+                in.readFully(range.bytes);
+                replica.ranges.add(range);
+            }
+            round.add(replica);
+        }
+        long[] removed = new long[in.readInt()];
+        for (int i = 0; i < removed.length; i++) {
+            removed[i] = in.readLong();
+        }
+        List<Long> fenced = new ArrayList<Long>();
+        int status = apply(primary, round, removed, fenced);
+        if (fenced.isEmpty()) {
+            out.writeInt(status);
+        } else {
+            out.writeInt(Replicator.FENCED);
+            out.writeInt(fenced.size());
+            for (long id : fenced) {
+                out.writeLong(id);
+            }
+        }
+        out.flush();
+    }
+
+    /**
+     * Apply a received round. The files are written before the log, so
+     * the log never refers to bytes which are not there.
+     *
+     * @param primary the node name of the primary
+     * @param round   the replicated processes
+     * @param removed the processes the primary dropped
+     * @param fenced  receives the processes taken over here
+     * @return the status of the round
+     * @throws IOException if a file can't be written
+     */
+    private synchronized int apply(String primary, List<Replica> round, long[] removed,
+                                   List<Long> fenced) throws IOException {
+        int status = Replicator.OK;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("can't create replication directory " + directory);
+        }
+        for (Replica replica : round) {
+            long id = replica.id;
+            if (takenOver.contains(id)) {
+                fenced.add(id);
+                continue;
+            }
+            for (Range range : replica.ranges) {
+                File file = replicaFile(primary, id, range.path);
+                if (range.start > file.length()) {
+                    status = Replicator.RESYNC;
+                    continue;
+                }
+                file.getParentFile().mkdirs();
+                RandomAccessFile target = new RandomAccessFile(file, "rw");
+                try {
+                    target.seek(range.start);
+                    target.write(range.bytes);
+                    long end = range.start + range.bytes.length;
+                    if (range.bytes.length > 0 && target.length() > end) {
+                        // a changed input, or bytes of an unfinished round
+                        target.setLength(end);
+                    }
+                } finally {
+                    target.close();
+                }
+            }
+            Long length = logs.get(id);
+            if (!replica.reset && (length == null || length != replica.from)) {
+                status = Replicator.RESYNC;
+                continue;
+            }
+            RandomAccessFile target = new RandomAccessFile(logFile(id), "rw");
+            try {
+                target.setLength(replica.from);
+                target.seek(replica.from);
+                target.write(replica.log);
+            } finally {
+                target.close();
+            }
+            logs.put(id, replica.from + replica.log.length);
+            primaries.put(id, primary);
+        }
+        for (long id : removed) {
+            if (!takenOver.contains(id)) {
+                forget(primary, id);
+            }
+        }
+        heard.put(primary, System.currentTimeMillis());
+        return status;
+    }
+
+    /**
+     * Restore the processes of a primary and start them here. A later
+     * round of the primary with one of them is answered as taken over.
+     *
+     * @param primary the node name of the primary
+     * @return the number of processes started
+     */
+    public synchronized int failover(String primary) {
+        heard.remove(primary);
+        int started = 0;
+        for (long id : new ArrayList<Long>(primaries.keySet())) {
+            if (!primary.equals(primaries.get(id))) {
+                continue;
+            }
+            try {
+                MigratableProcess process = CheckpointStore.restore(logFile(id));
+                place(primary, id, process);
+                takenOver.add(id);
+                process.migrated();
+                manager.startProcess(process);
+                started++;
+                System.out.println("Failover of " + primary + ": resumed " + process);
+            } catch (IOException e) {
+                // the replica stays, a primary which comes back replicates it again
+                LOG.error("failover of process " + id + " error", e);
+                System.out.println("Failover of " + primary + ": kept replica of " + id +
+                        ", " + e.getMessage());
+                continue;
+            }
+            forget(primary, id);
+        }
+        return started;
+    }
+
+    /**
+     * Move the replicated files of a restored process to the paths of
+     * its streams, the outputs cut to the offsets of the streams.
+     * Nothing is moved if one of the paths exists here or is used by a
+     * resident process.
+     *
+     * @param primary the node name of the primary
+     * @param id      the process ID
+     * @param process the restored process
+     * @throws IOException if a path is taken, or a file can't be moved
+     */
+    private void place(String primary, long id, MigratableProcess process) throws IOException {
+        Map<File, TransactionalStream> targets = new LinkedHashMap<File, TransactionalStream>();
+        for (TransactionalStream stream : process.getTransactionalStreams()) {
+            File target = stream.getFile().getAbsoluteFile();
+            if (target.exists() || manager.getPreStager().inUse(target)) {
+                throw new IOException(stream.getFile() + " exists or is in use here");
+            }
+            targets.put(target, stream);
+        }
+        for (Map.Entry<File, TransactionalStream> entry : targets.entrySet()) {
+            TransactionalStream stream = entry.getValue();
+            File replica = replicaFile(primary, id, stream.getFile().getPath());
+            if (!replica.exists()) {
+                continue;
+            }
+            if (stream instanceof TransactionalFileOutputStream) {
+                truncate(replica, stream.getOffset());
+            }
+            File parent = entry.getKey().getParentFile();
+            if (parent != null) {
+                parent.mkdirs();
+            }
+            Files.move(replica.toPath(), entry.getKey().toPath());
+        }
+    }
+
+    /**
+     * Get the primaries with replicated processes here
+     *
+     * @return the number of processes, by primary
+     */
+    public synchronized Map<String, Integer> getPrimaries() {
+        Map<String, Integer> counts = new HashMap<String, Integer>();
+        for (String primary : primaries.values()) {
+            Integer count = counts.get(primary);
+            counts.put(primary, count == null ? 1 : count + 1);
+        }
+        return counts;
+    }
+
+    private void forget(String primary, long id) {
+        primaries.remove(id);
+        logs.remove(id);
+        logFile(id).delete();
+        File replica = replicaDirectory(primary, id);
+        delete(replica);
+        // the directory of the primary goes with its last process
+        replica.getParentFile().delete();
+    }
+
+    private File logFile(long id) {
+        return new File(directory, id + CheckpointStore.EXTENSION);
+    }
+
+    private File replicaDirectory(String primary, long id) {
+        return new File(new File(directory, primary.replace(':', '_')), Long.toString(id));
+    }
+
+    /**
+     * Get the replica of a file of the primary. Absolute paths are
+     * kept under <code>root</code>, relative ones under
+     * <code>work</code>.
+     *
+     * @param primary the node name of the primary
+     * @param id      the process ID
+     * @param path    the path on the primary
+     * @return the file in the replica directory of the process
+     * @throws IOException if the path leaves the replica directory
+     */
+    private File replicaFile(String primary, long id, String path) throws IOException {
+        Path file = new File(path).toPath().normalize();
+        String base = "work";
+        if (file.getRoot() != null) {
+            file = file.getRoot().relativize(file);
+            base = "root";
+        }
+        if (file.toString().isEmpty() || file.startsWith("..")) {
+            throw new IOException("replicated path " + path + " is outside the replica");
+        }
+        return new File(new File(replicaDirectory(primary, id), base), file.toString());
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * Cut a file to the replicated offset of its stream
+     */
+    private static void truncate(File file, long offset) throws IOException {
+        if (!file.exists() || file.length() <= offset) {
+            return;
+        }
+        RandomAccessFile handler = new RandomAccessFile(file, "rw");
+        try {
+            handler.setLength(offset);
+        } finally {
+            handler.close();
+        }
+    }
+
+    /**
+     * One process of a received round
+     */
+    private static class Replica {
+        /**
+         * The process ID
+         */
+        long id;
+
+        /**
+         * If the log starts again
+         */
+        boolean reset;
+
+        /**
+         * The offset of the log bytes
+         */
+        long from;
+
+        /**
+         * The new log bytes
+         */
+        byte[] log;
+
+        /**
+         * The file ranges
+         */
+        List<Range> ranges = new ArrayList<Range>();
+    }
+
+    /**
+     * A range of a replicated file
+     */
+    private static class Range {
+        /**
+         * The path on the primary
+         */
+        String path;
+
+        /**
+         * The first byte
+         */
+        long start;
+
+        /**
+         * The bytes
+         */
+        byte[] bytes;
+    }
+
+    /**
+     * The printable state, used by the <code>stats</code> command.
+     *
+     * @return the printable information
+     */
+    public synchronized String toString() {
+        return "replicas: " + primaries.size() + " processes of " + getPrimaries().size() +
+                " primaries, " + takenOver.size() + " taken over";
+    }
+}
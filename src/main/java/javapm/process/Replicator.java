@@ -0,0 +1,483 @@
+package javapm.process;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javapm.checkpoint.IncrementalCheckpointer;
+import javapm.io.TrafficClass;
+import javapm.io.TransactionalFileInputStream;
+import javapm.io.TransactionalStream;
+
+/**
+ * The primary side of hot-standby replication. Every round takes an
+ * incremental checkpoint of each replicated process, and sends its
+ * standby what it doesn't have yet:
+ * <ul>
+ * <li>the bytes appended to the checkpoint log, or the whole log
+ * after it was truncated for a new base,</li>
+ * <li>the bytes of each output file up to the offset of its stream
+ * at the checkpoint, and</li>
+ * <li>each input file, once, and again when it changes.</li>
+ * </ul>
+ * A round is one <code>REPLICATE</code> connection per standby, it
+ * is sent even if nothing changed, so the standby hears the primary.
+ * The process is suspended for the checkpoint only, the files are
+ * read after it resumed: it only writes after the checkpointed offset.
+ * If the standby answers that its copy doesn't match, the next round
+ * sends everything again; if it answers that it took over the
+ * processes, this node drops them.
+ *
+ * @author Vasu Vardhan(vardhan)
+ * @author Pratyush Kumar(pratyush)
+ * @see javapm.process.ReplicaStore
+ * @see javapm.checkpoint.IncrementalCheckpointer
+ */
+public class Replicator implements Runnable {
+    /**
+     * Log handler
+     *
+     * @see <a href="http://apache.org/log4j/2.x/">Log4J</a>
+     */
+    private static Logger LOG = LogManager.getLogger(Replicator.class);
+
+    /**
+     * The answers of a standby
+     */
+    static final int OK = 0;
+    static final int RESYNC = 1;
+    static final int FENCED = 2;
+
+    /**
+     * The copy buffer size
+     */
+    private static final int BUFFER = 64 * 1024;
+
+    /**
+     * The owner of resident processes
+     */
+    private ProcessManager manager;
+
+    /**
+     * Interval between two rounds
+     */
+    private long intervalMillis;
+
+    /**
+     * The standby of a process without its own
+     */
+    private String standby;
+
+    /**
+     * The replicated processes, the standby by process ID
+     */
+    private Map<Long, String> replicated;
+
+    /**
+     * What each standby has of each process, by process ID
+     */
+    private Map<Long, Shipped> shipped;
+
+    /**
+     * The number of rounds and bytes sent
+     */
+    private long rounds;
+    private long bytes;
+
+    /**
+     * Constructor of <code>Replicator</code>
+     *
+     * @param manager the process manager
+     * @param config  the settings of the manager
+     */
+    public Replicator(ProcessManager manager, ProcessManagerConfig config) {
+        this.manager = manager;
+        this.intervalMillis = config.getReplicationIntervalMillis();
+        this.standby = config.getReplicationStandby();
+        this.replicated = new ConcurrentHashMap<Long, String>();
+        this.shipped = new ConcurrentHashMap<Long, Shipped>();
+    }
+
+    /**
+     * The replication loop
+     */
+    public void run() {
+        while (true) {
+            try {
+                Thread.sleep(intervalMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                replicate();
+            } catch (RuntimeException e) {
+                LOG.error("replication error", e);
+            }
+        }
+    }
+
+    /**
+     * Replicate a process
+     *
+     * @param id   the process ID
+     * @param node the standby <code>HOST:PORT</code>, null for the
+     *             standby of <code>javapm.replication.standby</code>
+     * @return the standby, null if there is none
+     */
+    public String start(long id, String node) {
+        if (node == null) {
+            node = standby;
+        }
+        if (node == null || node.length() == 0) {
+            return null;
+        }
+        String previous = replicated.put(id, node);
+        if (!node.equals(previous)) {
+            shipped.remove(id);
+        }
+        return node;
+    }
+
+    /**
+     * Stop replicating a process, its standby drops its copy at the
+     * next round
+     *
+     * @param id the process ID
+     * @return if it was replicated return <code>true</code>
+     */
+    public boolean stop(long id) {
+        if (!replicated.containsKey(id)) {
+            return false;
+        }
+        replicated.put(id, "");
+        return true;
+    }
+
+    /**
+     * Get the replicated processes
+     *
+     * @return the standby by process ID
+     */
+    public Map<Long, String> getReplicated() {
+        Map<Long, String> copy = new LinkedHashMap<Long, String>();
+        for (Map.Entry<Long, String> entry : replicated.entrySet()) {
+            if (entry.getValue().length() > 0) {
+                copy.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return copy;
+    }
+
+    /**
+     * One round: send every standby the changes of its processes
+     */
+    public void replicate() {
+        Map<String, List<Long>> byStandby = new LinkedHashMap<String, List<Long>>();
+        Map<String, List<Long>> removed = new HashMap<String, List<Long>>();
+        for (Map.Entry<Long, String> entry : replicated.entrySet()) {
+            long id = entry.getKey();
+            Shipped copy = shipped.get(id);
+            String node = entry.getValue();
+            if (node.length() == 0 || manager.getProcess(id) == null) {
+                // stopped, finished or migrated away
+                replicated.remove(id);
+                shipped.remove(id);
+                if (copy != null) {
+                    group(removed, copy.standby).add(id);
+                }
+                continue;
+            }
+            if (copy != null && !copy.standby.equals(node)) {
+                group(removed, copy.standby).add(id);
+            }
+            group(byStandby, node).add(id);
+        }
+        for (String node : removed.keySet()) {
+            group(byStandby, node);
+        }
+        for (Map.Entry<String, List<Long>> entry : byStandby.entrySet()) {
+            List<Long> gone = removed.get(entry.getKey());
+            try {
+                send(entry.getKey(), entry.getValue(),
+                        gone == null ? new ArrayList<Long>() : gone);
+            } catch (IOException e) {
+                LOG.warn("replication to " + entry.getKey() + " failed: " + e);
+                resync(entry.getValue());
+            }
+        }
+    }
+
+    private static List<Long> group(Map<String, List<Long>> groups, String node) {
+        List<Long> ids = groups.get(node);
+        if (ids == null) {
+            ids = new ArrayList<Long>();
+            groups.put(node, ids);
+        }
+        return ids;
+    }
+
+    /**
+     * Send one round to a standby
+     *
+     * @param node    the standby
+     * @param ids     its processes
+     * @param removed the processes it drops
+     * @throws IOException if the round fails
+     */
+    private void send(String node, List<Long> ids, List<Long> removed) throws IOException {
+        int split = node.lastIndexOf(':');
+        ShapedSocket socket = new ShapedSocket(node.substring(0, split),
+                Integer.parseInt(node.substring(split + 1)), manager.getShaper(),
+                TrafficClass.NORMAL);
+        Map<Long, Shipped> sent = new HashMap<Long, Shipped>();
+        long total = 0;
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    socket.getOutputStream(), BUFFER));
+            out.writeInt(ProcessServer.REPLICATE);
+            out.writeUTF(manager.getNodeName());
+            for (long id : ids) {
+                MigratableProcess process = manager.getProcess(id);
+                Shipped copy = process == null ? null : checkpoint(process);
+                if (copy == null) {
+                    continue;
+                }
+                Shipped previous = shipped.get(id);
+                out.writeBoolean(true);
+                total += write(out, id, copy, previous != null && previous.standby.equals(node) ?
+                        previous : null, node);
+                sent.put(id, copy);
+            }
+            out.writeBoolean(false);
+            out.writeInt(removed.size());
+            for (long id : removed) {
+                out.writeLong(id);
+            }
+            out.flush();
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            int status = in.readInt();
+            if (status == FENCED) {
+                List<Long> fenced = new ArrayList<Long>();
+                for (int i = in.readInt(); i > 0; i--) {
+                    fenced.add(in.readLong());
+                }
+                fenced(node, fenced);
+                resync(ids);
+                return;
+            }
+            if (status != OK) {
+                LOG.info(node + " asks for a full copy");
+                resync(ids);
+                return;
+            }
+        } finally {
+            socket.close();
+        }
+        shipped.putAll(sent);
+        synchronized (this) {
+            rounds++;
+            bytes += total;
+        }
+    }
+
+    /**
+     * Take a checkpoint of a process, suspended, and record the offsets
+     * of its output streams
+     *
+     * @param process the process
+     * @return what the standby will have, null if the process is
+     * migrating
+     */
+    private Shipped checkpoint(MigratableProcess process) throws IOException {
+        long id = process.getId();
+        if (!manager.beginMigrating(id)) {
+            return null;
+        }
+        try {
+            try {
+                process.suspend();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted while suspending " + process);
+            }
+            Shipped copy = new Shipped();
+            try {
+                manager.getCheckpointStore().checkpoint(process);
+                for (TransactionalStream stream : process.getTransactionalStreams()) {
+                    File file = stream.getFile();
+                    if (stream instanceof TransactionalFileInputStream) {
+                        if (!copy.outputs.containsKey(file)) {
+                            copy.inputs.put(file, new long[]{file.length(), file.lastModified()});
+                        }
+                    } else if (!OutputForwarder.isForwarded(stream)) {
+                        copy.inputs.remove(file);
+                        copy.outputs.put(file, stream.getOffset());
+                    }
+                }
+            } finally {
+                manager.resumeProcess(process);
+            }
+            IncrementalCheckpointer checkpointer = manager.getCheckpointStore().getCheckpointer(id);
+            synchronized (checkpointer) {
+                copy.base = checkpointer.getBaseSequence();
+                copy.log = Files.readAllBytes(checkpointer.getLogFile().toPath());
+            }
+            return copy;
+        } finally {
+            manager.endMigrating(id);
+        }
+    }
+
+    /**
+     * Write the changes of one process
+     *
+     * @param out      the stream to the standby
+     * @param id       the process ID
+     * @param copy     the new state
+     * @param previous what the standby has, null for nothing
+     * @param node     the standby
+     * @return the number of bytes written
+     */
+    private long write(DataOutputStream out, long id, Shipped copy, Shipped previous,
+                       String node) throws IOException {
+        copy.standby = node;
+        boolean reset = previous == null || previous.base != copy.base ||
+                previous.log.length > copy.log.length;
+        int from = reset ? 0 : previous.log.length;
+        out.writeLong(id);
+        out.writeBoolean(reset);
+        out.writeLong(from);
+        out.writeInt(copy.log.length - from);
+        out.write(copy.log, from, copy.log.length - from);
+        long total = copy.log.length - from;
+        out.writeInt(copy.outputs.size() + copy.inputs.size());
+        for (Map.Entry<File, Long> output : copy.outputs.entrySet()) {
+            Long sent = previous == null ? null : previous.outputs.get(output.getKey());
+            long start = sent == null || sent > output.getValue() ? 0 : sent;
+            total += writeFile(out, output.getKey(), start, output.getValue());
+        }
+        for (Map.Entry<File, long[]> input : copy.inputs.entrySet()) {
+            long[] sent = previous == null ? null : previous.inputs.get(input.getKey());
+            long length = input.getValue()[0];
+            long start = sent != null && sent[0] == length && sent[1] == input.getValue()[1] ?
+                    length : 0;
+            total += writeFile(out, input.getKey(), start, length);
+        }
+        return total;
+    }
+
+    /**
+     * Write a range of a file: its path, the range, and the bytes
+     */
+    private static long writeFile(DataOutputStream out, File file, long from, long to)
+            throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            to = Math.min(to, in.length());
+            from = Math.min(from, to);
+            out.writeUTF(file.getPath());
+            out.writeLong(from);
+            out.writeLong(to);
+            byte[] buffer = new byte[BUFFER];
+            in.seek(from);
+            long left = to - from;
+            while (left > 0) {
+                int n = (int) Math.min(buffer.length, left);
+                in.readFully(buffer, 0, n);
+                out.write(buffer, 0, n);
+                left -= n;
+            }
+            return to - from;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Forget what a standby has, the next round sends everything
+     */
+    private void resync(List<Long> ids) {
+        for (long id : ids) {
+            shipped.remove(id);
+        }
+    }
+
+    /**
+     * Drop the processes a standby took over, after this node was
+     * declared dead
+     *
+     * @param node the standby
+     * @param ids  the processes
+     */
+    private void fenced(String node, List<Long> ids) {
+        for (long id : ids) {
+            replicated.remove(id);
+            shipped.remove(id);
+            MigratableProcess process = manager.getProcess(id);
+            if (process == null) {
+                continue;
+            }
+            try {
+                process.suspend();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            manager.finishProcess(process);
+            manager.getDirectory().record(id, node, process.toString());
+            System.out.println("Dropped " + process + ", " + node + " took it over");
+        }
+    }
+
+    /**
+     * The printable state, used by the <code>stats</code> command.
+     *
+     * @return the printable information
+     */
+    public synchronized String toString() {
+        return "replication: " + getReplicated().size() + " processes, " + rounds +
+                " rounds, " + bytes + " bytes sent";
+    }
+
+    /**
+     * The state of a process a standby has
+     */
+    private static class Shipped {
+        /**
+         * The standby
+         */
+        String standby;
+
+        /**
+         * The base sequence of the log
+         */
+        long base;
+
+        /**
+         * The checkpoint log
+         */
+        byte[] log;
+
+        /**
+         * The replicated offset of each output file
+         */
+        Map<File, Long> outputs = new LinkedHashMap<File, Long>();
+
+        /**
+         * The length and modification time of each input file
+         */
+        Map<File, long[]> inputs = new LinkedHashMap<File, long[]>();
+    }
+}
@@ -0,0 +1,63 @@
+package javapm.process;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+
+import javapm.io.TrafficClass;
+import javapm.io.TrafficShaper;
+
+/**
+ * The socket of an outgoing migration. Everything written to it goes
+ * through the traffic shaper of the sending manager, in the class of
+ * the migration; the answers of the receiver are read unshaped.
+ *
+ * @author Vasu Vardhan(vardhan)
+ * @author Pratyush Kumar(pratyush)
+ * @see javapm.io.TrafficShaper
+ */
+class ShapedSocket extends Socket {
+    /**
+     * The shaper of the sending manager
+     */
+    private TrafficShaper shaper;
+
+    /**
+     * The class of the migration
+     */
+    private TrafficClass traffic;
+
+    /**
+     * The shaped output stream, created at the first call
+     */
+    private OutputStream output;
+
+    /**
+     * Connect a process server
+     *
+     * @param host    the host of the receiver
+     * @param port    the process server port of the receiver
+     * @param shaper  the shaper of the sending manager
+     * @param traffic the class of the migration
+     * @throws IOException if the receiver can't be reached
+     */
+    ShapedSocket(String host, int port, TrafficShaper shaper, TrafficClass traffic)
+            throws IOException {
+        super(host, port);
+        this.shaper = shaper;
+        this.traffic = traffic;
+    }
+
+    TrafficClass getTraffic() {
+        return traffic;
+    }
+
+    @Override
+    public synchronized OutputStream getOutputStream() throws IOException {
+        if (output == null) {
+            output = shaper.output(super.getOutputStream(),
+                    getInetAddress().getHostAddress(), traffic);
+        }
+        return output;
+    }
+}
@@ -0,0 +1,154 @@
+package javapm.process;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import javapm.io.TransactionalFileInputStream;
+import javapm.io.TransactionalFileOutputStream;
+
+/**
+ * The shard of a <code>ShardedJob</code>, a <code>MigratableProcess</code>
+ * of its own. It sorts the characters of each line of a byte range of
+ * the input, like <code>SortProcess</code>, and writes the lines to its
+ * shard output. The range starts and ends at line boundaries, its
+ * input stream ends with the range.
+ * <p>
+ * When the range is done, the shard writes a marker file next to its
+ * output. The output and the marker of a shard started by a job are
+ * pinned to the node of the job: wherever the shard runs, they are
+ * forwarded there, the marker after the last output byte.
+ *
+ * @author Vasu Vardhan(vardhan)
+ * @author Pratyush Kumar(pratyush)
+ * @see javapm.process.ShardedJob
+ * @see javapm.io.TransactionalFileInputStream#TransactionalFileInputStream(File, long, long)
+ * @see javapm.process.OutputForwarder
+ */
+public class ShardProcess extends MigratableProcess {
+    /**
+     * The suffix of the marker of a finished shard
+     */
+    static final String DONE_SUFFIX = ".done";
+
+    private TransactionalFileInputStream inputStream;
+
+    private TransactionalFileOutputStream outputStream;
+
+    /**
+     * The marker stream, created when the range is done
+     */
+    private TransactionalFileOutputStream doneStream;
+
+    /**
+     * The node which keeps the output, null if it is not pinned
+     */
+    private String home;
+
+    /**
+     * If the range is done, read by the job which suspends the shard
+     */
+    private volatile boolean done;
+
+    /**
+     * The constructor with parameters.
+     *
+     * @param args command line arguments from </code>ProcessManager
+     * <code>
+     */
+    public ShardProcess(String[] args) {
+        super(args);
+        if (arguments.size() < 4) {
+            System.out.println("ShardProcess[" + id + "]: " +
+                    "usage: run ShardProcess INPUT START END OUTPUT");
+            done = true;
+            return;
+        }
+        inputStream = new TransactionalFileInputStream(new File(arguments.get(0)),
+                Long.parseLong(arguments.get(1)), Long.parseLong(arguments.get(2)));
+        outputStream = new TransactionalFileOutputStream(new File(arguments.get(3)));
+    }
+
+    /**
+     * Pin the output and the marker to a node
+     *
+     * @param home the node name <code>HOST:PORT</code>
+     */
+    void pin(String home) {
+        this.home = home;
+        outputStream.setPinned(true);
+    }
+
+    /**
+     * Check if the range is done
+     *
+     * @return if it is done return <code>true</code>
+     */
+    boolean isDone() {
+        return done;
+    }
+
+    /**
+     * Get the marker of a shard output
+     *
+     * @param output the shard output
+     * @return the marker file
+     */
+    static File marker(File output) {
+        return new File(output.getPath() + DONE_SUFFIX);
+    }
+
+    /**
+     * Implementation of <code>processing()</code> from
+     * <code>MigratableProcess</code>.
+     * This function should loop with the <code>suspending</code>
+     * flag. Each pass sorts one line.
+     *
+     * @throws IOException if any IO error occurs.
+     */
+    @Override
+    public void processing() throws IOException {
+        while (!suspending && !done) {
+            String line = readLine(inputStream);
+            if (line == null) {
+                finish();
+                break;
+            }
+            char[] chars = line.toCharArray();
+            Arrays.sort(chars);
+            byte[] bytes = (new String(chars) + "\n").getBytes(StandardCharsets.UTF_8);
+            outputStream.write(bytes, 0, bytes.length);
+        }
+    }
+
+    /**
+     * Close the streams and write the marker
+     */
+    private void finish() throws IOException {
+        inputStream.close();
+        outputStream.close();
+        doneStream = new TransactionalFileOutputStream(marker(outputStream.getFile()));
+        doneStream.setPinned(home != null);
+        if (home != null && !home.equals(manager.getNodeName())) {
+            doneStream.forward(home, manager.getForwarder().getLimit());
+        }
+        byte[] bytes = (outputStream.getOffset() + "\n").getBytes(StandardCharsets.UTF_8);
+        doneStream.write(bytes, 0, bytes.length);
+        doneStream.close();
+        done = true;
+    }
+
+    /**
+     * Read a line, without its line terminator. The stream reads
+     * blocks ahead, but its offset stays at the next line.
+     *
+     * @param in the stream
+     * @return the line, or null at the end of the stream
+     * @see javapm.io.TransactionalFileInputStream#readLine()
+     */
+    private static String readLine(TransactionalFileInputStream in) throws IOException {
+        byte[] line = in.readLine();
+        return line == null ? null : new String(line, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,517 @@
+package javapm.process;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javapm.cluster.LoadSummary;
+import javapm.io.TransactionalFileInputStream;
+import javapm.io.TransactionalFileOutputStream;
+import javapm.io.TransactionalStream;
+
+/**
+ * The sharded fork-join example of <code>MigratableProcess</code>
+ * Sort the characters of each line of a large file, like
+ * <code>SortProcess</code>, with one <code>ShardProcess</code> per
+ * byte range of the input.
+ * <p>
+ * The input is cut into <code>SHARDS</code> ranges of about the same
+ * size, each moved forward to the start of a line. Every shard is a
+ * process of its own, so the managers schedule, steal, balance and
+ * migrate them like any other process; with <code>spread</code> the job
+ * sends them round robin to the members of the cluster. The shard
+ * outputs are pinned to the node the job starts on, its home. When all
+ * the shards are done, the job goes home if it is not there and
+ * combines the shard outputs, in order, into the output.
+ * <p>
+ * Suspending the job suspends its resident shards with it: they are
+ * carried in the job, so migrating, draining or hibernating the job
+ * moves them and their streams, and they start again wherever the job
+ * does. Shards which already left keep running where they are.
+ *
+ * @author Vasu Vardhan(vardhan)
+ * @author Pratyush Kumar(pratyush)
+ * @see javapm.process.ShardProcess
+ * @see javapm.io.TransactionalFileOutputStream#setPinned(boolean)
+ */
+public class ShardedJob extends MigratableProcess {
+    /**
+     * The phases of the job
+     */
+    private static final int RUN = 0;
+    private static final int HOME = 1;
+    private static final int COMBINE = 2;
+    private static final int DONE = 3;
+
+    /**
+     * The size of the blocks combined
+     */
+    private static final int BLOCK = 64 * 1024;
+
+    /**
+     * The pause between two checks of the shards
+     */
+    private static final long POLL_MILLIS = 200;
+
+    /**
+     * Timeout of the checks asked to the home node
+     */
+    private static final int STAT_TIMEOUT = 5000;
+
+    /**
+     * The phase the job is in
+     */
+    private int phase;
+
+    /**
+     * If the shards are sent to the members of the cluster
+     */
+    private boolean spread;
+
+    /**
+     * The node which keeps the shard outputs and combines them
+     */
+    private String home;
+
+    /**
+     * The process IDs of the shards
+     */
+    private long[] shardIds;
+
+    /**
+     * The suspended shards held by the job, started when it runs
+     */
+    private ShardProcess[] carried;
+
+    private TransactionalFileOutputStream outputStream;
+
+    /**
+     * The shard output which is combined
+     */
+    private TransactionalFileInputStream combineStream;
+
+    /**
+     * The number of shard outputs combined
+     */
+    private int combined;
+
+    /**
+     * The shards suspended with the job and the handles of their
+     * suspend events
+     */
+    private transient List<ShardProcess> claimed;
+    private transient List<Object> claimedEvents;
+
+    /**
+     * If a migration home is running
+     */
+    private transient volatile boolean homing;
+
+    /**
+     * The constructor with parameters. The shards are created here,
+     * on the home node, and started by the first run of the job.
+     *
+     * @param args command line arguments from </code>ProcessManager
+     * <code>
+     */
+    public ShardedJob(String[] args) {
+        super(args);
+        phase = DONE;
+        carried = new ShardProcess[0];
+        if (arguments.size() < 3) {
+            System.out.println("ShardedJob[" + id + "]: " +
+                    "usage: run ShardedJob SHARDS INPUT OUTPUT [spread]");
+            return;
+        }
+        int count = Integer.parseInt(arguments.get(0));
+        if (count < 1) {
+            System.out.println("ShardedJob[" + id + "]: SHARDS must be positive");
+            return;
+        }
+        spread = arguments.size() > 3 && arguments.get(3).equals("spread");
+        home = ProcessManager.current().getNodeName();
+        File input = new File(arguments.get(1));
+        long[] bounds;
+        try {
+            bounds = bounds(input, count);
+        } catch (IOException e) {
+            System.out.println("ShardedJob[" + id + "]: can't read " + input + ": " + e);
+            return;
+        }
+        outputStream = new TransactionalFileOutputStream(new File(arguments.get(2)));
+        shardIds = new long[count];
+        carried = new ShardProcess[count];
+        for (int i = 0; i < count; i++) {
+            File output = shardOutput(i);
+            output.delete();
+            ShardProcess.marker(output).delete();
+            carried[i] = new ShardProcess(new String[] {input.getPath(),
+                    Long.toString(bounds[i]), Long.toString(bounds[i + 1]), output.getPath()});
+            carried[i].pin(home);
+            shardIds[i] = carried[i].getId();
+        }
+        phase = RUN;
+    }
+
+    /**
+     * Cut a file into ranges of about the same size, each starts after
+     * a line terminator
+     *
+     * @param input the file
+     * @param count the number of ranges
+     * @return the <code>count + 1</code> bounds of the ranges
+     * @throws IOException if the file can't be read
+     */
+    static long[] bounds(File input, int count) throws IOException {
+        long length = input.length();
+        long[] bounds = new long[count + 1];
+        bounds[count] = length;
+        RandomAccessFile file = new RandomAccessFile(input, "r");
+        try {
+            for (int i = 1; i < count; i++) {
+                long bound = Math.max(bounds[i - 1], length * i / count);
+                if (bound > 0 && bound < length) {
+                    // the range starts after the terminator at or after bound - 1
+                    file.seek(bound - 1);
+                    int b;
+                    while ((b = file.read()) >= 0 && b != '\n') {
+                    }
+                    bound = file.getFilePointer();
+                }
+                bounds[i] = bound;
+            }
+        } finally {
+            file.close();
+        }
+        return bounds;
+    }
+
+    /**
+     * Get the output of a shard
+     *
+     * @param shard the shard index
+     * @return the file
+     */
+    private File shardOutput(int shard) {
+        return new File(arguments.get(2) + ".shard" + shard);
+    }
+
+    /**
+     * Implementation of <code>processing()</code> from
+     * <code>MigratableProcess</code>.
+     * This function should loop with the <code>suspending</code>
+     * flag. The carried shards start first; when the job is suspended
+     * it takes its resident shards with it.
+     *
+     * @throws IOException if any IO error occurs.
+     */
+    @Override
+    public void processing() throws IOException {
+        try {
+            startCarried();
+            byte[] block = new byte[BLOCK];
+            while (!suspending && phase != DONE && !Thread.currentThread().isInterrupted()) {
+                switch (phase) {
+                case RUN:
+                    if (shardsDone()) {
+                        phase = HOME;
+                    } else {
+                        pause();
+                    }
+                    break;
+                case HOME:
+                    if (manager.getNodeName().equals(home)) {
+                        phase = COMBINE;
+                    } else {
+                        goHome();
+                        pause();
+                    }
+                    break;
+                case COMBINE:
+                    combine(block);
+                    break;
+                default:
+                    LOG.error("ShardedJob[" + id + "]: failed");
+                    phase = DONE;
+                }
+            }
+        } finally {
+            if (suspending) {
+                carry();
+            }
+        }
+    }
+
+    /**
+     * Start the carried shards on this node, and send them round robin
+     * to the members of the cluster the first time with
+     * <code>spread</code>
+     */
+    private void startCarried() {
+        ShardProcess[] shards = carried;
+        if (shards.length == 0) {
+            return;
+        }
+        carried = new ShardProcess[0];
+        for (ShardProcess shard : shards) {
+            shard.resume();
+            manager.startProcess(shard);
+        }
+        if (spread) {
+            spread = false;
+            final List<LoadSummary> targets = manager.getTargets();
+            final long[] ids = shardIds;
+            Thread thread = new Thread(new Runnable() {
+                public void run() {
+                    for (int i = 0; i < ids.length; i++) {
+                        // this node keeps one shard of every round
+                        int slot = i % (targets.size() + 1);
+                        if (slot > 0) {
+                            String node = targets.get(slot - 1).getNode();
+                            int split = node.lastIndexOf(':');
+                            manager.migrate(ids[i], node.substring(0, split),
+                                    Integer.parseInt(node.substring(split + 1)));
+                        }
+                    }
+                }
+            }, "shard-spread");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Check if all the shards are done. On the home node the marker
+     * of each shard and its output are checked, elsewhere the home
+     * node is asked for the markers.
+     *
+     * @return if they are done return <code>true</code>
+     */
+    private boolean shardsDone() {
+        if (manager.getNodeName().equals(home)) {
+            for (int i = 0; i < shardIds.length; i++) {
+                if (!shardDone(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        List<String> paths = new ArrayList<String>();
+        for (int i = 0; i < shardIds.length; i++) {
+            paths.add(ShardProcess.marker(shardOutput(i)).getPath());
+        }
+        try {
+            for (long length : ControlClient.stat(home, paths, STAT_TIMEOUT)) {
+                if (length <= 0) {
+                    return false;
+                }
+            }
+            return true;
+        } catch (IOException e) {
+            LOG.warn("ShardedJob[" + id + "]: can't ask " + home + ": " + e);
+            return false;
+        }
+    }
+
+    /**
+     * Check if the marker of a shard is here, and the output up to the
+     * length it holds
+     *
+     * @param shard the shard index
+     * @return if the shard is done return <code>true</code>
+     */
+    private boolean shardDone(int shard) {
+        File marker = ShardProcess.marker(shardOutput(shard));
+        if (marker.length() == 0) {
+            return false;
+        }
+        try {
+            RandomAccessFile file = new RandomAccessFile(marker, "r");
+            try {
+                String length = file.readLine();
+                return length != null && shardOutput(shard).length() >= Long.parseLong(length.trim());
+            } finally {
+                file.close();
+            }
+        } catch (IOException e) {
+            return false;
+        } catch (NumberFormatException e) {
+            // the marker is still arriving
+            return false;
+        }
+    }
+
+    /**
+     * Migrate the job to its home node, in another thread as the
+     * migration waits for the job to suspend
+     */
+    private void goHome() {
+        if (homing) {
+            return;
+        }
+        homing = true;
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                int split = home.lastIndexOf(':');
+                if (!manager.migrate(id, home.substring(0, split),
+                        Integer.parseInt(home.substring(split + 1)))) {
+                    homing = false;
+                }
+            }
+        }, "shard-home");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Copy a block of the shard output which is combined, or open the
+     * next one. A shard output is opened on the home node only.
+     */
+    private void combine(byte[] block) throws IOException {
+        if (combineStream == null) {
+            if (combined == shardIds.length) {
+                outputStream.close();
+                phase = DONE;
+            } else if (!manager.getNodeName().equals(home)) {
+                phase = HOME;
+            } else if (!shardDone(combined)) {
+                pause();
+            } else if (!shardOutput(combined).isFile()) {
+                // the range had no lines
+                ShardProcess.marker(shardOutput(combined)).delete();
+                combined++;
+            } else {
+                combineStream = new TransactionalFileInputStream(shardOutput(combined));
+            }
+            return;
+        }
+        int read = combineStream.read(block, 0, block.length);
+        if (read > 0) {
+            outputStream.write(block, 0, read);
+            return;
+        }
+        combineStream.close();
+        combineStream = null;
+        if (manager.getNodeName().equals(home)) {
+            ShardProcess.marker(shardOutput(combined)).delete();
+            shardOutput(combined).delete();
+        }
+        combined++;
+    }
+
+    /**
+     * Wait before the next check. An interrupt is kept, it stops the
+     * loop of the job.
+     */
+    private void pause() {
+        try {
+            Thread.sleep(POLL_MILLIS);
+        } catch (InterruptedException e) {
+            LOG.error("ShardedJob[" + id + "]: interrupted", e);
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Set the <code>suspending</code> flag of the job and of its
+     * resident shards which no one else is migrating. The job takes
+     * them when it breaks from its loop.
+     *
+     * @return the handle of the suspend event
+     */
+    @Override
+    public Object requestSuspend() {
+        Object event = super.requestSuspend();
+        if (manager == null || shardIds == null) {
+            return event;
+        }
+        synchronized (this) {
+            if (claimed == null) {
+                claimed = new ArrayList<ShardProcess>();
+                claimedEvents = new ArrayList<Object>();
+            }
+            for (long shardId : shardIds) {
+                MigratableProcess shard = manager.getProcess(shardId);
+                if (shard != null && manager.beginMigrating(shardId)) {
+                    claimed.add((ShardProcess) shard);
+                    claimedEvents.add(shard.requestSuspend());
+                }
+            }
+        }
+        return event;
+    }
+
+    /**
+     * Wait for the claimed shards and carry them. A shard which
+     * finished before it saw the flag is not carried, it is closed as
+     * a finished process, so its output is still forwarded.
+     */
+    private void carry() {
+        List<ShardProcess> shards;
+        List<Object> events;
+        synchronized (this) {
+            shards = claimed;
+            events = claimedEvents;
+            claimed = null;
+            claimedEvents = null;
+        }
+        if (shards == null || shards.isEmpty()) {
+            return;
+        }
+        List<ShardProcess> all = new ArrayList<ShardProcess>(Arrays.asList(carried));
+        boolean interrupted = false;
+        for (int i = 0; i < shards.size(); i++) {
+            ShardProcess shard = shards.get(i);
+            // a running shard can't be carried, so the wait goes on
+            while (true) {
+                try {
+                    shard.awaitSuspended(events.get(i));
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (shard.isDone()) {
+                shard.resume();
+                manager.finishProcess(shard);
+            } else {
+                all.add(shard);
+            }
+            manager.endMigrating(shard.getId());
+        }
+        carried = all.toArray(new ShardProcess[all.size()]);
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * The streams of the job, of the shards it carries and of its
+     * resident shards, so the job is active while they are
+     *
+     * @return the transactional streams
+     */
+    @Override
+    public List<TransactionalStream> getTransactionalStreams() {
+        List<TransactionalStream> streams = super.getTransactionalStreams();
+        ShardProcess[] shards = carried;
+        if (shards == null) {
+            return streams;
+        }
+        for (ShardProcess shard : shards) {
+            streams.addAll(shard.getTransactionalStreams());
+        }
+        if (manager != null && shardIds != null) {
+            for (long shardId : shardIds) {
+                MigratableProcess shard = manager.getProcess(shardId);
+                if (shard != null && !Arrays.asList(shards).contains(shard)) {
+                    streams.addAll(shard.getTransactionalStreams());
+                }
+            }
+        }
+        return streams;
+    }
+}
@@ -1,16 +1,7 @@
-package javapm.process; 
+package javapm.process;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
-import java.io.DataInputStream;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.LineNumberReader;
-import java.io.OutputStreamWriter;
-import java.io.PrintStream;
-import java.util.ArrayList;
-import java.util.Arrays;
 
 import javapm.io.TransactionalFileInputStream;
 import javapm.io.TransactionalFileOutputStream;
@@ -18,9 +9,19 @@ import javapm.io.TransactionalFileOutputStream;
 /**
  * The tail process example of <code>MigratableProcess</code>
  * Write the last few lines of a file to the output file.
- * This process demonstrates the flexibility of our framework,
- * to open and close multiple times in a process.
- * 
+ * <p>
+ * The file is scanned backwards from its end in blocks of
+ * <code>BLOCK</code> bytes, counting the line terminators, until the
+ * start of the last lines is found; then the lines are copied. So the
+ * cost depends on the size of the output, not of the file. With
+ * <code>follow</code> the process goes on copying what is appended to
+ * the file, like <code>tail -f</code>; after a migration it follows
+ * the copy of the file on its new node.
+ * <p>
+ * The scan position and the number of lines found are fields of the
+ * process, so it can be suspended and migrated between two blocks,
+ * in the middle of the search.
+ *
  * @author Vasu Vardhan(vardhan)
  * @author Pratyush Kumar(pratyush)
  * @see javapm.process.MigratableProcess
@@ -28,118 +29,196 @@ import javapm.io.TransactionalFileOutputStream;
  * @see javapm.io.TransactionalFileOutputStream
  */
 public class TailProcess extends MigratableProcess{
-	
+
+    /**
+     * The steps of the process
+     */
+    private static final int SCAN = 0;
+    private static final int COPY = 1;
+    private static final int FOLLOW = 2;
+    private static final int DONE = 3;
+
+    /**
+     * The size of the blocks read, backwards and forwards
+     */
+    private static final int BLOCK = 64 * 1024;
+
+    /**
+     * The pause of <code>follow</code> when nothing was appended
+     */
+    private static final long FOLLOW_MILLIS = 500;
+
 	/**
 	 * Which step is the process in.
 	 */
-	private int step;
-	
-	/**
-	 * the number of lines in the input file
-	 */
-    private int fileLine;
-    
+	private volatile int step;
+
+    /**
+     * the number of lines to output
+     */
+    private int outputLine;
+
     /**
-     * the current line being processed
+     * If the process copies the lines appended to the file
      */
-    private int lineCount;
-    
+    private boolean follow;
+
     /**
-     * the number of lines to output 
+     * The end of the file when the scan started, the end of the copy
      */
-    private int outputLine;
-    
+    private long fileEnd;
+
+    /**
+     * The start of the part of the file not scanned yet
+     */
+    private long scanEnd;
+
+    /**
+     * The number of line terminators found by the scan, without the
+     * one which ends the file
+     */
+    private int newlines;
+
 	TransactionalFileInputStream inputStream;
-	
+
 	TransactionalFileOutputStream outputStream;
-	
 
     /**
      * The constructor with parameters.
-     * 
+     *
      * @param args command line arguments from </code>ProcessManager
      * <code>
-     * @throws Exception if IOException
      */
     public TailProcess(String[] args){
         super(args);
         if(arguments.size() < 3){
-            System.out.println("GrepProcess[" + id + "]: " +
-                               "usage: run TailProcess OUTPUTLINE INPUT OUTPUT");
+            System.out.println("TailProcess[" + id + "]: " +
+                               "usage: run TailProcess OUTPUTLINE INPUT OUTPUT [follow]");
+            step = DONE;
             return;
         }
         outputLine = Integer.parseInt(arguments.get(0));
-        
+        follow = arguments.size() > 3 && arguments.get(3).equals("follow");
+
         inputStream = new TransactionalFileInputStream(new File(arguments.get(1)));
         outputStream = new TransactionalFileOutputStream(new File(arguments.get(2)));
-        step = 0;
-        fileLine = 0;
-        lineCount = 0;
+        step = SCAN;
+        fileEnd = -1;
     }
 
-
-
     /**
      * Implementation of <code>processing()</code> from
      * <code>MigratableProcess</code>.
      * This function should loop with the <code>suspending</code>
-     * and <code>dead</code> flag.
-     * First count the number of lines in the input file. Then
-     * open the same file again and seek to the output point.
-     * Finally, output the tail of the file.
+     * flag. Each pass scans or copies one block.
      * The process can resume to a particular step after migration.
      *
      * @throws IOException if any IO error occurs.
      */
     @Override
     public void processing() throws IOException {
-    	DataInputStream   reader = new DataInputStream(inputStream);
-        PrintStream  writer = new PrintStream(outputStream);
-        String line = null;
-       
-
-         while(!suspending){
-        	switch(step) {
-        	case 0:
-        		if((line = reader.readLine()) != null)
-        			fileLine++;
-        		else {
-        			reader.close();
-        			inputStream.close();
-        			inputStream = new TransactionalFileInputStream(new File(arguments.get(1)));
-        			reader = new DataInputStream(inputStream);
-        			step++;
-        		}
-        		break;
-        	case 1:
-        		if(lineCount < fileLine - outputLine) {
-	        		reader.readLine();
-	        		lineCount++;
-        		}
-        		else {
-        			step++;
-        		}
-        		break;
-        	case 2:
-        		if((line = reader.readLine()) != null) {
-        			writer.println(line);
-        			writer.flush();
-        		}
-        		else {
-        			step++;
-        		}
-        		break;
-        	default:
-        		LOG.error("TailProcess[" + id + "]: failed");
-        		step = 3;
-        	}
-            try {
-                Thread.sleep(1000);
-            } catch (InterruptedException e) {
-                LOG.error("GrepProcess[" + id + "]: interrupted", e);
+        byte[] block = new byte[BLOCK];
+        while(!suspending && step != DONE){
+            switch(step) {
+            case SCAN:
+                scan(block);
+                break;
+            case COPY:
+                if (copy(block, fileEnd) < 0 || inputStream.getOffset() >= fileEnd) {
+                    step = follow ? FOLLOW : DONE;
+                }
+                break;
+            case FOLLOW:
+                long length = inputStream.getFile().length();
+                if (length < inputStream.getOffset()) {
+                    // truncated, follow the new content
+                    inputStream.seek(0);
+                } else if (length > inputStream.getOffset()) {
+                    copy(block, length);
+                } else {
+                    try {
+                        Thread.sleep(FOLLOW_MILLIS);
+                    } catch (InterruptedException e) {
+                        LOG.error("TailProcess[" + id + "]: interrupted", e);
+                    }
+                }
+                break;
+            default:
+                LOG.error("TailProcess[" + id + "]: failed");
+                step = DONE;
+            }
+        }
+        if (step == DONE && inputStream != null) {
+            inputStream.close();
+            outputStream.close();
+        }
+    }
+
+    /**
+     * A process which follows its file waits for it to grow
+     *
+     * @return if it follows return <code>true</code>
+     */
+    @Override
+    public boolean isWaitingForInput() {
+        return step == FOLLOW;
+    }
+
+    /**
+     * Scan the block before <code>scanEnd</code> backwards. When the
+     * line terminator before the last <code>outputLine</code> lines
+     * is found, or the start of the file, the copy starts after it.
+     */
+    private void scan(byte[] block) throws IOException {
+        if (fileEnd < 0) {
+            fileEnd = inputStream.getFile().length();
+            // the terminator of the last line doesn't start a line
+            scanEnd = Math.max(0, fileEnd - 1);
+            if (outputLine <= 0) {
+                inputStream.seek(fileEnd);
+                step = follow ? FOLLOW : DONE;
+                return;
+            }
+        }
+        long start = Math.max(0, scanEnd - block.length);
+        int length = (int) (scanEnd - start);
+        inputStream.seek(start);
+        for (int n = 0; n < length; ) {
+            int read = inputStream.read(block, n, length - n);
+            if (read < 0) {
+                throw new IOException(inputStream.getFile() + " is shorter than " + scanEnd);
             }
-        	
-            if(step == 3)break;
+            n += read;
+        }
+        for (int i = length - 1; i >= 0; i--) {
+            if (block[i] == '\n' && ++newlines >= outputLine) {
+                inputStream.seek(start + i + 1);
+                step = COPY;
+                return;
+            }
+        }
+        scanEnd = start;
+        if (start == 0) {
+            inputStream.seek(0);
+            step = COPY;
+        }
+    }
+
+    /**
+     * Copy a block from the offset of the input, at most up to
+     * <code>end</code>
+     *
+     * @return the number of bytes copied, -1 if the file ended before
+     */
+    private int copy(byte[] block, long end) throws IOException {
+        int length = (int) Math.min(block.length, end - inputStream.getOffset());
+        if (length <= 0) {
+            return 0;
+        }
+        int read = inputStream.read(block, 0, length);
+        if (read > 0) {
+            outputStream.write(block, 0, read);
         }
+        return read;
     }
 }
@@ -0,0 +1,55 @@
+package javapm.process;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * The Unix domain socket calls of the local transport. They need
+ * Java 16, this class is only loaded if
+ * <code>LocalTransport.isAvailable()</code> is true.
+ *
+ * @author Vasu Vardhan(vardhan)
+ * @author Pratyush Kumar(pratyush)
+ * @see javapm.process.LocalTransport
+ */
+final class UnixSockets {
+    private UnixSockets() {
+    }
+
+    /**
+     * Bind a Unix domain server socket. A stale socket file of an
+     * earlier run is removed first.
+     *
+     * @param file the socket file
+     * @return the server channel
+     * @throws IOException if the socket can't be bound
+     */
+    static ServerSocketChannel bind(File file) throws IOException {
+        file.delete();
+        ServerSocketChannel channel = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        channel.bind(UnixDomainSocketAddress.of(file.getPath()));
+        return channel;
+    }
+
+    /**
+     * Connect a Unix domain socket
+     *
+     * @param file the socket file
+     * @return the connected channel
+     * @throws IOException if nobody listens on the file
+     */
+    static SocketChannel connect(File file) throws IOException {
+        SocketChannel channel = SocketChannel.open(StandardProtocolFamily.UNIX);
+        try {
+            channel.connect(UnixDomainSocketAddress.of(file.getPath()));
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return channel;
+    }
+}